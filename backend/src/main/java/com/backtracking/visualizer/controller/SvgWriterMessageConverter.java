@@ -0,0 +1,42 @@
+package com.backtracking.visualizer.controller;
+
+import com.backtracking.visualizer.service.SvgStore;
+import com.backtracking.visualizer.util.SvgTreeWriter;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.stereotype.Component;
+import java.io.IOException;
+
+// Lets a handler answer with an SvgStore.SvgWriter as the body: the drawing is written
+// straight into the response once the handler's future completes, so an image returned
+// asynchronously is still streamed rather than rendered into a buffer first
+@Component
+class SvgWriterMessageConverter extends AbstractHttpMessageConverter<SvgStore.SvgWriter> {
+
+    SvgWriterMessageConverter() {
+        super(MediaType.parseMediaType(SvgTreeWriter.MEDIA_TYPE));
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return SvgStore.SvgWriter.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected SvgStore.SvgWriter readInternal(Class<? extends SvgStore.SvgWriter> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("An SVG drawing cannot be read from a request", inputMessage);
+    }
+
+    @Override
+    protected void writeInternal(SvgStore.SvgWriter drawing, HttpOutputMessage outputMessage) throws IOException {
+        drawing.write(outputMessage.getBody());
+    }
+}
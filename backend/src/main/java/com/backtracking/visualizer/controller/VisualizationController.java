@@ -4,77 +4,873 @@ import com.backtracking.visualizer.dto.VisualizationRequest;
 import com.backtracking.visualizer.dto.VisualizationResponse;
 import com.backtracking.visualizer.service.VisualizationService;
 import com.backtracking.visualizer.service.PermutationTraceService;
+import com.backtracking.visualizer.service.BacktrackingTraceService;
+import com.backtracking.visualizer.service.BatchTraceService;
+import com.backtracking.visualizer.service.ConcurrencyLimiter;
 import com.backtracking.visualizer.service.CodeTraceGeneratorService;
+import com.backtracking.visualizer.service.GraphVizService;
+import com.backtracking.visualizer.service.JobQueue;
+import com.backtracking.visualizer.service.SearchTreeStore;
+import com.backtracking.visualizer.service.SvgStore;
+import com.backtracking.visualizer.service.TimelineStore;
+import com.backtracking.visualizer.service.TraceStore;
+import com.backtracking.visualizer.service.WorkerPool;
+import com.backtracking.visualizer.dto.BatchResult;
+import com.backtracking.visualizer.dto.BatchTraceRequest;
+import com.backtracking.visualizer.dto.CallGraphRequest;
 import com.backtracking.visualizer.dto.PermutationTraceRequest;
+import com.backtracking.visualizer.dto.ProblemTraceRequest;
 import com.backtracking.visualizer.dto.GenericTraceRequest;
+import com.backtracking.visualizer.dto.JobStatus;
+import com.backtracking.visualizer.dto.StoredTraceResponse;
+import com.backtracking.visualizer.dto.TraceOptions;
 import com.backtracking.visualizer.dto.TraceStep;
+import com.backtracking.visualizer.dto.TreeView;
+import com.backtracking.visualizer.dto.TreeViewRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import com.backtracking.visualizer.util.CodeExecutor;
+import com.backtracking.visualizer.util.BinaryTraceWriter;
+import com.backtracking.visualizer.util.MappedTrace;
+import com.backtracking.visualizer.util.SearchTree;
+import com.backtracking.visualizer.util.SearchTreeSummary;
+import com.backtracking.visualizer.util.StreamingTraceWriter;
+import com.backtracking.visualizer.util.Submission;
+import com.backtracking.visualizer.util.SvgTreeWriter;
+import com.backtracking.visualizer.util.TraceHandoff;
+import com.backtracking.visualizer.util.TraceRunner;
+import com.backtracking.visualizer.util.TraceSink;
+import com.backtracking.visualizer.util.TraceSteps;
+import com.backtracking.visualizer.util.TraceTimeline;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.WebAsyncTask;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.Base64;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 @Slf4j
 @RestController
 @RequestMapping("/api")
 @RequiredArgsConstructor
-@CrossOrigin(origins = "http://localhost:3000")
+@CrossOrigin(origins = "http://localhost:3000", exposedHeaders = {"X-Trace-Truncated", "X-Timeline-Id", "X-Next-Step", "Location", "Retry-After"})
 public class VisualizationController {
+    private static final long MAX_JOB_WAIT_SECONDS = 25;
+    // Request header asking for the collected trace to be kept for /timelines/{id}/steps/{step}
+    private static final String TIMELINE_HEADER = "X-Timeline";
 
     private final VisualizationService visualizationService;
     private final PermutationTraceService permutationTraceService;
+    private final BacktrackingTraceService backtrackingTraceService;
     private final CodeTraceGeneratorService codeTraceGeneratorService;
+    private final TraceStore traceStore;
+    private final WorkerPool workerPool;
+    private final GraphVizService graphVizService;
+    private final SearchTreeStore searchTreeStore;
+    private final SvgStore svgStore;
+    private final TimelineStore timelineStore;
+    private final BatchTraceService batchTraceService;
+    private final JobQueue jobQueue;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final ObjectMapper objectMapper;
 
+    // With async=true the visualization runs as a background job (see JobQueue) and the
+    // response is its status; the result is then a URL, or a data URL when that was asked for.
+    // Otherwise it runs once the concurrency limiter admits it, or is answered 429; the
+    // request thread is released while it waits and while the code runs.
     @PostMapping
-    public ResponseEntity<?> visualize(@RequestBody VisualizationRequest request) {
+    public CompletableFuture<ResponseEntity<?>> visualize(@RequestBody VisualizationRequest request,
+                                                          @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+                                                          @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+                                                          @RequestParam(defaultValue = "false") boolean async,
+                                                          @RequestParam(required = false) JobStatus.Priority priority) {
+        log.info("Received visualization request");
+        if (request.getCode() == null || request.getCode().trim().isEmpty()) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest()
+                    .body(new ErrorResponse("No code provided")));
+        }
+        if (async) {
+            VisualizationRequest.Output output = request.effectiveOutput(null) == VisualizationRequest.Output.DATA_URL
+                ? VisualizationRequest.Output.DATA_URL : VisualizationRequest.Output.URL;
+            return CompletableFuture.completedFuture(submitJob("visualization", priority, () -> {
+                SearchTree jobTree = join(visualizationService.buildSearchTree(request.getCode()));
+                byte[] jobGraph = request.effectiveRenderer() == VisualizationRequest.Renderer.GRAPHVIZ
+                    ? visualizationService.renderGraph(jobTree) : null;
+                return visualizationResponse(output, jobTree, jobGraph);
+            }));
+        }
+        return admitted(() -> visualizationService.buildSearchTree(request.getCode())
+            .handle((tree, error) -> visualization(request, accept, acceptEncoding, tree, error)));
+    }
+
+    // Runs on the thread that finished the run
+    private ResponseEntity<?> visualization(VisualizationRequest request, String accept, String acceptEncoding,
+                                            SearchTree tree, Throwable error) {
+        // GraphViz renders are cached whole, so they are rendered up front; the tree renderer
+        // writes as it goes
+        byte[] graph = null;
         try {
-            log.info("Received visualization request");
-            if (request.getCode() == null || request.getCode().trim().isEmpty()) {
+            if (error != null) {
+                throw unwrap(error);
+            }
+            if (request.effectiveRenderer() == VisualizationRequest.Renderer.GRAPHVIZ) {
+                graph = visualizationService.renderGraph(tree);
+            }
+        } catch (RejectedExecutionException e) {
+            return tooManyRequests(e.getMessage(), 1);
+        } catch (Throwable e) {
+            log.error("Error generating visualization", e);
+            return ResponseEntity.badRequest()
+                    .body(new ErrorResponse("Failed to generate visualization: " + e.getMessage()));
+        }
+
+        log.info("Drawing search tree of {} calls", tree.size());
+        VisualizationRequest.Output output = request.effectiveOutput(accept);
+        if (output != VisualizationRequest.Output.INLINE) {
+            try {
+                return ResponseEntity.ok(visualizationResponse(output, tree, graph));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        // Drawn straight into the response (see SvgWriterMessageConverter); once writing
+        // starts, the response is the image
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+            .contentType(MediaType.parseMediaType(SvgTreeWriter.MEDIA_TYPE))
+            .varyBy(HttpHeaders.ACCEPT_ENCODING);
+        SvgStore.SvgWriter drawing = drawing(tree, graph);
+        if (!acceptsGzip(acceptEncoding)) {
+            return response.body(drawing);
+        }
+        return response.header(HttpHeaders.CONTENT_ENCODING, "gzip").body((SvgStore.SvgWriter) out -> {
+            GZIPOutputStream gzip = new GZIPOutputStream(out, 1 << 16);
+            drawing.write(gzip);
+            gzip.finish();
+        });
+    }
+
+    // graph is the GraphViz render, or null for the tree renderer
+    private SvgStore.SvgWriter drawing(SearchTree tree, byte[] graph) {
+        return graph != null ? out -> out.write(graph) : out -> visualizationService.writeTreeSvg(tree, out);
+    }
+
+    private VisualizationResponse visualizationResponse(VisualizationRequest.Output output, SearchTree tree, byte[] graph)
+            throws IOException {
+        if (output == VisualizationRequest.Output.URL) {
+            SvgStore.StoredSvg stored = svgStore.store(drawing(tree, graph));
+            return new VisualizationResponse("/api/visualizations/" + stored.id());
+        }
+        byte[] svg = graph;
+        if (svg == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            drawing(tree, null).write(out);
+            svg = out.toByteArray();
+        }
+        return new VisualizationResponse("data:image/svg+xml;base64," + Base64.getEncoder().encodeToString(svg));
+    }
+
+    // A stored image. Its ID is the hash of its content, so it can be cached for good; the
+    // gzipped and plain representations get their own strong ETags.
+    @GetMapping("/visualizations/{id}")
+    public ResponseEntity<byte[]> getVisualization(@PathVariable String id,
+                                                   @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+                                                   @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) throws IOException {
+        SvgStore.StoredSvg image = svgStore.find(id)
+            .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown or expired visualization " + id));
+        boolean gzip = acceptsGzip(acceptEncoding);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setETag("\"" + id + (gzip ? "-gzip" : "") + "\"");
+        headers.setCacheControl(CacheControl.maxAge(365, TimeUnit.DAYS).cachePublic().immutable());
+        headers.setVary(List.of(HttpHeaders.ACCEPT_ENCODING));
+        if (matchesETag(ifNoneMatch, headers.getETag())) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).headers(headers).build();
+        }
+        headers.setContentType(MediaType.parseMediaType(SvgTreeWriter.MEDIA_TYPE));
+        if (gzip) {
+            headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+            return ResponseEntity.ok().headers(headers).body(image.gzipped());
+        }
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(image.gzipped()))) {
+            return ResponseEntity.ok().headers(headers).body(in.readAllBytes());
+        }
+    }
+
+    // Runs the code and keeps its search tree; the response is the top of the tree with small
+    // and deep subtrees collapsed into aggregates, which GET /api/tree/{id} expands
+    @PostMapping("/tree")
+    public CompletableFuture<ResponseEntity<?>> searchTree(@RequestBody TreeViewRequest request) {
+        if (request.getCode() == null || request.getCode().trim().isEmpty()) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(new ErrorResponse("No code provided")));
+        }
+        return admitted(() -> visualizationService.buildSearchTree(request.getCode()).handle((tree, error) -> {
+            SearchTreeSummary summary;
+            try {
+                if (error != null) {
+                    throw unwrap(error);
+                }
+                summary = new SearchTreeSummary(tree);
+            } catch (RejectedExecutionException e) {
+                return tooManyRequests(e.getMessage(), 1);
+            } catch (Throwable e) {
+                log.error("Error building search tree", e);
                 return ResponseEntity.badRequest()
-                        .body(new ErrorResponse("No code provided"));
+                        .body(new ErrorResponse("Failed to build search tree: " + e.getMessage()));
             }
+            String id = searchTreeStore.store(summary);
+            return ResponseEntity.ok(summary.view(id, 0, 1, request));
+        }));
+    }
 
-            String visualizationUrl = visualizationService.generateVisualization(request.getCode());
-            log.info("Successfully generated visualization" + visualizationUrl);
-            return ResponseEntity.ok(new VisualizationResponse(visualizationUrl));
+    // The slice of a stored tree starting at node, e.g. an aggregate's subtrees
+    @GetMapping("/tree/{id}")
+    public TreeView expandSearchTree(@PathVariable String id,
+                                     @RequestParam(defaultValue = "0") int node,
+                                     @RequestParam(defaultValue = "1") int siblings,
+                                     @RequestParam(required = false) Integer maxNodes,
+                                     @RequestParam(required = false) Integer collapseBelow,
+                                     @RequestParam(required = false) Integer maxDepth) {
+        SearchTreeSummary summary = searchTreeStore.find(id)
+            .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown or expired tree " + id));
+        TreeViewRequest limits = new TreeViewRequest();
+        limits.setMaxNodes(maxNodes);
+        limits.setCollapseBelow(collapseBelow);
+        limits.setMaxDepth(maxDepth);
+        try {
+            return summary.view(id, node, siblings, limits);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    // Methods of the submission, what they call and which of them are recursive, worked out
+    // from the source alone
+    @PostMapping("/callgraph")
+    public ResponseEntity<?> callGraph(@RequestBody CallGraphRequest request) {
+        if (request.getCode() == null || request.getCode().trim().isEmpty()) {
+            return ResponseEntity.badRequest().body(new ErrorResponse("No code provided"));
+        }
+        try {
+            return ResponseEntity.ok(codeTraceGeneratorService.analyzeCallGraph(request.getCode()));
         } catch (Exception e) {
-            log.error("Error generating visualization", e);
+            log.error("Error analyzing call graph", e);
             return ResponseEntity.badRequest()
-                    .body(new ErrorResponse("Failed to generate visualization: " + e.getMessage()));
+                    .body(new ErrorResponse("Failed to analyze call graph: " + e.getMessage()));
         }
     }
 
+    // With from or limit set, only that page of the trace is generated; X-Next-Step names the
+    // step the next page starts at
     @PostMapping("/trace/permutations")
-    public ResponseEntity<?> tracePermutations(@RequestBody PermutationTraceRequest request) {
+    public ResponseEntity<?> tracePermutations(@RequestBody PermutationTraceRequest request,
+                                               @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+                                               @RequestHeader(value = TIMELINE_HEADER, defaultValue = "false") boolean keepTimeline,
+                                               @RequestParam(required = false) Integer from,
+                                               @RequestParam(required = false) Integer limit) {
         try {
-            List<TraceStep> trace = permutationTraceService.generatePermutationTrace(request.getNums());
-            log.info("Successfully generated permutation trace" + trace);
-            return ResponseEntity.ok(trace);
+            if (from != null || limit != null) {
+                TraceSteps.Page page = permutationTraceService.pagePermutationTrace(request.getNums(),
+                    request.effectiveAlgorithm(), from == null ? 1 : from, limit == null ? TraceStore.MAX_PAGE_STEPS : limit,
+                    options(request.getOptions()));
+                ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+                if (page.nextStep() != null) {
+                    response.header("X-Next-Step", String.valueOf(page.nextStep()));
+                }
+                return response.body(page.steps());
+            }
+            if (BinaryTraceWriter.wantsBinary(accept)) {
+                return binaryResponse(writer -> permutationTraceService.streamPermutationTrace(request.getNums(),
+                        request.effectiveAlgorithm(), request.isParallel(), options(request.getOptions()), writer),
+                    HttpStatus.BAD_REQUEST, "Failed to generate permutation trace: ");
+            }
+            List<TraceStep> trace = permutationTraceService.generatePermutationTrace(request.getNums(),
+                request.effectiveAlgorithm(), request.isParallel(), options(request.getOptions()));
+            log.info("Successfully generated permutation trace of {} steps", trace.size());
+            return traceResponse(trace, keepTimeline);
         } catch (Exception e) {
             log.error("Error generating permutation trace", e);
             return ResponseEntity.badRequest().body(new ErrorResponse("Failed to generate permutation trace: " + e.getMessage()));
         }
     }
 
+    // Step, leaf and backtrack counts of the full trace, computed without generating it
+    @PostMapping("/trace/permutations/summary")
+    public ResponseEntity<?> summarizePermutations(@RequestBody PermutationTraceRequest request) {
+        try {
+            return ResponseEntity.ok(permutationTraceService.summarize(request.getNums(), request.effectiveAlgorithm()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(new ErrorResponse("Failed to count permutation trace: " + e.getMessage()));
+        }
+    }
+
+    // Streaming variant: steps are written as NDJSON (or server-sent events when the client
+    // accepts text/event-stream, or the binary format of BinaryTraceWriter) while the
+    // permutations are still being generated
+    @PostMapping(value = "/trace/permutations/stream",
+                 produces = {StreamingTraceWriter.NDJSON, StreamingTraceWriter.EVENT_STREAM, BinaryTraceWriter.MEDIA_TYPE})
+    public ResponseEntity<StreamingResponseBody> streamPermutations(@RequestBody PermutationTraceRequest request,
+                                                                    @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept) {
+        String contentType = streamContentType(accept);
+        StreamingResponseBody body = out -> {
+            TraceSink writer = streamWriter(out, contentType);
+            try {
+                permutationTraceService.streamPermutationTrace(request.getNums(), request.effectiveAlgorithm(),
+                    request.isParallel(), options(request.getOptions()), writer);
+            } catch (RuntimeException e) {
+                log.error("Error streaming permutation trace", e);
+                writer.error("Failed to generate permutation trace: " + e.getMessage());
+            }
+        };
+        return streamingResponse(body, contentType);
+    }
+
+    // Built-in engines (see BacktrackingTraceService.Problem), with the same modes as the
+    // permutation endpoints
+    @PostMapping("/trace/{problem}")
+    public ResponseEntity<?> traceProblem(@PathVariable String problem, @RequestBody ProblemTraceRequest request,
+                                          @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+                                          @RequestHeader(value = TIMELINE_HEADER, defaultValue = "false") boolean keepTimeline,
+                                          @RequestParam(required = false) Integer from,
+                                          @RequestParam(required = false) Integer limit) {
+        BacktrackingTraceService.Problem engine = problem(problem);
+        try {
+            if (from != null || limit != null) {
+                TraceSteps.Page page = backtrackingTraceService.pageTrace(engine, request,
+                    from == null ? 1 : from, limit == null ? TraceStore.MAX_PAGE_STEPS : limit, options(request.getOptions()));
+                ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+                if (page.nextStep() != null) {
+                    response.header("X-Next-Step", String.valueOf(page.nextStep()));
+                }
+                return response.body(page.steps());
+            }
+            if (BinaryTraceWriter.wantsBinary(accept)) {
+                return binaryResponse(writer -> backtrackingTraceService.streamTrace(engine, request, options(request.getOptions()), writer),
+                    HttpStatus.BAD_REQUEST, "Failed to generate " + problem + " trace: ");
+            }
+            return traceResponse(backtrackingTraceService.generateTrace(engine, request, options(request.getOptions())),
+                keepTimeline);
+        } catch (Exception e) {
+            log.error("Error generating {} trace", problem, e);
+            return ResponseEntity.badRequest().body(new ErrorResponse("Failed to generate " + problem + " trace: " + e.getMessage()));
+        }
+    }
+
+    @PostMapping(value = "/trace/{problem}/stream",
+                 produces = {StreamingTraceWriter.NDJSON, StreamingTraceWriter.EVENT_STREAM, BinaryTraceWriter.MEDIA_TYPE})
+    public ResponseEntity<StreamingResponseBody> streamProblem(@PathVariable String problem, @RequestBody ProblemTraceRequest request,
+                                                               @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept) {
+        BacktrackingTraceService.Problem engine = problem(problem);
+        String contentType = streamContentType(accept);
+        StreamingResponseBody body = out -> {
+            TraceSink writer = streamWriter(out, contentType);
+            try {
+                backtrackingTraceService.streamTrace(engine, request, options(request.getOptions()), writer);
+            } catch (RuntimeException e) {
+                log.error("Error streaming {} trace", problem, e);
+                writer.error("Failed to generate " + problem + " trace: " + e.getMessage());
+            }
+        };
+        return streamingResponse(body, contentType);
+    }
+
+    // Runs the whole search without keeping any steps: step and per-action counts, solutions
+    // and the deepest level reached
+    @PostMapping("/trace/{problem}/stats")
+    public ResponseEntity<?> problemStats(@PathVariable String problem, @RequestBody ProblemTraceRequest request) {
+        BacktrackingTraceService.Problem engine = problem(problem);
+        try {
+            return ResponseEntity.ok(backtrackingTraceService.stats(engine, request, options(request.getOptions())));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(new ErrorResponse("Failed to run " + problem + ": " + e.getMessage()));
+        }
+    }
+
+    // The submission runs on a trace runner thread; the request thread is released until the
+    // run completes, and while it waits for the concurrency limiter
     @PostMapping("/trace/generic")
-    public ResponseEntity<?> generateGenericTrace(@RequestBody Map<String, String> request) {
+    public CompletableFuture<ResponseEntity<?>> generateGenericTrace(@RequestBody GenericTraceRequest request,
+                                                                     @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+                                                                     @RequestHeader(value = TIMELINE_HEADER, defaultValue = "false") boolean keepTimeline,
+                                                                     @RequestParam(defaultValue = "false") boolean async,
+                                                                     @RequestParam(required = false) JobStatus.Priority priority) {
+        String code = request.getCode();
+        if (code == null || code.trim().isEmpty()) {
+            return CompletableFuture.completedFuture(
+                ResponseEntity.badRequest().body(Map.of("message", "No code provided for generic tracing")));
+        }
+
+        // Execute the code and capture the trace
+        boolean autoTrace = request.getAutoTrace() != null
+            ? request.getAutoTrace()
+            : !CodeExecutor.usesManualCapture(code);
+        TraceOptions options = options(request.getOptions());
+        if (async) {
+            // The result is the JSON trace whatever the Accept header says
+            return CompletableFuture.completedFuture(submitJob("generic", priority,
+                () -> join(executeCodeAsync(code, autoTrace, options))));
+        }
+        return admitted(() -> {
+            if (BinaryTraceWriter.wantsBinary(accept)) {
+                BinaryTraceWriter writer = BinaryTraceWriter.buffered();
+                return streamCodeAsync(code, autoTrace, options, writer).handle((ignored, error) -> {
+                    Throwable e = unwrap(error);
+                    return binaryResult(writer, e, e instanceof RejectedExecutionException
+                        ? HttpStatus.TOO_MANY_REQUESTS : HttpStatus.INTERNAL_SERVER_ERROR, "Error executing code: ");
+                });
+            }
+            return executeCodeAsync(code, autoTrace, options).handle((trace, error) -> {
+                if (error != null) {
+                    Throwable e = unwrap(error);
+                    if (e instanceof RejectedExecutionException) {
+                        return tooManyRequests(e.getMessage(), 1);
+                    }
+                    log.error("Error executing code for generic trace", e);
+                    return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                        .body(Map.of("message", "Error executing code: " + e.getMessage()));
+                }
+                return traceResponse(trace, keepTimeline);
+            });
+        });
+    }
+
+    // Admitted by the concurrency limiter like /trace/generic; the permit is held until the
+    // stream ends rather than until the response starts
+    @PostMapping(value = "/trace/generic/stream",
+                 produces = {StreamingTraceWriter.NDJSON, StreamingTraceWriter.EVENT_STREAM, BinaryTraceWriter.MEDIA_TYPE})
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> streamGenericTrace(@RequestBody GenericTraceRequest request,
+                                                                    @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept) {
+        String code = request.getCode();
+        if (code == null || code.trim().isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "No code provided for generic tracing");
+        }
+        boolean autoTrace = request.getAutoTrace() != null
+            ? request.getAutoTrace()
+            : !CodeExecutor.usesManualCapture(code);
+        String contentType = streamContentType(accept);
+        TraceOptions options = options(request.getOptions());
+
+        // The run thread only queues steps; this thread alone writes them to the response. A
+        // client that goes away cancels the run.
+        return concurrencyLimiter.acquire().handle((permit, error) -> {
+            if (error != null) {
+                ConcurrencyLimiter.LimitExceededException e = (ConcurrencyLimiter.LimitExceededException) unwrap(error);
+                return streamedTooManyRequests(e.getMessage(), e.getRetryAfterSeconds());
+            }
+            StreamingResponseBody body = out -> {
+                try {
+                    TraceSink writer = streamWriter(out, contentType);
+                    TraceHandoff handoff = new TraceHandoff();
+                    CompletableFuture<Void> run = streamCodeAsync(code, autoTrace, options, handoff);
+                    try {
+                        handoff.drainTo(writer, run);
+                    } catch (IOException | RuntimeException e) {
+                        run.cancel(true);
+                        throw e;
+                    }
+                    try {
+                        run.join();
+                    } catch (CompletionException e) {
+                        Throwable cause = unwrap(e);
+                        log.error("Error executing code for streamed generic trace", cause);
+                        writer.error("Error executing code: " + cause.getMessage());
+                    }
+                } finally {
+                    permit.release();
+                }
+            };
+            return streamingResponse(body, contentType);
+        });
+    }
+
+    // Many jobs in one request, run a few at a time (see BatchTraceService); the results come
+    // back in the order of the jobs once all are done. The request thread is not held
+    // meanwhile, and the batch has its own timeout, trace.batch.timeout-millis, instead of
+    // the server's async timeout.
+    @PostMapping("/trace/batch")
+    public DeferredResult<ResponseEntity<?>> traceBatch(@RequestBody BatchTraceRequest request) {
+        DeferredResult<ResponseEntity<?>> response = new DeferredResult<>(batchTraceService.timeoutMillis());
         try {
-            String code = request.get("code");
-            if (code == null || code.trim().isEmpty()) {
-                return ResponseEntity.badRequest().body(Map.of("message", "No code provided for generic tracing"));
+            batchTraceService.validate(request);
+        } catch (IllegalArgumentException e) {
+            response.setResult(ResponseEntity.badRequest().body(new ErrorResponse("Failed to run batch: " + e.getMessage())));
+            return response;
+        }
+        CompletableFuture<List<BatchResult>> results = batchTraceService.run(request);
+        response.onTimeout(() -> {
+            results.cancel(false);
+            response.setResult(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(new ErrorResponse(
+                "Batch did not finish within " + batchTraceService.timeoutMillis() + " ms")));
+        });
+        results.whenComplete((list, error) -> {
+            if (error == null) {
+                response.setResult(ResponseEntity.ok(list));
+            } else if (!results.isCancelled()) {
+                response.setErrorResult(unwrap(error));
             }
+        });
+        return response;
+    }
 
-            // Execute the code and capture the trace
-            List<TraceStep> trace = CodeExecutor.executeCode(code);
-            return ResponseEntity.ok(trace);
+    // Streaming variant: every result is written as an NDJSON line as soon as its job is
+    // done, so results arrive in completion order; index says which job each belongs to. A
+    // client that goes away cancels the jobs not started yet. Written by a WebAsyncTask
+    // rather than a StreamingResponseBody so that the batch's own timeout applies; when it
+    // runs out the writing thread is interrupted, which cancels the batch.
+    @PostMapping(value = "/trace/batch/stream", produces = StreamingTraceWriter.NDJSON)
+    public WebAsyncTask<Void> streamBatch(@RequestBody BatchTraceRequest request, HttpServletResponse response) {
+        try {
+            batchTraceService.validate(request);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+        response.setContentType(StreamingTraceWriter.NDJSON);
+        // Keeps reverse proxies from buffering the whole stream
+        response.setHeader("X-Accel-Buffering", "no");
+        // As with TraceHandoff, only this task writes to the response
+        return new WebAsyncTask<>(batchTraceService.timeoutMillis(), () -> {
+            OutputStream out = response.getOutputStream();
+            BlockingQueue<BatchResult> results = new LinkedBlockingQueue<>();
+            BatchTraceService.Batch batch = batchTraceService.start(request, results::add);
+            try {
+                for (int written = 0; written < batch.size(); written++) {
+                    out.write(objectMapper.writeValueAsBytes(results.take()));
+                    out.write('\n');
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                batch.cancel();
+                throw new InterruptedIOException("Interrupted while waiting for batch results");
+            } catch (IOException | RuntimeException e) {
+                batch.cancel();
+                throw e;
+            }
+            return null;
+        });
+    }
+
+    // Generates the trace into the trace store and returns its ID; the steps are then read
+    // page by page from /trace/{id}/steps
+    @PostMapping("/trace/permutations/store")
+    public ResponseEntity<?> storePermutations(@RequestBody PermutationTraceRequest request) {
+        try {
+            MappedTrace trace = traceStore.store(sink ->
+                permutationTraceService.streamPermutationTrace(request.getNums(), request.effectiveAlgorithm(),
+                    request.isParallel(), options(request.getOptions()), sink));
+            return ResponseEntity.ok(storedTraceResponse(trace));
         } catch (Exception e) {
-            log.error("Error executing code for generic trace", e);
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                .body(Map.of("message", "Error executing code: " + e.getMessage()));
+            log.error("Error storing permutation trace", e);
+            return ResponseEntity.badRequest().body(new ErrorResponse("Failed to generate permutation trace: " + e.getMessage()));
+        }
+    }
+
+    @PostMapping("/trace/generic/store")
+    public CompletableFuture<ResponseEntity<?>> storeGenericTrace(@RequestBody GenericTraceRequest request) {
+        String code = request.getCode();
+        if (code == null || code.trim().isEmpty()) {
+            return CompletableFuture.completedFuture(
+                ResponseEntity.badRequest().body(Map.of("message", "No code provided for generic tracing")));
+        }
+        boolean autoTrace = request.getAutoTrace() != null
+            ? request.getAutoTrace()
+            : !CodeExecutor.usesManualCapture(code);
+        TraceOptions options = options(request.getOptions());
+        return admitted(() -> traceStore.storeAsync(sink -> streamCodeAsync(code, autoTrace, options, sink))
+            .handle((trace, error) -> {
+                try {
+                    if (error != null) {
+                        throw unwrap(error);
+                    }
+                    return ResponseEntity.ok(storedTraceResponse(trace));
+                } catch (RejectedExecutionException e) {
+                    return tooManyRequests(e.getMessage(), 1);
+                } catch (Throwable e) {
+                    log.error("Error storing generic trace", e);
+                    return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                        .body(Map.of("message", "Error executing code: " + e.getMessage()));
+                }
+            }));
+    }
+
+    @GetMapping("/trace/{id}")
+    public ResponseEntity<StoredTraceResponse> getStoredTrace(@PathVariable String id) throws IOException {
+        MappedTrace trace = traceStore.find(id)
+            .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown or expired trace " + id));
+        return ResponseEntity.ok(storedTraceResponse(trace));
+    }
+
+    // Steps with numbers in [from, to], at most TraceStore.MAX_PAGE_STEPS of them, served as a
+    // JSON array straight from the stored bytes. X-Next-Step names the step the next page
+    // starts at when the range was cut short or the trace goes on.
+    @GetMapping(value = "/trace/{id}/steps", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> getStoredSteps(@PathVariable String id,
+                                                                @RequestParam(required = false) Integer from,
+                                                                @RequestParam(required = false) Integer to) {
+        MappedTrace trace = traceStore.find(id)
+            .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown or expired trace " + id));
+        int start = from == null ? 0 : trace.lowerBound(from);
+        int end = to == null || to == Integer.MAX_VALUE ? trace.size() : trace.lowerBound(to + 1);
+        end = Math.max(start, Math.min(end, start + TraceStore.MAX_PAGE_STEPS));
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON);
+        if (end < trace.size()) {
+            response.header("X-Next-Step", String.valueOf(trace.stepNumber(end)));
+        }
+        int first = start;
+        int last = end;
+        return response.body(out -> trace.writeRange(first, last, out));
+    }
+
+    // Full state of a single step of a kept trace, rebuilt from the keyframe before it, so a
+    // client can jump anywhere in a trace without holding or paging through all of it
+    @GetMapping("/timelines/{id}/steps/{step}")
+    public TraceStep getTimelineStep(@PathVariable String id, @PathVariable int step) {
+        TraceTimeline timeline = timelineStore.find(id)
+            .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown or expired trace " + id));
+        TraceStep found = timeline.stepAt(step);
+        if (found == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Trace " + id + " has no step " + step);
+        }
+        return found;
+    }
+
+    // A background job's state, and its result once it has finished. With wait set, the
+    // response is held until the job finishes or that many seconds (at most
+    // MAX_JOB_WAIT_SECONDS) have passed.
+    @GetMapping("/jobs/{id}")
+    public CompletableFuture<JobStatus> getJob(@PathVariable String id, @RequestParam(defaultValue = "0") long wait) {
+        JobQueue.Job job = jobQueue.find(id)
+            .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown or expired job " + id));
+        if (wait <= 0 || job.done().isDone()) {
+            return CompletableFuture.completedFuture(job.status());
         }
+        return job.done().copy()
+            .completeOnTimeout(job, Math.min(wait, MAX_JOB_WAIT_SECONDS), TimeUnit.SECONDS)
+            .thenApply(JobQueue.Job::status);
+    }
+
+    // Hit, miss and size counters of the server's caches, and the state of its queues and limiter
+    @GetMapping("/metrics")
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("renderCache", graphVizService.cacheStats());
+        metrics.put("submissionCache", Submission.cacheStats());
+        metrics.put("treeStore", searchTreeStore.stats());
+        metrics.put("svgStore", svgStore.stats());
+        metrics.put("timelineStore", timelineStore.stats());
+        metrics.put("jobs", jobQueue.stats());
+        metrics.put("limiter", concurrencyLimiter.stats());
+        metrics.put("runner", TraceRunner.stats());
+        return metrics;
+    }
+
+    // Submissions run in a worker JVM when the pool is enabled, in this JVM otherwise
+    private CompletableFuture<Void> streamCodeAsync(String code, boolean autoTrace, TraceOptions options, TraceSink sink) {
+        return workerPool.isEnabled()
+            ? workerPool.streamAsync(code, autoTrace, options, sink)
+            : CodeExecutor.streamCodeAsync(code, autoTrace, options, sink);
+    }
+
+    private CompletableFuture<List<TraceStep>> executeCodeAsync(String code, boolean autoTrace, TraceOptions options) {
+        return workerPool.isEnabled()
+            ? workerPool.executeAsync(code, autoTrace, options)
+            : CodeExecutor.executeCodeAsync(code, autoTrace, options);
+    }
+
+    private static StoredTraceResponse storedTraceResponse(MappedTrace trace) throws IOException {
+        int size = trace.size();
+        return new StoredTraceResponse(
+            TraceStore.idOf(trace),
+            size,
+            size == 0 ? null : trace.stepNumber(0),
+            size == 0 ? null : trace.stepNumber(size - 1),
+            trace.getBytes(),
+            trace.isTruncated());
+    }
+
+    private static BacktrackingTraceService.Problem problem(String name) {
+        return BacktrackingTraceService.Problem.fromPath(name)
+            .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown problem " + name));
+    }
+
+    private static TraceOptions options(TraceOptions requested) {
+        return requested == null ? TraceOptions.defaults() : requested;
+    }
+
+    // A trace cut short by its budget ends with a "truncated" step; the header lets clients
+    // notice without scanning the body. A client that sends X-Timeline: true also gets the
+    // collected trace kept in the timeline store, and X-Timeline-Id names it for
+    // /timelines/{id}/steps/{step}.
+    private ResponseEntity<List<TraceStep>> traceResponse(List<TraceStep> trace, boolean keepTimeline) {
+        boolean truncated = !trace.isEmpty() && "truncated".equals(trace.get(trace.size() - 1).getAction());
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+            .header("X-Trace-Truncated", String.valueOf(truncated));
+        if (keepTimeline && trace instanceof TraceTimeline.Steps steps) {
+            timelineStore.store(steps.timeline()).ifPresent(id -> response.header("X-Timeline-Id", id));
+        }
+        return response.body(trace);
+    }
+
+    // The binary format is only sent to clients that ask for it; JSON stays the default
+    private static String streamContentType(String accept) {
+        if (BinaryTraceWriter.wantsBinary(accept)) {
+            return BinaryTraceWriter.MEDIA_TYPE;
+        }
+        return StreamingTraceWriter.wantsEventStream(accept) ? StreamingTraceWriter.EVENT_STREAM : StreamingTraceWriter.NDJSON;
+    }
+
+    private TraceSink streamWriter(OutputStream out, String contentType) {
+        if (BinaryTraceWriter.MEDIA_TYPE.equals(contentType)) {
+            return new BinaryTraceWriter(out);
+        }
+        return new StreamingTraceWriter(out, objectMapper, StreamingTraceWriter.EVENT_STREAM.equals(contentType));
+    }
+
+    private static ResponseEntity<StreamingResponseBody> streamingResponse(StreamingResponseBody body, String contentType) {
+        return ResponseEntity.ok()
+            .contentType(MediaType.parseMediaType(contentType))
+            // Keeps reverse proxies from buffering the whole stream
+            .header("X-Accel-Buffering", "no")
+            .body(body);
+    }
+
+    // Encodes a whole trace in the binary format. Steps go straight from the producer into
+    // the encoder, so the trace is never held as a list of TraceStep objects, and the run's
+    // byte budget applies to the encoded trace.
+    private static ResponseEntity<Resource> binaryResponse(TraceStore.TraceProducer producer, HttpStatus errorStatus,
+                                                           String errorPrefix) {
+        BinaryTraceWriter writer = BinaryTraceWriter.buffered();
+        Throwable error = null;
+        try {
+            producer.produce(writer);
+        } catch (Exception e) {
+            error = e;
+        }
+        return binaryResult(writer, error, errorStatus, errorPrefix);
+    }
+
+    // A failure is reported as an "error" step in the same format, since a client asking only
+    // for the binary format cannot be sent a JSON error body. The encoded trace is sent from
+    // the writer's buffer as it is, without another copy.
+    private static ResponseEntity<Resource> binaryResult(BinaryTraceWriter writer, Throwable error, HttpStatus errorStatus,
+                                                         String errorPrefix) {
+        HttpStatus status = HttpStatus.OK;
+        if (error != null) {
+            log.error("Error generating binary trace", error);
+            writer = BinaryTraceWriter.buffered();
+            writer.error(errorPrefix + error.getMessage());
+            status = errorStatus;
+        }
+        return ResponseEntity.status(status)
+            .contentType(MediaType.parseMediaType(BinaryTraceWriter.MEDIA_TYPE))
+            .contentLength(writer.bufferedBytes())
+            .header("X-Trace-Truncated", String.valueOf(writer.isTruncated()))
+            .body(new InputStreamResource(writer.content()));
+    }
+
+    // 202 with the job's status and where to poll it, or 429 when the queue is full
+    private ResponseEntity<?> submitJob(String kind, JobStatus.Priority priority, JobQueue.Task task) {
+        JobQueue.Job job;
+        try {
+            job = jobQueue.submit(kind, priority == null ? JobStatus.Priority.INTERACTIVE : priority, task);
+        } catch (JobQueue.SaturatedException e) {
+            return tooManyRequests(e.getMessage(), e.getRetryAfterSeconds());
+        }
+        return ResponseEntity.accepted()
+            .location(URI.create("/api/jobs/" + job.getId()))
+            .body(job.status());
+    }
+
+    // Starts the request once the concurrency limiter admits it and holds the permit until
+    // the request completes; 429 when the limiter turns it away
+    private CompletableFuture<ResponseEntity<?>> admitted(Supplier<CompletableFuture<? extends ResponseEntity<?>>> request) {
+        return concurrencyLimiter.acquire().handle((permit, error) -> {
+            if (error != null) {
+                ConcurrencyLimiter.LimitExceededException e = (ConcurrencyLimiter.LimitExceededException) unwrap(error);
+                return CompletableFuture.<ResponseEntity<?>>completedFuture(tooManyRequests(e.getMessage(), e.getRetryAfterSeconds()));
+            }
+            CompletableFuture<? extends ResponseEntity<?>> running;
+            try {
+                running = request.get();
+            } catch (RuntimeException e) {
+                permit.release();
+                throw e;
+            }
+            return running.<ResponseEntity<?>>thenApply(result -> result).whenComplete((result, e) -> permit.release());
+        }).thenCompose(response -> response);
+    }
+
+    private static ResponseEntity<ErrorResponse> tooManyRequests(String message, long retryAfterSeconds) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+            .header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds))
+            .body(new ErrorResponse(message));
+    }
+
+    // The same 429 for a streaming endpoint, whose response body can only be a stream
+    private ResponseEntity<StreamingResponseBody> streamedTooManyRequests(String message, long retryAfterSeconds) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+            .header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds))
+            .contentType(MediaType.APPLICATION_JSON)
+            .body(out -> out.write(objectMapper.writeValueAsBytes(new ErrorResponse(message))));
+    }
+
+    // Ignores q-values: a client that lists gzip at all can decode it
+    private static boolean acceptsGzip(String acceptEncoding) {
+        return acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+    }
+
+    // If-None-Match compares weakly, so a W/ prefix is ignored
+    private static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || candidate.replaceFirst("^W/", "").equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // For job tasks, which run on a job thread of their own and may wait
+    private static <T> T join(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw unwrap(e) instanceof Exception cause ? cause : e;
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
     }
 }
 
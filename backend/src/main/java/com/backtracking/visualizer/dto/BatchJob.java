@@ -0,0 +1,26 @@
+package com.backtracking.visualizer.dto;
+
+import lombok.Data;
+
+// One item of a batch: the same inputs as the single-item endpoint of its type
+@Data
+public class BatchJob {
+    public enum Type {
+        GENERIC,       // run code and trace it, as POST /api/trace/generic
+        PERMUTATIONS,  // trace a permutation input, as POST /api/trace/permutations
+        CALL_GRAPH     // static call graph of code, as POST /api/callgraph
+    }
+
+    // Echoed in the job's result
+    private String id;
+    private Type type;
+    // GENERIC and CALL_GRAPH
+    private String code;
+    // GENERIC: see GenericTraceRequest
+    private Boolean autoTrace;
+    // PERMUTATIONS: see PermutationTraceRequest
+    private int[] nums;
+    private PermutationTraceRequest.Algorithm algorithm;
+    // GENERIC and PERMUTATIONS; defaults apply when null
+    private TraceOptions options;
+}
@@ -0,0 +1,18 @@
+package com.backtracking.visualizer.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+// Outcome of one job of a batch. result is what the job's single-item endpoint returns (a
+// list of steps, or a CallGraphResponse); a job that failed has an error instead.
+@Data
+@AllArgsConstructor
+public class BatchResult {
+    // Position of the job in the batch
+    private int index;
+    private String id;
+    private BatchJob.Type type;
+    private Object result;
+    private String error;
+    private long millis;
+}
@@ -0,0 +1,12 @@
+package com.backtracking.visualizer.dto;
+
+import lombok.Data;
+import java.util.List;
+
+@Data
+public class BatchTraceRequest {
+    private List<BatchJob> jobs;
+    // Jobs of this batch run at most this many at a time; the server's limit when null or
+    // higher
+    private Integer concurrency;
+}
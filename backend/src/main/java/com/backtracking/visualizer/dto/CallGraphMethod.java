@@ -0,0 +1,16 @@
+package com.backtracking.visualizer.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class CallGraphMethod {
+    // Type.name(parameter types)
+    private String name;
+    private int line;
+    // Names of the methods of the submission it calls
+    private List<String> calls;
+    private boolean recursive;
+}
@@ -0,0 +1,8 @@
+package com.backtracking.visualizer.dto;
+
+import lombok.Data;
+
+@Data
+public class CallGraphRequest {
+    private String code;
+}
@@ -0,0 +1,18 @@
+package com.backtracking.visualizer.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import java.util.List;
+
+// Static call graph of a submission, methods in source order. The recursive components are
+// the methods automatic tracing will follow; calls the symbol solver could not resolve were
+// matched by name.
+@Data
+@AllArgsConstructor
+public class CallGraphResponse {
+    private List<CallGraphMethod> methods;
+    // Names of the methods of each recursive component
+    private List<List<String>> recursiveComponents;
+    private int resolvedCalls;
+    private int unresolvedCalls;
+}
@@ -5,4 +5,9 @@ import lombok.Data;
 @Data
 public class GenericTraceRequest {
     private String code;
-} 
\ No newline at end of file
+    // Trace recursive methods automatically; when null this is decided from whether the
+    // code calls Visualizer.captureStep itself
+    private Boolean autoTrace;
+    // Capture budgets and sampling; defaults apply when null
+    private TraceOptions options;
+}
@@ -0,0 +1,31 @@
+package com.backtracking.visualizer.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+// State of a background job (see JobQueue). result is what the synchronous endpoint would have
+// returned; it and error are only set once the job has finished.
+@Data
+@AllArgsConstructor
+public class JobStatus {
+    public enum Priority {
+        INTERACTIVE,  // a user waiting in the UI
+        BATCH         // scripts, regression runs, anything that can wait
+    }
+
+    public enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED
+    }
+
+    private String id;
+    // "generic" or "visualization"
+    private String kind;
+    private Priority priority;
+    private State state;
+    // Time spent queued, once the job has started
+    private Long waitMillis;
+    // Time spent running, once the job has finished
+    private Long runMillis;
+    private Object result;
+    private String error;
+}
@@ -0,0 +1,19 @@
+package com.backtracking.visualizer.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+// Size of a permutation trace, worked out without generating it. steps is the number of
+// steps the full trace has, before any budget or sampling.
+@Data
+@AllArgsConstructor
+public class PermutationSummary {
+    private PermutationTraceRequest.Algorithm algorithm;
+    private int size;
+    private long steps;
+    private long calls;
+    private long leaves;
+    private long swaps;
+    private long backtracks;
+    private long skips;
+}
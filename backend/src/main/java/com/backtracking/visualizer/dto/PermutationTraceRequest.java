@@ -4,5 +4,21 @@ import lombok.Data;
 
 @Data
 public class PermutationTraceRequest {
+    public enum Algorithm {
+        SWAP,      // swap each remaining element into place, recurse, swap back
+        HEAP,      // Heap's algorithm: one swap between consecutive permutations
+        DISTINCT   // SWAP, skipping values already tried at a position
+    }
+
     private int[] nums;
-} 
\ No newline at end of file
+    // SWAP when null
+    private Algorithm algorithm;
+    // Builds the steps of the top levels' subtrees on several threads; the trace is the same
+    private boolean parallel;
+    // Capture budgets and sampling; defaults apply when null
+    private TraceOptions options;
+
+    public Algorithm effectiveAlgorithm() {
+        return algorithm == null ? Algorithm.SWAP : algorithm;
+    }
+}
@@ -0,0 +1,23 @@
+package com.backtracking.visualizer.dto;
+
+import lombok.Data;
+
+// Input of a built-in engine under /api/trace/{problem}; each problem reads only its fields
+@Data
+public class ProblemTraceRequest {
+    // n-queens: board size
+    private Integer n;
+    // sudoku: rows of a 4x4, 9x9, 16x16 or 25x25 board, 0 for an empty cell
+    private int[][] board;
+    // subset-sum and combination-sum: positive numbers and the sum to reach
+    private int[] nums;
+    private Integer target;
+    // Stops the search after this many solutions; when null sudoku stops at the first one and
+    // the other problems find them all
+    private Integer maxSolutions;
+    // Searches the top levels' subtrees on several threads; the trace is the same. Searches
+    // limited by maxSolutions always run on one thread.
+    private boolean parallel;
+    // Capture budgets and sampling; defaults apply when null
+    private TraceOptions options;
+}
@@ -0,0 +1,17 @@
+package com.backtracking.visualizer.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+// Handle to a trace kept in the trace store; its steps are fetched page by page through
+// /api/trace/{id}/steps
+@Data
+@AllArgsConstructor
+public class StoredTraceResponse {
+    private String id;
+    private int steps;
+    private Integer firstStep;
+    private Integer lastStep;
+    private long bytes;
+    private boolean truncated;
+}
@@ -0,0 +1,65 @@
+package com.backtracking.visualizer.dto;
+
+import lombok.Data;
+import java.util.Set;
+
+// Per-request limits and capture mode for a trace run. Any budget left unset (or set above
+// the server's ceiling) falls back to that ceiling, so a request can only tighten them.
+@Data
+public class TraceOptions {
+    public static final int MAX_STEPS_LIMIT = 2_000_000;
+    public static final int MAX_DEPTH_LIMIT = 10_000;
+    public static final long MAX_BYTES_LIMIT = 256L * 1024 * 1024;
+    public static final long MAX_MILLIS_LIMIT = 30_000;
+    public static final int MAX_RING_SIZE = 100_000;
+
+    public enum CaptureMode {
+        ALL,        // keep every step
+        EVERY_NTH,  // keep steps 1, 1 + n, 1 + 2n, ...
+        ACTIONS,    // keep only steps whose action is listed in actions
+        LAST_N      // keep the last ringSize steps
+    }
+
+    // Budgets; reaching any of them stops the run and returns a truncated trace
+    private Integer maxSteps;
+    private Integer maxDepth;
+    private Long maxBytes;
+    private Long timeoutMillis;
+
+    private CaptureMode captureMode = CaptureMode.ALL;
+    private int sampleEvery = 1;
+    private Set<String> actions = Set.of();
+    private int ringSize = 1_000;
+
+    public static TraceOptions defaults() {
+        return new TraceOptions();
+    }
+
+    public int effectiveMaxSteps() {
+        return maxSteps == null ? MAX_STEPS_LIMIT : Math.min(Math.max(maxSteps, 0), MAX_STEPS_LIMIT);
+    }
+
+    public int effectiveMaxDepth() {
+        return maxDepth == null ? MAX_DEPTH_LIMIT : Math.min(Math.max(maxDepth, 0), MAX_DEPTH_LIMIT);
+    }
+
+    public long effectiveMaxBytes() {
+        return maxBytes == null ? MAX_BYTES_LIMIT : Math.min(Math.max(maxBytes, 0), MAX_BYTES_LIMIT);
+    }
+
+    public long effectiveTimeoutMillis() {
+        return timeoutMillis == null ? MAX_MILLIS_LIMIT : Math.min(Math.max(timeoutMillis, 0), MAX_MILLIS_LIMIT);
+    }
+
+    public int effectiveRingSize() {
+        return Math.min(Math.max(ringSize, 1), MAX_RING_SIZE);
+    }
+
+    public int effectiveSampleEvery() {
+        return Math.max(sampleEvery, 1);
+    }
+
+    public CaptureMode effectiveCaptureMode() {
+        return captureMode == null ? CaptureMode.ALL : captureMode;
+    }
+}
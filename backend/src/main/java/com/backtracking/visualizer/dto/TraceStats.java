@@ -0,0 +1,21 @@
+package com.backtracking.visualizer.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import java.util.Map;
+
+// Outcome of running a built-in engine without keeping its steps
+@Data
+@AllArgsConstructor
+public class TraceStats {
+    private String problem;
+    private long steps;
+    private long solutions;
+    private int maxDepth;
+    // Steps per action, in the order the actions first occurred
+    private Map<String, Long> actions;
+    // Set when the time or depth budget ran out before the search did, with the reason
+    private boolean truncated;
+    private String truncationReason;
+    private long millis;
+}
@@ -1,5 +1,6 @@
 package com.backtracking.visualizer.dto;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -12,6 +13,14 @@ import java.util.HashMap;
 @AllArgsConstructor
 @NoArgsConstructor
 public class TraceStep {
+    // Builds the details text of a step from the step itself, for producers whose text only
+    // restates the step's function and variables. Such a step holds no string of its own;
+    // the text is built each time it is read.
+    @FunctionalInterface
+    public interface DetailsTemplate {
+        String format(TraceStep step);
+    }
+
     private int step;
     private String function;
     private Map<String, Object> variables = new HashMap<>();
@@ -19,4 +28,15 @@ public class TraceStep {
     private int line;
     private String action;
     private String details;
-} 
\ No newline at end of file
+    @JsonIgnore
+    private DetailsTemplate detailsTemplate;
+
+    public TraceStep(int step, String function, Map<String, Object> variables, List<StackFrame> callStack,
+                     int line, String action, String details) {
+        this(step, function, variables, callStack, line, action, details, null);
+    }
+
+    public String getDetails() {
+        return details == null && detailsTemplate != null ? detailsTemplate.format(this) : details;
+    }
+}
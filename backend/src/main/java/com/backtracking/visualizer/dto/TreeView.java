@@ -0,0 +1,17 @@
+package com.backtracking.visualizer.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import java.util.List;
+
+// A bounded slice of a stored search tree, parents before children. Aggregate nodes are
+// expanded with GET /api/tree/{treeId}?node=...&siblings=...
+@Data
+@AllArgsConstructor
+public class TreeView {
+    private String treeId;
+    private int totalNodes;
+    private long droppedNodes;
+    private String truncationReason;
+    private List<TreeViewNode> nodes;
+}
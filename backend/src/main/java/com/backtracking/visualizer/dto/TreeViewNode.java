@@ -0,0 +1,28 @@
+package com.backtracking.visualizer.dto;
+
+import lombok.Data;
+
+// One node of a TreeView: either a call of the search tree or an aggregate standing for
+// whole subtrees. Types follow the graph's vocabulary: "start" for the root, "decision" for
+// a call that branched, "end" for a leaf that completed (a solution), "backtrack" for a
+// leaf that gave up, plus "error" and "open" for calls that threw or never returned, and
+// "aggregate".
+@Data
+public class TreeViewNode {
+    // Node number in the search tree; for an aggregate, its first subtree's root
+    private int id;
+    private Integer parent;
+    private String type;
+    private String label;
+    private String result;
+    private int depth;
+    private int children;
+
+    // Aggregates only: how many consecutive sibling subtrees, starting at id, this stands
+    // for, and what they hold. Expanding it means asking for node=id&siblings=siblings.
+    private Integer siblings;
+    private Integer nodeCount;
+    private Integer solutions;
+    private Integer pruned;
+    private Integer maxDepth;
+}
@@ -0,0 +1,32 @@
+package com.backtracking.visualizer.dto;
+
+import lombok.Data;
+
+@Data
+public class TreeViewRequest {
+    public static final int DEFAULT_MAX_NODES = 200;
+    public static final int MAX_NODES_LIMIT = 5_000;
+    public static final int DEFAULT_COLLAPSE_BELOW = 16;
+    public static final int DEFAULT_MAX_DEPTH = 6;
+
+    private String code;
+    // Nodes in the view, aggregates included; a view can exceed it by the calls whose
+    // children only fit in as one aggregate each
+    private Integer maxNodes;
+    // Subtrees with fewer nodes than this collapse into an aggregate
+    private Integer collapseBelow;
+    // Levels shown below the view's first node; deeper subtrees collapse
+    private Integer maxDepth;
+
+    public int effectiveMaxNodes() {
+        return maxNodes == null ? DEFAULT_MAX_NODES : Math.min(Math.max(maxNodes, 1), MAX_NODES_LIMIT);
+    }
+
+    public int effectiveCollapseBelow() {
+        return collapseBelow == null ? DEFAULT_COLLAPSE_BELOW : Math.max(collapseBelow, 1);
+    }
+
+    public int effectiveMaxDepth() {
+        return maxDepth == null ? DEFAULT_MAX_DEPTH : Math.max(maxDepth, 1);
+    }
+}
@@ -4,5 +4,35 @@ import lombok.Data;
  
 @Data
 public class VisualizationRequest {
+    public enum Renderer {
+        GRAPHVIZ,  // GraphViz layout of the top of the tree
+        TREE       // tidy layout of the whole tree
+    }
+
+    public enum Output {
+        DATA_URL,  // JSON VisualizationResponse holding the image as a base64 data URL
+        URL,       // JSON VisualizationResponse holding the URL the stored image is served from
+        INLINE     // the image itself as the response body, streamed as it is drawn
+    }
+
     private String code;
-} 
\ No newline at end of file
+    // GRAPHVIZ when null
+    private Renderer renderer;
+    // When null: INLINE if the client accepts image/svg+xml but not JSON, otherwise DATA_URL
+    // for GRAPHVIZ and INLINE for TREE
+    private Output output;
+
+    public Renderer effectiveRenderer() {
+        return renderer == null ? Renderer.GRAPHVIZ : renderer;
+    }
+
+    public Output effectiveOutput(String accept) {
+        if (output != null) {
+            return output;
+        }
+        if (accept != null && accept.contains("image/svg+xml") && !accept.contains("application/json")) {
+            return Output.INLINE;
+        }
+        return effectiveRenderer() == Renderer.TREE ? Output.INLINE : Output.DATA_URL;
+    }
+}
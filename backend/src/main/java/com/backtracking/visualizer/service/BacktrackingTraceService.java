@@ -0,0 +1,129 @@
+package com.backtracking.visualizer.service;
+
+import com.backtracking.visualizer.dto.ProblemTraceRequest;
+import com.backtracking.visualizer.dto.TraceOptions;
+import com.backtracking.visualizer.dto.TraceStats;
+import com.backtracking.visualizer.dto.TraceStep;
+import com.backtracking.visualizer.util.NQueensSteps;
+import com.backtracking.visualizer.util.SplittableSteps;
+import com.backtracking.visualizer.util.SubsetSumSteps;
+import com.backtracking.visualizer.util.SudokuSteps;
+import com.backtracking.visualizer.util.TraceSession;
+import com.backtracking.visualizer.util.TraceSink;
+import com.backtracking.visualizer.util.TraceSteps;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+// The built-in engines served under /api/trace/{problem}. Like PermutationTraceService, every
+// call runs its own engine instance and only the steps the caller keeps are built. With
+// parallel set, searches that look for every solution run on ParallelSearch.
+@Service
+@RequiredArgsConstructor
+public class BacktrackingTraceService {
+    private final ParallelSearch parallelSearch;
+
+    public enum Problem {
+        N_QUEENS("n-queens"),
+        SUDOKU("sudoku"),
+        SUBSET_SUM("subset-sum"),
+        COMBINATION_SUM("combination-sum");
+
+        private final String path;
+
+        Problem(String path) {
+            this.path = path;
+        }
+
+        public String path() {
+            return path;
+        }
+
+        public static Optional<Problem> fromPath(String path) {
+            String name = path.toLowerCase(Locale.ROOT);
+            for (Problem problem : values()) {
+                if (problem.path.equals(name)) {
+                    return Optional.of(problem);
+                }
+            }
+            return Optional.empty();
+        }
+    }
+
+    public List<TraceStep> generateTrace(Problem problem, ProblemTraceRequest request, TraceOptions options) {
+        TraceSession trace = new TraceSession(options, null, null);
+        record(problem, request, options, trace);
+        return trace.getSteps();
+    }
+
+    public void streamTrace(Problem problem, ProblemTraceRequest request, TraceOptions options, TraceSink sink) {
+        record(problem, request, options, new TraceSession(options, null, sink));
+    }
+
+    private void record(Problem problem, ProblemTraceRequest request, TraceOptions options, TraceSession trace) {
+        if (runsInParallel(problem, request)) {
+            parallelSearch.record(() -> steps(problem, request), trace, options);
+        } else {
+            TraceSteps.record(steps(problem, request), trace);
+        }
+    }
+
+    // At most TraceStore.MAX_PAGE_STEPS steps starting at step number from, and no more than
+    // the byte budget of the options
+    public TraceSteps.Page pageTrace(Problem problem, ProblemTraceRequest request, int from, int limit, TraceOptions options) {
+        return TraceSteps.page(steps(problem, request), from, Math.min(limit, TraceStore.MAX_PAGE_STEPS),
+            options.effectiveMaxBytes());
+    }
+
+    // Runs the whole search without building a single step. The time and depth budgets apply;
+    // the step and byte budgets exist to bound traces, and nothing is kept here.
+    public TraceStats stats(Problem problem, ProblemTraceRequest request, TraceOptions options) {
+        SplittableSteps steps = steps(problem, request);
+        long started = System.nanoTime();
+        long deadline = started + TimeUnit.MILLISECONDS.toNanos(options.effectiveTimeoutMillis());
+        int maxDepth = options.effectiveMaxDepth();
+        ParallelSearch.Counts counts = parallelSearch.count(steps, runsInParallel(problem, request), maxDepth, deadline);
+        String truncationReason = null;
+        if (counts.isDepthExceeded()) {
+            truncationReason = "Maximum recursion depth of " + maxDepth + " reached";
+        } else if (counts.isTimedOut()) {
+            truncationReason = "Time budget of " + options.effectiveTimeoutMillis() + " ms used up";
+        }
+        return new TraceStats(problem.path(), counts.getSteps(), counts.getSolutions(), counts.getMaxDepth(),
+            counts.getActions(), truncationReason != null, truncationReason,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    private static boolean runsInParallel(Problem problem, ProblemTraceRequest request) {
+        return request.isParallel() && maxSolutions(problem, request) == Long.MAX_VALUE;
+    }
+
+    private static long maxSolutions(Problem problem, ProblemTraceRequest request) {
+        if (request.getMaxSolutions() != null) {
+            return Math.max(request.getMaxSolutions(), 1);
+        }
+        return problem == Problem.SUDOKU ? 1 : Long.MAX_VALUE;
+    }
+
+    private static SplittableSteps steps(Problem problem, ProblemTraceRequest request) {
+        long maxSolutions = maxSolutions(problem, request);
+        switch (problem) {
+            case N_QUEENS:
+                if (request.getN() == null) {
+                    throw new IllegalArgumentException("No board size provided");
+                }
+                return new NQueensSteps(request.getN(), maxSolutions);
+            case SUDOKU:
+                return new SudokuSteps(request.getBoard(), maxSolutions);
+            default:
+                if (request.getTarget() == null) {
+                    throw new IllegalArgumentException("No target provided");
+                }
+                return new SubsetSumSteps(request.getNums(), request.getTarget(),
+                    problem == Problem.COMBINATION_SUM, maxSolutions);
+        }
+    }
+}
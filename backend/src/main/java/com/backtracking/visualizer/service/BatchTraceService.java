@@ -0,0 +1,254 @@
+package com.backtracking.visualizer.service;
+
+import com.backtracking.visualizer.dto.BatchJob;
+import com.backtracking.visualizer.dto.BatchResult;
+import com.backtracking.visualizer.dto.BatchTraceRequest;
+import com.backtracking.visualizer.dto.PermutationTraceRequest;
+import com.backtracking.visualizer.dto.TraceOptions;
+import com.backtracking.visualizer.dto.TraceStep;
+import com.backtracking.visualizer.util.CodeExecutor;
+import com.backtracking.visualizer.util.TraceSteps;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Runs many trace jobs from one request. A batch gets a few lanes, each taking the next job
+// as soon as its last one is done, so a batch never has more jobs in flight than lanes. The
+// lanes of all batches share one pool of trace.batch.max-concurrency threads, which bounds
+// the server as a whole; lanes beyond that wait for a thread. Jobs go through the same
+// services as single requests, so they share the parsed and compiled submissions.
+//
+// A batch whose results are collected (run) is bounded by trace.batch.max-bytes as a whole,
+// on top of the byte budget of every job: once the kept results add up to more, the result
+// that crossed the line is dropped and the jobs not started yet are skipped.
+@Slf4j
+@Service
+public class BatchTraceService {
+    private final PermutationTraceService permutationTraceService;
+    private final CodeTraceGeneratorService codeTraceGeneratorService;
+    private final WorkerPool workerPool;
+    private final int maxConcurrency;
+    private final int maxJobs;
+    private final long maxBytes;
+    private final long timeoutMillis;
+    private final ExecutorService executor;
+
+    public BatchTraceService(PermutationTraceService permutationTraceService,
+                             CodeTraceGeneratorService codeTraceGeneratorService,
+                             WorkerPool workerPool,
+                             @Value("${trace.batch.max-concurrency:0}") int maxConcurrency,
+                             @Value("${trace.batch.max-jobs:1000}") int maxJobs,
+                             @Value("${trace.batch.max-bytes:268435456}") long maxBytes,
+                             @Value("${trace.batch.timeout-millis:600000}") long timeoutMillis) {
+        this.permutationTraceService = permutationTraceService;
+        this.codeTraceGeneratorService = codeTraceGeneratorService;
+        this.workerPool = workerPool;
+        // 0 uses every core
+        this.maxConcurrency = maxConcurrency > 0 ? maxConcurrency : Runtime.getRuntime().availableProcessors();
+        this.maxJobs = maxJobs;
+        this.maxBytes = maxBytes;
+        this.timeoutMillis = timeoutMillis;
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(this.maxConcurrency, this.maxConcurrency, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "trace-batch-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    // A batch in progress
+    public static final class Batch {
+        private final List<BatchJob> jobs;
+        private final AtomicInteger next = new AtomicInteger();
+        // Estimated size of the results handed out so far, and how much they may add up to
+        private final AtomicLong bytes = new AtomicLong();
+        private final long maxBytes;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private volatile boolean cancelled;
+
+        private Batch(List<BatchJob> jobs, long maxBytes) {
+            this.jobs = jobs;
+            this.maxBytes = maxBytes;
+        }
+
+        public int size() {
+            return jobs.size();
+        }
+
+        public CompletableFuture<Void> done() {
+            return done;
+        }
+
+        // Jobs not started yet are skipped; those running finish
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    // Whether the batch can be run at all; problems with single jobs are reported in their
+    // results instead
+    public void validate(BatchTraceRequest request) {
+        if (request.getJobs() == null || request.getJobs().isEmpty()) {
+            throw new IllegalArgumentException("No jobs provided");
+        }
+        if (request.getJobs().size() > maxJobs) {
+            throw new IllegalArgumentException("At most " + maxJobs + " jobs per batch, got " + request.getJobs().size());
+        }
+        if (request.getJobs().contains(null)) {
+            throw new IllegalArgumentException("Jobs must not be null");
+        }
+        if (request.getConcurrency() != null && request.getConcurrency() < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1");
+        }
+    }
+
+    // Starts the batch; every result is handed to the consumer, on the thread that ran the
+    // job, as soon as the job completes. The consumer does not keep the results, so only the
+    // budget of every job applies.
+    public Batch start(BatchTraceRequest request, Consumer<BatchResult> results) {
+        return start(request, Long.MAX_VALUE, results);
+    }
+
+    private Batch start(BatchTraceRequest request, long maxBytes, Consumer<BatchResult> results) {
+        validate(request);
+        Batch batch = new Batch(request.getJobs(), maxBytes);
+        int lanes = Math.min(batch.size(),
+            request.getConcurrency() == null ? maxConcurrency : Math.min(request.getConcurrency(), maxConcurrency));
+        AtomicInteger running = new AtomicInteger(lanes);
+        for (int lane = 0; lane < lanes; lane++) {
+            executor.execute(() -> {
+                try {
+                    int index;
+                    while (!batch.cancelled && (index = batch.next.getAndIncrement()) < batch.size()) {
+                        results.accept(withinBudget(batch, run(index, batch.jobs.get(index))));
+                    }
+                } catch (RuntimeException e) {
+                    // Only the consumer can throw here
+                    batch.cancel();
+                    batch.done.completeExceptionally(e);
+                } finally {
+                    if (running.decrementAndGet() == 0) {
+                        batch.done.complete(null);
+                    }
+                }
+            });
+        }
+        return batch;
+    }
+
+    // Runs the whole batch; completes with the results in the order of the jobs, all held
+    // until the last is done. Cancelling the returned future skips the jobs not started yet.
+    public CompletableFuture<List<BatchResult>> run(BatchTraceRequest request) {
+        BatchResult[] results = new BatchResult[request.getJobs() == null ? 0 : request.getJobs().size()];
+        Batch batch = start(request, maxBytes, result -> results[result.getIndex()] = result);
+        CompletableFuture<List<BatchResult>> collected = batch.done().thenApply(ignored -> {
+            for (int index = 0; index < results.length; index++) {
+                if (results[index] == null) {
+                    BatchJob job = request.getJobs().get(index);
+                    results[index] = new BatchResult(index, job.getId(), job.getType(), null,
+                        "Skipped: the results of the batch went over " + maxBytes + " bytes", 0);
+                }
+            }
+            return new ArrayList<>(Arrays.asList(results));
+        });
+        collected.whenComplete((ignored, error) -> {
+            if (collected.isCancelled()) {
+                batch.cancel();
+            }
+        });
+        return collected;
+    }
+
+    // How long a batch request may take in all, streamed or not; a batch may run for much
+    // longer than the single requests the server's async timeout is meant for
+    public long timeoutMillis() {
+        return timeoutMillis;
+    }
+
+    // The result, or in its place an error once the batch's results are over its budget
+    private static BatchResult withinBudget(Batch batch, BatchResult result) {
+        if (batch.maxBytes == Long.MAX_VALUE || batch.bytes.addAndGet(estimateSize(result)) <= batch.maxBytes) {
+            return result;
+        }
+        batch.cancel();
+        return new BatchResult(result.getIndex(), result.getId(), result.getType(), null,
+            "Not kept: the results of the batch went over " + batch.maxBytes + " bytes", result.getMillis());
+    }
+
+    // Traces dominate; a call graph or an error is small next to the budget
+    @SuppressWarnings("unchecked")
+    private static long estimateSize(BatchResult result) {
+        return result.getResult() instanceof List<?> trace ? TraceSteps.estimateSize((List<TraceStep>) trace) : 0;
+    }
+
+    private BatchResult run(int index, BatchJob job) {
+        long started = System.nanoTime();
+        Object result = null;
+        String error = null;
+        try {
+            result = execute(job);
+        } catch (Exception e) {
+            log.debug("Batch job {} failed", index, e);
+            error = e.getMessage();
+        }
+        return new BatchResult(index, job.getId(), job.getType(), result, error,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    private Object execute(BatchJob job) throws Exception {
+        if (job.getType() == null) {
+            throw new IllegalArgumentException("No job type provided");
+        }
+        TraceOptions options = job.getOptions() == null ? TraceOptions.defaults() : job.getOptions();
+        switch (job.getType()) {
+            case GENERIC:
+                String code = code(job);
+                boolean autoTrace = job.getAutoTrace() != null ? job.getAutoTrace() : !CodeExecutor.usesManualCapture(code);
+                // Submissions run in a worker JVM when the pool is enabled, in this JVM otherwise
+                try {
+                    return (workerPool.isEnabled()
+                        ? workerPool.executeAsync(code, autoTrace, options)
+                        : CodeExecutor.executeCodeAsync(code, autoTrace, options)).join();
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof Exception cause) {
+                        throw cause;
+                    }
+                    throw e;
+                }
+            case PERMUTATIONS:
+                // The batch already keeps the cores busy, so each trace is built sequentially
+                PermutationTraceRequest.Algorithm algorithm = job.getAlgorithm() == null
+                    ? PermutationTraceRequest.Algorithm.SWAP : job.getAlgorithm();
+                return permutationTraceService.generatePermutationTrace(job.getNums(), algorithm, false, options);
+            default:
+                return codeTraceGeneratorService.analyzeCallGraph(code(job));
+        }
+    }
+
+    private static String code(BatchJob job) {
+        if (job.getCode() == null || job.getCode().trim().isEmpty()) {
+            throw new IllegalArgumentException("No code provided");
+        }
+        return job.getCode();
+    }
+}
@@ -1,10 +1,14 @@
 package com.backtracking.visualizer.service;
 
+import com.backtracking.visualizer.dto.CallGraphResponse;
 import com.backtracking.visualizer.dto.TraceStep;
-import com.backtracking.visualizer.model.BacktrackingNode;
+import com.backtracking.visualizer.util.SearchTree;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public interface CodeTraceGeneratorService {
     List<TraceStep> generateTrace(String code) throws Exception;
-    List<BacktrackingNode> analyzeCodeForStaticGraph(String code) throws Exception;
+    // Completes once the run is over; the calling thread is not held while the code runs
+    CompletableFuture<SearchTree> buildSearchTree(String code);
+    CallGraphResponse analyzeCallGraph(String code) throws Exception;
 } 
\ No newline at end of file
@@ -0,0 +1,285 @@
+package com.backtracking.visualizer.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Admission control for the requests that run submissions. How many can run at once is not
+// fixed but learnt: a submission may take 5 ms or several seconds, so no pool size suits
+// them all. The limit follows the gradient between the long-term and the recent average
+// latency, once per window of trace.limiter.window-millis. While recent requests take about
+// as long as usual the limit creeps up, by a share of its square root; once they take more
+// than trace.limiter.tolerance times as long, requests are queueing for the CPU rather than
+// doing work, and the limit shrinks in proportion. A window in which fewer than half the
+// allowed requests ran at once says nothing about the limit and leaves it alone.
+//
+// A request over the limit waits in a short queue, at most trace.limiter.max-wait-millis,
+// and is turned away at once when the queue is full; shedding early keeps the latency of
+// the admitted requests down instead of letting every request slow down together.
+@Service
+public class ConcurrencyLimiter {
+    // The queue is full, or the request waited too long in it
+    public static class LimitExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfterSeconds;
+
+        LimitExceededException(String message, long retryAfterSeconds) {
+            super(message);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public long getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    // Held while the request runs; release() when it is done, whatever the outcome
+    public final class Permit {
+        private final long admittedNanos = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit() {
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                ConcurrencyLimiter.this.release(System.nanoTime() - admittedNanos, true);
+            }
+        }
+
+        // For a permit handed to a waiter that had already gone
+        private void discard() {
+            if (released.compareAndSet(false, true)) {
+                ConcurrencyLimiter.this.release(0, false);
+            }
+        }
+    }
+
+    private static final class Waiter {
+        private final CompletableFuture<Permit> admitted = new CompletableFuture<>();
+        private final long queuedNanos = System.nanoTime();
+        private ScheduledFuture<?> timeout;
+    }
+
+    // Fewer samples than this make too noisy an average to act on
+    private static final int MIN_WINDOW_SAMPLES = 5;
+    // Share of the new limit in the limit, per window
+    private static final double SMOOTHING = 0.2;
+    // Share of a window's average in the long-term average
+    private static final double LONG_RTT_WEIGHT = 0.05;
+    private static final double MIN_GRADIENT = 0.5;
+    private static final long MAX_RETRY_AFTER_SECONDS = 60;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueue;
+    private final long queueTimeoutNanos;
+    private final long windowNanos;
+    private final double tolerance;
+    private final ScheduledThreadPoolExecutor timeouts;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    private double limit;
+    private int inFlight;
+
+    // The current window
+    private long windowStartNanos = System.nanoTime();
+    private int windowSamples;
+    private long windowRttNanos;
+    private int windowMaxInFlight;
+    // Long-term average latency; 0 until the first window closes
+    private double longRttNanos;
+    private double lastRttNanos;
+
+    private long admitted;
+    private long queued;
+    private long rejected;
+    private long timedOut;
+    private long totalWaitNanos;
+    private long longestWaitNanos;
+
+    public ConcurrencyLimiter(@Value("${trace.limiter.initial-limit:0}") int initialLimit,
+                              @Value("${trace.limiter.min-limit:1}") int minLimit,
+                              @Value("${trace.limiter.max-limit:0}") int maxLimit,
+                              @Value("${trace.limiter.max-queue:0}") int maxQueue,
+                              @Value("${trace.limiter.max-wait-millis:1000}") long maxWaitMillis,
+                              @Value("${trace.limiter.window-millis:1000}") long windowMillis,
+                              @Value("${trace.limiter.tolerance:2.0}") double tolerance) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        // 0 uses a multiple of the cores; submissions are mostly CPU-bound
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit > 0 ? maxLimit : 16 * cores);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit > 0 ? initialLimit : 2 * cores));
+        // 0 queues as many requests as the limit admits
+        this.maxQueue = maxQueue;
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.tolerance = tolerance;
+        this.timeouts = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "trace-limiter-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timeouts.setRemoveOnCancelPolicy(true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timeouts.shutdownNow();
+    }
+
+    // Completes with a permit once the request may run, or with LimitExceededException. Only
+    // a queued request completes later, on the thread of the request that made room for it.
+    public CompletableFuture<Permit> acquire() {
+        Waiter waiter = new Waiter();
+        lock.lock();
+        try {
+            if (inFlight < (int) limit && waiters.isEmpty()) {
+                admit(0);
+                return CompletableFuture.completedFuture(new Permit());
+            }
+            if (waiters.size() >= (maxQueue > 0 ? maxQueue : (int) limit)) {
+                rejected++;
+                return CompletableFuture.failedFuture(new LimitExceededException(
+                    "Too many submissions running; try again later", retryAfterSeconds()));
+            }
+            queued++;
+            waiters.add(waiter);
+            waiter.timeout = timeouts.schedule(() -> expire(waiter), queueTimeoutNanos, TimeUnit.NANOSECONDS);
+        } finally {
+            lock.unlock();
+        }
+        return waiter.admitted;
+    }
+
+    // The permit for the calling thread, waiting for it if need be
+    public Permit await() {
+        try {
+            return acquire().join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof LimitExceededException exceeded ? exceeded : e;
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            stats.put("limit", (int) limit);
+            stats.put("inFlight", inFlight);
+            stats.put("waiting", waiters.size());
+            stats.put("admitted", admitted);
+            stats.put("queued", queued);
+            stats.put("rejected", rejected);
+            stats.put("timedOut", timedOut);
+            stats.put("averageWaitMillis", admitted == 0 ? 0.0 : totalWaitNanos / 1e6 / admitted);
+            stats.put("maxWaitMillis", TimeUnit.NANOSECONDS.toMillis(longestWaitNanos));
+            stats.put("recentLatencyMillis", lastRttNanos / 1e6);
+            stats.put("longTermLatencyMillis", longRttNanos / 1e6);
+        } finally {
+            lock.unlock();
+        }
+        return stats;
+    }
+
+    // Under the lock
+    private void admit(long waitNanos) {
+        inFlight++;
+        windowMaxInFlight = Math.max(windowMaxInFlight, inFlight);
+        admitted++;
+        totalWaitNanos += waitNanos;
+        longestWaitNanos = Math.max(longestWaitNanos, waitNanos);
+    }
+
+    private void release(long rttNanos, boolean sample) {
+        List<Waiter> next = new ArrayList<>();
+        lock.lock();
+        try {
+            inFlight--;
+            if (sample) {
+                windowSamples++;
+                windowRttNanos += rttNanos;
+                long now = System.nanoTime();
+                if (now - windowStartNanos >= windowNanos && windowSamples >= MIN_WINDOW_SAMPLES) {
+                    updateLimit();
+                    windowStartNanos = now;
+                    windowSamples = 0;
+                    windowRttNanos = 0;
+                    windowMaxInFlight = inFlight;
+                }
+            }
+            long now = System.nanoTime();
+            while (inFlight < (int) limit && !waiters.isEmpty()) {
+                Waiter waiter = waiters.poll();
+                waiter.timeout.cancel(false);
+                admit(now - waiter.queuedNanos);
+                next.add(waiter);
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Outside the lock: completing runs the waiting request's next stages
+        for (Waiter waiter : next) {
+            Permit permit = new Permit();
+            if (!waiter.admitted.complete(permit)) {
+                permit.discard();
+            }
+        }
+    }
+
+    // Under the lock, at the end of a window
+    private void updateLimit() {
+        double shortRtt = (double) windowRttNanos / windowSamples;
+        lastRttNanos = shortRtt;
+        longRttNanos = longRttNanos == 0 ? shortRtt : longRttNanos + (shortRtt - longRttNanos) * LONG_RTT_WEIGHT;
+        // After a slow spell the long-term average would hold the limit up for a long time;
+        // once requests are much faster again it is brought down quicker
+        if (longRttNanos > 2 * shortRtt) {
+            longRttNanos *= 0.95;
+        }
+        if (windowMaxInFlight < limit / 2) {
+            return;
+        }
+        double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, tolerance * longRttNanos / shortRtt));
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+    }
+
+    private void expire(Waiter waiter) {
+        long retryAfter;
+        lock.lock();
+        try {
+            // Already admitted
+            if (!waiters.remove(waiter)) {
+                return;
+            }
+            timedOut++;
+            retryAfter = retryAfterSeconds();
+        } finally {
+            lock.unlock();
+        }
+        waiter.admitted.completeExceptionally(new LimitExceededException(
+            "Timed out waiting for a submission slot; try again later", retryAfter));
+    }
+
+    // Under the lock: time for the requests ahead to get through, going by the average latency
+    private long retryAfterSeconds() {
+        double rtt = longRttNanos > 0 ? longRttNanos : TimeUnit.SECONDS.toNanos(1);
+        long millis = (long) ((waiters.size() + 1) * rtt / Math.max(1, (int) limit) / 1e6);
+        return Math.max(1, Math.min(MAX_RETRY_AFTER_SECONDS, (millis + 999) / 1000));
+    }
+}
@@ -1,6 +1,8 @@
 package com.backtracking.visualizer.service;
 
-import com.backtracking.visualizer.model.BacktrackingNode;
+import com.backtracking.visualizer.util.BoundedLruCache;
+import com.backtracking.visualizer.util.Hashing;
+import com.backtracking.visualizer.util.SearchTree;
 import guru.nidi.graphviz.attribute.Color;
 import guru.nidi.graphviz.attribute.Label;
 import guru.nidi.graphviz.attribute.Shape;
@@ -9,90 +11,284 @@ import guru.nidi.graphviz.engine.Format;
 import guru.nidi.graphviz.engine.Graphviz;
 import guru.nidi.graphviz.model.MutableGraph;
 import guru.nidi.graphviz.model.MutableNode;
+import guru.nidi.graphviz.model.Serializer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import java.io.ByteArrayOutputStream;
-import java.util.Base64;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import static guru.nidi.graphviz.model.Factory.*;
 
+// Draws a run's SearchTree. GraphViz lays out every node it is given, so only the first
+// MAX_RENDERED_NODES calls are drawn; since nodes are numbered in the order they were
+// entered, those always form a connected top part of the tree.
+//
+// Layout is by far the slowest part of a visualization request, and most requests draw one
+// of a handful of examples. Rendered SVGs are therefore cached under the SHA-256 of the
+// graph's DOT serialization, which is canonical because the graph is always built in node
+// order: in memory, bounded like the compile cache, and optionally on disk so that popular
+// graphs survive a restart. The disk tier is bounded too, by total size and by age; a render
+// read from disk counts as used, so the least recently used renders go first.
+//
+// The key is the graph, not the submission: a repeated request still runs the code to
+// build its tree and only skips the layout. A run need not draw the same tree twice (it may
+// use Random or the clock), so trees are not cached by source.
+@Slf4j
 @Service
 public class GraphVizService {
+    private static final int MAX_RENDERED_NODES = 400;
+    private static final int WIDTH = 1200;
+    private static final int HEIGHT = 800;
+    // The disk tier is swept at least this often while renders are being written, for age
+    private static final long DISK_SWEEP_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
 
-    public String generateVisualization(List<BacktrackingNode> nodes) {
+    private final BoundedLruCache<String, byte[]> renderCache;
+    // No disk tier when null
+    private final Path cacheDirectory;
+
+    private final long diskMaxBytes;
+    private final long diskMaxAgeMillis;
+    // Total size of the renders on disk, as of the last sweep plus what was written since
+    private final AtomicLong diskBytes = new AtomicLong();
+    private final AtomicLong diskEvictions = new AtomicLong();
+    private volatile long lastSweepMillis;
+
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong renders = new AtomicLong();
+    private final AtomicLong renderNanos = new AtomicLong();
+
+    public GraphVizService(@Value("${visualization.render-cache.max-entries:512}") int maxEntries,
+                           @Value("${visualization.render-cache.max-bytes:67108864}") long maxBytes,
+                           @Value("${visualization.render-cache.directory:}") String directory,
+                           @Value("${visualization.render-cache.disk-max-bytes:268435456}") long diskMaxBytes,
+                           @Value("${visualization.render-cache.disk-max-age-hours:168}") long diskMaxAgeHours) throws IOException {
+        this.renderCache = new BoundedLruCache<>(maxEntries, maxBytes, svg -> svg.length);
+        this.cacheDirectory = directory.isBlank() ? null : Files.createDirectories(Path.of(directory));
+        this.diskMaxBytes = diskMaxBytes;
+        this.diskMaxAgeMillis = TimeUnit.HOURS.toMillis(diskMaxAgeHours);
+        if (cacheDirectory != null) {
+            sweepDisk();
+        }
+    }
+
+    // The returned array is shared with the cache and must not be modified
+    public byte[] renderSvg(SearchTree tree) {
+        return render(buildGraph(tree));
+    }
+
+    private MutableGraph buildGraph(SearchTree tree) {
         MutableGraph graph = mutGraph("backtracking").setDirected(true);
+        int rendered = Math.min(tree.size(), MAX_RENDERED_NODES);
         
         // Add nodes with styling
-        for (BacktrackingNode node : nodes) {
-            MutableNode graphNode = mutNode(node.getId())
-                .add(Label.html(createNodeLabel(node)))
+        for (int node = 0; node < rendered; node++) {
+            MutableNode graphNode = mutNode(nodeId(node))
+                .add(Label.html(createNodeLabel(tree, node)))
                 .add(Style.FILLED)
                 .add(Shape.RECTANGLE)
-                .add(getNodeColor(node.getType()));
+                .add(getNodeColor(tree.kind(node)));
             
             graph.add(graphNode);
         }
         
         // Add edges
-        for (BacktrackingNode node : nodes) {
-            for (String childId : node.getChildren()) {
-                graph.add(mutNode(node.getId()).addLink(mutNode(childId)));
-            }
+        for (int node = 1; node < rendered; node++) {
+            graph.add(mutNode(nodeId(tree.parent(node))).addLink(mutNode(nodeId(node))));
         }
-        
+
+        long hidden = tree.size() - rendered + tree.getDroppedNodes();
+        if (hidden > 0) {
+            graph.add(mutNode("more")
+                .add(Label.of(hidden + " more calls not shown"))
+                .add(Shape.NONE)
+                .add(Color.rgb("E0E0E0")));
+        }
+        return graph;
+    }
+
+    private byte[] render(MutableGraph graph) {
+        String key = Hashing.sha256Hex(new Serializer(graph).serialize() + "|svg|" + WIDTH + "x" + HEIGHT);
+        byte[] svg = renderCache.get(key);
+        if (svg != null) {
+            return svg;
+        }
+        svg = readFromDisk(key);
+        if (svg != null) {
+            diskHits.incrementAndGet();
+            renderCache.put(key, svg);
+            return svg;
+        }
+
         // Generate SVG
+        long started = System.nanoTime();
         try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
             Graphviz.fromGraph(graph)
-                .width(1200)
-                .height(800)
+                .width(WIDTH)
+                .height(HEIGHT)
                 .render(Format.SVG)
                 .toOutputStream(outputStream);
-            
-            return "data:image/svg+xml;base64," + 
-                   Base64.getEncoder().encodeToString(outputStream.toByteArray());
+            svg = outputStream.toByteArray();
         } catch (Exception e) {
             throw new RuntimeException("Failed to generate visualization", e);
         }
+        renders.incrementAndGet();
+        renderNanos.addAndGet(System.nanoTime() - started);
+        renderCache.put(key, svg);
+        writeToDisk(key, svg);
+        return svg;
+    }
+
+    private byte[] readFromDisk(String key) {
+        if (cacheDirectory == null) {
+            return null;
+        }
+        Path file = cacheDirectory.resolve(key + ".svg");
+        try {
+            long now = System.currentTimeMillis();
+            if (now - Files.getLastModifiedTime(file).toMillis() > diskMaxAgeMillis) {
+                deleteFromDisk(file);
+                return null;
+            }
+            byte[] svg = Files.readAllBytes(file);
+            // The modification time stands for the last use
+            Files.setLastModifiedTime(file, FileTime.fromMillis(now));
+            return svg;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            log.warn("Could not read cached render {}", key, e);
+            return null;
+        }
+    }
+
+    // Written under a temporary name and moved into place, so a reader never sees half a file
+    private void writeToDisk(String key, byte[] svg) {
+        // As in memory, a render bigger than the whole budget would only evict everything else
+        if (cacheDirectory == null || svg.length > diskMaxBytes) {
+            return;
+        }
+        try {
+            Path temporary = Files.createTempFile(cacheDirectory, key, ".tmp");
+            Files.write(temporary, svg);
+            Files.move(temporary, cacheDirectory.resolve(key + ".svg"), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.warn("Could not write cached render {}", key, e);
+            return;
+        }
+        if (diskBytes.addAndGet(svg.length) > diskMaxBytes
+            || System.currentTimeMillis() - lastSweepMillis > DISK_SWEEP_INTERVAL_MILLIS) {
+            sweepDisk();
+        }
+    }
+
+    // Deletes the renders older than the age limit, then the least recently used until the
+    // rest fit the size limit, and leftover temporary files of interrupted writes
+    private synchronized void sweepDisk() {
+        long now = System.currentTimeMillis();
+        List<Path> renders = new ArrayList<>();
+        Map<Path, Long> lastUsed = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(cacheDirectory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long modified = Files.getLastModifiedTime(file).toMillis();
+                if (name.endsWith(".svg") && now - modified <= diskMaxAgeMillis) {
+                    renders.add(file);
+                    lastUsed.put(file, modified);
+                } else if (name.endsWith(".svg") || (name.endsWith(".tmp") && now - modified > DISK_SWEEP_INTERVAL_MILLIS)) {
+                    deleteFromDisk(file);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not sweep the render cache directory", e);
+            return;
+        }
+        renders.sort(Comparator.comparing(lastUsed::get));
+        long total = 0;
+        for (Path file : renders) {
+            try {
+                total += Files.size(file);
+            } catch (IOException e) {
+                // Deleted meanwhile
+            }
+        }
+        for (int i = 0; i < renders.size() && total > diskMaxBytes; i++) {
+            try {
+                long size = Files.size(renders.get(i));
+                deleteFromDisk(renders.get(i));
+                total -= size;
+            } catch (IOException e) {
+                // Deleted meanwhile
+            }
+        }
+        diskBytes.set(total);
+        lastSweepMillis = now;
+    }
+
+    private void deleteFromDisk(Path file) {
+        try {
+            if (Files.deleteIfExists(file)) {
+                diskEvictions.incrementAndGet();
+            }
+        } catch (IOException e) {
+            log.warn("Could not delete cached render {}", file, e);
+        }
+    }
+
+    public Map<String, Object> cacheStats() {
+        Map<String, Object> stats = new LinkedHashMap<>(renderCache.stats());
+        stats.put("diskTier", cacheDirectory != null);
+        stats.put("diskHits", diskHits.get());
+        stats.put("diskBytes", diskBytes.get());
+        stats.put("diskEvictions", diskEvictions.get());
+        stats.put("renders", renders.get());
+        stats.put("renderMillis", TimeUnit.NANOSECONDS.toMillis(renderNanos.get()));
+        return stats;
+    }
+
+    private static String nodeId(int node) {
+        return "n" + node;
     }
     
-    private String createNodeLabel(BacktrackingNode node) {
+    private String createNodeLabel(SearchTree tree, int node) {
         StringBuilder label = new StringBuilder();
         label.append("<table border='0' cellborder='1' cellspacing='0' cellpadding='4'>");
         
-        // Node title
-        label.append("<tr><td colspan='2'><b>").append(node.getLabel()).append("</b></td></tr>");
+        // Node title: the call and its arguments
+        label.append("<tr><td colspan='2'><b>").append(escape(tree.label(node))).append("</b></td></tr>");
         
-        // Parameters
-        if (!node.getParameters().isEmpty()) {
-            label.append("<tr><td colspan='2'><b>Parameters:</b></td></tr>");
-            for (String param : node.getParameters()) {
-                label.append("<tr><td colspan='2'>").append(param).append("</td></tr>");
-            }
+        // Return value
+        if (tree.result(node) != null) {
+            label.append("<tr><td colspan='2'>Returns: ").append(escape(tree.result(node))).append("</td></tr>");
         }
-        
-        // Return values
-        if (!node.getReturnValues().isEmpty()) {
-            label.append("<tr><td colspan='2'><b>Returns:</b></td></tr>");
-            for (String ret : node.getReturnValues()) {
-                label.append("<tr><td colspan='2'>").append(ret).append("</td></tr>");
-            }
+
+        if (tree.backtracks(node) > 0) {
+            label.append("<tr><td colspan='2'>Backtracked ").append(tree.backtracks(node)).append("x</td></tr>");
         }
         
         label.append("</table>");
         return label.toString();
     }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
     
-    private Color getNodeColor(String type) {
-        switch (type.toLowerCase()) {
-            case "start":
-                return Color.rgb("4CAF50"); // Green
-            case "end":
-                return Color.rgb("F44336"); // Red
-            case "backtrack":
-                return Color.rgb("FFC107"); // Amber
-            case "decision":
-                return Color.rgb("2196F3"); // Blue
-            default:
-                return Color.rgb("E0E0E0"); // Light Gray
-        }
+    private Color getNodeColor(byte kind) {
+        return Color.rgb(SearchTree.color(kind));
     }
 } 
\ No newline at end of file
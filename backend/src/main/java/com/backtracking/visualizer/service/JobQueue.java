@@ -0,0 +1,340 @@
+package com.backtracking.visualizer.service;
+
+import com.backtracking.visualizer.dto.JobStatus;
+import com.backtracking.visualizer.dto.JobStatus.Priority;
+import com.backtracking.visualizer.dto.JobStatus.State;
+import com.backtracking.visualizer.dto.TraceStep;
+import com.backtracking.visualizer.dto.VisualizationResponse;
+import com.backtracking.visualizer.util.TraceSteps;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Runs expensive requests in the background so that no HTTP connection waits on them: a
+// submission gets a job ID at once and the client polls (or long-polls) GET /api/jobs/{id}.
+//
+// There is one bounded queue per priority and a fixed set of worker threads. Workers take
+// interactive jobs first, but every BATCH_EVERY-th job is a batch one when any is waiting,
+// so a steady stream of interactive work cannot starve batch work. A submission that finds
+// its queue full, or the server holding too many jobs, is turned away with an estimate of
+// when to retry. Finished jobs are kept for trace.jobs.result-ttl-seconds and then dropped.
+// Their results are also bounded by size: once they add up to more than
+// trace.jobs.max-result-bytes, the jobs that finished first are dropped early, and a result
+// bigger than that alone is not kept at all; its job fails instead.
+@Slf4j
+@Service
+public class JobQueue {
+    @FunctionalInterface
+    public interface Task {
+        Object run() throws Exception;
+    }
+
+    // The queue of the job's priority is full, or too many jobs are held
+    public static class SaturatedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfterSeconds;
+
+        SaturatedException(String message, long retryAfterSeconds) {
+            super(message);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public long getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    private static final int BATCH_EVERY = 4;
+    private static final long MAX_RETRY_AFTER_SECONDS = 60;
+
+    public final class Job {
+        private final String id = UUID.randomUUID().toString().replace("-", "");
+        private final String kind;
+        private final Priority priority;
+        private final Task task;
+        private final long submittedNanos = System.nanoTime();
+        private final CompletableFuture<Job> done = new CompletableFuture<>();
+        private volatile State state = State.QUEUED;
+        private volatile long startedNanos;
+        private volatile long finishedNanos;
+        private volatile long finishedAtMillis;
+        private volatile Object result;
+        private volatile String error;
+        // Estimated size of the result, counted against maxResultBytes while the job is held
+        private long resultBytes;
+
+        private Job(String kind, Priority priority, Task task) {
+            this.kind = kind;
+            this.priority = priority;
+            this.task = task;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        // Completes when the job has succeeded or failed
+        public CompletableFuture<Job> done() {
+            return done;
+        }
+
+        public JobStatus status() {
+            State current = state;
+            Long waitMillis = current == State.QUEUED ? null : TimeUnit.NANOSECONDS.toMillis(startedNanos - submittedNanos);
+            Long runMillis = current == State.SUCCEEDED || current == State.FAILED
+                ? TimeUnit.NANOSECONDS.toMillis(finishedNanos - startedNanos) : null;
+            return new JobStatus(id, kind, priority, current, waitMillis, runMillis, result, error);
+        }
+    }
+
+    private final int workers;
+    private final int interactiveCapacity;
+    private final int batchCapacity;
+    private final int maxRetained;
+    private final long maxResultBytes;
+    private final long resultTtlMillis;
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    // Finished jobs in the order they finished, so the oldest are dropped first; guarded by itself
+    private final ArrayDeque<Job> finished = new ArrayDeque<>();
+    private long retainedBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<Job> interactive = new ArrayDeque<>();
+    private final ArrayDeque<Job> batch = new ArrayDeque<>();
+    // Interactive jobs taken since the last batch job
+    private int interactiveStreak;
+    private int running;
+    private volatile boolean shutdown;
+
+    // Average run time, for Retry-After
+    private final AtomicLong averageRunMillis = new AtomicLong(1000);
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    private final ScheduledExecutorService sweeper;
+
+    public JobQueue(@Value("${trace.jobs.workers:0}") int workers,
+                    @Value("${trace.jobs.interactive.queue:64}") int interactiveCapacity,
+                    @Value("${trace.jobs.batch.queue:256}") int batchCapacity,
+                    @Value("${trace.jobs.max-retained:1000}") int maxRetained,
+                    @Value("${trace.jobs.max-result-bytes:268435456}") long maxResultBytes,
+                    @Value("${trace.jobs.result-ttl-seconds:600}") long resultTtlSeconds) {
+        // 0 uses every core
+        this.workers = workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+        this.interactiveCapacity = interactiveCapacity;
+        this.batchCapacity = batchCapacity;
+        this.maxRetained = maxRetained;
+        this.maxResultBytes = maxResultBytes;
+        this.resultTtlMillis = TimeUnit.SECONDS.toMillis(resultTtlSeconds);
+        for (int i = 0; i < this.workers; i++) {
+            Thread thread = new Thread(this::work, "trace-job-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "trace-job-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long sweepMillis = Math.max(1000, resultTtlMillis / 4);
+        sweeper.scheduleWithFixedDelay(this::sweep, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sweeper.shutdownNow();
+        lock.lock();
+        try {
+            shutdown = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Job submit(String kind, Priority priority, Task task) {
+        if (jobs.size() >= maxRetained) {
+            sweep();
+            if (jobs.size() >= maxRetained) {
+                rejected.incrementAndGet();
+                // Room is only made as results expire
+                throw new SaturatedException("Too many jobs held; try again later", MAX_RETRY_AFTER_SECONDS);
+            }
+        }
+        Job job = new Job(kind, priority, task);
+        lock.lock();
+        try {
+            ArrayDeque<Job> queue = priority == Priority.BATCH ? batch : interactive;
+            int capacity = priority == Priority.BATCH ? batchCapacity : interactiveCapacity;
+            if (queue.size() >= capacity) {
+                rejected.incrementAndGet();
+                throw new SaturatedException("The " + priority.name().toLowerCase() + " queue is full; try again later",
+                    retryAfterSeconds(queue.size()));
+            }
+            jobs.put(job.id, job);
+            queue.add(job);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        return job;
+    }
+
+    public Optional<Job> find(String id) {
+        return Optional.ofNullable(jobs.get(id));
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            stats.put("interactiveQueued", interactive.size());
+            stats.put("batchQueued", batch.size());
+            stats.put("running", running);
+        } finally {
+            lock.unlock();
+        }
+        stats.put("workers", workers);
+        stats.put("retained", jobs.size());
+        stats.put("completed", completed.get());
+        stats.put("rejected", rejected.get());
+        stats.put("expired", expired.get());
+        stats.put("evicted", evicted.get());
+        synchronized (finished) {
+            stats.put("retainedBytes", retainedBytes);
+        }
+        stats.put("maxRetainedBytes", maxResultBytes);
+        stats.put("averageRunMillis", averageRunMillis.get());
+        return stats;
+    }
+
+    // Time for the workers to get through the jobs ahead, going by the average run time
+    private long retryAfterSeconds(int jobsAhead) {
+        long millis = (jobsAhead + 1L) * averageRunMillis.get() / workers;
+        return Math.max(1, Math.min(MAX_RETRY_AFTER_SECONDS, (millis + 999) / 1000));
+    }
+
+    private void work() {
+        while (true) {
+            Job job;
+            lock.lock();
+            try {
+                while (interactive.isEmpty() && batch.isEmpty() && !shutdown) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (shutdown) {
+                    return;
+                }
+                if (!interactive.isEmpty() && (batch.isEmpty() || interactiveStreak < BATCH_EVERY - 1)) {
+                    job = interactive.poll();
+                    interactiveStreak++;
+                } else {
+                    job = batch.poll();
+                    interactiveStreak = 0;
+                }
+                running++;
+            } finally {
+                lock.unlock();
+            }
+            run(job);
+            lock.lock();
+            try {
+                running--;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void run(Job job) {
+        job.startedNanos = System.nanoTime();
+        job.state = State.RUNNING;
+        State outcome;
+        try {
+            Object result = job.task.run();
+            long bytes = estimateSize(result);
+            if (bytes > maxResultBytes) {
+                throw new IllegalStateException("The result of about " + bytes + " bytes is too big to keep (at most "
+                    + maxResultBytes + "); use the synchronous or streaming endpoint instead");
+            }
+            job.result = result;
+            job.resultBytes = bytes;
+            outcome = State.SUCCEEDED;
+        } catch (Throwable e) {
+            log.debug("Job {} failed", job.id, e);
+            job.error = e.getMessage() != null ? e.getMessage() : e.toString();
+            outcome = State.FAILED;
+        }
+        job.finishedNanos = System.nanoTime();
+        job.finishedAtMillis = System.currentTimeMillis();
+        // Last, so that whoever sees the outcome also sees the times
+        job.state = outcome;
+        long millis = TimeUnit.NANOSECONDS.toMillis(job.finishedNanos - job.startedNanos);
+        // Moves an eighth of the way towards each new run time
+        averageRunMillis.getAndUpdate(average -> average + (millis - average) / 8);
+        completed.incrementAndGet();
+        retain(job);
+        job.done.complete(job);
+    }
+
+    // Holds on to the finished job, dropping the oldest finished ones while the results held
+    // are over the budget
+    private void retain(Job job) {
+        synchronized (finished) {
+            finished.add(job);
+            retainedBytes += job.resultBytes;
+            while (retainedBytes > maxResultBytes && finished.size() > 1) {
+                drop(finished.poll());
+                evicted.incrementAndGet();
+            }
+        }
+    }
+
+    // Under the lock of finished
+    private void drop(Job job) {
+        jobs.remove(job.id);
+        retainedBytes -= job.resultBytes;
+    }
+
+    // Traces make up nearly all of what jobs hold; an inline image comes second
+    @SuppressWarnings("unchecked")
+    private static long estimateSize(Object result) {
+        if (result instanceof List<?> trace) {
+            return TraceSteps.estimateSize((List<TraceStep>) trace);
+        }
+        if (result instanceof VisualizationResponse visualization && visualization.getVisualizationUrl() != null) {
+            return 2L * visualization.getVisualizationUrl().length();
+        }
+        return 0;
+    }
+
+    // Jobs finish in order, so the stale ones are at the head of finished
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        synchronized (finished) {
+            while (!finished.isEmpty() && finished.peek().finishedAtMillis + resultTtlMillis <= now) {
+                drop(finished.poll());
+                expired.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package com.backtracking.visualizer.service;
+
+import com.backtracking.visualizer.dto.TraceOptions;
+import com.backtracking.visualizer.dto.TraceStep;
+import com.backtracking.visualizer.util.SplittableSteps;
+import com.backtracking.visualizer.util.TraceLimitExceeded;
+import com.backtracking.visualizer.util.TraceSession;
+import com.backtracking.visualizer.util.TraceSteps;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Runs a built-in engine's search on a fork/join pool by cutting its tree into subtrees (see
+// SplittableSteps). Counting forks subtrees wherever the pool runs short of queued work, so
+// work stealing keeps every thread busy. A trace is built in three passes so that it matches
+// the sequential one step for step:
+//
+//   1. the top levels are walked to cut the tree into subtrees, and every subtree is sized in
+//      parallel (steps, solutions, the first step past the depth budget);
+//   2. the top levels are walked again, now numbering every step: a subtree's steps start
+//      after everything before it, and its cursor starts from the solutions found before it;
+//   3. the subtrees build their kept steps in parallel, each into its own buffer, and the
+//      buffers go into the session in depth-first order.
+//
+// Both need every solution to be searched for: a search that stops after maxSolutions depends
+// on the order subtrees finish in, so callers run those sequentially.
+@Service
+public class ParallelSearch {
+    // Subtrees are only cut off this close to the root
+    private static final int MAX_SPLIT_DEPTH = 8;
+    // A counting task forks its next subtree while the pool has fewer queued tasks than this
+    private static final int SURPLUS = 3;
+    // A trace is cut into at least this many subtrees per thread, when the tree allows
+    private static final int SUBTREES_PER_THREAD = 4;
+    // The clock is only read every this many steps
+    private static final int TIME_CHECK_INTERVAL = 4096;
+
+    private final ForkJoinPool pool;
+
+    public ParallelSearch(@Value("${trace.parallel.threads:0}") int threads) {
+        // 0 uses every core
+        int parallelism = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.pool = new ForkJoinPool(parallelism, pool -> {
+            var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("trace-search-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    // Step counts of a search, by action
+    public static class Counts {
+        private String[] actions = new String[8];
+        private long[] counts = new long[8];
+        private int size;
+        private long steps;
+        private long solutions;
+        private int maxDepth;
+        private boolean timedOut;
+        private boolean depthExceeded;
+
+        void add(String action, int depth) {
+            steps++;
+            maxDepth = Math.max(maxDepth, depth);
+            // Engines return the same few constants, so identity finds them
+            for (int i = 0; i < size; i++) {
+                if (actions[i] == action) {
+                    counts[i]++;
+                    return;
+                }
+            }
+            add(action, 1L);
+        }
+
+        private void add(String action, long count) {
+            for (int i = 0; i < size; i++) {
+                if (actions[i].equals(action)) {
+                    counts[i] += count;
+                    return;
+                }
+            }
+            if (size == actions.length) {
+                actions = Arrays.copyOf(actions, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            actions[size] = action;
+            counts[size++] = count;
+        }
+
+        void add(Counts other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.actions[i], other.counts[i]);
+            }
+            steps += other.steps;
+            solutions += other.solutions;
+            maxDepth = Math.max(maxDepth, other.maxDepth);
+            timedOut |= other.timedOut;
+            depthExceeded |= other.depthExceeded;
+        }
+
+        public long getSteps() {
+            return steps;
+        }
+
+        public long getSolutions() {
+            return solutions;
+        }
+
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        public boolean isDepthExceeded() {
+            return depthExceeded;
+        }
+
+        public Map<String, Long> getActions() {
+            Map<String, Long> actions = new TreeMap<>();
+            for (int i = 0; i < size; i++) {
+                actions.put(this.actions[i], counts[i]);
+            }
+            return actions;
+        }
+    }
+
+    // Runs the whole search without building steps; sequentially on the calling thread unless
+    // parallel is set. Stops early, with timedOut set, once the deadline has passed, and with
+    // depthExceeded set at the first step deeper than maxDepth: an engine's state grows with
+    // its depth, and some searches (a combination sum of 1s) go as deep as their target.
+    public Counts count(SplittableSteps steps, boolean parallel, int maxDepth, long deadlineNanos) {
+        CountTask task = new CountTask(steps, parallel, maxDepth, deadlineNanos);
+        return parallel ? pool.invoke(task) : task.compute();
+    }
+
+    private static class CountTask extends RecursiveTask<Counts> {
+        private static final long serialVersionUID = 1L;
+
+        private final SplittableSteps steps;
+        private final boolean split;
+        private final int maxDepth;
+        private final long deadlineNanos;
+
+        CountTask(SplittableSteps steps, boolean split, int maxDepth, long deadlineNanos) {
+            this.steps = steps;
+            this.split = split;
+            this.maxDepth = maxDepth;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        @Override
+        protected Counts compute() {
+            Counts counts = new Counts();
+            long startSolutions = steps.solutions();
+            List<CountTask> forked = new ArrayList<>();
+            while (true) {
+                int depth = split ? steps.childDepth() : 0;
+                if (depth > 0 && depth <= MAX_SPLIT_DEPTH && getSurplusQueuedTaskCount() < SURPLUS) {
+                    CountTask child = new CountTask(steps.subtree(), true, maxDepth, deadlineNanos);
+                    child.fork();
+                    forked.add(child);
+                    // Solutions are only counted here, never used to stop the search
+                    steps.skipSubtree(0);
+                    continue;
+                }
+                if (!steps.advance()) {
+                    break;
+                }
+                if (steps.depth() > maxDepth) {
+                    counts.depthExceeded = true;
+                    break;
+                }
+                counts.add(steps.action(), steps.depth());
+                if (counts.steps % TIME_CHECK_INTERVAL == 0 && System.nanoTime() > deadlineNanos) {
+                    counts.timedOut = true;
+                    break;
+                }
+            }
+            counts.solutions = steps.solutions() - startSolutions;
+            for (CountTask child : forked) {
+                counts.add(child.join());
+            }
+            return counts;
+        }
+    }
+
+    // Records the search into the session like TraceSteps.record does, with the same steps,
+    // numbers and truncation. The engine supplier must return a fresh cursor on every call.
+    public void record(Supplier<SplittableSteps> engine, TraceSession trace, TraceOptions options) {
+        long timeoutMillis = options.effectiveTimeoutMillis();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        String timeReason = "Time budget of " + timeoutMillis + " ms used up";
+        int maxSteps = options.effectiveMaxSteps();
+        List<ForkJoinTask<?>> submitted = new ArrayList<>();
+        try {
+            // Pass 1: cut
+            int splitDepth = splitDepth(engine, maxSteps);
+            if (splitDepth == 0) {
+                TraceSteps.record(engine.get(), trace);
+                return;
+            }
+            List<SplittableSteps> subtrees = new ArrayList<>();
+            walk(engine.get(), splitDepth, maxSteps, subtrees, null);
+
+            // Passes 1 and 2: subtrees are sized a few ahead of the walk that numbers them
+            Plan plan = new Plan(trace, subtrees, options, deadline, timeReason, submitted);
+            walk(engine.get(), splitDepth, maxSteps, null, plan);
+            plan.finish();
+            int firstWanted = options.effectiveCaptureMode() == TraceOptions.CaptureMode.LAST_N
+                ? Math.max(1, plan.cutoff - options.effectiveRingSize())
+                : 1;
+
+            // Pass 3: build in parallel, merge in order
+            List<Supplier<List<TraceStep>>> pieces = new ArrayList<>();
+            for (Piece piece : plan.pieces) {
+                if (piece.subtree() == null) {
+                    pieces.add(piece::steps);
+                } else if (piece.offset() + 1 < plan.cutoff) {
+                    BuildTask task = new BuildTask(piece.subtree(), piece.offset(), firstWanted, plan.cutoff, trace,
+                        deadline, timeReason);
+                    submitted.add(pool.submit(task));
+                    pieces.add(task::join);
+                }
+            }
+            for (Supplier<List<TraceStep>> piece : pieces) {
+                for (TraceStep step : piece.get()) {
+                    if (step.getStep() >= firstWanted && step.getStep() < plan.cutoff) {
+                        trace.advanceTo(step.getStep());
+                        trace.add(step);
+                    }
+                }
+            }
+            trace.advanceTo(plan.cutoff - 1);
+            if (plan.reason != null) {
+                trace.cancel(plan.reason);
+            }
+        } catch (TraceLimitExceeded e) {
+            // Byte or time budget used up; finish() closes the trace with a truncation marker
+            trace.cancel(e.getMessage());
+        } finally {
+            submitted.forEach(task -> task.cancel(true));
+        }
+        trace.finish();
+    }
+
+    // The shallowest depth that cuts the tree into enough subtrees; 0 when none cuts it at all,
+    // or when a single thread would only walk the top levels three times over
+    private int splitDepth(Supplier<SplittableSteps> engine, int maxSteps) {
+        if (pool.getParallelism() == 1) {
+            return 0;
+        }
+        int wanted = pool.getParallelism() * SUBTREES_PER_THREAD;
+        int best = 0;
+        for (int depth = 2; depth <= MAX_SPLIT_DEPTH; depth++) {
+            List<SplittableSteps> subtrees = new ArrayList<>();
+            walk(engine.get(), depth, maxSteps, subtrees, null);
+            if (subtrees.size() > 1) {
+                best = depth;
+            }
+            if (subtrees.size() >= wanted) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    // Walks the levels above depth, stepping over every subtree rooted at it, for at most
+    // maxSteps steps of its own. Pass 1 collects the subtrees; pass 2 numbers the steps into
+    // the plan.
+    private static void walk(SplittableSteps steps, int depth, int maxSteps, List<SplittableSteps> subtrees, Plan plan) {
+        int walked = 0;
+        while (walked <= maxSteps && (plan == null || plan.open())) {
+            if (steps.childDepth() == depth) {
+                if (subtrees != null) {
+                    subtrees.add(steps.subtree());
+                    steps.skipSubtree(0);
+                } else {
+                    steps.skipSubtree(plan.subtree(steps.subtree()));
+                }
+                continue;
+            }
+            if (!steps.advance()) {
+                return;
+            }
+            walked++;
+            if (plan != null) {
+                plan.step(steps);
+            }
+        }
+    }
+
+    // Where every step of the trace comes from, in order, and where the trace ends
+    private class Plan {
+        private final TraceSession trace;
+        private final List<SplittableSteps> subtrees;
+        private final List<SizeTask> sizes = new ArrayList<>();
+        private final List<ForkJoinTask<?>> submitted;
+        private final int maxSteps;
+        private final int maxDepth;
+        private final long deadlineNanos;
+        private final String timeReason;
+        private final List<Piece> pieces = new ArrayList<>();
+        private int next;
+        // Steps numbered so far
+        private long number;
+        // First step number the trace does not have
+        private int cutoff;
+        private String reason;
+
+        Plan(TraceSession trace, List<SplittableSteps> subtrees, TraceOptions options, long deadlineNanos,
+             String timeReason, List<ForkJoinTask<?>> submitted) {
+            this.trace = trace;
+            this.subtrees = subtrees;
+            this.submitted = submitted;
+            this.maxSteps = options.effectiveMaxSteps();
+            this.maxDepth = options.effectiveMaxDepth();
+            this.deadlineNanos = deadlineNanos;
+            this.timeReason = timeReason;
+            this.cutoff = maxSteps + 1;
+        }
+
+        boolean open() {
+            return number < cutoff;
+        }
+
+        // A step of the top levels
+        void step(SplittableSteps steps) {
+            number++;
+            if (steps.depth() > maxDepth) {
+                cut((int) number, "Maximum recursion depth of " + maxDepth + " reached");
+            }
+            if (number < cutoff && trace.keeps((int) number, steps.action())) {
+                Piece last = pieces.isEmpty() ? null : pieces.get(pieces.size() - 1);
+                if (last == null || last.subtree() != null) {
+                    last = new Piece(null, (int) number - 1, new ArrayList<>());
+                    pieces.add(last);
+                }
+                last.steps().add(steps.toStep((int) number));
+            }
+        }
+
+        // The next subtree, given a cursor that starts from the solutions found before it;
+        // returns the solutions the subtree finds
+        long subtree(SplittableSteps subtree) {
+            Size size = size(next++);
+            if (size.overDepthAt() > 0) {
+                cut((int) Math.min(number + size.overDepthAt(), Integer.MAX_VALUE), "Maximum recursion depth of " + maxDepth + " reached");
+            }
+            pieces.add(new Piece(subtree, (int) number, null));
+            number += size.steps();
+            return size.solutions();
+        }
+
+        // Joins the size of subtree i, keeping the pool busy sizing the ones after it
+        private Size size(int i) {
+            int ahead = Math.min(subtrees.size(), i + 1 + pool.getParallelism() * 2);
+            while (sizes.size() < ahead) {
+                SizeTask task = new SizeTask(subtrees.get(sizes.size()), maxSteps + 1, maxDepth, deadlineNanos, timeReason);
+                sizes.add(task);
+                submitted.add(pool.submit(task));
+            }
+            return sizes.get(i).join();
+        }
+
+        // A walk that got as far as step maxSteps + 1 ran into the step budget, unless the
+        // depth budget stopped it first
+        void finish() {
+            if (reason == null && number >= cutoff) {
+                reason = "Step budget of " + maxSteps + " steps used up";
+            }
+        }
+
+        private void cut(int at, String why) {
+            if (at < cutoff || (at == cutoff && reason == null)) {
+                cutoff = at;
+                reason = why;
+            }
+        }
+    }
+
+    // Either a run of top-level steps, already built, or a subtree whose steps are numbered
+    // from offset + 1
+    private record Piece(SplittableSteps subtree, int offset, List<TraceStep> steps) {
+    }
+
+    private record Size(long steps, long solutions, int overDepthAt) {
+    }
+
+    // Counts a subtree's steps, up to limit, and finds the first one past the depth budget
+    private static class SizeTask extends RecursiveTask<Size> {
+        private static final long serialVersionUID = 1L;
+
+        private final SplittableSteps steps;
+        private final int limit;
+        private final int maxDepth;
+        private final long deadlineNanos;
+        private final String timeReason;
+
+        SizeTask(SplittableSteps steps, int limit, int maxDepth, long deadlineNanos, String timeReason) {
+            this.steps = steps;
+            this.limit = limit;
+            this.maxDepth = maxDepth;
+            this.deadlineNanos = deadlineNanos;
+            this.timeReason = timeReason;
+        }
+
+        @Override
+        protected Size compute() {
+            long startSolutions = steps.solutions();
+            int count = 0;
+            int overDepthAt = 0;
+            while (count < limit && steps.advance()) {
+                count++;
+                if (overDepthAt == 0 && steps.depth() > maxDepth) {
+                    overDepthAt = count;
+                }
+                checkTime(count, deadlineNanos, timeReason);
+            }
+            return new Size(count, steps.solutions() - startSolutions, overDepthAt);
+        }
+    }
+
+    // Builds a subtree's kept steps, numbered from offset + 1, skipping those outside
+    // [firstWanted, cutoff)
+    private static class BuildTask extends RecursiveTask<List<TraceStep>> {
+        private static final long serialVersionUID = 1L;
+
+        private final SplittableSteps steps;
+        private final int offset;
+        private final int firstWanted;
+        private final int cutoff;
+        private final TraceSession trace;
+        private final long deadlineNanos;
+        private final String timeReason;
+
+        BuildTask(SplittableSteps steps, int offset, int firstWanted, int cutoff, TraceSession trace, long deadlineNanos,
+                  String timeReason) {
+            this.steps = steps;
+            this.offset = offset;
+            this.firstWanted = firstWanted;
+            this.cutoff = cutoff;
+            this.trace = trace;
+            this.deadlineNanos = deadlineNanos;
+            this.timeReason = timeReason;
+        }
+
+        @Override
+        protected List<TraceStep> compute() {
+            List<TraceStep> built = new ArrayList<>();
+            int number = offset;
+            if (firstWanted > number + 1) {
+                number += (int) steps.skip(firstWanted - number - 1);
+            }
+            while (number + 1 < cutoff && steps.advance()) {
+                number++;
+                if (trace.keeps(number, steps.action())) {
+                    built.add(steps.toStep(number));
+                }
+                checkTime(number - offset, deadlineNanos, timeReason);
+            }
+            return built;
+        }
+    }
+
+    private static void checkTime(int count, long deadlineNanos, String reason) {
+        if (count % TIME_CHECK_INTERVAL == 0 && System.nanoTime() > deadlineNanos) {
+            throw new TraceLimitExceeded(reason);
+        }
+    }
+}
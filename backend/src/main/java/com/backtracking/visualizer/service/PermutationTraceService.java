@@ -1,80 +1,67 @@
 package com.backtracking.visualizer.service;
 
+import com.backtracking.visualizer.dto.PermutationSummary;
+import com.backtracking.visualizer.dto.PermutationTraceRequest.Algorithm;
+import com.backtracking.visualizer.dto.TraceOptions;
 import com.backtracking.visualizer.dto.TraceStep;
-import com.backtracking.visualizer.dto.StackFrame;
+import com.backtracking.visualizer.util.PermutationSteps;
+import com.backtracking.visualizer.util.TraceSession;
+import com.backtracking.visualizer.util.TraceSink;
+import com.backtracking.visualizer.util.TraceSteps;
+import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Service;
 import java.util.*;
 
+// Stateless: every call pulls its steps from its own PermutationSteps, and only the steps
+// the caller keeps are ever built
 @Service
+@RequiredArgsConstructor
 public class PermutationTraceService {
-    private List<TraceStep> trace;
-    private int stepCounter;
+    private final ParallelSearch parallelSearch;
 
     public List<TraceStep> generatePermutationTrace(int[] nums) {
-        trace = new ArrayList<>();
-        stepCounter = 1;
-        permute(nums, 0);
-        return trace;
+        return generatePermutationTrace(nums, Algorithm.SWAP, false, TraceOptions.defaults());
     }
 
-    private void permute(int[] nums, int start) {
-        // Record entering recursion
-        trace.add(new TraceStep(
-            stepCounter++,
-            "permute",
-            Map.of("nums", Arrays.copyOf(nums, nums.length), "start", start),
-            new ArrayList<>(),
-            -1,
-            "recurse",
-            "Entering recursion with start=" + start + ", nums=" + Arrays.toString(nums)
-        ));
+    public List<TraceStep> generatePermutationTrace(int[] nums, Algorithm algorithm, boolean parallel, TraceOptions options) {
+        TraceSession trace = new TraceSession(options, null, null);
+        record(nums, algorithm, parallel, options, trace);
+        return trace.getSteps();
+    }
+
+    // Same trace, handed to the sink step by step while the permutations are generated
+    public void streamPermutationTrace(int[] nums, Algorithm algorithm, boolean parallel, TraceOptions options,
+                                       TraceSink sink) {
+        record(nums, algorithm, parallel, options, new TraceSession(options, null, sink));
+    }
 
-        if (start == nums.length - 1) {
-            // Record base case
-            trace.add(new TraceStep(
-                stepCounter++,
-                "permute",
-                Map.of("nums", Arrays.copyOf(nums, nums.length), "start", start),
-                new ArrayList<>(),
-                -1,
-                "base_case",
-                "Base case reached: " + Arrays.toString(nums)
-            ));
-            return;
+    private void record(int[] nums, Algorithm algorithm, boolean parallel, TraceOptions options, TraceSession trace) {
+        if (parallel) {
+            parallelSearch.record(() -> steps(nums, algorithm), trace, options);
+        } else {
+            TraceSteps.record(steps(nums, algorithm), trace);
         }
+    }
 
-        for (int i = start; i < nums.length; i++) {
-            // Record swap
-            trace.add(new TraceStep(
-                stepCounter++,
-                "permute",
-                Map.of("nums", Arrays.copyOf(nums, nums.length), "start", start, "i", i),
-                new ArrayList<>(),
-                -1,
-                "swap",
-                "Swapping nums[" + start + "] and nums[" + i + "]"
-            ));
-            swap(nums, start, i);
+    // At most TraceStore.MAX_PAGE_STEPS steps starting at step number from, and no more than
+    // the byte budget of the options
+    public TraceSteps.Page pagePermutationTrace(int[] nums, Algorithm algorithm, int from, int limit, TraceOptions options) {
+        return TraceSteps.page(steps(nums, algorithm), from, Math.min(limit, TraceStore.MAX_PAGE_STEPS),
+            options.effectiveMaxBytes());
+    }
 
-            permute(nums, start + 1);
+    public PermutationSummary summarize(int[] nums, Algorithm algorithm) {
+        return PermutationSteps.count(checked(nums), algorithm);
+    }
 
-            // Record backtrack (swap back)
-            trace.add(new TraceStep(
-                stepCounter++,
-                "permute",
-                Map.of("nums", Arrays.copyOf(nums, nums.length), "start", start, "i", i),
-                new ArrayList<>(),
-                -1,
-                "backtrack",
-                "Backtracking (swapping back) nums[" + start + "] and nums[" + i + "]"
-            ));
-            swap(nums, start, i);
-        }
+    private static PermutationSteps steps(int[] nums, Algorithm algorithm) {
+        return new PermutationSteps(checked(nums), algorithm);
     }
 
-    private void swap(int[] nums, int i, int j) {
-        int temp = nums[i];
-        nums[i] = nums[j];
-        nums[j] = temp;
+    private static int[] checked(int[] nums) {
+        if (nums == null) {
+            throw new IllegalArgumentException("No numbers provided");
+        }
+        return nums;
     }
-} 
\ No newline at end of file
+}
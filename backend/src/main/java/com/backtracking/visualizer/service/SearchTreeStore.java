@@ -0,0 +1,36 @@
+package com.backtracking.visualizer.service;
+
+import com.backtracking.visualizer.util.BoundedLruCache;
+import com.backtracking.visualizer.util.SearchTreeSummary;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+// Search trees kept in memory under an ID, so that a client can expand the aggregates of a
+// view without running the code again. Bounded like the other caches; an evicted tree's
+// ID simply stops resolving.
+@Service
+public class SearchTreeStore {
+    private final BoundedLruCache<String, SearchTreeSummary> trees;
+
+    public SearchTreeStore(@Value("${visualization.tree-store.max-entries:64}") int maxEntries,
+                           @Value("${visualization.tree-store.max-bytes:268435456}") long maxBytes) {
+        this.trees = new BoundedLruCache<>(maxEntries, maxBytes, SearchTreeSummary::sizeInBytes);
+    }
+
+    public String store(SearchTreeSummary tree) {
+        String id = UUID.randomUUID().toString().replace("-", "");
+        trees.put(id, tree);
+        return id;
+    }
+
+    public Optional<SearchTreeSummary> find(String id) {
+        return Optional.ofNullable(trees.get(id));
+    }
+
+    public Map<String, Object> stats() {
+        return trees.stats();
+    }
+}
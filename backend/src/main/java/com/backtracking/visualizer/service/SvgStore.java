@@ -0,0 +1,56 @@
+package com.backtracking.visualizer.service;
+
+import com.backtracking.visualizer.util.BoundedLruCache;
+import com.backtracking.visualizer.util.Hashing;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.GZIPOutputStream;
+
+// Rendered images kept under the SHA-256 of their bytes and served by
+// /api/visualizations/{id}. The ID names the content, so a URL never changes meaning and
+// responses can be cached forever. Images are stored gzipped, which is also how most
+// clients receive them, and hashed and compressed in one pass as the renderer writes them.
+@Service
+public class SvgStore {
+    public record StoredSvg(String id, byte[] gzipped) {
+    }
+
+    @FunctionalInterface
+    public interface SvgWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private final BoundedLruCache<String, StoredSvg> images;
+
+    public SvgStore(@Value("${visualization.svg-store.max-entries:1024}") int maxEntries,
+                    @Value("${visualization.svg-store.max-bytes:67108864}") long maxBytes) {
+        this.images = new BoundedLruCache<>(maxEntries, maxBytes, image -> image.gzipped().length);
+    }
+
+    public StoredSvg store(SvgWriter writer) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        MessageDigest digest = Hashing.newSha256();
+        try (OutputStream out = new DigestOutputStream(new GZIPOutputStream(compressed, 1 << 16), digest)) {
+            writer.write(out);
+        }
+        StoredSvg image = new StoredSvg(HexFormat.of().formatHex(digest.digest()), compressed.toByteArray());
+        images.put(image.id(), image);
+        return image;
+    }
+
+    public Optional<StoredSvg> find(String id) {
+        return Optional.ofNullable(images.get(id));
+    }
+
+    public Map<String, Object> stats() {
+        return images.stats();
+    }
+}
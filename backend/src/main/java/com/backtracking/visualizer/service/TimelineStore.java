@@ -0,0 +1,42 @@
+package com.backtracking.visualizer.service;
+
+import com.backtracking.visualizer.util.BoundedLruCache;
+import com.backtracking.visualizer.util.TraceTimeline;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+// Collected traces kept in memory under an ID after their response, so that a client can
+// jump to any step (TraceTimeline.stepAt) without holding the whole trace or running the
+// code again. Bounded like the other caches; an evicted timeline's ID simply stops resolving.
+@Service
+public class TimelineStore {
+    private final BoundedLruCache<String, TraceTimeline> timelines;
+    private final long maxBytes;
+
+    public TimelineStore(@Value("${trace.timeline-store.max-entries:64}") int maxEntries,
+                         @Value("${trace.timeline-store.max-bytes:268435456}") long maxBytes) {
+        this.timelines = new BoundedLruCache<>(maxEntries, maxBytes, TraceTimeline::sizeInBytes);
+        this.maxBytes = maxBytes;
+    }
+
+    // Empty when the timeline alone is over the store's budget and so would not be kept
+    public Optional<String> store(TraceTimeline timeline) {
+        if (timeline.sizeInBytes() > maxBytes) {
+            return Optional.empty();
+        }
+        String id = UUID.randomUUID().toString().replace("-", "");
+        timelines.put(id, timeline);
+        return Optional.of(id);
+    }
+
+    public Optional<TraceTimeline> find(String id) {
+        return Optional.ofNullable(timelines.get(id));
+    }
+
+    public Map<String, Object> stats() {
+        return timelines.stats();
+    }
+}
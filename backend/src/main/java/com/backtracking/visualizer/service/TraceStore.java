@@ -0,0 +1,184 @@
+package com.backtracking.visualizer.service;
+
+import com.backtracking.visualizer.util.MappedTrace;
+import com.backtracking.visualizer.util.MappedTraceWriter;
+import com.backtracking.visualizer.util.TraceSink;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+// Keeps generated traces on disk under a trace ID so clients can page through them instead
+// of holding or regenerating the whole trace. Each trace lives in its own directory of
+// memory-mapped segments (see MappedTraceWriter). Completed traces found on startup are
+// picked up again; retention by total size and by age is applied whenever a trace is added.
+@Slf4j
+@Service
+public class TraceStore {
+    // Upper bound on the steps returned by one range request
+    public static final int MAX_PAGE_STEPS = 10_000;
+
+    private final Path root;
+    private final ObjectMapper objectMapper;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final Duration maxAge;
+    private final Map<String, MappedTrace> traces = new ConcurrentHashMap<>();
+
+    public TraceStore(ObjectMapper objectMapper,
+                      @Value("${trace.store.directory:${java.io.tmpdir}/backtracking-traces}") Path root,
+                      @Value("${trace.store.segment-bytes:67108864}") int segmentBytes,
+                      @Value("${trace.store.max-bytes:2147483648}") long maxBytes,
+                      @Value("${trace.store.max-age:PT1H}") Duration maxAge) throws IOException {
+        this.objectMapper = objectMapper;
+        this.root = Files.createDirectories(root);
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+        reload();
+    }
+
+    // Writes the trace the producer generates and registers it once it is complete
+    public MappedTrace store(TraceProducer producer) throws Exception {
+        String id = UUID.randomUUID().toString().replace("-", "");
+        Path directory = root.resolve(id);
+        MappedTraceWriter writer = new MappedTraceWriter(directory, objectMapper, segmentBytes);
+        try {
+            producer.produce(writer);
+        } catch (Exception | Error e) {
+            writer.abort();
+            delete(directory);
+            throw e;
+        }
+        return register(id, directory);
+    }
+
+    // Same as store(), for producers that generate the trace on another thread
+    public CompletableFuture<MappedTrace> storeAsync(Function<TraceSink, CompletableFuture<?>> producer) {
+        String id = UUID.randomUUID().toString().replace("-", "");
+        Path directory = root.resolve(id);
+        MappedTraceWriter writer;
+        try {
+            writer = new MappedTraceWriter(directory, objectMapper, segmentBytes);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return producer.apply(writer).handle((ignored, error) -> {
+            if (error != null) {
+                writer.abort();
+                delete(directory);
+                throw error instanceof CompletionException completion ? completion : new CompletionException(error);
+            }
+            try {
+                return register(id, directory);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private MappedTrace register(String id, Path directory) throws IOException {
+        MappedTrace trace = MappedTrace.open(directory);
+        traces.put(id, trace);
+        applyRetention();
+        return trace;
+    }
+
+    public Optional<MappedTrace> find(String id) {
+        MappedTrace trace = traces.get(id);
+        if (trace != null && isExpired(trace)) {
+            remove(id);
+            return Optional.empty();
+        }
+        return Optional.ofNullable(trace);
+    }
+
+    public static String idOf(MappedTrace trace) {
+        return trace.getDirectory().getFileName().toString();
+    }
+
+    private boolean isExpired(MappedTrace trace) {
+        return trace.getCreated().isBefore(Instant.now().minus(maxAge));
+    }
+
+    // Drops expired traces, then the oldest ones until the store fits its size budget
+    private synchronized void applyRetention() {
+        traces.entrySet().removeIf(entry -> {
+            if (isExpired(entry.getValue())) {
+                delete(entry.getValue().getDirectory());
+                return true;
+            }
+            return false;
+        });
+        long total = traces.values().stream().mapToLong(MappedTrace::getBytes).sum();
+        if (total <= maxBytes) {
+            return;
+        }
+        List<Map.Entry<String, MappedTrace>> oldestFirst = traces.entrySet().stream()
+            .sorted(Comparator.comparing(entry -> entry.getValue().getCreated()))
+            .toList();
+        for (Map.Entry<String, MappedTrace> entry : oldestFirst) {
+            if (total <= maxBytes) {
+                break;
+            }
+            total -= entry.getValue().getBytes();
+            remove(entry.getKey());
+        }
+    }
+
+    private void remove(String id) {
+        MappedTrace trace = traces.remove(id);
+        if (trace != null) {
+            delete(trace.getDirectory());
+        }
+    }
+
+    private void reload() throws IOException {
+        try (Stream<Path> directories = Files.list(root)) {
+            for (Path directory : directories.filter(Files::isDirectory).toList()) {
+                MappedTrace trace = MappedTrace.open(directory);
+                if (trace == null) {
+                    // Left behind by a run that never completed
+                    delete(directory);
+                } else {
+                    traces.put(directory.getFileName().toString(), trace);
+                }
+            }
+        }
+        applyRetention();
+        log.info("Trace store at {} holds {} traces", root, traces.size());
+    }
+
+    // Mapped segments stay readable until they are garbage collected, so deleting the files
+    // under a request that is still reading them is safe on POSIX file systems
+    private static void delete(Path directory) {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            log.warn("Could not delete stored trace {}", directory, e);
+        }
+    }
+
+    @FunctionalInterface
+    public interface TraceProducer {
+        void produce(TraceSink sink) throws Exception;
+    }
+}
@@ -1,5 +1,17 @@
 package com.backtracking.visualizer.service;
  
+import com.backtracking.visualizer.util.SearchTree;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+
 public interface VisualizationService {
-    String generateVisualization(String code) throws Exception;
+    // The code is run first and drawn afterwards, so that a failing run is still reported
+    // as an error before any of the image has been written. Completes when the run is over.
+    CompletableFuture<SearchTree> buildSearchTree(String code);
+
+    // GraphViz drawing of the top of the tree, as SVG
+    byte[] renderGraph(SearchTree tree);
+
+    void writeTreeSvg(SearchTree tree, OutputStream out) throws IOException;
 } 
\ No newline at end of file
@@ -1,9 +1,12 @@
 package com.backtracking.visualizer.service;
 
-import com.backtracking.visualizer.model.BacktrackingNode;
+import com.backtracking.visualizer.util.SearchTree;
+import com.backtracking.visualizer.util.SvgTreeWriter;
 import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Service;
-import java.util.List;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 @RequiredArgsConstructor
@@ -13,11 +16,18 @@ public class VisualizationServiceImpl implements VisualizationService {
     private final GraphVizService graphVizService;
 
     @Override
-    public String generateVisualization(String code) throws Exception {
-        // Analyze the code for static graph generation using the new service
-        List<BacktrackingNode> nodes = codeTraceGeneratorService.analyzeCodeForStaticGraph(code);
-        
-        // Generate visualization using GraphViz
-        return graphVizService.generateVisualization(nodes);
+    public CompletableFuture<SearchTree> buildSearchTree(String code) {
+        // Run the code and collect the recursion tree it actually explored
+        return codeTraceGeneratorService.buildSearchTree(code);
+    }
+
+    @Override
+    public byte[] renderGraph(SearchTree tree) {
+        return graphVizService.renderSvg(tree);
+    }
+
+    @Override
+    public void writeTreeSvg(SearchTree tree, OutputStream out) throws IOException {
+        SvgTreeWriter.write(tree, out);
     }
 } 
\ No newline at end of file
@@ -0,0 +1,275 @@
+package com.backtracking.visualizer.service;
+
+import com.backtracking.visualizer.dto.TraceOptions;
+import com.backtracking.visualizer.dto.TraceStep;
+import com.backtracking.visualizer.util.TraceLimitExceeded;
+import com.backtracking.visualizer.util.TraceSink;
+import com.backtracking.visualizer.util.TraceTimeline;
+import com.backtracking.visualizer.util.TraceWorker;
+import com.backtracking.visualizer.util.WorkerProcess;
+import com.backtracking.visualizer.util.WorkerProtocol;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarFile;
+
+// Runs submissions out of process, in a pool of long-lived worker JVMs (see TraceWorker), so
+// an allocation-heavy submission is collected by its own worker's GC within its own heap cap
+// instead of pausing the server. Workers are started and warmed up ahead of time; a worker is
+// replaced after max-jobs runs, when it crashes, and when it had to be killed.
+//
+// The pool is off by default; with trace.workers.enabled=false submissions run in-process.
+@Slf4j
+@Service
+public class WorkerPool {
+    // Time a worker gets past the run's own deadline, which TraceRunner already enforces
+    // inside the worker, before the whole JVM is killed
+    private static final long KILL_GRACE_MILLIS = 5_000;
+    private static final long RESPAWN_DELAY_MILLIS = 5_000;
+
+    private final ObjectMapper objectMapper;
+    private final boolean enabled;
+    private final int maxJobs;
+    private final Duration acquireTimeout;
+    private final List<String> command;
+
+    private final BlockingQueue<WorkerProcess> idle = new LinkedBlockingQueue<>();
+    private final ExecutorService threads;
+    private final ScheduledExecutorService watchdog;
+    private volatile boolean closed;
+
+    public WorkerPool(ObjectMapper objectMapper,
+                      @Value("${trace.workers.enabled:false}") boolean enabled,
+                      @Value("${trace.workers.size:0}") int size,
+                      @Value("${trace.workers.max-jobs:200}") int maxJobs,
+                      @Value("${trace.workers.max-heap:256m}") String maxHeap,
+                      @Value("${trace.workers.jvm-options:-XX:+UseSerialGC -XX:+ExitOnOutOfMemoryError}") String jvmOptions,
+                      @Value("${trace.workers.acquire-timeout:PT30S}") Duration acquireTimeout) {
+        this.objectMapper = objectMapper;
+        this.enabled = enabled;
+        this.maxJobs = maxJobs;
+        this.acquireTimeout = acquireTimeout;
+        this.command = command(maxHeap, jvmOptions);
+        this.threads = Executors.newCachedThreadPool(daemonThreads("trace-worker-"));
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(daemonThreads("trace-worker-watchdog-"));
+        if (enabled) {
+            // A size of 0 sizes the pool to the machine
+            int workers = size > 0 ? size : Runtime.getRuntime().availableProcessors();
+            log.info("Starting {} trace workers: {}", workers, command);
+            for (int i = 0; i < workers; i++) {
+                spawn();
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Same contract as CodeExecutor.streamCodeAsync, with the run in a worker JVM
+    public CompletableFuture<Void> streamAsync(String code, boolean autoTrace, TraceOptions options, TraceSink sink) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        threads.execute(() -> {
+            WorkerProcess worker = null;
+            boolean overran = false;
+            try {
+                worker = acquire();
+                WorkerProcess current = worker;
+                result.whenComplete((ignored, error) -> {
+                    if (error instanceof CancellationException) {
+                        current.kill("Run cancelled");
+                    }
+                });
+                long timeoutMillis = options.effectiveTimeoutMillis();
+                ScheduledFuture<?> kill = watchdog.schedule(
+                    () -> current.kill("Worker killed after exceeding the time budget of " + timeoutMillis + " ms"),
+                    timeoutMillis + KILL_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+                long started = System.nanoTime();
+                try {
+                    worker.run(new WorkerProtocol.Job(code, autoTrace, options), sink);
+                } catch (TraceLimitExceeded e) {
+                    // The sink's budget ran out; the rest of the run would be thrown away
+                    worker.kill(e.getMessage());
+                    throw e;
+                } finally {
+                    kill.cancel(false);
+                    // A run that hit its deadline may have left a stopped thread behind
+                    overran = System.nanoTime() - started > TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                }
+                result.complete(null);
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                if (worker != null) {
+                    release(worker, overran);
+                }
+            }
+        });
+        return result;
+    }
+
+    // Same contract as CodeExecutor.executeCodeAsync. The worker's session streams its steps
+    // and so never counts them against the byte budget; the budget is applied here instead, to
+    // the steps kept on this side. Once it is used up the worker is killed and the trace ends
+    // with a "truncated" step, as an in-process run would.
+    public CompletableFuture<List<TraceStep>> executeAsync(String code, boolean autoTrace, TraceOptions options) {
+        BudgetedTimeline trace = new BudgetedTimeline(options.effectiveMaxBytes());
+        return streamAsync(code, autoTrace, options, trace).handle((ignored, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                if (!(cause instanceof TraceLimitExceeded exceeded)) {
+                    throw error instanceof CompletionException wrapped ? wrapped : new CompletionException(error);
+                }
+                trace.truncate(exceeded.getMessage());
+            }
+            return trace.timeline.steps();
+        });
+    }
+
+    private static final class BudgetedTimeline implements TraceSink {
+        private final TraceTimeline timeline = new TraceTimeline();
+        private final long maxBytes;
+        private int lastStep;
+
+        BudgetedTimeline(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public synchronized void accept(TraceStep step) {
+            if (timeline.sizeInBytes() > maxBytes) {
+                throw new TraceLimitExceeded("Captured data exceeded " + maxBytes + " bytes");
+            }
+            timeline.accept(step);
+            lastStep = Math.max(lastStep, step.getStep());
+        }
+
+        synchronized void truncate(String reason) {
+            TraceStep marker = new TraceStep();
+            marker.setStep(lastStep + 1);
+            marker.setAction("truncated");
+            marker.setDetails(reason);
+            timeline.accept(marker);
+        }
+    }
+
+    private WorkerProcess acquire() throws InterruptedException {
+        while (true) {
+            WorkerProcess worker = idle.poll(acquireTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            if (worker == null) {
+                throw new RejectedExecutionException("No trace worker became available within " + acquireTimeout);
+            }
+            if (worker.isReusable()) {
+                return worker;
+            }
+            // Died while idle
+            retire(worker);
+        }
+    }
+
+    private void release(WorkerProcess worker, boolean overran) {
+        if (!closed && !overran && worker.isReusable() && worker.getJobs() < maxJobs) {
+            idle.offer(worker);
+        } else {
+            retire(worker);
+        }
+    }
+
+    private void retire(WorkerProcess worker) {
+        if (worker.isReusable()) {
+            worker.close();
+        } else {
+            worker.kill("Worker retired");
+        }
+        spawn();
+    }
+
+    private void spawn() {
+        if (closed) {
+            return;
+        }
+        threads.execute(() -> {
+            try {
+                idle.offer(WorkerProcess.start(command, objectMapper));
+            } catch (IOException e) {
+                log.error("Could not start a trace worker; retrying in {} ms", RESPAWN_DELAY_MILLIS, e);
+                watchdog.schedule(this::spawn, RESPAWN_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        closed = true;
+        WorkerProcess worker;
+        while ((worker = idle.poll()) != null) {
+            worker.close();
+        }
+        watchdog.shutdownNow();
+        threads.shutdownNow();
+    }
+
+    // Starts TraceWorker with this JVM's java and classpath. Inside a Spring Boot executable
+    // jar the application classes are nested, so the jar's PropertiesLauncher loads them.
+    private static List<String> command(String maxHeap, String jvmOptions) {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-Xmx" + maxHeap);
+        for (String option : jvmOptions.trim().split("\\s+")) {
+            if (!option.isEmpty()) {
+                command.add(option);
+            }
+        }
+        String classPath = System.getProperty("java.class.path");
+        command.add("-cp");
+        command.add(classPath);
+        if (isExecutableJar(classPath)) {
+            command.add("-Dloader.main=" + TraceWorker.class.getName());
+            command.add("org.springframework.boot.loader.launch.PropertiesLauncher");
+        } else {
+            command.add(TraceWorker.class.getName());
+        }
+        return command;
+    }
+
+    private static boolean isExecutableJar(String classPath) {
+        if (classPath.contains(File.pathSeparator) || !classPath.endsWith(".jar")) {
+            return false;
+        }
+        try (JarFile jar = new JarFile(classPath)) {
+            return jar.getEntry("BOOT-INF/classes/") != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger ids = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, prefix + ids.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
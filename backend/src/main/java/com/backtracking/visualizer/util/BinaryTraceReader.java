@@ -0,0 +1,234 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.StackFrame;
+import com.backtracking.visualizer.dto.TraceStep;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Reads the format of BinaryTraceWriter back into TraceStep objects. The server uses it for
+// traces produced in a worker JVM (see WorkerProcess). Frames a step shares with the previous
+// step's stack are the very same StackFrame objects, as they were on the writing side, and
+// primitive arrays come back as arrays, so sinks like TraceTimeline store them as compactly.
+public class BinaryTraceReader {
+    private final InputStream in;
+    private final List<String> dictionary = new ArrayList<>();
+    private List<StackFrame> previousStack = List.of();
+
+    public BinaryTraceReader(InputStream in) throws IOException {
+        this.in = in;
+        byte[] magic = readBytes(BinaryTraceWriter.MAGIC.length);
+        if (!Arrays.equals(magic, BinaryTraceWriter.MAGIC)) {
+            throw new IOException("Not a binary trace");
+        }
+        int version = readByte();
+        if (version != BinaryTraceWriter.VERSION) {
+            throw new IOException("Unsupported binary trace version " + version);
+        }
+    }
+
+    // The next step, or null once the end of the trace has been read
+    public TraceStep next() throws IOException {
+        int record = (int) readVarint();
+        if (record == BinaryTraceWriter.END) {
+            return null;
+        }
+        if (record != BinaryTraceWriter.STEP) {
+            throw new IOException("Unknown record type " + record);
+        }
+        TraceStep step = new TraceStep();
+        step.setStep((int) readVarint());
+        step.setLine((int) readZigzag());
+        step.setFunction(readString());
+        step.setAction(readString());
+        step.setDetails(readString());
+        step.setVariables(readNamedValues());
+
+        int kept = (int) readVarint();
+        int pushed = (int) readVarint();
+        if (kept > previousStack.size()) {
+            throw new IOException("Step keeps " + kept + " frames of a stack of " + previousStack.size());
+        }
+        List<StackFrame> stack = new ArrayList<>(kept + pushed);
+        stack.addAll(previousStack.subList(0, kept));
+        for (int i = 0; i < pushed; i++) {
+            StackFrame frame = new StackFrame();
+            frame.setFunctionName(readString());
+            frame.setLineNumber((int) readZigzag());
+            frame.setParameters(readNamedValues());
+            frame.setLocalVariables(readNamedValues());
+            stack.add(frame);
+        }
+        step.setCallStack(stack);
+        previousStack = stack;
+        return step;
+    }
+
+    private Map<String, Object> readNamedValues() throws IOException {
+        int count = (int) readVarint();
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = readString();
+            values.put(name, readValue());
+        }
+        return values;
+    }
+
+    private Object readValue() throws IOException {
+        int tag = (int) readVarint();
+        switch (tag) {
+            case BinaryTraceWriter.TAG_NULL:
+                return null;
+            case BinaryTraceWriter.TAG_INT:
+                return (int) readZigzag();
+            case BinaryTraceWriter.TAG_LONG:
+                return readZigzag();
+            case BinaryTraceWriter.TAG_DOUBLE:
+                return readDouble();
+            case BinaryTraceWriter.TAG_FALSE:
+                return false;
+            case BinaryTraceWriter.TAG_TRUE:
+                return true;
+            case BinaryTraceWriter.TAG_CHAR:
+                return (char) readVarint();
+            case BinaryTraceWriter.TAG_STRING:
+                return readString();
+            case BinaryTraceWriter.TAG_INT_ARRAY: {
+                int[] array = new int[readLength()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = (int) readZigzag();
+                }
+                return array;
+            }
+            case BinaryTraceWriter.TAG_LONG_ARRAY: {
+                long[] array = new long[readLength()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = readZigzag();
+                }
+                return array;
+            }
+            case BinaryTraceWriter.TAG_DOUBLE_ARRAY: {
+                double[] array = new double[readLength()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = readDouble();
+                }
+                return array;
+            }
+            case BinaryTraceWriter.TAG_BOOLEAN_ARRAY: {
+                boolean[] array = new boolean[readLength()];
+                for (int i = 0; i < array.length; i += 8) {
+                    int bits = readByte();
+                    for (int j = 0; j < 8 && i + j < array.length; j++) {
+                        array[i + j] = (bits & (1 << j)) != 0;
+                    }
+                }
+                return array;
+            }
+            case BinaryTraceWriter.TAG_CHAR_ARRAY: {
+                char[] array = new char[readLength()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = (char) readVarint();
+                }
+                return array;
+            }
+            case BinaryTraceWriter.TAG_BYTE_ARRAY:
+                return readBytes(readLength());
+            case BinaryTraceWriter.TAG_LIST: {
+                int size = readLength();
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue());
+                }
+                return list;
+            }
+            case BinaryTraceWriter.TAG_MAP: {
+                int size = readLength();
+                Map<Object, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < size; i++) {
+                    map.put(readValue(), readValue());
+                }
+                return map;
+            }
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    private String readString() throws IOException {
+        int kind = (int) readVarint();
+        switch (kind) {
+            case BinaryTraceWriter.STR_NULL:
+                return null;
+            case BinaryTraceWriter.STR_NEW: {
+                String text = new String(readBytes(readLength()), StandardCharsets.UTF_8);
+                dictionary.add(text);
+                return text;
+            }
+            case BinaryTraceWriter.STR_LITERAL:
+                return new String(readBytes(readLength()), StandardCharsets.UTF_8);
+            default: {
+                int id = kind - BinaryTraceWriter.STR_ID_BASE;
+                if (id >= dictionary.size()) {
+                    throw new IOException("Unknown string id " + id);
+                }
+                return dictionary.get(id);
+            }
+        }
+    }
+
+    private int readLength() throws IOException {
+        long length = readVarint();
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IOException("Invalid length " + length);
+        }
+        return (int) length;
+    }
+
+    private long readZigzag() throws IOException {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    // IEEE 754 bits, little-endian
+    private double readDouble() throws IOException {
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits |= (long) readByte() << (8 * i);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length < length) {
+            throw new EOFException();
+        }
+        return bytes;
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+}
@@ -0,0 +1,379 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.StackFrame;
+import com.backtracking.visualizer.dto.TraceStep;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Writes steps in a compact binary format, for clients that send
+// Accept: application/x-backtracking-trace. Steps are encoded straight from the TraceStep
+// objects into a byte buffer, without Jackson and without intermediate maps.
+//
+// Layout (all integers are unsigned LEB128 varints unless noted, "zigzag" marks signed ones):
+//
+//   stream  := "BTRC" version:u8 record* END
+//   record  := STEP step line:zigzag function:str action:str details:str
+//              varCount (name:str value)* keptFrames newFrames frame*
+//   frame   := function:str line:zigzag paramCount (name:str value)* localCount (name:str value)*
+//   str     := 0 (null) | 1 len utf8 (new dictionary entry) | 2 len utf8 (literal) | id + 3
+//
+// Names and actions go into a dictionary the first time they are seen and are sent as ids
+// afterwards; details and string values are sent as literals. The call stack of a step is
+// sent as the number of frames it shares with the previous step's stack plus the frames on
+// top of those. Values carry a one byte tag: see the TAG_ constants. int/short/byte values
+// are sent as INT, float as DOUBLE, and anything that is not a number, string, array,
+// collection or map as its string form.
+public class BinaryTraceWriter implements TraceSink {
+    public static final String MEDIA_TYPE = "application/x-backtracking-trace";
+
+    static final byte[] MAGIC = {'B', 'T', 'R', 'C'};
+    static final int VERSION = 1;
+
+    static final int END = 0;
+    static final int STEP = 1;
+
+    static final int STR_NULL = 0;
+    static final int STR_NEW = 1;
+    static final int STR_LITERAL = 2;
+    static final int STR_ID_BASE = 3;
+
+    static final int TAG_NULL = 0;
+    static final int TAG_INT = 1;
+    static final int TAG_LONG = 2;
+    static final int TAG_DOUBLE = 3;
+    static final int TAG_FALSE = 4;
+    static final int TAG_TRUE = 5;
+    static final int TAG_CHAR = 6;
+    static final int TAG_STRING = 7;
+    static final int TAG_INT_ARRAY = 8;
+    static final int TAG_LONG_ARRAY = 9;
+    static final int TAG_DOUBLE_ARRAY = 10;
+    static final int TAG_BOOLEAN_ARRAY = 11;
+    static final int TAG_CHAR_ARRAY = 12;
+    static final int TAG_BYTE_ARRAY = 13;
+    static final int TAG_LIST = 14;
+    static final int TAG_MAP = 15;
+
+    // Bounds the dictionary for traces with many distinct names; later names become literals
+    private static final int MAX_DICTIONARY_SIZE = 4096;
+    // Nested containers deeper than this are sent as a placeholder string
+    private static final int MAX_VALUE_DEPTH = 16;
+
+    private static final int BUFFER_LIMIT = 64 * 1024;
+    private static final int BATCH_SIZE = 256;
+    private static final long FLUSH_INTERVAL_NANOS = 50_000_000L;
+
+    private final OutputStream out;
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private List<StackFrame> previousStack = Collections.emptyList();
+
+    private byte[] buffer = new byte[BUFFER_LIMIT + 1024];
+    private int position;
+    private int pending;
+    private long lastFlush = System.nanoTime();
+    private boolean truncated;
+
+    // The whole encoded trace, for a response whose headers depend on how the trace ended
+    private static final class Buffer extends ByteArrayOutputStream {
+        // Reads the bytes in place rather than copying them
+        InputStream open() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
+    public BinaryTraceWriter(OutputStream out) {
+        this.out = out;
+        ensure(MAGIC.length + 1);
+        System.arraycopy(MAGIC, 0, buffer, 0, MAGIC.length);
+        position = MAGIC.length;
+        buffer[position++] = VERSION;
+    }
+
+    // Encodes into memory; the run's byte budget applies to the encoded size (see bufferedBytes)
+    public static BinaryTraceWriter buffered() {
+        return new BinaryTraceWriter(new Buffer());
+    }
+
+    public static boolean wantsBinary(String accept) {
+        return accept != null && accept.contains(MEDIA_TYPE);
+    }
+
+    @Override
+    public synchronized void accept(TraceStep step) {
+        writeStep(step);
+        try {
+            if (++pending >= BATCH_SIZE || System.nanoTime() - lastFlush > FLUSH_INTERVAL_NANOS) {
+                flush();
+            } else if (position >= BUFFER_LIMIT) {
+                drainBuffer();
+            }
+        } catch (IOException e) {
+            // The client went away; abort the producer
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized long bufferedBytes() {
+        return out instanceof Buffer written ? written.size() + position : 0;
+    }
+
+    // Whether the trace ended with a "truncated" step
+    public synchronized boolean isTruncated() {
+        return truncated;
+    }
+
+    // The encoded trace of a buffered writer, once complete
+    public synchronized InputStream content() {
+        if (!(out instanceof Buffer written)) {
+            throw new IllegalStateException("Not a buffered writer");
+        }
+        return written.open();
+    }
+
+    @Override
+    public synchronized void complete() {
+        writeVarint(END);
+        try {
+            flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeStep(TraceStep step) {
+        truncated = "truncated".equals(step.getAction());
+        writeVarint(STEP);
+        writeVarint(step.getStep());
+        writeZigzag(step.getLine());
+        writeName(step.getFunction());
+        writeName(step.getAction());
+        writeLiteral(step.getDetails());
+        writeNamedValues(step.getVariables());
+
+        List<StackFrame> stack = step.getCallStack() == null ? Collections.emptyList() : step.getCallStack();
+        int kept = sharedPrefix(previousStack, stack);
+        writeVarint(kept);
+        writeVarint(stack.size() - kept);
+        for (int i = kept; i < stack.size(); i++) {
+            StackFrame frame = stack.get(i);
+            writeName(frame.getFunctionName());
+            writeZigzag(frame.getLineNumber());
+            writeNamedValues(frame.getParameters());
+            writeNamedValues(frame.getLocalVariables());
+        }
+        previousStack = stack;
+    }
+
+    // Frames below the top are usually the very same objects as in the previous step
+    private static int sharedPrefix(List<StackFrame> previous, List<StackFrame> current) {
+        int limit = Math.min(previous.size(), current.size());
+        int i = 0;
+        while (i < limit && (previous.get(i) == current.get(i) || previous.get(i).equals(current.get(i)))) {
+            i++;
+        }
+        return i;
+    }
+
+    private void writeNamedValues(Map<String, Object> values) {
+        if (values == null) {
+            writeVarint(0);
+            return;
+        }
+        writeVarint(values.size());
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            writeName(entry.getKey());
+            writeValue(entry.getValue(), 0);
+        }
+    }
+
+    private void writeValue(Object value, int depth) {
+        if (value == null) {
+            writeVarint(TAG_NULL);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            writeVarint(TAG_INT);
+            writeZigzag(((Number) value).intValue());
+        } else if (value instanceof Long number) {
+            writeVarint(TAG_LONG);
+            writeZigzag(number);
+        } else if (value instanceof Double || value instanceof Float) {
+            writeVarint(TAG_DOUBLE);
+            writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Boolean flag) {
+            writeVarint(flag ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Character character) {
+            writeVarint(TAG_CHAR);
+            writeVarint(character);
+        } else if (value instanceof String text) {
+            writeVarint(TAG_STRING);
+            writeLiteral(text);
+        } else if (value instanceof int[] array) {
+            writeVarint(TAG_INT_ARRAY);
+            writeVarint(array.length);
+            for (int element : array) {
+                writeZigzag(element);
+            }
+        } else if (value instanceof short[] array) {
+            writeVarint(TAG_INT_ARRAY);
+            writeVarint(array.length);
+            for (short element : array) {
+                writeZigzag(element);
+            }
+        } else if (value instanceof long[] array) {
+            writeVarint(TAG_LONG_ARRAY);
+            writeVarint(array.length);
+            for (long element : array) {
+                writeZigzag(element);
+            }
+        } else if (value instanceof double[] array) {
+            writeVarint(TAG_DOUBLE_ARRAY);
+            writeVarint(array.length);
+            for (double element : array) {
+                writeDouble(element);
+            }
+        } else if (value instanceof float[] array) {
+            writeVarint(TAG_DOUBLE_ARRAY);
+            writeVarint(array.length);
+            for (float element : array) {
+                writeDouble(element);
+            }
+        } else if (value instanceof boolean[] array) {
+            // Packed eight to a byte, lowest bit first
+            writeVarint(TAG_BOOLEAN_ARRAY);
+            writeVarint(array.length);
+            ensure((array.length + 7) / 8);
+            for (int i = 0; i < array.length; i += 8) {
+                int bits = 0;
+                for (int j = 0; j < 8 && i + j < array.length; j++) {
+                    if (array[i + j]) {
+                        bits |= 1 << j;
+                    }
+                }
+                buffer[position++] = (byte) bits;
+            }
+        } else if (value instanceof char[] array) {
+            writeVarint(TAG_CHAR_ARRAY);
+            writeVarint(array.length);
+            for (char element : array) {
+                writeVarint(element);
+            }
+        } else if (value instanceof byte[] array) {
+            writeVarint(TAG_BYTE_ARRAY);
+            writeBytes(array);
+        } else if (depth >= MAX_VALUE_DEPTH) {
+            writeVarint(TAG_STRING);
+            writeLiteral("...");
+        } else if (value instanceof Object[] array) {
+            writeList(Arrays.asList(array), depth);
+        } else if (value instanceof Collection<?> collection) {
+            writeList(collection, depth);
+        } else if (value instanceof Map<?, ?> map) {
+            writeVarint(TAG_MAP);
+            writeVarint(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(entry.getKey(), depth + 1);
+                writeValue(entry.getValue(), depth + 1);
+            }
+        } else {
+            writeVarint(TAG_STRING);
+            writeLiteral(String.valueOf(value));
+        }
+    }
+
+    private void writeList(Collection<?> elements, int depth) {
+        writeVarint(TAG_LIST);
+        writeVarint(elements.size());
+        for (Object element : elements) {
+            writeValue(element, depth + 1);
+        }
+    }
+
+    // Names, functions and actions repeat on almost every step
+    private void writeName(String name) {
+        if (name == null) {
+            writeVarint(STR_NULL);
+            return;
+        }
+        Integer id = dictionary.get(name);
+        if (id != null) {
+            writeVarint(STR_ID_BASE + id);
+        } else if (dictionary.size() < MAX_DICTIONARY_SIZE) {
+            dictionary.put(name, dictionary.size());
+            writeVarint(STR_NEW);
+            writeBytes(name.getBytes(StandardCharsets.UTF_8));
+        } else {
+            writeLiteral(name);
+        }
+    }
+
+    private void writeLiteral(String text) {
+        if (text == null) {
+            writeVarint(STR_NULL);
+            return;
+        }
+        writeVarint(STR_LITERAL);
+        writeBytes(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeBytes(byte[] bytes) {
+        writeVarint(bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void writeZigzag(long value) {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    private void writeVarint(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    // IEEE 754 bits, little-endian
+    private void writeDouble(double value) {
+        ensure(8);
+        long bits = Double.doubleToRawLongBits(value);
+        for (int i = 0; i < 8; i++) {
+            buffer[position++] = (byte) (bits >>> (8 * i));
+        }
+    }
+
+    private void ensure(int bytes) {
+        if (position + bytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+        }
+    }
+
+    private void drainBuffer() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+        // A single huge step may have grown the buffer; do not keep it around
+        if (buffer.length > 4 * BUFFER_LIMIT) {
+            buffer = new byte[BUFFER_LIMIT + 1024];
+        }
+    }
+
+    private void flush() throws IOException {
+        drainBuffer();
+        out.flush();
+        pending = 0;
+        lastFlush = System.nanoTime();
+    }
+}
@@ -0,0 +1,108 @@
+package com.backtracking.visualizer.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+// Small LRU cache bounded both by entry count and by the total "weight" (usually bytes)
+// of its values. Access is synchronized; entries are cheap to look up compared to what
+// they save (javac runs, graph layouts), so a single lock is good enough here.
+//
+// A value is weighed when it is put and that weight is what it is charged until it leaves;
+// a value that grows while cached is weighed again with reweigh().
+public class BoundedLruCache<K, V> {
+    private final int maxEntries;
+    private final long maxWeight;
+    private final ToLongFunction<V> weigher;
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long currentWeight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private record Entry<V>(V value, long weight) {
+    }
+
+    public BoundedLruCache(int maxEntries, long maxWeight, ToLongFunction<V> weigher) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value();
+    }
+
+    public synchronized void put(K key, V value) {
+        long weight = weigher.applyAsLong(value);
+        // A single value bigger than the whole budget would just evict everything else
+        if (weight > maxWeight) {
+            return;
+        }
+        Entry<V> previous = entries.put(key, new Entry<>(value, weight));
+        if (previous != null) {
+            currentWeight -= previous.weight();
+        }
+        currentWeight += weight;
+        evictIfNeeded();
+    }
+
+    // Charges the value cached under key its current weight; a value that has outgrown the
+    // whole budget leaves the cache. Counts as a use of the entry, but not as a hit.
+    public synchronized void reweigh(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return;
+        }
+        long weight = weigher.applyAsLong(entry.value());
+        if (weight > maxWeight) {
+            remove(key);
+            evictions++;
+            return;
+        }
+        entries.replace(key, new Entry<>(entry.value(), weight));
+        currentWeight += weight - entry.weight();
+        evictIfNeeded();
+    }
+
+    public synchronized void remove(K key) {
+        Entry<V> previous = entries.remove(key);
+        if (previous != null) {
+            currentWeight -= previous.weight();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        currentWeight = 0;
+    }
+
+    private void evictIfNeeded() {
+        var iterator = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || currentWeight > maxWeight) && iterator.hasNext()) {
+            Map.Entry<K, Entry<V>> eldest = iterator.next();
+            currentWeight -= eldest.getValue().weight();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized Map<String, Object> stats() {
+        return Map.of(
+            "entries", entries.size(),
+            "weight", currentWeight,
+            "maxEntries", maxEntries,
+            "maxWeight", maxWeight,
+            "hits", hits,
+            "misses", misses,
+            "evictions", evictions
+        );
+    }
+}
@@ -0,0 +1,24 @@
+package com.backtracking.visualizer.util;
+
+import java.util.Map;
+
+// Defines classes straight from compiled bytecode held in memory. One loader is created
+// per execution and dropped afterwards, so the user classes (and their metaspace) can be
+// collected once the run is over.
+public class ByteArrayClassLoader extends ClassLoader {
+    private final Map<String, byte[]> classes;
+
+    public ByteArrayClassLoader(Map<String, byte[]> classes, ClassLoader parent) {
+        super(parent);
+        this.classes = classes;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        byte[] bytes = classes.get(name);
+        if (bytes == null) {
+            throw new ClassNotFoundException(name);
+        }
+        return defineClass(name, bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,402 @@
+package com.backtracking.visualizer.util;
+
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ParserConfiguration;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.body.CallableDeclaration;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.TypeDeclaration;
+import com.github.javaparser.ast.expr.MethodCallExpr;
+import com.github.javaparser.ast.expr.ObjectCreationExpr;
+import com.github.javaparser.symbolsolver.JavaSymbolSolver;
+import com.github.javaparser.symbolsolver.cache.Cache;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.CombinedTypeSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.ReflectionTypeSolver;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Static call graph of a submission: one node per method and constructor declared in it, an
+// edge for every call whose target the symbol solver resolves to one of them. Methods that
+// can reach themselves - the strongly connected components with more than one method, or
+// with a call to itself - are its backtracking methods, found without compiling or running
+// anything and matching what TraceInstrumenter later traces.
+//
+// A call the solver cannot resolve (e.g. into a library it does not know) is matched by
+// name and argument count instead, and a call to an overridable method also reaches the
+// methods of the same signature declared in subtypes of its class, so the graph errs
+// towards more edges.
+//
+// Resolution looks JDK types up by reflection. The solver doing that is built once and its
+// type cache shared by every submission, so only the first analysis pays for loading them.
+public final class CallGraph {
+    private static final CombinedTypeSolver TYPE_SOLVER = new CombinedTypeSolver(
+        e -> true, List.of(new ReflectionTypeSolver()), new ConcurrentCache<>());
+
+    // Touches the JDK types backtracking submissions use most
+    private static final String WARM_UP_CODE = """
+        import java.util.*;
+
+        public class WarmUp {
+            static void permute(List<Integer> current, boolean[] used, int[] nums, List<List<Integer>> out) {
+                if (current.size() == nums.length) {
+                    out.add(new ArrayList<>(current));
+                    return;
+                }
+                for (int i = 0; i < nums.length; i++) {
+                    if (!used[i]) {
+                        used[i] = true;
+                        current.add(nums[i]);
+                        permute(current, used, nums, out);
+                        current.remove(current.size() - 1);
+                        used[i] = false;
+                    }
+                }
+            }
+
+            public static void main(String[] args) {
+                Map<String, Integer> counts = new HashMap<>();
+                Set<Integer> seen = new HashSet<>();
+                Deque<Integer> stack = new ArrayDeque<>();
+                StringBuilder text = new StringBuilder(String.valueOf(Math.max(1, 2)));
+                int[] nums = {3, 1, 2};
+                Arrays.sort(nums);
+                List<List<Integer>> out = new ArrayList<>();
+                permute(new LinkedList<>(), new boolean[nums.length], nums, out);
+                counts.put(text.toString(), Integer.parseInt("1"));
+                seen.add(out.size());
+                stack.push(Collections.max(seen));
+                System.out.println(Arrays.toString(nums) + counts + stack.peek());
+            }
+        }
+        """;
+
+    private final List<CallableDeclaration<?>> declarations;
+    private final String[] names;
+    private final int[][] callees;
+    // Component of every method; components are numbered in reverse topological order
+    private final int[] component;
+    private final boolean[] recursive;
+    private final int resolvedCalls;
+    private final int unresolvedCalls;
+
+    // Configuration for parsing submissions whose calls are to be resolved
+    public static ParserConfiguration parserConfiguration() {
+        return new ParserConfiguration().setSymbolResolver(new JavaSymbolSolver(TYPE_SOLVER));
+    }
+
+    // Fills the shared type cache so that the first submission does not wait for it
+    public static void warmUp() {
+        new JavaParser(parserConfiguration()).parse(WARM_UP_CODE).getResult().ifPresent(CallGraph::new);
+    }
+
+    // Resolving stores results in the AST's node data, so a graph must be built only once
+    // per AST and never while another thread builds one for it (see Submission)
+    static CallGraph of(CompilationUnit ast) {
+        return new CallGraph(ast);
+    }
+
+    private CallGraph(CompilationUnit ast) {
+        // Source order
+        this.declarations = new ArrayList<>();
+        ast.walk(Node.TreeTraversal.PREORDER, node -> {
+            if (node instanceof CallableDeclaration<?> declaration) {
+                declarations.add(declaration);
+            }
+        });
+        Map<Node, Integer> ids = new IdentityHashMap<>();
+        this.names = new String[declarations.size()];
+        for (int i = 0; i < declarations.size(); i++) {
+            CallableDeclaration<?> declaration = declarations.get(i);
+            ids.put(declaration, i);
+            names[i] = enclosingType(declaration).map(type -> type.getNameAsString() + ".").orElse("")
+                + declaration.getSignature().asString();
+        }
+
+        List<Set<Integer>> edges = new ArrayList<>();
+        for (int i = 0; i < declarations.size(); i++) {
+            edges.add(new LinkedHashSet<>());
+        }
+        int resolved = 0;
+        int unresolved = 0;
+        for (int i = 0; i < declarations.size(); i++) {
+            CallableDeclaration<?> caller = declarations.get(i);
+            for (Node call : calls(caller)) {
+                Optional<Node> target;
+                try {
+                    target = call instanceof MethodCallExpr method
+                        ? method.resolve().toAst()
+                        : ((ObjectCreationExpr) call).resolve().toAst();
+                    resolved++;
+                } catch (RuntimeException e) {
+                    unresolved++;
+                    if (call instanceof MethodCallExpr method) {
+                        edges.get(i).addAll(byName(method.getNameAsString(), method.getArguments().size()));
+                    }
+                    continue;
+                }
+                Integer callee = target.map(ids::get).orElse(null);
+                if (callee == null) {
+                    continue;
+                }
+                edges.get(i).add(callee);
+                if (declarations.get(callee) instanceof MethodDeclaration method && isOverridable(method)) {
+                    for (int override : byName(method.getNameAsString(), method.getParameters().size())) {
+                        MethodDeclaration candidate = (MethodDeclaration) declarations.get(override);
+                        if (override != callee && !candidate.isStatic() && mayOverride(candidate, method)) {
+                            edges.get(i).add(override);
+                        }
+                    }
+                }
+            }
+        }
+        this.resolvedCalls = resolved;
+        this.unresolvedCalls = unresolved;
+        this.callees = new int[declarations.size()][];
+        for (int i = 0; i < declarations.size(); i++) {
+            callees[i] = edges.get(i).stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        this.component = new StronglyConnectedComponents(callees).component;
+        int[] componentSizes = new int[declarations.size()];
+        for (int c : component) {
+            componentSizes[c]++;
+        }
+        this.recursive = new boolean[declarations.size()];
+        for (int i = 0; i < declarations.size(); i++) {
+            final int method = i;
+            recursive[i] = componentSizes[component[i]] > 1 || Arrays.stream(callees[i]).anyMatch(c -> c == method);
+        }
+    }
+
+    // Calls made by the declaration's own body, including its lambdas but not the bodies of
+    // methods it declares locally (anonymous classes), which are nodes of their own
+    private static List<Node> calls(CallableDeclaration<?> caller) {
+        List<Node> calls = new ArrayList<>();
+        caller.walk(Node.TreeTraversal.PREORDER, node -> {
+            if ((node instanceof MethodCallExpr || node instanceof ObjectCreationExpr)
+                    && enclosingCallable(node) == caller) {
+                calls.add(node);
+            }
+        });
+        return calls;
+    }
+
+    private List<Integer> byName(String name, int arguments) {
+        List<Integer> matches = new ArrayList<>();
+        for (int i = 0; i < declarations.size(); i++) {
+            if (declarations.get(i) instanceof MethodDeclaration method && method.getNameAsString().equals(name)
+                    && method.getParameters().size() == arguments) {
+                matches.add(i);
+            }
+        }
+        return matches;
+    }
+
+    // Whether a call to method can run candidate, a method of the same name and arity: only
+    // if candidate's class (or anonymous class) is a subtype of the one declaring method. A
+    // type the solver cannot resolve keeps the edge.
+    private static boolean mayOverride(MethodDeclaration candidate, MethodDeclaration method) {
+        try {
+            return method.resolve().declaringType().isAssignableBy(candidate.resolve().declaringType());
+        } catch (RuntimeException e) {
+            return true;
+        }
+    }
+
+    // Node.findAncestor takes its classes as generic varargs, which cannot be called with a
+    // generic class without an unchecked warning; these two are the ancestors needed here
+    private static Optional<TypeDeclaration<?>> enclosingType(Node node) {
+        for (Node parent = node.getParentNode().orElse(null); parent != null; parent = parent.getParentNode().orElse(null)) {
+            if (parent instanceof TypeDeclaration<?> type) {
+                return Optional.of(type);
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static CallableDeclaration<?> enclosingCallable(Node node) {
+        for (Node parent = node.getParentNode().orElse(null); parent != null; parent = parent.getParentNode().orElse(null)) {
+            if (parent instanceof CallableDeclaration<?> callable) {
+                return callable;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isOverridable(MethodDeclaration method) {
+        return !method.isStatic() && !method.isPrivate() && !method.isFinal();
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    // Type.name(parameter types)
+    public String name(int method) {
+        return names[method];
+    }
+
+    public int line(int method) {
+        return declarations.get(method).getBegin().map(position -> position.line).orElse(-1);
+    }
+
+    public int[] callees(int method) {
+        return callees[method].clone();
+    }
+
+    public int component(int method) {
+        return component[method];
+    }
+
+    public boolean isRecursive(int method) {
+        return recursive[method];
+    }
+
+    public boolean hasRecursion() {
+        for (boolean r : recursive) {
+            if (r) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Methods of every recursive component, components and methods in source order
+    public List<List<Integer>> recursiveComponents() {
+        Map<Integer, List<Integer>> byComponent = new LinkedHashMap<>();
+        for (int i = 0; i < size(); i++) {
+            if (recursive[i]) {
+                byComponent.computeIfAbsent(component[i], c -> new ArrayList<>()).add(i);
+            }
+        }
+        return new ArrayList<>(byComponent.values());
+    }
+
+    public int getResolvedCalls() {
+        return resolvedCalls;
+    }
+
+    public int getUnresolvedCalls() {
+        return unresolvedCalls;
+    }
+
+    // Tarjan's algorithm with an explicit stack, since submissions can be long enough to
+    // overflow a recursive one on deep call chains
+    private static final class StronglyConnectedComponents {
+        private final int[] component;
+
+        StronglyConnectedComponents(int[][] callees) {
+            int size = callees.length;
+            component = new int[size];
+            int[] index = new int[size];
+            int[] lowLink = new int[size];
+            boolean[] onStack = new boolean[size];
+            Arrays.fill(index, -1);
+            int[] stack = new int[size];
+            int stackSize = 0;
+            // Search path: method and the position of its next callee
+            int[] pathMethod = new int[size];
+            int[] pathEdge = new int[size];
+            int nextIndex = 0;
+            int components = 0;
+
+            for (int root = 0; root < size; root++) {
+                if (index[root] >= 0) {
+                    continue;
+                }
+                int depth = 0;
+                pathMethod[0] = root;
+                pathEdge[0] = 0;
+                index[root] = lowLink[root] = nextIndex++;
+                stack[stackSize++] = root;
+                onStack[root] = true;
+                while (depth >= 0) {
+                    int method = pathMethod[depth];
+                    if (pathEdge[depth] < callees[method].length) {
+                        int callee = callees[method][pathEdge[depth]++];
+                        if (index[callee] < 0) {
+                            index[callee] = lowLink[callee] = nextIndex++;
+                            stack[stackSize++] = callee;
+                            onStack[callee] = true;
+                            depth++;
+                            pathMethod[depth] = callee;
+                            pathEdge[depth] = 0;
+                        } else if (onStack[callee]) {
+                            lowLink[method] = Math.min(lowLink[method], index[callee]);
+                        }
+                        continue;
+                    }
+                    if (lowLink[method] == index[method]) {
+                        int member;
+                        do {
+                            member = stack[--stackSize];
+                            onStack[member] = false;
+                            component[member] = components;
+                        } while (member != method);
+                        components++;
+                    }
+                    depth--;
+                    if (depth >= 0) {
+                        int caller = pathMethod[depth];
+                        lowLink[caller] = Math.min(lowLink[caller], lowLink[method]);
+                    }
+                }
+            }
+        }
+    }
+
+    // CombinedTypeSolver's own cache is not safe to share between threads. Names that do not
+    // resolve are cached too, and submissions can make up any number of them, so the cache
+    // stops growing at MAX_CACHED_TYPES; the JDK types in common use are in it by then.
+    private static final class ConcurrentCache<K, V> implements Cache<K, V> {
+        private static final int MAX_CACHED_TYPES = 16_384;
+
+        private final Map<K, V> values = new ConcurrentHashMap<>();
+
+        @Override
+        public void put(K key, V value) {
+            if (values.size() < MAX_CACHED_TYPES) {
+                values.put(key, value);
+            }
+        }
+
+        @Override
+        public Optional<V> get(K key) {
+            return Optional.ofNullable(values.get(key));
+        }
+
+        @Override
+        public void remove(K key) {
+            values.remove(key);
+        }
+
+        @Override
+        public void removeAll() {
+            values.clear();
+        }
+
+        @Override
+        public boolean contains(K key) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public long size() {
+            return values.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return values.isEmpty();
+        }
+    }
+}
@@ -1,147 +1,296 @@
 package com.backtracking.visualizer.util;
 
 import com.backtracking.visualizer.dto.StackFrame;
+import com.backtracking.visualizer.dto.TraceOptions;
 import com.backtracking.visualizer.dto.TraceStep;
-import com.github.javaparser.StaticJavaParser;
-import com.github.javaparser.ast.CompilationUnit;
-import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
-import javax.tools.*;
-import java.io.*;
-import java.net.URL;
-import java.net.URLClassLoader;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
 import java.util.Map;
-import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
 public class CodeExecutor {
-    private static final List<TraceStep> traceSteps = new ArrayList<>();
-    private static int currentStep = 0;
+    private static final StackWalker STACK_WALKER = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
 
-    public static void captureStep(String action, String details, Object... variables) {
-        TraceStep step = new TraceStep();
-        step.setStep(++currentStep);
-        step.setAction(action);
-        step.setDetails(details);
-        step.setLine(Thread.currentThread().getStackTrace()[2].getLineNumber());
-        step.setFunction(Thread.currentThread().getStackTrace()[2].getMethodName());
-        
-        // Capture variables
-        Map<String, Object> vars = new HashMap<>();
-        for (int i = 0; i < variables.length; i += 2) {
-            if (i + 1 < variables.length) {
-                vars.put(variables[i].toString(), variables[i + 1]);
+    // Frames of these packages are never shown in a trace (JDK, reflection, the web stack)
+    private static final String[] HIDDEN_FRAME_PREFIXES = {
+        "java.", "javax.", "jdk.", "sun.", "com.sun.", "jakarta.",
+        "org.springframework.", "org.apache.tomcat.", "org.apache.catalina.", "org.apache.coyote."
+    };
+    private static final String OWN_PACKAGE_PREFIX = "com.backtracking.visualizer.";
+
+    // Per-class verdicts computed once per class instead of re-running the prefix checks on
+    // every frame of every step
+    private static final ClassValue<Boolean> HIDDEN_FRAMES = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            String className = type.getName();
+            for (String prefix : HIDDEN_FRAME_PREFIXES) {
+                if (className.startsWith(prefix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    };
+    private static final ClassValue<Boolean> OWN_FRAMES = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return type.getName().startsWith(OWN_PACKAGE_PREFIX);
+        }
+    };
+
+    // Resolving a line number materializes a StackTraceElement, which costs more than the
+    // rest of the walk. A line never changes for a given method and bytecode index, so it is
+    // resolved once per call site and then looked up by method name and index.
+    private static final ClassValue<LineTable> LINE_TABLES = new ClassValue<>() {
+        @Override
+        protected LineTable computeValue(Class<?> type) {
+            return new LineTable(type);
+        }
+    };
+
+    private static int lineNumberOf(StackWalker.StackFrame element, Class<?> declaringClass) {
+        return LINE_TABLES.get(declaringClass).lineOf(element);
+    }
+
+    private static final class LineTable {
+        // Method names are only a safe key when the name is not overloaded within the class
+        private final Set<String> overloadedNames = new HashSet<>();
+        private final Map<String, int[]> linesByMethod = new ConcurrentHashMap<>();
+
+        LineTable(Class<?> type) {
+            try {
+                Set<String> seen = new HashSet<>();
+                for (Method method : type.getDeclaredMethods()) {
+                    if (!seen.add(method.getName())) {
+                        overloadedNames.add(method.getName());
+                    }
+                }
+                if (type.getDeclaredConstructors().length > 1) {
+                    overloadedNames.add("<init>");
+                }
+            } catch (LinkageError e) {
+                // Reflection on the class failed; never cache its lines
+                overloadedNames.add(null);
+            }
+        }
+
+        int lineOf(StackWalker.StackFrame element) {
+            String methodName = element.getMethodName();
+            if (overloadedNames.contains(methodName) || overloadedNames.contains(null)) {
+                return element.getLineNumber();
+            }
+            int bci = element.getByteCodeIndex();
+            if (bci < 0) {
+                return element.getLineNumber();
+            }
+            // Lines are stored +1 so that 0 means "not resolved yet". Races between threads
+            // only lose a cached entry, the stored values are always correct.
+            int[] lines = linesByMethod.get(methodName);
+            if (lines == null || bci >= lines.length) {
+                int[] grown = new int[Math.max(bci + 1, lines == null ? 64 : lines.length * 2)];
+                if (lines != null) {
+                    System.arraycopy(lines, 0, grown, 0, lines.length);
+                }
+                lines = grown;
+                linesByMethod.put(methodName, lines);
+            }
+            int line = lines[bci];
+            if (line == 0) {
+                line = element.getLineNumber() + 1;
+                lines[bci] = line;
             }
+            return line - 1;
         }
-        step.setVariables(vars);
+    }
 
-        // Capture call stack
+    // Walks from the capture call downwards: our own capture frames on top are skipped, the
+    // user's frames are collected, and the walk stops at the first of our own frames below
+    // them (the executor that invoked main), so the web stack underneath is never visited.
+    private static List<StackFrame> collectUserFrames(Stream<StackWalker.StackFrame> frames) {
         List<StackFrame> callStack = new ArrayList<>();
-        StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
-        for (int i = 2; i < stackTrace.length; i++) {
-            StackTraceElement element = stackTrace[i];
-            String className = element.getClassName();
-            System.out.println("Processing stack element: " + className + "." + element.getMethodName() + "(" + element.getFileName() + ":" + element.getLineNumber() + ")");
-
-            // Filter out internal framework classes (java, javax, jdk, springframework, our own executor/visualizer)
-            if (className.startsWith("java.") ||
-                className.startsWith("javax.") ||
-                className.startsWith("jdk.") ||
-                className.startsWith("org.springframework.") ||
-                className.startsWith("com.backtracking.visualizer.util.CodeExecutor") ||
-                className.startsWith("com.backtracking.visualizer.util.Visualizer") ||
-                className.startsWith("com.backtracking.visualizer.controller.VisualizationController") ||
-                className.startsWith("sun.") ||
-                className.startsWith("com.sun.") ||
-                className.startsWith("org.apache.tomcat.") ||
-                className.startsWith("org.apache.catalina.") ||
-                className.startsWith("org.apache.coyote.") ||
-                className.startsWith("jakarta.")
-            ) {
+        Iterator<StackWalker.StackFrame> iterator = frames.iterator();
+        boolean inUserCode = false;
+        while (iterator.hasNext()) {
+            StackWalker.StackFrame element = iterator.next();
+            Class<?> declaringClass = element.getDeclaringClass();
+            if (OWN_FRAMES.get(declaringClass)) {
+                if (inUserCode) {
+                    break;
+                }
+                continue;
+            }
+            inUserCode = true;
+            if (HIDDEN_FRAMES.get(declaringClass)) {
                 continue;
             }
 
             StackFrame frame = new StackFrame();
             frame.setFunctionName(element.getMethodName());
-            frame.setLineNumber(element.getLineNumber());
+            frame.setLineNumber(lineNumberOf(element, declaringClass));
             callStack.add(frame);
         }
+        return callStack;
+    }
+
+    public static void captureStep(String action, String details, Object... variables) {
+        // Capture variables
+        Map<String, Object> vars = new HashMap<>();
+        for (int i = 0; i < variables.length; i += 2) {
+            if (i + 1 < variables.length) {
+                vars.put(variables[i].toString(), variables[i + 1]);
+            }
+        }
+        captureStep(action, details, vars);
+    }
+
+    public static void captureStep(String action, String details, Map<String, Object> variables) {
+        // Steps captured outside of a trace run (e.g. user code invoked directly) are dropped
+        TraceSession session = TraceSession.current();
+        if (session == null) {
+            return;
+        }
+
+        // The frame hooks of the submission keep the call stack as it runs (see ShadowStack);
+        // otherwise one lazy walk gives both the calling user frame and the visible stack
+        ShadowStack frames = session.tracksFrames() ? TraceRuntime.frames(session) : null;
+        List<StackFrame> callStack = frames != null
+            ? frames.snapshot()
+            : STACK_WALKER.walk(CodeExecutor::collectUserFrames);
+
+        TraceStep step = new TraceStep();
+        step.setStep(session.nextStep(callStack.size()));
+        step.setAction(action);
+        step.setDetails(details);
+        if (!callStack.isEmpty()) {
+            step.setLine(callStack.get(0).getLineNumber());
+            step.setFunction(callStack.get(0).getFunctionName());
+        }
+        // Copied now: the user's code goes on mutating its arrays and collections, and the
+        // trace only stores what changed from one step to the next
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        variables.forEach((name, value) -> snapshot.put(name, TraceRuntime.snapshot(value)));
+        step.setVariables(snapshot);
         step.setCallStack(callStack);
 
-        traceSteps.add(step);
+        session.add(step);
     }
 
     public static List<TraceStep> executeCode(String code) throws Exception {
-        // Reset state
-        traceSteps.clear();
-        currentStep = 0;
+        return executeCode(code, !usesManualCapture(code));
+    }
 
-        Path tempDir = null; // Declare outside for finally block access
-        Path sourceFile = null;
-        Path classFile = null;
-        StandardJavaFileManager fileManager = null; // Declare outside for finally block access
+    // Submissions that already call Visualizer.captureStep are traced the way they ask for;
+    // anything else gets automatic tracing of its recursive methods.
+    public static boolean usesManualCapture(String code) {
+        return code.contains("captureStep");
+    }
 
-        try {
-            // Parse the code to get the class name
-            CompilationUnit cu = StaticJavaParser.parse(code);
-            Optional<ClassOrInterfaceDeclaration> classDecl = cu.findFirst(ClassOrInterfaceDeclaration.class);
-            if (!classDecl.isPresent()) {
-                throw new Exception("No class declaration found in the code");
-            }
-            String className = classDecl.get().getNameAsString();
+    public static List<TraceStep> executeCode(String code, boolean autoTrace) throws Exception {
+        return executeCode(code, autoTrace, TraceOptions.defaults());
+    }
 
-            // Create a temporary directory for compilation
-            try {
-                tempDir = Files.createTempDirectory("java_code");
-            } catch (IOException e) {
-                throw new Exception("Failed to create temporary directory: " + e.getMessage(), e);
-            }
-            
-            // Write the code to a file
-            sourceFile = tempDir.resolve(className + ".java");
-            Files.write(sourceFile, code.getBytes());
-
-            // Compile the code
-            JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-            DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
-            fileManager = compiler.getStandardFileManager(diagnostics, null, null);
-            
-            Iterable<? extends JavaFileObject> compilationUnits = 
-                fileManager.getJavaFileObjectsFromFiles(List.of(sourceFile.toFile()));
-            
-            boolean success = compiler.getTask(null, fileManager, diagnostics, null, null, compilationUnits).call();
-            
-            if (!success) {
-                StringBuilder errorMsg = new StringBuilder("Compilation failed:\n");
-                diagnostics.getDiagnostics().forEach(diagnostic -> 
-                    errorMsg.append(diagnostic.getMessage(null)).append("\n")
-                );
-                throw new Exception(errorMsg.toString());
-            }
+    public static List<TraceStep> executeCode(String code, boolean autoTrace, TraceOptions options) throws Exception {
+        return await(executeCodeAsync(code, autoTrace, options));
+    }
 
-            // Log if the .class file exists after compilation
-            classFile = tempDir.resolve(className + ".class");
-            if (Files.exists(classFile)) {
-                System.out.println("Compiled .class file found at: " + classFile.toAbsolutePath());
-            } else {
-                System.err.println("Compiled .class file NOT found at: " + classFile.toAbsolutePath());
+    // Runs the code and hands every step to the sink as soon as it is captured
+    public static void streamCode(String code, boolean autoTrace, TraceOptions options, TraceSink sink) throws Exception {
+        await(streamCodeAsync(code, autoTrace, options, sink));
+    }
+
+    // The submission runs on its own thread under the run's time budget (see TraceRunner);
+    // the caller's thread is never blocked by user code
+    public static CompletableFuture<List<TraceStep>> executeCodeAsync(String code, boolean autoTrace, TraceOptions options) {
+        return TraceRunner.start(options.effectiveTimeoutMillis(),
+            run -> execute(code, autoTrace, usesManualCapture(code), options, null, run).getSteps());
+    }
+
+    public static CompletableFuture<Void> streamCodeAsync(String code, boolean autoTrace, TraceOptions options, TraceSink sink) {
+        return TraceRunner.start(options.effectiveTimeoutMillis(), run -> {
+            execute(code, autoTrace, usesManualCapture(code), options, sink, run);
+            return null;
+        });
+    }
+
+    // Manual capture with call stacks from the shadow stack or from stack walks, so that the
+    // two can be compared
+    static List<TraceStep> executeManualCapture(String code, TraceOptions options, boolean shadowStack) throws Exception {
+        return await(TraceRunner.start(options.effectiveTimeoutMillis(),
+            run -> execute(code, false, shadowStack, options, null, run).getSteps()));
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
             }
+            throw e;
+        }
+    }
 
-            // Load and execute the compiled class
-            URLClassLoader classLoader = URLClassLoader.newInstance(new URL[]{tempDir.toUri().toURL()});
-            System.out.println("Attempting to load class: " + className);
+    // shadowStack has the frame hooks keep the call stacks that captureStep reports
+    private static TraceSession execute(String code, boolean autoTrace, boolean shadowStack, TraceOptions options,
+                                        TraceSink sink, TraceRunner.Run run) throws Exception {
+        try {
+            // Parsed and compiled once per distinct source (see Submission)
+            Submission parsed = Submission.of(code);
+            String className = parsed.className();
+            CompiledSubmission submission = parsed.compiled();
+            TraceSession session = new TraceSession(options, autoTrace ? submission.methods() : null,
+                shadowStack ? submission.frameNames() : null, sink);
+            run.attach(session);
+
+            // Load and execute the compiled class. The loader is dropped after the run so the
+            // user classes can be unloaded.
+            ClassLoader classLoader = new ByteArrayClassLoader(submission.classes(), CodeExecutor.class.getClassLoader());
             Class<?> cls = Class.forName(className, true, classLoader);
-            System.out.println("Class loaded successfully: " + className);
-            
-            // Execute the main method
-            System.out.println("Attempting to find main method.");
-            cls.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
-            System.out.println("Main method executed successfully.");
 
-            return new ArrayList<>(traceSteps);
+            // Execute the main method with this run's session bound to the thread
+            TraceRuntime.activate(session);
+            TraceSession.Scope scope = session.bind();
+            try {
+                run.enterUserCode();
+                try {
+                    cls.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+                } finally {
+                    run.exitUserCode();
+                }
+            } catch (InvocationTargetException e) {
+                // A run stopped by its budget, or stopped outright after ignoring its
+                // deadline, still returns what it captured so far
+                if (e.getCause() instanceof ThreadDeath && run.isStopped()) {
+                    clearStop();
+                } else if (!(e.getCause() instanceof TraceLimitExceeded)) {
+                    throw e;
+                }
+            } catch (ThreadDeath e) {
+                // The stop landed just as main returned
+                if (!run.isStopped()) {
+                    throw e;
+                }
+                clearStop();
+            } finally {
+                scope.close();
+                TraceRuntime.deactivate(session);
+            }
+
+            session.finish();
+            return session;
 
         } catch (Exception e) {
             System.err.println("Caught exception type: " + e.getClass().getName());
@@ -164,24 +313,12 @@ public class CodeExecutor {
             }
             
             throw new Exception("Error executing code: " + errorMessage, e);
-        } finally {
-            // Clean up
-            try {
-                if (fileManager != null) {
-                    fileManager.close();
-                }
-                if (sourceFile != null) {
-                    Files.deleteIfExists(sourceFile);
-                }
-                if (classFile != null) {
-                    Files.deleteIfExists(classFile);
-                }
-                if (tempDir != null) {
-                    Files.deleteIfExists(tempDir);
-                }
-            } catch (IOException e) {
-                System.err.println("Error during cleanup: " + e.getMessage());
-            }
         }
     }
-} 
\ No newline at end of file
+
+    // Thread.stop also leaves the interrupt flag set, which would fail every blocking call
+    // the run makes while finishing its trace
+    private static void clearStop() {
+        Thread.interrupted();
+    }
+}
@@ -0,0 +1,10 @@
+package com.backtracking.visualizer.util;
+
+import java.util.List;
+import java.util.Map;
+
+// Bytecode of a compiled (and instrumented) submission together with the table of methods
+// whose enter/exit events the instrumented code reports, and the names of all its methods
+// by the frame IDs their frame hooks report.
+public record CompiledSubmission(Map<String, byte[]> classes, List<TraceMethod> methods, List<String> frameNames) {
+}
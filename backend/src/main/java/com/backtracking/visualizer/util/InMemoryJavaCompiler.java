@@ -0,0 +1,98 @@
+package com.backtracking.visualizer.util;
+
+import javax.tools.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compiles a single Java source file without touching the filesystem: the source is read
+// from a string and every generated .class file (including nested/anonymous classes) is
+// collected into a byte array keyed by its binary name.
+public final class InMemoryJavaCompiler {
+    private static final JavaCompiler COMPILER = ToolProvider.getSystemJavaCompiler();
+
+    private InMemoryJavaCompiler() {
+    }
+
+    public static Map<String, byte[]> compile(String className, String source, List<String> options) throws Exception {
+        if (COMPILER == null) {
+            throw new Exception("No system Java compiler available; the backend must run on a JDK, not a JRE");
+        }
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        Map<String, ClassFileObject> outputs = new HashMap<>();
+
+        try (MemoryFileManager fileManager = new MemoryFileManager(
+                COMPILER.getStandardFileManager(diagnostics, null, null), outputs)) {
+            boolean success = COMPILER.getTask(null, fileManager, diagnostics, options, null,
+                    List.of(new SourceFileObject(className, source))).call();
+
+            if (!success) {
+                StringBuilder errorMsg = new StringBuilder("Compilation failed:\n");
+                diagnostics.getDiagnostics().forEach(diagnostic ->
+                    errorMsg.append(diagnostic.getMessage(null)).append("\n")
+                );
+                throw new Exception(errorMsg.toString());
+            }
+        }
+
+        Map<String, byte[]> classes = new HashMap<>();
+        outputs.forEach((name, file) -> classes.put(name, file.getBytes()));
+        return classes;
+    }
+
+    private static class SourceFileObject extends SimpleJavaFileObject {
+        private final String source;
+
+        SourceFileObject(String className, String source) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            this.source = source;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return source;
+        }
+    }
+
+    private static class ClassFileObject extends SimpleJavaFileObject {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        ClassFileObject(String className) {
+            super(URI.create("mem:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return bytes;
+        }
+
+        byte[] getBytes() {
+            return bytes.toByteArray();
+        }
+    }
+
+    private static class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        private final Map<String, ClassFileObject> outputs;
+
+        MemoryFileManager(StandardJavaFileManager delegate, Map<String, ClassFileObject> outputs) {
+            super(delegate);
+            this.outputs = outputs;
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                   JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+            if (kind != JavaFileObject.Kind.CLASS) {
+                return super.getJavaFileForOutput(location, className, kind, sibling);
+            }
+            ClassFileObject file = new ClassFileObject(className);
+            outputs.put(className, file);
+            return file;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.backtracking.visualizer.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+// Read side of a trace written by MappedTraceWriter. The index and the segments are mapped
+// read-only, so a trace of any size costs the heap nothing beyond this object. A range of
+// steps is located with a binary search over the index and written to the client directly
+// from the mapped segments, without deserializing a single step.
+public class MappedTrace {
+    private static final byte[] OPEN = {'['};
+    private static final byte[] CLOSE = {']'};
+
+    private final Path directory;
+    private final ByteBuffer index;
+    private final int size;
+    private final MappedByteBuffer[] segments;
+    private final long bytes;
+    private final Instant created;
+
+    private MappedTrace(Path directory, ByteBuffer index, int segmentCount, long bytes, Instant created) {
+        this.directory = directory;
+        this.index = index;
+        this.size = index.capacity() / MappedTraceWriter.INDEX_ENTRY_BYTES;
+        this.segments = new MappedByteBuffer[segmentCount];
+        this.bytes = bytes;
+        this.created = created;
+    }
+
+    // Opens a completed trace, or returns null when the directory does not hold one
+    public static MappedTrace open(Path directory) throws IOException {
+        Path indexFile = directory.resolve(MappedTraceWriter.INDEX_FILE);
+        if (!Files.exists(indexFile)) {
+            return null;
+        }
+        ByteBuffer index;
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int segmentCount = 0;
+        long bytes = index.capacity();
+        while (Files.exists(MappedTraceWriter.segmentPath(directory, segmentCount))) {
+            bytes += Files.size(MappedTraceWriter.segmentPath(directory, segmentCount));
+            segmentCount++;
+        }
+        Instant created = Files.getLastModifiedTime(indexFile).toInstant();
+        return new MappedTrace(directory, index, segmentCount, bytes, created);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public Instant getCreated() {
+        return created;
+    }
+
+    // A run stopped by its budget ends with the "truncated" marker step
+    public boolean isTruncated() throws IOException {
+        if (size == 0) {
+            return false;
+        }
+        int last = size - 1;
+        ByteBuffer record = segment(field(last, 1)).slice(field(last, 2), field(last, 3));
+        byte[] json = new byte[record.remaining()];
+        record.get(json);
+        return new String(json, StandardCharsets.UTF_8).contains("\"action\":\"truncated\"");
+    }
+
+    // Step number of the entry at the given position in the index
+    public int stepNumber(int position) {
+        return index.getInt(position * MappedTraceWriter.INDEX_ENTRY_BYTES);
+    }
+
+    // Position of the first entry whose step number is at least the given one
+    public int lowerBound(int step) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (stepNumber(mid) < step) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Writes the entries in [from, to) as a JSON array. Entries that sit next to each other in
+    // the same segment, which is nearly all of them, go out as a single slice.
+    public void writeRange(int from, int to, OutputStream out) throws IOException {
+        WritableByteChannel channel = Channels.newChannel(out);
+        out.write(OPEN);
+        int position = from;
+        while (position < to) {
+            int segment = field(position, 1);
+            int start = field(position, 2);
+            int end = start + field(position, 3);
+            position++;
+            while (position < to && field(position, 1) == segment && field(position, 2) == end) {
+                end += field(position, 3);
+                position++;
+            }
+            // The separator after the last step of the range would leave a trailing comma
+            if (position == to) {
+                end -= MappedTraceWriter.SEPARATOR.length;
+            }
+            channel.write(segment(segment).slice(start, end - start));
+        }
+        out.write(CLOSE);
+        out.flush();
+    }
+
+    private int field(int position, int field) {
+        return index.getInt(position * MappedTraceWriter.INDEX_ENTRY_BYTES + 4 * field);
+    }
+
+    // Segments are mapped on first use; racing threads map the same file twice at worst
+    private MappedByteBuffer segment(int number) throws IOException {
+        MappedByteBuffer segment = segments[number];
+        if (segment == null) {
+            try (FileChannel channel = FileChannel.open(MappedTraceWriter.segmentPath(directory, number),
+                    StandardOpenOption.READ)) {
+                segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            segments[number] = segment;
+        }
+        return segment;
+    }
+}
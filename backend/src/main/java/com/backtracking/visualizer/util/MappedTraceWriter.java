@@ -0,0 +1,172 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.TraceStep;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+// Appends a trace to a directory on disk as it is produced. Each step is serialized once,
+// as a JSON object followed by ",\n", into memory-mapped segment files; any run of steps is
+// then a JSON array body once wrapped in brackets (minus the last separator), so MappedTrace
+// can serve ranges straight from the mapped bytes. An index file holds one fixed-size entry
+// per step: step number, segment, offset and length.
+//
+// The index is written under a temporary name and renamed when the trace completes, so a
+// directory with an INDEX_FILE always holds a complete trace.
+public class MappedTraceWriter implements TraceSink {
+    static final String INDEX_FILE = "index.dat";
+    static final String PARTIAL_INDEX_FILE = "index.partial";
+    static final int INDEX_ENTRY_BYTES = 16;
+    static final byte[] SEPARATOR = {',', '\n'};
+
+    private final Path directory;
+    private final ObjectMapper objectMapper;
+    private final int segmentSize;
+    private final DataOutputStream index;
+
+    private FileChannel segmentChannel;
+    private MappedByteBuffer segment;
+    private int segmentNumber = -1;
+
+    private int count;
+    private int lastStep = Integer.MIN_VALUE;
+    private boolean ordered = true;
+    private boolean truncated;
+    private long bytes;
+
+    public MappedTraceWriter(Path directory, ObjectMapper objectMapper, int segmentSize) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.objectMapper = objectMapper;
+        this.segmentSize = segmentSize;
+        this.index = new DataOutputStream(new BufferedOutputStream(
+            Files.newOutputStream(directory.resolve(PARTIAL_INDEX_FILE)), 64 * 1024));
+    }
+
+    static Path segmentPath(Path directory, int segment) {
+        return directory.resolve(String.format("segment-%05d.dat", segment));
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public synchronized void accept(TraceStep step) {
+        try {
+            byte[] json = objectMapper.writeValueAsBytes(step);
+            int length = json.length + SEPARATOR.length;
+            if (segment == null || segment.remaining() < length) {
+                nextSegment(length);
+            }
+            int offset = segment.position();
+            segment.put(json).put(SEPARATOR);
+
+            index.writeInt(step.getStep());
+            index.writeInt(segmentNumber);
+            index.writeInt(offset);
+            index.writeInt(length);
+
+            ordered &= step.getStep() >= lastStep;
+            lastStep = step.getStep();
+            truncated = "truncated".equals(step.getAction());
+            count++;
+            bytes += length;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // A step larger than the segment size gets a segment of its own
+    private void nextSegment(int minimumSize) throws IOException {
+        closeSegment();
+        segmentNumber++;
+        FileChannel channel = FileChannel.open(segmentPath(directory, segmentNumber),
+            StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, minimumSize));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        segmentChannel = channel;
+    }
+
+    // Cuts the segment file down to the bytes actually written
+    private void closeSegment() throws IOException {
+        if (segmentChannel != null) {
+            int used = segment.position();
+            segment = null;
+            segmentChannel.truncate(used);
+            segmentChannel.close();
+            segmentChannel = null;
+        }
+    }
+
+    @Override
+    public synchronized void complete() {
+        try {
+            closeSegment();
+            index.close();
+            Path partial = directory.resolve(PARTIAL_INDEX_FILE);
+            if (!ordered) {
+                sortIndex(partial);
+            }
+            Files.move(partial, directory.resolve(INDEX_FILE), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Steps from multi-threaded user code can arrive slightly out of order; reads rely on the
+    // index being sorted by step number. Only the index is reordered, records stay in place.
+    private void sortIndex(Path file) throws IOException {
+        ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(file));
+        int[][] rows = new int[count][];
+        for (int i = 0; i < count; i++) {
+            rows[i] = new int[] {entries.getInt(), entries.getInt(), entries.getInt(), entries.getInt()};
+        }
+        Arrays.sort(rows, Comparator.comparingInt(row -> row[0]));
+        ByteBuffer sorted = ByteBuffer.allocate(count * INDEX_ENTRY_BYTES);
+        for (int[] row : rows) {
+            sorted.putInt(row[0]).putInt(row[1]).putInt(row[2]).putInt(row[3]);
+        }
+        Files.write(file, sorted.array());
+    }
+
+    // Releases the files of a trace that failed part-way; the caller deletes the directory
+    public synchronized void abort() {
+        try {
+            segment = null;
+            if (segmentChannel != null) {
+                segmentChannel.close();
+                segmentChannel = null;
+            }
+            index.close();
+        } catch (IOException e) {
+            // Nothing more to release
+        }
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public synchronized boolean isTruncated() {
+        return truncated;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+}
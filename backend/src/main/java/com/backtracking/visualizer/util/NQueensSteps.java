@@ -0,0 +1,196 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.TraceStep;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// N-Queens, one row at a time. The columns and both diagonals attacked by the queens placed
+// so far are bitmasks per row, so the free squares of a row are one expression and a search
+// step never scans the board.
+public class NQueensSteps implements SplittableSteps {
+    public static final int MAX_SIZE = 30;
+
+    private static final String FUNCTION = "placeQueens";
+
+    private static final String RECURSE = "recurse";
+    private static final String PLACE = "place";
+    private static final String SOLUTION = "solution";
+    private static final String BACKTRACK = "backtrack";
+
+    // Details text of the frequent steps, built from the step's variables only when it is read
+    private static final TraceStep.DetailsTemplate RECURSE_DETAILS = step ->
+        "Row " + step.getVariables().get("row") + ": " + step.getVariables().get("free") + " free column(s)";
+    private static final TraceStep.DetailsTemplate PLACE_DETAILS = step ->
+        "Placing a queen at row " + step.getVariables().get("row") + ", column " + step.getVariables().get("col");
+    private static final TraceStep.DetailsTemplate BACKTRACK_DETAILS = step ->
+        "Backtracking: removing the queen at row " + step.getVariables().get("row") + ", column "
+            + step.getVariables().get("col");
+
+    private static final int ENTER = 0;
+    private static final int LOOP = 1;
+    private static final int DESCEND = 2;
+    private static final int RETURN = 3;
+    private static final int DONE = 4;
+
+    private final int n;
+    private final int mask;
+    private final long maxSolutions;
+
+    // Per row: attacked columns, attacked diagonals in both directions, free squares not
+    // tried yet, and the column of the queen placed in it (-1 when none)
+    private final int[] columns;
+    private final int[] diagonals;
+    private final int[] antiDiagonals;
+    private final int[] free;
+    private final int[] queens;
+    private int row;
+    // Row of this cursor's root; 0 unless it runs a subtree
+    private int floor;
+    private int state = ENTER;
+    private long solutions;
+
+    private String action;
+    private int stepRow;
+    private int stepColumn;
+
+    public NQueensSteps(int n, long maxSolutions) {
+        if (n < 1 || n > MAX_SIZE) {
+            throw new IllegalArgumentException("Board size must be between 1 and " + MAX_SIZE);
+        }
+        this.n = n;
+        this.mask = (1 << n) - 1;
+        this.maxSolutions = maxSolutions;
+        this.columns = new int[n + 1];
+        this.diagonals = new int[n + 1];
+        this.antiDiagonals = new int[n + 1];
+        this.free = new int[n + 1];
+        this.queens = new int[n];
+        Arrays.fill(queens, -1);
+    }
+
+    private NQueensSteps(NQueensSteps parent) {
+        this.n = parent.n;
+        this.mask = parent.mask;
+        this.maxSolutions = parent.maxSolutions;
+        this.columns = parent.columns.clone();
+        this.diagonals = parent.diagonals.clone();
+        this.antiDiagonals = parent.antiDiagonals.clone();
+        this.free = parent.free.clone();
+        this.queens = parent.queens.clone();
+        this.row = parent.row;
+        this.floor = parent.row;
+        this.solutions = parent.solutions;
+    }
+
+    @Override
+    public boolean advance() {
+        while (true) {
+            switch (state) {
+                case ENTER:
+                    if (row == n) {
+                        current(SOLUTION, -1);
+                        state = ++solutions >= maxSolutions ? DONE : RETURN;
+                        return true;
+                    }
+                    free[row] = ~(columns[row] | diagonals[row] | antiDiagonals[row]) & mask;
+                    current(RECURSE, -1);
+                    state = LOOP;
+                    return true;
+                case LOOP: {
+                    int available = free[row];
+                    if (available == 0) {
+                        state = RETURN;
+                        break;
+                    }
+                    int bit = available & -available;
+                    free[row] = available ^ bit;
+                    current(PLACE, Integer.numberOfTrailingZeros(bit));
+                    state = DESCEND;
+                    return true;
+                }
+                case DESCEND: {
+                    int bit = 1 << stepColumn;
+                    queens[row] = stepColumn;
+                    columns[row + 1] = columns[row] | bit;
+                    diagonals[row + 1] = ((diagonals[row] | bit) << 1) & mask;
+                    antiDiagonals[row + 1] = (antiDiagonals[row] | bit) >>> 1;
+                    row++;
+                    state = ENTER;
+                    break;
+                }
+                case RETURN:
+                    if (--row < floor) {
+                        state = DONE;
+                        return false;
+                    }
+                    current(BACKTRACK, queens[row]);
+                    queens[row] = -1;
+                    state = LOOP;
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    @Override
+    public int childDepth() {
+        return state == ENTER && row > floor ? row + 1 : 0;
+    }
+
+    @Override
+    public SplittableSteps subtree() {
+        return new NQueensSteps(this);
+    }
+
+    @Override
+    public void skipSubtree(long solutions) {
+        this.solutions += solutions;
+        state = RETURN;
+    }
+
+    @Override
+    public long solutions() {
+        return solutions;
+    }
+
+    private void current(String action, int column) {
+        this.action = action;
+        this.stepRow = row;
+        this.stepColumn = column;
+    }
+
+    @Override
+    public String action() {
+        return action;
+    }
+
+    @Override
+    public int depth() {
+        return stepRow + 1;
+    }
+
+    @Override
+    public TraceStep toStep(int number) {
+        Map<String, Object> variables = new LinkedHashMap<>();
+        int[] placed = Arrays.copyOf(queens, n);
+        if (BACKTRACK.equals(action)) {
+            // Show the queen that is being taken away
+            placed[stepRow] = stepColumn;
+        }
+        variables.put("queens", placed);
+        variables.put("row", stepRow);
+        if (RECURSE.equals(action)) {
+            variables.put("free", Integer.bitCount(free[stepRow]));
+            return new TraceStep(number, FUNCTION, variables, new ArrayList<>(), -1, action, null, RECURSE_DETAILS);
+        } else if (SOLUTION.equals(action)) {
+            String details = "Solution " + solutions + ": " + Arrays.toString(placed);
+            return new TraceStep(number, FUNCTION, variables, new ArrayList<>(), -1, action, details);
+        }
+        variables.put("col", stepColumn);
+        return new TraceStep(number, FUNCTION, variables, new ArrayList<>(), -1, action, null,
+            PLACE.equals(action) ? PLACE_DETAILS : BACKTRACK_DETAILS);
+    }
+}
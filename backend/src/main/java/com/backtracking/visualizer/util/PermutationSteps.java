@@ -0,0 +1,438 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.PermutationSummary;
+import com.backtracking.visualizer.dto.PermutationTraceRequest.Algorithm;
+import com.backtracking.visualizer.dto.TraceStep;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// The steps of a permutation trace, generated one at a time on demand. The recursion runs on
+// an explicit per-level loop counter array over a private copy of the input, so moving to the
+// next step allocates nothing; a TraceStep (with its copy of nums) is only built by toStep()
+// for the steps a caller actually keeps, and its details text only when the step is read.
+public class PermutationSteps implements SplittableSteps {
+    // Larger inputs are never counted: their counts do not fit in a long anyway
+    public static final int MAX_COUNT_SIZE = 64;
+    // Nor traced: every kept step copies nums, and the values tried at a level fit one long
+    public static final int MAX_TRACE_SIZE = 64;
+
+    private static final String FUNCTION = "permute";
+
+    private static final String[] ACTIONS = {"recurse", "base_case", "swap", "backtrack", "skip_duplicate"};
+    private static final int RECURSE = 0;
+    private static final int BASE_CASE = 1;
+    private static final int SWAP = 2;
+    private static final int BACKTRACK = 3;
+    private static final int SKIP = 4;
+
+    // Details text by action, built from the step's variables only when it is read
+    private static final TraceStep.DetailsTemplate[] SWAP_DETAILS = {
+        step -> "Entering recursion with start=" + step.getVariables().get("start") + ", nums=" + nums(step),
+        step -> "Base case reached: " + nums(step),
+        step -> "Swapping nums[" + step.getVariables().get("start") + "] and nums[" + step.getVariables().get("i") + "]",
+        step -> "Backtracking (swapping back) nums[" + step.getVariables().get("start") + "] and nums["
+            + step.getVariables().get("i") + "]",
+        step -> {
+            int i = (Integer) step.getVariables().get("i");
+            return "Skipping nums[" + i + "]=" + ((int[]) step.getVariables().get("nums"))[i]
+                + ", already tried at position " + step.getVariables().get("start");
+        }
+    };
+    private static final TraceStep.DetailsTemplate[] HEAP_DETAILS = {
+        step -> "Entering recursion with k=" + step.getVariables().get("k") + ", nums=" + nums(step),
+        step -> "Base case reached: " + nums(step),
+        step -> "Swapping nums[" + step.getVariables().get("i") + "] and nums[" + ((Integer) step.getVariables().get("k") - 1) + "]"
+    };
+
+    // Where advance() picks up
+    private static final int ENTER = 0;
+    private static final int BASE = 1;
+    private static final int LOOP = 2;
+    private static final int SWAPPED = 3;
+    private static final int DESCEND = 4;
+    private static final int RETURN = 5;
+    private static final int UNSWAP = 6;
+    private static final int DONE = 7;
+
+    private final Algorithm algorithm;
+    private final int[] nums;
+    private final int n;
+    // Loop counter of each recursion level: i for SWAP and DISTINCT, the number of swaps
+    // made so far for HEAP
+    private final int[] counters;
+    // DISTINCT only: each value's rank among the distinct values, kept in step with nums, and
+    // per level the ranks already tried there
+    private final int[] ranks;
+    private final long[] tried;
+    private int level;
+    // Level of this cursor's root; 0 unless it runs a subtree
+    private int floor;
+    private int state = ENTER;
+
+    // The current step
+    private int action = -1;
+    private int stepLevel;
+    private int first;
+    private int second;
+
+    public PermutationSteps(int[] nums, Algorithm algorithm) {
+        if (nums.length > MAX_TRACE_SIZE) {
+            throw new IllegalArgumentException("Cannot trace permutations of more than " + MAX_TRACE_SIZE + " elements");
+        }
+        this.algorithm = algorithm;
+        this.nums = Arrays.copyOf(nums, nums.length);
+        this.n = nums.length;
+        this.counters = new int[n + 1];
+        this.ranks = algorithm == Algorithm.DISTINCT ? ranks(nums) : null;
+        this.tried = algorithm == Algorithm.DISTINCT ? new long[n + 1] : null;
+    }
+
+    private PermutationSteps(PermutationSteps parent) {
+        this.algorithm = parent.algorithm;
+        this.nums = Arrays.copyOf(parent.nums, parent.n);
+        this.n = parent.n;
+        this.counters = Arrays.copyOf(parent.counters, parent.counters.length);
+        this.ranks = parent.ranks == null ? null : parent.ranks.clone();
+        this.tried = parent.tried == null ? null : parent.tried.clone();
+        this.level = parent.level;
+        this.floor = parent.level;
+    }
+
+    @Override
+    public boolean advance() {
+        return algorithm == Algorithm.HEAP ? advanceHeap() : advanceSwap();
+    }
+
+    @Override
+    public String action() {
+        return ACTIONS[action];
+    }
+
+    @Override
+    public int depth() {
+        return stepLevel + 1;
+    }
+
+    // SWAP and DISTINCT: permute(start) fixes nums[start] and recurses on the rest
+    private boolean advanceSwap() {
+        while (true) {
+            switch (state) {
+                case ENTER:
+                    current(RECURSE, -1, -1);
+                    state = level == n - 1 ? BASE : LOOP;
+                    counters[level] = level;
+                    if (tried != null) {
+                        tried[level] = 0;
+                    }
+                    return true;
+                case BASE:
+                    current(BASE_CASE, -1, -1);
+                    state = RETURN;
+                    return true;
+                case LOOP: {
+                    int i = counters[level];
+                    if (i >= n) {
+                        state = RETURN;
+                        break;
+                    }
+                    if (algorithm == Algorithm.DISTINCT && triedBefore(level, i)) {
+                        current(SKIP, level, i);
+                        counters[level]++;
+                        return true;
+                    }
+                    current(SWAP, level, i);
+                    state = SWAPPED;
+                    return true;
+                }
+                case SWAPPED:
+                    swap(level, counters[level]);
+                    level++;
+                    state = ENTER;
+                    break;
+                case RETURN:
+                    if (--level < floor) {
+                        state = DONE;
+                        return false;
+                    }
+                    current(BACKTRACK, level, counters[level]);
+                    state = UNSWAP;
+                    return true;
+                case UNSWAP:
+                    swap(level, counters[level]);
+                    counters[level]++;
+                    state = LOOP;
+                    break;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    // HEAP: generate(k) permutes nums[0..k-1]; level is n - k. Heap's algorithm never swaps
+    // back, so it has no backtrack steps.
+    private boolean advanceHeap() {
+        while (true) {
+            switch (state) {
+                case ENTER:
+                    current(RECURSE, -1, -1);
+                    state = n - level <= 1 ? BASE : DESCEND;
+                    counters[level] = 0;
+                    return true;
+                case BASE:
+                    current(BASE_CASE, -1, -1);
+                    state = RETURN;
+                    return true;
+                case DESCEND:
+                    level++;
+                    state = ENTER;
+                    break;
+                case RETURN: {
+                    if (--level < floor) {
+                        state = DONE;
+                        return false;
+                    }
+                    int k = n - level;
+                    int c = counters[level];
+                    if (c >= k - 1) {
+                        break;
+                    }
+                    current(SWAP, k % 2 == 0 ? c : 0, k - 1);
+                    state = SWAPPED;
+                    return true;
+                }
+                case SWAPPED:
+                    swap(first, second);
+                    counters[level]++;
+                    level++;
+                    state = ENTER;
+                    break;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    @Override
+    public int childDepth() {
+        return state == ENTER && level > floor ? level + 1 : 0;
+    }
+
+    @Override
+    public SplittableSteps subtree() {
+        return new PermutationSteps(this);
+    }
+
+    @Override
+    public void skipSubtree(long solutions) {
+        if (algorithm == Algorithm.HEAP) {
+            // Heap's algorithm does not restore the array; apply what generate(k) leaves behind
+            int k = n - level;
+            int[] moved = heapResult(k);
+            int[] before = Arrays.copyOf(nums, k);
+            for (int i = 0; i < k; i++) {
+                nums[i] = before[moved[i]];
+            }
+        }
+        state = RETURN;
+    }
+
+    @Override
+    public long solutions() {
+        return 0;
+    }
+
+    // Where generate(k) moves the first k elements: afterwards position i holds the element
+    // that was at heapResult(k)[i]. Odd k only swaps the ends; even k also rotates.
+    private static int[] heapResult(int k) {
+        int[] moved = new int[k];
+        for (int i = 0; i < k; i++) {
+            moved[i] = i;
+        }
+        if (k == 2 || k % 2 == 1) {
+            if (k > 1) {
+                moved[0] = k - 1;
+                moved[k - 1] = 0;
+            }
+            return moved;
+        }
+        // [k-3, k-2, 1, 2, ..., k-4, k-1, 0]
+        moved[0] = k - 3;
+        moved[1] = k - 2;
+        for (int i = 2; i < k - 2; i++) {
+            moved[i] = i - 1;
+        }
+        moved[k - 2] = k - 1;
+        moved[k - 1] = 0;
+        return moved;
+    }
+
+    private void current(int action, int first, int second) {
+        this.action = action;
+        this.stepLevel = level;
+        this.first = first;
+        this.second = second;
+    }
+
+    // Whether nums[i] holds a value an earlier iteration of this level already placed; marks
+    // it as placed otherwise
+    private boolean triedBefore(int start, int i) {
+        long bit = 1L << ranks[i];
+        if ((tried[start] & bit) != 0) {
+            return true;
+        }
+        tried[start] |= bit;
+        return false;
+    }
+
+    // Rank of each value among the distinct values of nums
+    private static int[] ranks(int[] nums) {
+        int[] distinct = Arrays.stream(nums).sorted().distinct().toArray();
+        int[] ranks = new int[nums.length];
+        for (int i = 0; i < nums.length; i++) {
+            ranks[i] = Arrays.binarySearch(distinct, nums[i]);
+        }
+        return ranks;
+    }
+
+    private static String nums(TraceStep step) {
+        return Arrays.toString((int[]) step.getVariables().get("nums"));
+    }
+
+    private void swap(int i, int j) {
+        int temp = nums[i];
+        nums[i] = nums[j];
+        nums[j] = temp;
+        if (ranks != null) {
+            temp = ranks[i];
+            ranks[i] = ranks[j];
+            ranks[j] = temp;
+        }
+    }
+
+    @Override
+    public TraceStep toStep(int number) {
+        Map<String, Object> variables = new LinkedHashMap<>();
+        variables.put("nums", Arrays.copyOf(nums, n));
+        TraceStep.DetailsTemplate details;
+        if (algorithm == Algorithm.HEAP) {
+            variables.put("k", n - stepLevel);
+            if (action == SWAP) {
+                variables.put("i", first);
+            }
+            details = HEAP_DETAILS[action];
+        } else {
+            variables.put("start", stepLevel);
+            if (action >= SWAP) {
+                variables.put("i", second);
+            }
+            details = SWAP_DETAILS[action];
+        }
+        return new TraceStep(number, FUNCTION, variables, new ArrayList<>(), -1, ACTIONS[action], null, details);
+    }
+
+    // Step counts of the full trace, from the shape of the recursion rather than by running
+    // it. Throws IllegalArgumentException when a count does not fit in a long.
+    public static PermutationSummary count(int[] nums, Algorithm algorithm) {
+        int n = nums.length;
+        if (n > MAX_COUNT_SIZE) {
+            throw new IllegalArgumentException("Cannot count permutations of more than " + MAX_COUNT_SIZE + " elements");
+        }
+        try {
+            return algorithm == Algorithm.HEAP ? countHeap(n) : countSwap(nums, algorithm);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("The trace of " + n + " elements has more steps than can be counted");
+        }
+    }
+
+    // Level k of the recursion runs once per distinct arrangement of k elements in front, so
+    // with p[k] such arrangements: calls = p[0] + ... + p[n-1], leaves = p[n-1], and each call
+    // on level k swaps once per child and skips the rest of its n - k candidates.
+    private static PermutationSummary countSwap(int[] nums, Algorithm algorithm) {
+        int n = nums.length;
+        if (n == 0) {
+            return new PermutationSummary(algorithm, 0, 1, 1, 0, 0, 0, 0);
+        }
+        long[] p = algorithm == Algorithm.DISTINCT ? distinctPrefixes(nums) : prefixes(n);
+        long calls = 0;
+        long swaps = 0;
+        long skips = 0;
+        for (int k = 0; k < n; k++) {
+            calls = Math.addExact(calls, p[k]);
+            if (k > 0) {
+                swaps = Math.addExact(swaps, p[k]);
+            }
+            if (k < n - 1) {
+                skips = Math.addExact(skips, Math.multiplyExact(p[k], n - k) - p[k + 1]);
+            }
+        }
+        long leaves = p[n - 1];
+        long steps = Math.addExact(Math.addExact(calls, leaves), Math.addExact(Math.multiplyExact(swaps, 2), skips));
+        return new PermutationSummary(algorithm, n, steps, calls, leaves, swaps, swaps, skips);
+    }
+
+    // generate(k) runs n!/k! times and makes k - 1 swaps; generate(1) is the leaf
+    private static PermutationSummary countHeap(int n) {
+        if (n == 0) {
+            return new PermutationSummary(Algorithm.HEAP, 0, 2, 1, 1, 0, 0, 0);
+        }
+        long calls = 0;
+        long swaps = 0;
+        long runs = 1;
+        for (int k = n; k >= 1; k--) {
+            calls = Math.addExact(calls, runs);
+            swaps = Math.addExact(swaps, Math.multiplyExact(runs, k - 1));
+            runs = Math.multiplyExact(runs, k);
+        }
+        long leaves = runs;
+        long steps = Math.addExact(Math.addExact(calls, leaves), swaps);
+        return new PermutationSummary(Algorithm.HEAP, n, steps, calls, leaves, swaps, 0, 0);
+    }
+
+    // p[k] = n! / (n - k)!
+    private static long[] prefixes(int n) {
+        long[] p = new long[n + 1];
+        p[0] = 1;
+        for (int k = 1; k <= n; k++) {
+            p[k] = Math.multiplyExact(p[k - 1], n - k + 1);
+        }
+        return p;
+    }
+
+    // p[k] = number of distinct sequences of k elements drawn from the multiset nums, built
+    // one value at a time: placing c copies of a value among j positions
+    private static long[] distinctPrefixes(int[] nums) {
+        int n = nums.length;
+        long[][] binomial = new long[n + 1][];
+        for (int j = 0; j <= n; j++) {
+            binomial[j] = new long[j + 1];
+            binomial[j][0] = binomial[j][j] = 1;
+            for (int c = 1; c < j; c++) {
+                binomial[j][c] = Math.addExact(binomial[j - 1][c - 1], binomial[j - 1][c]);
+            }
+        }
+        int[] sorted = Arrays.copyOf(nums, n);
+        Arrays.sort(sorted);
+        long[] p = new long[n + 1];
+        p[0] = 1;
+        int used = 0;
+        for (int from = 0; from < n; ) {
+            int to = from;
+            while (to < n && sorted[to] == sorted[from]) {
+                to++;
+            }
+            int copies = to - from;
+            used += copies;
+            long[] next = new long[n + 1];
+            for (int j = 0; j <= used; j++) {
+                for (int c = 0; c <= Math.min(copies, j); c++) {
+                    next[j] = Math.addExact(next[j], Math.multiplyExact(p[j - c], binomial[j][c]));
+                }
+            }
+            p = next;
+            from = to;
+        }
+        return p;
+    }
+}
@@ -0,0 +1,31 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.TraceStep;
+
+// Keeps only the last N steps in a fixed array and hands them to the target sink, oldest
+// first, when the run completes. Memory stays constant however long the run is.
+public class RingBufferTraceSink implements TraceSink {
+    private final TraceStep[] ring;
+    private final TraceSink target;
+    private long written;
+
+    public RingBufferTraceSink(int capacity, TraceSink target) {
+        this.ring = new TraceStep[capacity];
+        this.target = target;
+    }
+
+    @Override
+    public synchronized void accept(TraceStep step) {
+        ring[(int) (written % ring.length)] = step;
+        written++;
+    }
+
+    @Override
+    public synchronized void complete() {
+        long first = Math.max(0, written - ring.length);
+        for (long i = first; i < written; i++) {
+            target.accept(ring[(int) (i % ring.length)]);
+        }
+        target.complete();
+    }
+}
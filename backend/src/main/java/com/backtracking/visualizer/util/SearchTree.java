@@ -0,0 +1,177 @@
+package com.backtracking.visualizer.util;
+
+// The recursion tree of a traced run in compact form (see SearchTreeBuilder). Nodes are
+// numbered in the order the calls were entered, so node 0 is the root, every parent comes
+// before its children and the subtree of node i is the range [i, subtreeEnd(i)). Per-node
+// data lives in parallel int arrays; labels and results index into a shared dictionary, so
+// the millions of calls of a large search that repeat the same arguments share one string.
+public final class SearchTree {
+    public static final byte ROOT = 0;
+    // Returned after making calls of its own
+    public static final byte CALL = 1;
+    // Returned without making any call: a solution or a dead end
+    public static final byte LEAF = 2;
+    // Exited with an exception
+    public static final byte ERROR = 3;
+    // Still running when the trace ended
+    public static final byte OPEN = 4;
+
+    // No result: the call returned void, threw or never returned
+    public static final int NO_RESULT = -1;
+
+    private final int size;
+    private final int[] parent;
+    private final int[] depth;
+    private final int[] label;
+    private final int[] result;
+    private final int[] backtracks;
+    private final int[] firstStep;
+    private final int[] lastStep;
+    private final byte[] kind;
+    private final String[] dictionary;
+
+    // Children of node i are children[childStart[i]] .. children[childStart[i + 1] - 1]
+    private final int[] childStart;
+    private final int[] children;
+    private final int[] subtreeEnd;
+
+    private final long droppedNodes;
+    private final String truncationReason;
+
+    SearchTree(int size, int[] parent, int[] depth, int[] label, int[] result, int[] backtracks, int[] firstStep,
+               int[] lastStep, byte[] kind, String[] dictionary, long droppedNodes, String truncationReason) {
+        this.size = size;
+        this.parent = parent;
+        this.depth = depth;
+        this.label = label;
+        this.result = result;
+        this.backtracks = backtracks;
+        this.firstStep = firstStep;
+        this.lastStep = lastStep;
+        this.kind = kind;
+        this.dictionary = dictionary;
+        this.droppedNodes = droppedNodes;
+        this.truncationReason = truncationReason;
+
+        // Counting sort of the parent pointers; children stay in the order they were entered
+        this.childStart = new int[size + 1];
+        for (int node = 1; node < size; node++) {
+            childStart[parent[node] + 1]++;
+        }
+        for (int node = 0; node < size; node++) {
+            childStart[node + 1] += childStart[node];
+        }
+        this.children = new int[Math.max(size - 1, 0)];
+        int[] next = new int[size];
+        for (int node = 1; node < size; node++) {
+            int p = parent[node];
+            children[childStart[p] + next[p]++] = node;
+        }
+
+        this.subtreeEnd = new int[size];
+        for (int node = size - 1; node >= 0; node--) {
+            subtreeEnd[node] = Math.max(subtreeEnd[node], node + 1);
+            if (node > 0) {
+                subtreeEnd[parent[node]] = Math.max(subtreeEnd[parent[node]], subtreeEnd[node]);
+            }
+        }
+    }
+
+    // Fill colour of a node kind, shared by every renderer
+    public static String color(byte kind) {
+        switch (kind) {
+            case ROOT:
+                return "4CAF50"; // Green
+            case ERROR:
+                return "F44336"; // Red
+            case LEAF:
+                return "FFC107"; // Amber
+            case CALL:
+                return "2196F3"; // Blue
+            default:
+                return "E0E0E0"; // Light Gray
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // -1 for the root
+    public int parent(int node) {
+        return parent[node];
+    }
+
+    // 0 for the root, 1 for the calls made from main
+    public int depth(int node) {
+        return depth[node];
+    }
+
+    public String label(int node) {
+        return dictionary[label[node]];
+    }
+
+    public String result(int node) {
+        return result[node] == NO_RESULT ? null : dictionary[result[node]];
+    }
+
+    // Times the call came back from one of its recursive calls
+    public int backtracks(int node) {
+        return backtracks[node];
+    }
+
+    // Numbers of the trace steps that entered and left the call; 0 when not known
+    public int firstStep(int node) {
+        return firstStep[node];
+    }
+
+    public int lastStep(int node) {
+        return lastStep[node];
+    }
+
+    public byte kind(int node) {
+        return kind[node];
+    }
+
+    public int childCount(int node) {
+        return childStart[node + 1] - childStart[node];
+    }
+
+    public int child(int node, int index) {
+        return children[childStart[node] + index];
+    }
+
+    public int subtreeEnd(int node) {
+        return subtreeEnd[node];
+    }
+
+    public int subtreeSize(int node) {
+        return subtreeEnd[node] - node;
+    }
+
+    public int maxDepth() {
+        int max = 0;
+        for (int node = 0; node < size; node++) {
+            max = Math.max(max, depth[node]);
+        }
+        return max;
+    }
+
+    // Calls the run made that the tree's memory budget had no room for
+    public long getDroppedNodes() {
+        return droppedNodes;
+    }
+
+    public boolean isTruncated() {
+        return truncationReason != null || droppedNodes > 0;
+    }
+
+    public String getTruncationReason() {
+        return truncationReason;
+    }
+
+    // Distinct labels and results
+    public int dictionarySize() {
+        return dictionary.length;
+    }
+}
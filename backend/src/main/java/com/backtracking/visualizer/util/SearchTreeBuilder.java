@@ -0,0 +1,211 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.TraceStep;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Builds the recursion tree of a run from its automatic-tracing steps: "recurse" enters a
+// child of the current call, "return" and "exception" leave it and "backtrack" counts a
+// return into it. A step's call stack size is its depth, which places every call even when
+// the trace lost a step in between. Steps are not kept, so the builder can be handed to a
+// run as its sink whatever the trace's length; the tree itself stays within maxBytes and
+// counts the calls it had no room for.
+public class SearchTreeBuilder implements TraceSink {
+    // Arrays per node: parent, depth, label, result, backtracks, first and last step, kind
+    private static final int BYTES_PER_NODE = 7 * 4 + 1;
+    // Argument lists are cut here; a label only has to tell calls apart at a glance
+    private static final int MAX_LABEL_LENGTH = 60;
+
+    private final long maxBytes;
+    private long usedBytes;
+
+    private int size;
+    private int[] parent = new int[1024];
+    private int[] depth = new int[1024];
+    private int[] label = new int[1024];
+    private int[] result = new int[1024];
+    private int[] backtracks = new int[1024];
+    private int[] firstStep = new int[1024];
+    private int[] lastStep = new int[1024];
+    private byte[] kind = new byte[1024];
+
+    private final Map<String, Integer> codes = new HashMap<>();
+    private final List<String> dictionary = new ArrayList<>();
+
+    // Calls entered but not left yet, root first
+    private int[] stack = new int[64];
+    private int stackSize;
+    // Calls below the deepest node on the stack that were dropped for lack of room
+    private int droppedDepth;
+    private long droppedNodes;
+    private String truncationReason;
+
+    public SearchTreeBuilder(long maxBytes) {
+        this.maxBytes = maxBytes;
+        add(-1, 0, code("start"), 0);
+        kind[0] = SearchTree.ROOT;
+        stack[stackSize++] = 0;
+    }
+
+    @Override
+    public synchronized void accept(TraceStep step) {
+        String action = step.getAction();
+        if (action == null) {
+            return;
+        }
+        int stepDepth = step.getCallStack() == null ? 0 : step.getCallStack().size();
+        switch (action) {
+            case "recurse":
+                enter(step, stepDepth);
+                break;
+            case "return":
+            case "exception":
+                leave(step, stepDepth, "exception".equals(action));
+                break;
+            case "backtrack":
+                if (popTo(stepDepth) && droppedDepth == 0) {
+                    backtracks[stack[stackSize - 1]]++;
+                }
+                break;
+            case "truncated":
+            case "error":
+                truncationReason = step.getDetails();
+                break;
+            default:
+                // Steps captured by hand carry no call structure of their own
+                break;
+        }
+    }
+
+    private void enter(TraceStep step, int stepDepth) {
+        // The new call's parent is the call one level up
+        popTo(Math.max(stepDepth - 1, 0));
+        if (droppedDepth > 0 || !fits(step)) {
+            droppedDepth++;
+            droppedNodes++;
+            return;
+        }
+        int node = add(stack[stackSize - 1], stackSize, code(label(step)), step.getStep());
+        if (stackSize == stack.length) {
+            stack = Arrays.copyOf(stack, stackSize * 2);
+        }
+        stack[stackSize++] = node;
+    }
+
+    private void leave(TraceStep step, int stepDepth, boolean failed) {
+        if (!popTo(stepDepth)) {
+            return;
+        }
+        if (droppedDepth > 0) {
+            droppedDepth--;
+            return;
+        }
+        if (stackSize == 1) {
+            // A return of a call that was entered before the trace started
+            return;
+        }
+        int node = stack[--stackSize];
+        lastStep[node] = step.getStep();
+        if (failed) {
+            kind[node] = SearchTree.ERROR;
+        } else {
+            kind[node] = node + 1 < size && parent[node + 1] == node ? SearchTree.CALL : SearchTree.LEAF;
+            if (step.getVariables() != null && step.getVariables().containsKey("return")) {
+                result[node] = code(TraceEventBuffer.formatValue(step.getVariables().get("return")));
+            }
+        }
+    }
+
+    // Leaves every call deeper than depth, as if its return had been traced; false when the
+    // stack is not even that deep
+    private boolean popTo(int targetDepth) {
+        int depthNow = stackSize - 1 + droppedDepth;
+        while (depthNow > targetDepth) {
+            if (droppedDepth > 0) {
+                droppedDepth--;
+            } else {
+                stackSize--;
+            }
+            depthNow--;
+        }
+        return depthNow == targetDepth;
+    }
+
+    private boolean fits(TraceStep step) {
+        long needed = BYTES_PER_NODE;
+        if (size == parent.length) {
+            // Growing copies every array once
+            needed += (long) size * BYTES_PER_NODE;
+        }
+        if (usedBytes + needed > maxBytes) {
+            return false;
+        }
+        usedBytes += BYTES_PER_NODE;
+        return true;
+    }
+
+    private int add(int parentNode, int nodeDepth, int labelCode, int step) {
+        if (size == parent.length) {
+            int capacity = size * 2;
+            parent = Arrays.copyOf(parent, capacity);
+            depth = Arrays.copyOf(depth, capacity);
+            label = Arrays.copyOf(label, capacity);
+            result = Arrays.copyOf(result, capacity);
+            backtracks = Arrays.copyOf(backtracks, capacity);
+            firstStep = Arrays.copyOf(firstStep, capacity);
+            lastStep = Arrays.copyOf(lastStep, capacity);
+            kind = Arrays.copyOf(kind, capacity);
+        }
+        parent[size] = parentNode;
+        depth[size] = nodeDepth;
+        label[size] = labelCode;
+        result[size] = SearchTree.NO_RESULT;
+        firstStep[size] = step;
+        kind[size] = SearchTree.OPEN;
+        return size++;
+    }
+
+    private int code(String text) {
+        if (text.length() > MAX_LABEL_LENGTH) {
+            text = text.substring(0, MAX_LABEL_LENGTH - 3) + "...";
+        }
+        Integer code = codes.get(text);
+        if (code == null) {
+            code = dictionary.size();
+            codes.put(text, code);
+            dictionary.add(text);
+            // The string, its map entry and its list slot
+            usedBytes += 2L * text.length() + 96;
+        }
+        return code;
+    }
+
+    private static String label(TraceStep step) {
+        StringBuilder text = new StringBuilder(step.getFunction() == null ? "?" : step.getFunction()).append('(');
+        if (step.getVariables() != null) {
+            boolean first = true;
+            for (Map.Entry<String, Object> parameter : step.getVariables().entrySet()) {
+                if (!first) {
+                    text.append(", ");
+                }
+                first = false;
+                text.append(parameter.getKey()).append('=').append(TraceEventBuffer.formatValue(parameter.getValue()));
+                if (text.length() > MAX_LABEL_LENGTH) {
+                    break;
+                }
+            }
+        }
+        return text.append(')').toString();
+    }
+
+    // The tree as built so far; calls still on the stack stay OPEN
+    public synchronized SearchTree build() {
+        return new SearchTree(size, Arrays.copyOf(parent, size), Arrays.copyOf(depth, size), Arrays.copyOf(label, size),
+            Arrays.copyOf(result, size), Arrays.copyOf(backtracks, size), Arrays.copyOf(firstStep, size),
+            Arrays.copyOf(lastStep, size), Arrays.copyOf(kind, size), dictionary.toArray(new String[0]),
+            droppedNodes, truncationReason);
+    }
+}
@@ -0,0 +1,206 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.TreeView;
+import com.backtracking.visualizer.dto.TreeViewNode;
+import com.backtracking.visualizer.dto.TreeViewRequest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+// Level-of-detail views of a SearchTree. Every node's subtree totals (solutions, pruned
+// branches, deepest level) are added up once, from the last node to the first, so that a
+// view can collapse any run of sibling subtrees into one aggregate without visiting them.
+// A view walks breadth-first from the node it is asked for and stops opening calls once its
+// node budget is spent, which bounds it however large the tree is.
+public final class SearchTreeSummary {
+    private final SearchTree tree;
+    private final int[] solutions;
+    private final int[] pruned;
+    private final int[] maxDepth;
+    // Deepest level any leaf reached
+    private final int solutionDepth;
+
+    public SearchTreeSummary(SearchTree tree) {
+        this.tree = tree;
+        int size = tree.size();
+        int deepest = 0;
+        for (int node = 0; node < size; node++) {
+            if (tree.kind(node) == SearchTree.LEAF) {
+                deepest = Math.max(deepest, tree.depth(node));
+            }
+        }
+        this.solutionDepth = deepest;
+        this.solutions = new int[size];
+        this.pruned = new int[size];
+        this.maxDepth = new int[size];
+        for (int node = size - 1; node >= 0; node--) {
+            maxDepth[node] = Math.max(maxDepth[node], tree.depth(node));
+            if (tree.kind(node) == SearchTree.LEAF) {
+                if (isSolution(node)) {
+                    solutions[node]++;
+                } else {
+                    pruned[node]++;
+                }
+            }
+            if (node > 0) {
+                int parent = tree.parent(node);
+                solutions[parent] += solutions[node];
+                pruned[parent] += pruned[node];
+                maxDepth[parent] = Math.max(maxDepth[parent], maxDepth[node]);
+            }
+        }
+    }
+
+    public SearchTree tree() {
+        return tree;
+    }
+
+    // The tree plus the three totals per node
+    public long sizeInBytes() {
+        return tree.size() * (10L * 4 + 1 + 12) + tree.dictionarySize() * 64L;
+    }
+
+    // A leaf completed when it returned something truthy. A void leaf has nothing to go by
+    // but its depth: backtracking searches record a complete assignment at the deepest level
+    // they reach and give up above it.
+    private boolean isSolution(int node) {
+        String result = tree.result(node);
+        if (result == null) {
+            return tree.depth(node) == solutionDepth;
+        }
+        return !(result.isEmpty() || result.equals("false") || result.equals("0") || result.equals("null")
+            || result.equals("[]"));
+    }
+
+    private String type(int node) {
+        switch (tree.kind(node)) {
+            case SearchTree.ROOT:
+                return "start";
+            case SearchTree.CALL:
+                return "decision";
+            case SearchTree.LEAF:
+                return isSolution(node) ? "end" : "backtrack";
+            case SearchTree.ERROR:
+                return "error";
+            default:
+                return "open";
+        }
+    }
+
+    // The view of node and the siblings - 1 siblings that follow it, as shown when an
+    // aggregate is expanded. The nodes asked for are always shown as calls.
+    public TreeView view(String treeId, int node, int siblings, TreeViewRequest limits) {
+        if (node < 0 || node >= tree.size()) {
+            throw new IllegalArgumentException("Tree has no node " + node);
+        }
+        if (siblings < 1) {
+            throw new IllegalArgumentException("siblings must be at least 1");
+        }
+        View view = new View(tree.depth(node), limits);
+        if (node == 0) {
+            view.call(0, null);
+        } else {
+            int parent = tree.parent(node);
+            int index = 0;
+            while (tree.child(parent, index) != node) {
+                index++;
+            }
+            if (index + siblings > tree.childCount(parent)) {
+                throw new IllegalArgumentException("Node " + node + " has fewer than " + siblings + " siblings from it on");
+            }
+            view.children(parent, index, siblings, true);
+        }
+        view.open();
+        return new TreeView(treeId, tree.size(), tree.getDroppedNodes(), tree.getTruncationReason(), view.nodes);
+    }
+
+    private final class View {
+        private final int baseDepth;
+        private final int maxLevels;
+        private final int collapseBelow;
+        private int budget;
+        private final List<TreeViewNode> nodes = new ArrayList<>();
+        // Calls shown whose children have not been placed yet
+        private final ArrayDeque<Integer> pending = new ArrayDeque<>();
+
+        View(int baseDepth, TreeViewRequest limits) {
+            this.baseDepth = baseDepth;
+            this.maxLevels = limits.effectiveMaxDepth();
+            this.collapseBelow = limits.effectiveCollapseBelow();
+            this.budget = limits.effectiveMaxNodes();
+        }
+
+        void open() {
+            while (!pending.isEmpty()) {
+                int node = pending.poll();
+                children(node, 0, tree.childCount(node), false);
+            }
+        }
+
+        // Children from..from + count - 1 of parent, one node each while the budget lasts and
+        // the rest as one aggregate. A call whose children come too late for the budget still
+        // gets that one aggregate, so nothing is ever silently missing.
+        void children(int parent, int from, int count, boolean requested) {
+            int shown = budget >= count ? count : Math.max(budget - 1, 0);
+            for (int i = 0; i < shown; i++) {
+                int child = tree.child(parent, from + i);
+                int size = tree.subtreeSize(child);
+                boolean collapse = !requested && size > 1
+                    && (size < collapseBelow || tree.depth(child) - baseDepth >= maxLevels);
+                if (collapse) {
+                    aggregate(parent, from + i, 1);
+                } else {
+                    call(child, parent);
+                }
+            }
+            if (shown < count) {
+                aggregate(parent, from + shown, count - shown);
+            }
+        }
+
+        void call(int node, Integer parent) {
+            TreeViewNode view = node(node, parent);
+            view.setType(type(node));
+            view.setResult(tree.result(node));
+            nodes.add(view);
+            budget--;
+            if (tree.childCount(node) > 0) {
+                pending.add(node);
+            }
+        }
+
+        void aggregate(int parent, int from, int count) {
+            int first = tree.child(parent, from);
+            TreeViewNode view = node(first, parent);
+            view.setType("aggregate");
+            int nodeCount = 0;
+            int solutionCount = 0;
+            int prunedCount = 0;
+            int deepest = 0;
+            for (int i = from; i < from + count; i++) {
+                int child = tree.child(parent, i);
+                nodeCount += tree.subtreeSize(child);
+                solutionCount += solutions[child];
+                prunedCount += pruned[child];
+                deepest = Math.max(deepest, maxDepth[child]);
+            }
+            view.setSiblings(count);
+            view.setNodeCount(nodeCount);
+            view.setSolutions(solutionCount);
+            view.setPruned(prunedCount);
+            view.setMaxDepth(deepest);
+            nodes.add(view);
+            budget--;
+        }
+
+        private TreeViewNode node(int node, Integer parent) {
+            TreeViewNode view = new TreeViewNode();
+            view.setId(node);
+            view.setParent(parent);
+            view.setLabel(tree.label(node));
+            view.setDepth(tree.depth(node));
+            view.setChildren(tree.childCount(node));
+            return view;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.StackFrame;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+// Call stack of one thread of a run, kept up to date by the frame hooks TraceInstrumenter
+// puts into every method of a submission: a method takes the slot above its caller on entry,
+// stores the current line before every call it makes and gives the slot back on return.
+// captureStep reads its call stack from here instead of walking the thread's stack.
+//
+// A method unwound by an exception never gives its slot back. The next call made by a frame
+// below it cuts the stack back to that frame, and a capture is itself such a call, so stale
+// slots are never seen.
+public final class ShadowStack {
+    private final TraceSession session;
+    private final String[] names;
+
+    private int depth;
+    private int[] methods = new int[64];
+    private int[] lines = new int[64];
+    // Frames handed out by the last snapshot, reused for as long as their slot is unchanged
+    private StackFrame[] frames = new StackFrame[64];
+
+    ShadowStack(TraceSession session, String[] names) {
+        this.session = session;
+        this.names = names;
+    }
+
+    TraceSession session() {
+        return session;
+    }
+
+    int push(int method, int line) {
+        int frame = depth;
+        if (frame == methods.length) {
+            int capacity = frame * 2;
+            methods = Arrays.copyOf(methods, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            frames = Arrays.copyOf(frames, capacity);
+        }
+        if (methods[frame] != method || lines[frame] != line) {
+            methods[frame] = method;
+            lines[frame] = line;
+            frames[frame] = null;
+        }
+        depth = frame + 1;
+        return frame;
+    }
+
+    void line(int frame, int line) {
+        if (lines[frame] != line) {
+            lines[frame] = line;
+            frames[frame] = null;
+        }
+        depth = frame + 1;
+    }
+
+    void leave(int frame) {
+        depth = frame;
+    }
+
+    int depth() {
+        return depth;
+    }
+
+    // Innermost frame first, as a stack walk lists them
+    List<StackFrame> snapshot() {
+        List<StackFrame> callStack = new ArrayList<>(depth);
+        for (int i = depth - 1; i >= 0; i--) {
+            StackFrame frame = frames[i];
+            if (frame == null) {
+                frame = new StackFrame(names[methods[i]], new HashMap<>(), new HashMap<>(), lines[i]);
+                frames[i] = frame;
+            }
+            callStack.add(frame);
+        }
+        return callStack;
+    }
+}
@@ -0,0 +1,21 @@
+package com.backtracking.visualizer.util;
+
+// An engine whose search tree can be cut into subtrees that are run on their own, possibly on
+// other threads (see ParallelSearch). A subtree cursor produces exactly the steps the whole
+// search produces between entering that node and returning from it, with the same depths.
+public interface SplittableSteps extends TraceSteps {
+    // Depth of the node the next advance() enters, when that node lies below this cursor's
+    // root; 0 otherwise
+    int childDepth();
+
+    // A cursor over the subtree of the node the next advance() enters. Only valid when
+    // childDepth() is not 0.
+    SplittableSteps subtree();
+
+    // Continues as if the subtree had been searched and found that many solutions: the next
+    // advance() produces the step that follows the subtree
+    void skipSubtree(long solutions);
+
+    // Solutions found so far, counting those of skipped subtrees
+    long solutions();
+}
@@ -0,0 +1,138 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.TraceStep;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Writes steps to a response as newline-delimited JSON or as server-sent events. The first
+// step goes out at once; after that, output is buffered and flushed every BATCH_SIZE steps,
+// and a step that is still buffered FLUSH_INTERVAL_NANOS later is flushed by the shared
+// flusher thread, so the client sees every step soon after it was made even when the
+// producer goes quiet. Writes block when the client reads slowly, which stalls the producer
+// instead of letting steps pile up in memory.
+public class StreamingTraceWriter implements TraceSink {
+    public static final String NDJSON = "application/x-ndjson";
+    public static final String EVENT_STREAM = "text/event-stream";
+
+    private static final int BATCH_SIZE = 256;
+    private static final long FLUSH_INTERVAL_NANOS = 50_000_000L;
+
+    private static final byte[] SSE_PREFIX = "data: ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SSE_SUFFIX = "\n\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NEWLINE = {'\n'};
+
+    private static final ScheduledThreadPoolExecutor FLUSHER = flusher();
+
+    private final OutputStream out;
+    private final JsonGenerator generator;
+    private final boolean serverSentEvents;
+    private int pending;
+    private boolean started;
+    // Set once the trace is complete or the client has gone; nothing is written after that
+    private boolean closed;
+    private ScheduledFuture<?> idleFlush;
+
+    public StreamingTraceWriter(OutputStream out, ObjectMapper objectMapper, boolean serverSentEvents) {
+        this.out = new BufferedOutputStream(out, 64 * 1024);
+        this.serverSentEvents = serverSentEvents;
+        try {
+            this.generator = objectMapper.getFactory().createGenerator(this.out);
+            // Keep the response open between steps; Jackson must not close or flush it
+            this.generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            this.generator.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+            this.generator.setRootValueSeparator(null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static boolean wantsEventStream(String accept) {
+        return accept != null && accept.contains(EVENT_STREAM);
+    }
+
+    private static ScheduledThreadPoolExecutor flusher() {
+        ScheduledThreadPoolExecutor flusher = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "trace-stream-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.setRemoveOnCancelPolicy(true);
+        return flusher;
+    }
+
+    @Override
+    public synchronized void accept(TraceStep step) {
+        if (closed) {
+            throw new UncheckedIOException(new IOException("Trace stream is closed"));
+        }
+        try {
+            writeRecord(step);
+            pending++;
+            if (!started || pending >= BATCH_SIZE) {
+                started = true;
+                flush();
+            } else if (idleFlush == null) {
+                idleFlush = FLUSHER.schedule(this::flushIdle, FLUSH_INTERVAL_NANOS, TimeUnit.NANOSECONDS);
+            }
+        } catch (IOException e) {
+            // The client went away; abort the producer
+            closed = true;
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void complete() {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            closed = true;
+        }
+    }
+
+    // Steps buffered since the last flush that no later step has pushed out yet
+    private synchronized void flushIdle() {
+        idleFlush = null;
+        if (closed || pending == 0) {
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            // The client went away; the producer finds out on its next step
+            closed = true;
+        }
+    }
+
+    private void writeRecord(Object record) throws IOException {
+        if (serverSentEvents) {
+            out.write(SSE_PREFIX);
+        }
+        generator.writeObject(record);
+        generator.flush();
+        out.write(serverSentEvents ? SSE_SUFFIX : NEWLINE);
+    }
+
+    private void flush() throws IOException {
+        if (idleFlush != null) {
+            idleFlush.cancel(false);
+            idleFlush = null;
+        }
+        generator.flush();
+        out.flush();
+        pending = 0;
+    }
+}
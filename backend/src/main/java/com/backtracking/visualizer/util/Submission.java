@@ -0,0 +1,115 @@
+package com.backtracking.visualizer.util;
+
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ParseProblemException;
+import com.github.javaparser.ParseResult;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
+import java.util.List;
+import java.util.Map;
+
+// Everything derived from a submitted source, worked out once per distinct source and shared
+// by every request that submits it: the AST, the name of the class holding main, and - each
+// on first use, since no request needs all of them - the static call graph and the compiled
+// and instrumented bytecode. Kept under the SHA-256 of the source; most submissions are the
+// same example re-run with small edits.
+//
+// The AST is shared between threads and must only be read; callGraph() alone writes to its
+// node data, under the submission's lock.
+public final class Submission {
+    private static final int MAX_CACHED_SUBMISSIONS = 256;
+    private static final long MAX_CACHED_BYTES = 64L * 1024 * 1024;
+    // ASTs take far more memory than the source. Nothing measures them, so the AST and call
+    // graph are estimated at 64 bytes per source character; bytecode is charged what it holds.
+    private static final int BYTES_PER_SOURCE_CHAR = 64;
+    private static final BoundedLruCache<String, Submission> submissions =
+        new BoundedLruCache<>(MAX_CACHED_SUBMISSIONS, MAX_CACHED_BYTES, Submission::sizeInBytes);
+
+    // -parameters keeps the parameter names that automatic tracing reports
+    private static final List<String> COMPILER_OPTIONS = List.of("-parameters");
+
+    private final String sourceHash;
+    private final String code;
+    private final CompilationUnit ast;
+    private final String className;
+
+    // Filled in on first use; compiled is also read by the cache's weigher
+    private CallGraph callGraph;
+    private volatile CompiledSubmission compiled;
+
+    private Submission(String sourceHash, String code, CompilationUnit ast, String className) {
+        this.sourceHash = sourceHash;
+        this.code = code;
+        this.ast = ast;
+        this.className = className;
+    }
+
+    // Parses the code unless the same source was seen before. Sources that do not parse or
+    // declare no class are not cached.
+    public static Submission of(String code) throws Exception {
+        String key = Hashing.sha256Hex(code);
+        Submission submission = submissions.get(key);
+        if (submission == null) {
+            ParseResult<CompilationUnit> parsed = new JavaParser(CallGraph.parserConfiguration()).parse(code);
+            if (!parsed.isSuccessful() || parsed.getResult().isEmpty()) {
+                throw new ParseProblemException(parsed.getProblems());
+            }
+            CompilationUnit ast = parsed.getResult().get();
+            ClassOrInterfaceDeclaration classDecl = ast.findFirst(ClassOrInterfaceDeclaration.class)
+                .orElseThrow(() -> new Exception("No class declaration found in the code"));
+            submission = new Submission(key, code, ast, classDecl.getNameAsString());
+            submissions.put(key, submission);
+        }
+        return submission;
+    }
+
+    public static Map<String, Object> cacheStats() {
+        return submissions.stats();
+    }
+
+    public String sourceHash() {
+        return sourceHash;
+    }
+
+    public CompilationUnit ast() {
+        return ast;
+    }
+
+    public String className() {
+        return className;
+    }
+
+    // Built on first use; resolving calls writes to the AST's node data, hence the lock
+    public synchronized CallGraph callGraph() {
+        if (callGraph == null) {
+            callGraph = CallGraph.of(ast);
+        }
+        return callGraph;
+    }
+
+    // Compiled and instrumented on first use. The instrumentation stays dormant unless a run
+    // enables automatic tracing, so the same bytecode serves both modes. Concurrent callers
+    // wait for one compilation rather than each running javac.
+    public synchronized CompiledSubmission compiled() throws Exception {
+        if (compiled == null) {
+            Map<String, byte[]> classes = InMemoryJavaCompiler.compile(className, code, COMPILER_OPTIONS);
+            compiled = TraceInstrumenter.instrument(Map.copyOf(classes), CodeExecutor.class.getClassLoader());
+            // The cache weighed this submission before it had any bytecode
+            submissions.reweigh(sourceHash);
+        }
+        return compiled;
+    }
+
+    // The estimated AST plus the instrumented class files once compiled (javac's own output is
+    // dropped after instrumentation)
+    private long sizeInBytes() {
+        long size = (long) code.length() * BYTES_PER_SOURCE_CHAR;
+        CompiledSubmission bytecode = compiled;
+        if (bytecode != null) {
+            for (byte[] classFile : bytecode.classes().values()) {
+                size += classFile.length;
+            }
+        }
+        return size;
+    }
+}
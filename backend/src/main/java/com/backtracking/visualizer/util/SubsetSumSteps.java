@@ -0,0 +1,243 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.TraceStep;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Subset sum (each number used at most once) and combination sum (each number any number of
+// times) over positive numbers. The input is sorted first, so the first number that no longer
+// fits the remaining sum ends its whole level, and equal numbers are only tried once per level,
+// which keeps duplicate combinations out.
+public class SubsetSumSteps implements SplittableSteps {
+    // A combination sum goes as deep as target / smallest number; past this no search is
+    // worth tracing or counting
+    public static final int MAX_TARGET = 1_000_000;
+
+    private static final String FUNCTION = "findSums";
+
+    private static final String RECURSE = "recurse";
+    private static final String INCLUDE = "include";
+    private static final String SKIP = "skip_duplicate";
+    private static final String PRUNE = "prune";
+    private static final String SOLUTION = "solution";
+    private static final String BACKTRACK = "backtrack";
+
+    // Details text of the frequent steps, built from the step's variables only when it is read
+    private static final TraceStep.DetailsTemplate RECURSE_DETAILS = step ->
+        "Looking for " + step.getVariables().get("remaining") + " more with "
+            + Arrays.toString((int[]) step.getVariables().get("combination"));
+    private static final TraceStep.DetailsTemplate INCLUDE_DETAILS = step ->
+        "Including " + step.getVariables().get("value") + " (index " + step.getVariables().get("index") + ")";
+    private static final TraceStep.DetailsTemplate SKIP_DETAILS = step ->
+        "Skipping " + step.getVariables().get("value") + " at index " + step.getVariables().get("index")
+            + ": same as the number before it";
+    private static final TraceStep.DetailsTemplate PRUNE_DETAILS = step ->
+        "Pruning: " + step.getVariables().get("value") + " and everything after it exceed the remaining "
+            + step.getVariables().get("remaining");
+    private static final TraceStep.DetailsTemplate BACKTRACK_DETAILS = step ->
+        "Backtracking: removing " + step.getVariables().get("value");
+
+    private static final int ENTER = 0;
+    private static final int LOOP = 1;
+    private static final int DESCEND = 2;
+    private static final int RETURN = 3;
+    private static final int DONE = 4;
+
+    private final int[] nums;
+    private final boolean reuse;
+    private final long maxSolutions;
+    private final int target;
+
+    // Per level: the index the level's loop started at, its loop index and the sum still to
+    // reach; chosen[level] is the index taken on the way to the next level
+    private int[] start;
+    private int[] index;
+    private int[] remaining;
+    private int[] chosen;
+    private int level;
+    // Level of this cursor's root; 0 unless it runs a subtree
+    private int floor;
+    private int state = ENTER;
+    private long solutions;
+
+    private String action;
+    private int stepLevel;
+    private int stepIndex;
+
+    public SubsetSumSteps(int[] nums, int target, boolean reuse, long maxSolutions) {
+        if (nums == null) {
+            throw new IllegalArgumentException("No numbers provided");
+        }
+        if (target < 0 || target > MAX_TARGET) {
+            throw new IllegalArgumentException("Target must be between 0 and " + MAX_TARGET);
+        }
+        int[] sorted = Arrays.copyOf(nums, nums.length);
+        Arrays.sort(sorted);
+        if (sorted.length > 0 && sorted[0] <= 0) {
+            throw new IllegalArgumentException("Numbers must be positive");
+        }
+        // With reuse a number can be taken again anyway; its copies add nothing
+        this.nums = reuse ? Arrays.stream(sorted).distinct().toArray() : sorted;
+        this.target = target;
+        this.reuse = reuse;
+        this.maxSolutions = maxSolutions;
+        int capacity = Math.min(reuse ? target : this.nums.length, 64) + 1;
+        this.start = new int[capacity];
+        this.index = new int[capacity];
+        this.remaining = new int[capacity];
+        this.chosen = new int[capacity];
+        remaining[0] = target;
+    }
+
+    private SubsetSumSteps(SubsetSumSteps parent) {
+        this.nums = parent.nums;
+        this.target = parent.target;
+        this.reuse = parent.reuse;
+        this.maxSolutions = parent.maxSolutions;
+        this.start = parent.start.clone();
+        this.index = parent.index.clone();
+        this.remaining = parent.remaining.clone();
+        this.chosen = parent.chosen.clone();
+        this.level = parent.level;
+        this.floor = parent.level;
+        this.solutions = parent.solutions;
+    }
+
+    @Override
+    public boolean advance() {
+        while (true) {
+            switch (state) {
+                case ENTER:
+                    if (remaining[level] == 0) {
+                        current(SOLUTION, -1);
+                        state = ++solutions >= maxSolutions ? DONE : RETURN;
+                        return true;
+                    }
+                    index[level] = start[level];
+                    current(RECURSE, -1);
+                    state = LOOP;
+                    return true;
+                case LOOP: {
+                    int i = index[level];
+                    if (i >= nums.length) {
+                        state = RETURN;
+                        break;
+                    }
+                    if (nums[i] > remaining[level]) {
+                        // Sorted: nothing after i fits either
+                        current(PRUNE, i);
+                        state = RETURN;
+                        return true;
+                    }
+                    if (!reuse && i > start[level] && nums[i] == nums[i - 1]) {
+                        current(SKIP, i);
+                        index[level]++;
+                        return true;
+                    }
+                    current(INCLUDE, i);
+                    state = DESCEND;
+                    return true;
+                }
+                case DESCEND: {
+                    int i = index[level];
+                    if (level + 1 == start.length) {
+                        grow();
+                    }
+                    chosen[level] = i;
+                    start[level + 1] = reuse ? i : i + 1;
+                    remaining[level + 1] = remaining[level] - nums[i];
+                    level++;
+                    state = ENTER;
+                    break;
+                }
+                case RETURN:
+                    if (--level < floor) {
+                        state = DONE;
+                        return false;
+                    }
+                    current(BACKTRACK, chosen[level]);
+                    index[level]++;
+                    state = LOOP;
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    @Override
+    public int childDepth() {
+        return state == ENTER && level > floor ? level + 1 : 0;
+    }
+
+    @Override
+    public SplittableSteps subtree() {
+        return new SubsetSumSteps(this);
+    }
+
+    @Override
+    public void skipSubtree(long solutions) {
+        this.solutions += solutions;
+        state = RETURN;
+    }
+
+    @Override
+    public long solutions() {
+        return solutions;
+    }
+
+    // Combination sum with a small smallest number can go deep
+    private void grow() {
+        int capacity = start.length * 2;
+        start = Arrays.copyOf(start, capacity);
+        index = Arrays.copyOf(index, capacity);
+        remaining = Arrays.copyOf(remaining, capacity);
+        chosen = Arrays.copyOf(chosen, capacity);
+    }
+
+    private void current(String action, int index) {
+        this.action = action;
+        this.stepLevel = level;
+        this.stepIndex = index;
+    }
+
+    @Override
+    public String action() {
+        return action;
+    }
+
+    @Override
+    public int depth() {
+        return stepLevel + 1;
+    }
+
+    @Override
+    public TraceStep toStep(int number) {
+        Map<String, Object> variables = new LinkedHashMap<>();
+        // Taken so far; a backtrack step still shows the number it takes back
+        int taken = BACKTRACK.equals(action) ? stepLevel + 1 : stepLevel;
+        int[] combination = new int[taken];
+        for (int l = 0; l < taken; l++) {
+            combination[l] = nums[chosen[l]];
+        }
+        variables.put("combination", combination);
+        variables.put("remaining", remaining[stepLevel]);
+        if (RECURSE.equals(action)) {
+            return new TraceStep(number, FUNCTION, variables, new ArrayList<>(), -1, action, null, RECURSE_DETAILS);
+        } else if (SOLUTION.equals(action)) {
+            String details = "Solution " + solutions + ": " + Arrays.toString(combination) + " sums to " + target;
+            return new TraceStep(number, FUNCTION, variables, new ArrayList<>(), -1, action, details);
+        }
+        variables.put("index", stepIndex);
+        variables.put("value", nums[stepIndex]);
+        TraceStep.DetailsTemplate details = switch (action) {
+            case INCLUDE -> INCLUDE_DETAILS;
+            case SKIP -> SKIP_DETAILS;
+            case PRUNE -> PRUNE_DETAILS;
+            default -> BACKTRACK_DETAILS;
+        };
+        return new TraceStep(number, FUNCTION, variables, new ArrayList<>(), -1, action, null, details);
+    }
+}
@@ -0,0 +1,306 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.TraceStep;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Sudoku on an n x n board (n = box * box, up to 25). The digits used in every row, column
+// and box are bitsets, so the candidates of a cell are one expression. Each level of the
+// search fills the empty cell with the fewest candidates (minimum remaining values), which
+// also finds cells without any candidate, and so dead ends, as early as possible.
+public class SudokuSteps implements SplittableSteps {
+    private static final String FUNCTION = "solve";
+
+    private static final String SELECT = "select";
+    private static final String DEAD_END = "dead_end";
+    private static final String PLACE = "place";
+    private static final String SOLUTION = "solution";
+    private static final String BACKTRACK = "backtrack";
+
+    // Details text of the frequent steps, built from the step's variables only when it is read
+    private static final TraceStep.DetailsTemplate SELECT_DETAILS = step ->
+        "Cell " + cell(step) + " has the fewest candidates: " + ((int[]) step.getVariables().get("candidates")).length;
+    private static final TraceStep.DetailsTemplate DEAD_END_DETAILS = step ->
+        "Dead end: cell " + cell(step) + " has no candidates";
+    private static final TraceStep.DetailsTemplate PLACE_DETAILS = step ->
+        "Placing " + step.getVariables().get("digit") + " at " + cell(step);
+    private static final TraceStep.DetailsTemplate BACKTRACK_DETAILS = step ->
+        "Backtracking: removing " + step.getVariables().get("digit") + " from " + cell(step);
+
+    private static final int ENTER = 0;
+    private static final int LOOP = 1;
+    private static final int DESCEND = 2;
+    private static final int RETURN = 3;
+    private static final int DONE = 4;
+
+    private final int n;
+    private final int box;
+    private final long maxSolutions;
+
+    // Cells row by row, 0 when empty; bit d - 1 of a set stands for digit d
+    private final int[] cells;
+    private final int[] rowDigits;
+    private final int[] columnDigits;
+    private final int[] boxDigits;
+
+    // Per level: the cell being filled and its candidates not tried yet
+    private final int[] levelCell;
+    private final int[] levelCandidates;
+    private int level;
+    // Level of this cursor's root; 0 unless it runs a subtree
+    private int floor;
+    private final int empty;
+    private int state = ENTER;
+    private long solutions;
+
+    private String action;
+    private int stepLevel;
+    private int stepCell;
+    private int stepDigit;
+
+    public SudokuSteps(int[][] board, long maxSolutions) {
+        if (board == null) {
+            throw new IllegalArgumentException("No board provided");
+        }
+        this.n = board.length;
+        this.box = (int) Math.round(Math.sqrt(n));
+        if (box < 2 || box > 5 || box * box != n) {
+            throw new IllegalArgumentException("Board must be 4x4, 9x9, 16x16 or 25x25");
+        }
+        this.maxSolutions = maxSolutions;
+        this.cells = new int[n * n];
+        this.rowDigits = new int[n];
+        this.columnDigits = new int[n];
+        this.boxDigits = new int[n];
+        int blanks = 0;
+        for (int r = 0; r < n; r++) {
+            if (board[r] == null || board[r].length != n) {
+                throw new IllegalArgumentException("Row " + r + " must have " + n + " cells");
+            }
+            for (int c = 0; c < n; c++) {
+                int digit = board[r][c];
+                if (digit < 0 || digit > n) {
+                    throw new IllegalArgumentException("Cell (" + r + ", " + c + ") must be between 0 and " + n);
+                }
+                if (digit == 0) {
+                    blanks++;
+                    continue;
+                }
+                int cell = r * n + c;
+                if ((candidates(cell) & (1 << (digit - 1))) == 0) {
+                    throw new IllegalArgumentException("Digit " + digit + " at (" + r + ", " + c + ") repeats in its row, column or box");
+                }
+                set(cell, digit);
+            }
+        }
+        this.empty = blanks;
+        this.levelCell = new int[blanks + 1];
+        this.levelCandidates = new int[blanks + 1];
+    }
+
+    private SudokuSteps(SudokuSteps parent) {
+        this.n = parent.n;
+        this.box = parent.box;
+        this.maxSolutions = parent.maxSolutions;
+        this.cells = parent.cells.clone();
+        this.rowDigits = parent.rowDigits.clone();
+        this.columnDigits = parent.columnDigits.clone();
+        this.boxDigits = parent.boxDigits.clone();
+        this.levelCell = parent.levelCell.clone();
+        this.levelCandidates = parent.levelCandidates.clone();
+        this.empty = parent.empty;
+        this.level = parent.level;
+        this.floor = parent.level;
+        this.solutions = parent.solutions;
+    }
+
+    @Override
+    public boolean advance() {
+        while (true) {
+            switch (state) {
+                case ENTER: {
+                    if (level == empty) {
+                        current(SOLUTION, -1, 0);
+                        state = ++solutions >= maxSolutions ? DONE : RETURN;
+                        return true;
+                    }
+                    int cell = mostConstrainedCell();
+                    levelCell[level] = cell;
+                    levelCandidates[level] = candidates(cell);
+                    if (levelCandidates[level] == 0) {
+                        current(DEAD_END, cell, 0);
+                        state = RETURN;
+                    } else {
+                        current(SELECT, cell, 0);
+                        state = LOOP;
+                    }
+                    return true;
+                }
+                case LOOP: {
+                    int remaining = levelCandidates[level];
+                    if (remaining == 0) {
+                        state = RETURN;
+                        break;
+                    }
+                    int bit = remaining & -remaining;
+                    levelCandidates[level] = remaining ^ bit;
+                    current(PLACE, levelCell[level], Integer.numberOfTrailingZeros(bit) + 1);
+                    state = DESCEND;
+                    return true;
+                }
+                case DESCEND:
+                    set(stepCell, stepDigit);
+                    level++;
+                    state = ENTER;
+                    break;
+                case RETURN: {
+                    if (--level < floor) {
+                        state = DONE;
+                        return false;
+                    }
+                    int cell = levelCell[level];
+                    current(BACKTRACK, cell, cells[cell]);
+                    clear(cell);
+                    state = LOOP;
+                    return true;
+                }
+                default:
+                    return false;
+            }
+        }
+    }
+
+    @Override
+    public int childDepth() {
+        return state == ENTER && level > floor ? level + 1 : 0;
+    }
+
+    @Override
+    public SplittableSteps subtree() {
+        return new SudokuSteps(this);
+    }
+
+    @Override
+    public void skipSubtree(long solutions) {
+        this.solutions += solutions;
+        state = RETURN;
+    }
+
+    @Override
+    public long solutions() {
+        return solutions;
+    }
+
+    // The empty cell with the fewest candidates; the first one found with none or one
+    // candidate ends the scan
+    private int mostConstrainedCell() {
+        int best = -1;
+        int fewest = Integer.MAX_VALUE;
+        for (int cell = 0; cell < cells.length; cell++) {
+            if (cells[cell] != 0) {
+                continue;
+            }
+            int count = Integer.bitCount(candidates(cell));
+            if (count < fewest) {
+                best = cell;
+                fewest = count;
+                if (count <= 1) {
+                    break;
+                }
+            }
+        }
+        return best;
+    }
+
+    private int candidates(int cell) {
+        int r = cell / n;
+        int c = cell % n;
+        int used = rowDigits[r] | columnDigits[c] | boxDigits[boxOf(r, c)];
+        return ~used & ((1 << n) - 1);
+    }
+
+    private void set(int cell, int digit) {
+        int r = cell / n;
+        int c = cell % n;
+        int bit = 1 << (digit - 1);
+        cells[cell] = digit;
+        rowDigits[r] |= bit;
+        columnDigits[c] |= bit;
+        boxDigits[boxOf(r, c)] |= bit;
+    }
+
+    private void clear(int cell) {
+        int r = cell / n;
+        int c = cell % n;
+        int bit = ~(1 << (cells[cell] - 1));
+        cells[cell] = 0;
+        rowDigits[r] &= bit;
+        columnDigits[c] &= bit;
+        boxDigits[boxOf(r, c)] &= bit;
+    }
+
+    private int boxOf(int r, int c) {
+        return (r / box) * box + c / box;
+    }
+
+    private void current(String action, int cell, int digit) {
+        this.action = action;
+        this.stepLevel = level;
+        this.stepCell = cell;
+        this.stepDigit = digit;
+    }
+
+    @Override
+    public String action() {
+        return action;
+    }
+
+    @Override
+    public int depth() {
+        return stepLevel + 1;
+    }
+
+    @Override
+    public TraceStep toStep(int number) {
+        Map<String, Object> variables = new LinkedHashMap<>();
+        int[][] board = new int[n][];
+        for (int r = 0; r < n; r++) {
+            board[r] = new int[n];
+            System.arraycopy(cells, r * n, board[r], 0, n);
+        }
+        if (BACKTRACK.equals(action)) {
+            // Show the digit that is being taken away
+            board[stepCell / n][stepCell % n] = stepDigit;
+        }
+        variables.put("board", board);
+        if (SOLUTION.equals(action)) {
+            return new TraceStep(number, FUNCTION, variables, new ArrayList<>(), -1, action, "Solution " + solutions + " found");
+        }
+        variables.put("row", stepCell / n);
+        variables.put("col", stepCell % n);
+        TraceStep.DetailsTemplate details;
+        if (SELECT.equals(action) || DEAD_END.equals(action)) {
+            int[] options = digits(candidates(stepCell));
+            variables.put("candidates", options);
+            details = options.length == 0 ? DEAD_END_DETAILS : SELECT_DETAILS;
+        } else {
+            variables.put("digit", stepDigit);
+            details = PLACE.equals(action) ? PLACE_DETAILS : BACKTRACK_DETAILS;
+        }
+        return new TraceStep(number, FUNCTION, variables, new ArrayList<>(), -1, action, null, details);
+    }
+
+    private static String cell(TraceStep step) {
+        return "(" + step.getVariables().get("row") + ", " + step.getVariables().get("col") + ")";
+    }
+
+    private static int[] digits(int set) {
+        int[] digits = new int[Integer.bitCount(set)];
+        for (int i = 0; set != 0; i++) {
+            digits[i] = Integer.numberOfTrailingZeros(set) + 1;
+            set &= set - 1;
+        }
+        return digits;
+    }
+}
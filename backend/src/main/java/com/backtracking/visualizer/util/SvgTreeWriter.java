@@ -0,0 +1,154 @@
+package com.backtracking.visualizer.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+// Writes a laid-out SearchTree as SVG straight to a stream, element by element, so nothing
+// proportional to the tree is held besides the tree and its layout. Small trees get boxes
+// with the call's label; larger ones get dots with the label as a tooltip, and the largest
+// only dots. Edges are batched into a few path elements and nodes grouped by colour, which
+// keeps the document (and the browser's DOM) small.
+public final class SvgTreeWriter {
+    public static final String MEDIA_TYPE = "image/svg+xml";
+
+    // Trees up to this size are drawn with labelled boxes
+    private static final int MAX_LABELLED_NODES = 300;
+    // Dots get a tooltip up to this size
+    private static final int MAX_TITLED_NODES = 20_000;
+    private static final int EDGES_PER_PATH = 1024;
+    private static final int MARGIN = 20;
+
+    private static final int BOX_WIDTH = 150;
+    private static final int BOX_HEIGHT = 22;
+    private static final int BOX_LABEL_LENGTH = 26;
+    private static final int DOT_RADIUS = 3;
+
+    private final SearchTree tree;
+    private final TidyTreeLayout layout;
+    private final boolean labelled;
+    private final int unitX;
+    private final int unitY;
+
+    private SvgTreeWriter(SearchTree tree, TidyTreeLayout layout) {
+        this.tree = tree;
+        this.layout = layout;
+        this.labelled = tree.size() <= MAX_LABELLED_NODES;
+        this.unitX = labelled ? BOX_WIDTH + 10 : 2 * DOT_RADIUS + 4;
+        this.unitY = labelled ? 60 : 24;
+    }
+
+    public static void write(SearchTree tree, OutputStream out) throws IOException {
+        new SvgTreeWriter(tree, TidyTreeLayout.of(tree)).write(out);
+    }
+
+    private void write(OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        int maxDepth = tree.maxDepth();
+        long width = Math.round(layout.width() * unitX) + 2L * MARGIN + (labelled ? BOX_WIDTH : 0);
+        long height = (long) maxDepth * unitY + 2L * MARGIN + (labelled ? BOX_HEIGHT : 0);
+        writer.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + width + "\" height=\"" + height
+            + "\" viewBox=\"0 0 " + width + " " + height + "\" font-family=\"sans-serif\" font-size=\"10\">\n");
+
+        writeEdges(writer);
+        for (byte kind = SearchTree.ROOT; kind <= SearchTree.OPEN; kind++) {
+            writeNodes(writer, kind);
+        }
+
+        long hidden = tree.getDroppedNodes();
+        if (hidden > 0 || tree.getTruncationReason() != null) {
+            writer.write("<text x=\"" + MARGIN + "\" y=\"" + (height - 6) + "\" fill=\"#616161\">");
+            writer.write(escape((hidden > 0 ? hidden + " calls not recorded. " : "")
+                + (tree.getTruncationReason() != null ? tree.getTruncationReason() : "")));
+            writer.write("</text>\n");
+        }
+        writer.write("</svg>\n");
+        writer.flush();
+    }
+
+    private void writeEdges(Writer writer) throws IOException {
+        for (int node = 1; node < tree.size(); node++) {
+            if ((node - 1) % EDGES_PER_PATH == 0) {
+                if (node > 1) {
+                    writer.write("\"/>\n");
+                }
+                writer.write("<path fill=\"none\" stroke=\"#9E9E9E\" d=\"");
+            }
+            int parent = tree.parent(node);
+            writer.write('M');
+            writer.write(Long.toString(cx(parent)));
+            writer.write(' ');
+            writer.write(Long.toString(cy(parent) + (labelled ? BOX_HEIGHT / 2 : 0)));
+            writer.write('L');
+            writer.write(Long.toString(cx(node)));
+            writer.write(' ');
+            writer.write(Long.toString(cy(node) - (labelled ? BOX_HEIGHT / 2 : 0)));
+        }
+        if (tree.size() > 1) {
+            writer.write("\"/>\n");
+        }
+    }
+
+    private void writeNodes(Writer writer, byte kind) throws IOException {
+        boolean titled = tree.size() <= MAX_TITLED_NODES;
+        boolean opened = false;
+        for (int node = 0; node < tree.size(); node++) {
+            if (tree.kind(node) != kind) {
+                continue;
+            }
+            if (!opened) {
+                writer.write("<g fill=\"#" + SearchTree.color(kind) + "\">\n");
+                opened = true;
+            }
+            long x = cx(node);
+            long y = cy(node);
+            if (labelled) {
+                writer.write("<g><rect x=\"" + (x - BOX_WIDTH / 2) + "\" y=\"" + (y - BOX_HEIGHT / 2)
+                    + "\" width=\"" + BOX_WIDTH + "\" height=\"" + BOX_HEIGHT + "\" rx=\"3\"/>");
+                writer.write("<text x=\"" + x + "\" y=\"" + (y + 4) + "\" fill=\"#000\" text-anchor=\"middle\">");
+                writer.write(escape(shorten(tree.label(node))));
+                writer.write("</text>");
+                writeTitle(writer, node);
+                writer.write("</g>\n");
+            } else if (titled) {
+                writer.write("<circle cx=\"" + x + "\" cy=\"" + y + "\" r=\"" + DOT_RADIUS + "\">");
+                writeTitle(writer, node);
+                writer.write("</circle>\n");
+            } else {
+                writer.write("<circle cx=\"" + x + "\" cy=\"" + y + "\" r=\"" + DOT_RADIUS + "\"/>\n");
+            }
+        }
+        if (opened) {
+            writer.write("</g>\n");
+        }
+    }
+
+    private void writeTitle(Writer writer, int node) throws IOException {
+        writer.write("<title>");
+        writer.write(escape(tree.label(node)));
+        if (tree.result(node) != null) {
+            writer.write(" = ");
+            writer.write(escape(tree.result(node)));
+        }
+        writer.write("</title>");
+    }
+
+    private long cx(int node) {
+        return MARGIN + (labelled ? BOX_WIDTH / 2 : 0) + Math.round(layout.x(node) * unitX);
+    }
+
+    private long cy(int node) {
+        return MARGIN + (labelled ? BOX_HEIGHT / 2 : 0) + (long) layout.y(node) * unitY;
+    }
+
+    private static String shorten(String label) {
+        return label.length() <= BOX_LABEL_LENGTH ? label : label.substring(0, BOX_LABEL_LENGTH - 3) + "...";
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+}
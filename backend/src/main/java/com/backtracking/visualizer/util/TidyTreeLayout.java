@@ -0,0 +1,198 @@
+package com.backtracking.visualizer.util;
+
+// Tidy layout of a SearchTree in linear time (Buchheim, Jünger and Leipert's improvement of
+// Walker's algorithm): parents centered over their children, subtrees packed as close as
+// their contours allow, identical subtrees drawn identically. x is in units of the minimum
+// horizontal node distance, starting at 0; y is the node's depth.
+//
+// Both walks are loops over node numbers instead of recursion, so deep trees cannot
+// overflow the stack. The first walk needs every child laid out before its parent, which
+// visiting the nodes from the last to the first guarantees (children are numbered after
+// their parent). It also needs each child's left sibling finished before the child itself
+// is placed, so a child's final position is set in its parent's pass over its children.
+public final class TidyTreeLayout {
+    private static final double DISTANCE = 1.0;
+
+    private final SearchTree tree;
+    private final double[] x;
+    private double width;
+
+    private double[] prelim;
+    private double[] mod;
+    private double[] change;
+    private double[] shift;
+    private double[] midpoint;
+    private int[] thread;
+    private int[] ancestor;
+    private int[] number;
+
+    private TidyTreeLayout(SearchTree tree) {
+        this.tree = tree;
+        this.x = new double[tree.size()];
+    }
+
+    public static TidyTreeLayout of(SearchTree tree) {
+        TidyTreeLayout layout = new TidyTreeLayout(tree);
+        if (tree.size() > 0) {
+            layout.firstWalk();
+            layout.secondWalk();
+        }
+        return layout;
+    }
+
+    public double x(int node) {
+        return x[node];
+    }
+
+    public int y(int node) {
+        return tree.depth(node);
+    }
+
+    // Largest x; the smallest is 0
+    public double width() {
+        return width;
+    }
+
+    private void firstWalk() {
+        int size = tree.size();
+        prelim = new double[size];
+        mod = new double[size];
+        change = new double[size];
+        shift = new double[size];
+        midpoint = new double[size];
+        thread = new int[size];
+        ancestor = new int[size];
+        number = new int[size];
+        for (int node = 0; node < size; node++) {
+            thread[node] = -1;
+            ancestor[node] = node;
+            int count = tree.childCount(node);
+            for (int i = 0; i < count; i++) {
+                number[tree.child(node, i)] = i;
+            }
+        }
+
+        for (int v = size - 1; v >= 0; v--) {
+            int count = tree.childCount(v);
+            if (count == 0) {
+                continue;
+            }
+            int defaultAncestor = tree.child(v, 0);
+            for (int i = 0; i < count; i++) {
+                int w = tree.child(v, i);
+                place(w, i == 0 ? -1 : tree.child(v, i - 1));
+                defaultAncestor = apportion(w, defaultAncestor);
+            }
+            executeShifts(v);
+            midpoint[v] = (prelim[tree.child(v, 0)] + prelim[tree.child(v, count - 1)]) / 2;
+        }
+        place(0, -1);
+    }
+
+    // The end of Walker's FIRSTWALK for node v, once its own children are laid out
+    private void place(int v, int leftSibling) {
+        if (tree.childCount(v) == 0) {
+            prelim[v] = leftSibling < 0 ? 0 : prelim[leftSibling] + DISTANCE;
+        } else if (leftSibling < 0) {
+            prelim[v] = midpoint[v];
+        } else {
+            prelim[v] = prelim[leftSibling] + DISTANCE;
+            mod[v] = prelim[v] - midpoint[v];
+        }
+    }
+
+    private int apportion(int v, int defaultAncestor) {
+        if (number[v] == 0) {
+            return defaultAncestor;
+        }
+        int parent = tree.parent(v);
+        int vir = v;
+        int vor = v;
+        int vil = tree.child(parent, number[v] - 1);
+        int vol = tree.child(parent, 0);
+        double sir = mod[vir];
+        double sor = mod[vor];
+        double sil = mod[vil];
+        double sol = mod[vol];
+        while (nextRight(vil) >= 0 && nextLeft(vir) >= 0) {
+            vil = nextRight(vil);
+            vir = nextLeft(vir);
+            vol = nextLeft(vol);
+            vor = nextRight(vor);
+            ancestor[vor] = v;
+            double distance = (prelim[vil] + sil) - (prelim[vir] + sir) + DISTANCE;
+            if (distance > 0) {
+                int a = tree.parent(ancestor[vil]) == parent ? ancestor[vil] : defaultAncestor;
+                moveSubtree(a, v, distance);
+                sir += distance;
+                sor += distance;
+            }
+            sil += mod[vil];
+            sir += mod[vir];
+            sol += mod[vol];
+            sor += mod[vor];
+        }
+        if (nextRight(vil) >= 0 && nextRight(vor) < 0) {
+            thread[vor] = nextRight(vil);
+            mod[vor] += sil - sor;
+        }
+        if (nextLeft(vir) >= 0 && nextLeft(vol) < 0) {
+            thread[vol] = nextLeft(vir);
+            mod[vol] += sir - sol;
+            defaultAncestor = v;
+        }
+        return defaultAncestor;
+    }
+
+    private int nextLeft(int v) {
+        return tree.childCount(v) > 0 ? tree.child(v, 0) : thread[v];
+    }
+
+    private int nextRight(int v) {
+        int count = tree.childCount(v);
+        return count > 0 ? tree.child(v, count - 1) : thread[v];
+    }
+
+    private void moveSubtree(int wl, int wr, double distance) {
+        int subtrees = number[wr] - number[wl];
+        change[wr] -= distance / subtrees;
+        shift[wr] += distance;
+        change[wl] += distance / subtrees;
+        prelim[wr] += distance;
+        mod[wr] += distance;
+    }
+
+    private void executeShifts(int v) {
+        double totalShift = 0;
+        double totalChange = 0;
+        for (int i = tree.childCount(v) - 1; i >= 0; i--) {
+            int w = tree.child(v, i);
+            prelim[w] += totalShift;
+            mod[w] += totalShift;
+            totalChange += change[w];
+            totalShift += shift[w] + totalChange;
+        }
+    }
+
+    // Parents come before their children, so one pass adds up the ancestors' modifiers.
+    // The scratch arrays are reused and then dropped.
+    private void secondWalk() {
+        double[] modSum = change;
+        modSum[0] = 0;
+        double min = Double.MAX_VALUE;
+        for (int node = 0; node < x.length; node++) {
+            if (node > 0) {
+                int parent = tree.parent(node);
+                modSum[node] = modSum[parent] + mod[parent];
+            }
+            x[node] = prelim[node] + modSum[node];
+            min = Math.min(min, x[node]);
+        }
+        for (int node = 0; node < x.length; node++) {
+            x[node] -= min;
+            width = Math.max(width, x[node]);
+        }
+        prelim = mod = change = shift = midpoint = null;
+        thread = ancestor = number = null;
+    }
+}
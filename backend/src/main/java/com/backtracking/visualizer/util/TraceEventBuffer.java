@@ -0,0 +1,331 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.StackFrame;
+import com.backtracking.visualizer.dto.TraceStep;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Events reported by instrumented code, kept in parallel primitive arrays so that recording
+// an event never allocates (apart from the occasional array growth). Each buffer belongs to
+// one thread of one trace session; the events are turned into TraceStep objects once the
+// run is over, or batch by batch while it runs when the session streams its steps.
+public final class TraceEventBuffer {
+    static final byte ENTER = 1;
+    static final byte RETURN = 2;
+    static final byte EXIT = 3;
+    static final byte THROW = 4;
+    static final byte BACKTRACK = 5;
+
+    static final byte INT = 1;
+    static final byte LONG = 2;
+    static final byte FLOAT = 3;
+    static final byte DOUBLE = 4;
+    static final byte BOOLEAN = 5;
+    static final byte CHAR = 6;
+    static final byte BYTE = 7;
+    static final byte SHORT = 8;
+    static final byte REFERENCE = 9;
+
+    // Events decoded and handed to the session at a time, so that capture modes and
+    // streaming apply while the run is still going
+    private static final int DRAIN_BATCH = 1024;
+
+    // Details text of the common steps, built from the step only when it is read
+    private static final TraceStep.DetailsTemplate ENTER_DETAILS = step ->
+        "Entering " + step.getFunction() + formatParameters(step.getVariables());
+    private static final TraceStep.DetailsTemplate RETURN_DETAILS = step ->
+        step.getFunction() + " returned " + step.getVariables().get("return");
+    private static final TraceStep.DetailsTemplate EXIT_DETAILS = step -> step.getFunction() + " returned";
+    private static final TraceStep.DetailsTemplate BACKTRACK_DETAILS = step ->
+        "Back in " + step.getFunction() + " after a recursive call";
+
+    private final TraceSession session;
+
+    // One slot per event
+    private int size;
+    private byte[] kinds = new byte[256];
+    private int[] steps = new int[256];
+    private int[] methods = new int[256];
+    private int[] lines = new int[256];
+    private int[] callLines = new int[256];
+    private int[] valueStarts = new int[256];
+
+    // Argument and return values of all events, typed by tag
+    private int valueCount;
+    private byte[] valueTypes = new byte[512];
+    private long[] valueBits = new long[512];
+    private Object[] valueRefs = new Object[512];
+
+    // Line of the last traced call made from the current frame, attached to the next enter
+    private int pendingCallLine = -1;
+
+    // Number of traced frames currently active on the recording thread
+    private int liveDepth;
+
+    // Shadow call stack of the decoder, kept across batches
+    private final List<ShadowFrame> stack = new ArrayList<>();
+
+    TraceEventBuffer(TraceSession session) {
+        this.session = session;
+    }
+
+    TraceSession session() {
+        return session;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void record(byte kind, int method, int line) {
+        // Budgets are checked before anything is written
+        int step = session.nextStep(kind == ENTER ? liveDepth + 1 : liveDepth);
+        if (kind == ENTER) {
+            liveDepth++;
+        } else if (kind != BACKTRACK) {
+            liveDepth--;
+        }
+
+        if (size == kinds.length) {
+            int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            steps = Arrays.copyOf(steps, capacity);
+            methods = Arrays.copyOf(methods, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            callLines = Arrays.copyOf(callLines, capacity);
+            valueStarts = Arrays.copyOf(valueStarts, capacity);
+        }
+        kinds[size] = kind;
+        steps[size] = step;
+        methods[size] = method;
+        lines[size] = line;
+        callLines[size] = kind == ENTER ? pendingCallLine : -1;
+        valueStarts[size] = valueCount;
+        size++;
+        if (kind == ENTER) {
+            pendingCallLine = -1;
+        }
+        // Values of the event that was just recorded follow it, so a full batch is only
+        // drained on the next event
+        if (size > DRAIN_BATCH) {
+            drainPrevious();
+        }
+    }
+
+    // Drains every event except the last one, whose values are still being recorded
+    private void drainPrevious() {
+        int last = size - 1;
+        int lastValues = valueStarts[last];
+        size = last;
+        int valuesToKeep = valueCount - lastValues;
+        valueCount = lastValues;
+        session.drain(this);
+
+        kinds[0] = kinds[last];
+        steps[0] = steps[last];
+        methods[0] = methods[last];
+        lines[0] = lines[last];
+        callLines[0] = callLines[last];
+        valueStarts[0] = 0;
+        System.arraycopy(valueTypes, lastValues, valueTypes, 0, valuesToKeep);
+        System.arraycopy(valueBits, lastValues, valueBits, 0, valuesToKeep);
+        System.arraycopy(valueRefs, lastValues, valueRefs, 0, valuesToKeep);
+        Arrays.fill(valueRefs, valuesToKeep, valueRefs.length, null);
+        size = 1;
+        valueCount = valuesToKeep;
+    }
+
+    void callSite(int line) {
+        pendingCallLine = line;
+    }
+
+    void value(byte type, long bits) {
+        ensureValueCapacity();
+        valueTypes[valueCount] = type;
+        valueBits[valueCount] = bits;
+        valueCount++;
+    }
+
+    void reference(Object value) {
+        ensureValueCapacity();
+        valueTypes[valueCount] = REFERENCE;
+        valueRefs[valueCount] = value;
+        valueCount++;
+    }
+
+    private void ensureValueCapacity() {
+        if (valueCount == valueTypes.length) {
+            int capacity = valueCount * 2;
+            valueTypes = Arrays.copyOf(valueTypes, capacity);
+            valueBits = Arrays.copyOf(valueBits, capacity);
+            valueRefs = Arrays.copyOf(valueRefs, capacity);
+        }
+    }
+
+    private Object valueAt(int index) {
+        long bits = valueBits[index];
+        switch (valueTypes[index]) {
+            case INT:
+                return (int) bits;
+            case LONG:
+                return bits;
+            case FLOAT:
+                return Float.intBitsToFloat((int) bits);
+            case DOUBLE:
+                return Double.longBitsToDouble(bits);
+            case BOOLEAN:
+                return bits != 0;
+            case CHAR:
+                return (char) bits;
+            case BYTE:
+                return (byte) bits;
+            case SHORT:
+                return (short) bits;
+            default:
+                return valueRefs[index];
+        }
+    }
+
+    // Replays the events against the shadow call stack, appends the resulting steps and
+    // empties the buffer. Stack frames that did not change between two steps are shared
+    // instead of rebuilt.
+    void decode(List<TraceMethod> methodTable, List<TraceStep> out) {
+        for (int e = 0; e < size; e++) {
+            TraceMethod method = methodTable.get(methods[e]);
+            String action;
+            String details = null;
+            TraceStep.DetailsTemplate template = null;
+            Map<String, Object> variables;
+
+            switch (kinds[e]) {
+                case ENTER: {
+                    if (!stack.isEmpty() && callLines[e] >= 0) {
+                        stack.get(stack.size() - 1).setLine(callLines[e]);
+                    }
+                    Map<String, Object> parameters = new LinkedHashMap<>();
+                    String[] names = method.parameterNames();
+                    for (int i = 0; i < names.length; i++) {
+                        parameters.put(names[i], valueAt(valueStarts[e] + i));
+                    }
+                    ShadowFrame frame = new ShadowFrame(method.name(), parameters);
+                    frame.setLine(lines[e]);
+                    stack.add(frame);
+                    action = "recurse";
+                    template = ENTER_DETAILS;
+                    variables = parameters;
+                    break;
+                }
+                case RETURN:
+                case EXIT:
+                case THROW: {
+                    ShadowFrame frame = top(stack, method);
+                    frame.setLine(lines[e]);
+                    variables = new LinkedHashMap<>(frame.parameters);
+                    if (kinds[e] == RETURN) {
+                        Object returned = valueAt(valueStarts[e]);
+                        variables.put("return", returned);
+                        action = "return";
+                        template = RETURN_DETAILS;
+                    } else if (kinds[e] == EXIT) {
+                        action = "return";
+                        template = EXIT_DETAILS;
+                    } else {
+                        action = "exception";
+                        details = method.name() + " exited with " + valueAt(valueStarts[e]);
+                    }
+                    break;
+                }
+                default: {
+                    ShadowFrame frame = top(stack, method);
+                    frame.setLine(lines[e]);
+                    variables = frame.parameters;
+                    action = "backtrack";
+                    template = BACKTRACK_DETAILS;
+                    break;
+                }
+            }
+
+            List<StackFrame> callStack = new ArrayList<>(stack.size());
+            for (int i = stack.size() - 1; i >= 0; i--) {
+                callStack.add(stack.get(i).toStackFrame());
+            }
+            out.add(new TraceStep(steps[e], method.name(), variables, callStack, lines[e], action, details, template));
+
+            if (kinds[e] == RETURN || kinds[e] == EXIT || kinds[e] == THROW) {
+                if (!stack.isEmpty()) {
+                    stack.remove(stack.size() - 1);
+                }
+            }
+        }
+        Arrays.fill(valueRefs, 0, valueCount, null);
+        size = 0;
+        valueCount = 0;
+    }
+
+    // Events always come in matched enter/exit pairs per thread; the fallback only guards
+    // against a buffer that was created while a traced method was already running.
+    private static ShadowFrame top(List<ShadowFrame> stack, TraceMethod method) {
+        if (stack.isEmpty()) {
+            stack.add(new ShadowFrame(method.name(), new HashMap<>()));
+        }
+        return stack.get(stack.size() - 1);
+    }
+
+    private static String formatParameters(Map<String, Object> parameters) {
+        StringBuilder text = new StringBuilder("(");
+        parameters.forEach((name, value) -> {
+            if (text.length() > 1) {
+                text.append(", ");
+            }
+            text.append(name).append('=').append(formatValue(value));
+        });
+        return text.append(')').toString();
+    }
+
+    static String formatValue(Object value) {
+        if (value instanceof int[] array) {
+            return Arrays.toString(array);
+        } else if (value instanceof long[] array) {
+            return Arrays.toString(array);
+        } else if (value instanceof boolean[] array) {
+            return Arrays.toString(array);
+        } else if (value instanceof char[] array) {
+            return Arrays.toString(array);
+        } else if (value instanceof double[] array) {
+            return Arrays.toString(array);
+        } else if (value instanceof Object[] array) {
+            return Arrays.deepToString(array);
+        }
+        return String.valueOf(value);
+    }
+
+    private static final class ShadowFrame {
+        private final String functionName;
+        private final Map<String, Object> parameters;
+        private int line;
+        private StackFrame snapshot;
+
+        ShadowFrame(String functionName, Map<String, Object> parameters) {
+            this.functionName = functionName;
+            this.parameters = parameters;
+        }
+
+        void setLine(int line) {
+            if (this.line != line) {
+                this.line = line;
+                snapshot = null;
+            }
+        }
+
+        StackFrame toStackFrame() {
+            if (snapshot == null) {
+                snapshot = new StackFrame(functionName, parameters, new HashMap<>(), line);
+            }
+            return snapshot;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.TraceStep;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// Passes steps from the thread running a submission to the thread that owns the response, so
+// only the latter ever writes to the servlet stream. A run that is stopped, or that outlives
+// its request, can then never touch a response the container has already recycled. The queue
+// is bounded: a client that reads slowly still stalls the producer.
+public class TraceHandoff implements TraceSink {
+    private static final int CAPACITY = 1024;
+    private static final long POLL_MILLIS = 100;
+
+    // Queued by complete()
+    private static final TraceStep END = new TraceStep();
+
+    private final BlockingQueue<TraceStep> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private volatile boolean closed;
+
+    @Override
+    public void accept(TraceStep step) {
+        put(step);
+    }
+
+    @Override
+    public void complete() {
+        put(END);
+    }
+
+    private void put(TraceStep step) {
+        try {
+            while (!closed) {
+                if (queue.offer(step, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Surfaces in the session like a failed write to the client
+        throw new UncheckedIOException(new IOException("Client disconnected"));
+    }
+
+    // Writes the steps to the target until the producer completes, or until the producer
+    // future is done. The target is completed unless the producer failed, which leaves the
+    // caller to end it with an error. Once this returns or throws, further steps from the
+    // producer fail as if the client had gone away.
+    public void drainTo(TraceSink target, CompletableFuture<?> producer) throws IOException {
+        try {
+            while (true) {
+                TraceStep step = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (step == END) {
+                    target.complete();
+                    return;
+                }
+                if (step != null) {
+                    target.accept(step);
+                } else if (producer.isDone() && queue.isEmpty()) {
+                    // The producer could not hand over its end, e.g. after being stopped
+                    if (!producer.isCompletedExceptionally()) {
+                        target.complete();
+                    }
+                    return;
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while streaming the trace");
+        } finally {
+            closed = true;
+            queue.clear();
+        }
+    }
+}
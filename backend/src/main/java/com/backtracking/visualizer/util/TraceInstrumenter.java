@@ -0,0 +1,481 @@
+package com.backtracking.visualizer.util;
+
+import org.springframework.asm.ClassReader;
+import org.springframework.asm.ClassVisitor;
+import org.springframework.asm.ClassWriter;
+import org.springframework.asm.Handle;
+import org.springframework.asm.Label;
+import org.springframework.asm.MethodVisitor;
+import org.springframework.asm.Opcodes;
+import org.springframework.asm.SpringAsmInfo;
+import org.springframework.asm.Type;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Rewrites compiled submissions so that recursive (backtracking) methods report their own
+// enter/return/backtrack events through TraceRuntime, without the user having to insert
+// Visualizer.captureStep calls. Runs between compilation and class loading.
+//
+// A method is traced when it can reach itself through calls within the submission, which
+// covers direct recursion, mutual recursion between helpers and recursion through lambdas
+// or method references (a method counts as calling the methods its lambdas point at). For
+// every traced method the instrumented code:
+//   - fetches the event buffer into a fresh local and records an enter event with all
+//     arguments (one primitive-typed call per argument, no varargs array);
+//   - records a return event with the returned value before every return instruction;
+//   - records the call-site line before and a backtrack event after every call to another
+//     traced method;
+//   - records an exception event from a catch-all handler and rethrows.
+//
+// Every method with code, traced or not, also gets frame hooks that keep a ShadowStack, so
+// that captureStep knows the call stack without walking the thread's stack: the method takes
+// a slot on entry, stores the current line before every call and gives the slot back before
+// every return.
+public final class TraceInstrumenter {
+    private static final String RUNTIME = Type.getInternalName(TraceRuntime.class);
+    private static final String BUFFER = Type.getDescriptor(TraceEventBuffer.class);
+    private static final String STACK = Type.getDescriptor(ShadowStack.class);
+
+    private TraceInstrumenter() {
+    }
+
+    public static CompiledSubmission instrument(Map<String, byte[]> classes, ClassLoader parent) {
+        // Pass 1: collect every method and the calls it makes
+        Map<String, ScannedMethod> scanned = new LinkedHashMap<>();
+        for (byte[] bytes : classes.values()) {
+            new ClassReader(bytes).accept(new ScanningClassVisitor(scanned), ClassReader.SKIP_FRAMES);
+        }
+
+        // Methods that can reach themselves through calls inside the submission
+        List<TraceMethod> methods = new ArrayList<>();
+        Map<String, Integer> methodIds = new HashMap<>();
+        for (ScannedMethod method : scanned.values()) {
+            if (method.traceable && reachesItself(method.key, scanned)) {
+                methodIds.put(method.key, methods.size());
+                methods.add(new TraceMethod(method.owner.replace('/', '.'), method.name,
+                        method.parameterNames(), method.firstLine));
+            }
+        }
+        // Every method with code gets a frame ID
+        List<String> frameNames = new ArrayList<>();
+        Map<String, Integer> frameIds = new HashMap<>();
+        for (ScannedMethod method : scanned.values()) {
+            if (method.hasCode) {
+                frameIds.put(method.key, frameNames.size());
+                frameNames.add(method.name);
+            }
+        }
+
+        // Pass 2: rewrite every class
+        Map<String, byte[]> instrumented = new HashMap<>(classes);
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            String owner = entry.getKey().replace('.', '/');
+            ClassReader reader = new ClassReader(entry.getValue());
+            ClassWriter writer = new SubmissionClassWriter(classes, parent);
+            reader.accept(new TracingClassVisitor(writer, owner, scanned, methodIds, frameIds), ClassReader.SKIP_FRAMES);
+            instrumented.put(entry.getKey(), writer.toByteArray());
+        }
+        return new CompiledSubmission(Map.copyOf(instrumented), List.copyOf(methods), List.copyOf(frameNames));
+    }
+
+    private static boolean reachesItself(String start, Map<String, ScannedMethod> scanned) {
+        Deque<String> pending = new ArrayDeque<>(scanned.get(start).calls);
+        Set<String> visited = new HashSet<>();
+        while (!pending.isEmpty()) {
+            String key = pending.pop();
+            if (key.equals(start)) {
+                return true;
+            }
+            ScannedMethod callee = scanned.get(key);
+            if (callee != null && visited.add(key)) {
+                pending.addAll(callee.calls);
+            }
+        }
+        return false;
+    }
+
+    private static String key(String owner, String name, String descriptor) {
+        return owner + "." + name + descriptor;
+    }
+
+    private static final class ScannedMethod {
+        final String key;
+        final String owner;
+        final String name;
+        final String descriptor;
+        final boolean traceable;
+        final boolean hasCode;
+        final Set<String> calls = new HashSet<>();
+        final List<String> parameterNames = new ArrayList<>();
+        int firstLine = -1;
+        int maxLocals;
+
+        ScannedMethod(String owner, String name, String descriptor, boolean traceable, boolean hasCode) {
+            this.key = key(owner, name, descriptor);
+            this.owner = owner;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.traceable = traceable;
+            this.hasCode = hasCode;
+        }
+
+        String[] parameterNames() {
+            int count = Type.getArgumentTypes(descriptor).length;
+            String[] names = new String[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = i < parameterNames.size() && parameterNames.get(i) != null ? parameterNames.get(i) : "arg" + i;
+            }
+            return names;
+        }
+    }
+
+    private static final class ScanningClassVisitor extends ClassVisitor {
+        private final Map<String, ScannedMethod> scanned;
+        private String owner;
+
+        ScanningClassVisitor(Map<String, ScannedMethod> scanned) {
+            super(SpringAsmInfo.ASM_VERSION);
+            this.scanned = scanned;
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            this.owner = name;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            // Constructors, initializers, bridges and lambda bodies are never traced, but they
+            // are frames of the call stack like any other method
+            boolean hasCode = (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) == 0;
+            boolean traceable = hasCode && (access & (Opcodes.ACC_SYNTHETIC | Opcodes.ACC_BRIDGE)) == 0 && !name.startsWith("<");
+            ScannedMethod method = new ScannedMethod(owner, name, descriptor, traceable, hasCode);
+            scanned.put(method.key, method);
+            return new MethodVisitor(SpringAsmInfo.ASM_VERSION) {
+                @Override
+                public void visitParameter(String parameterName, int access) {
+                    method.parameterNames.add(parameterName);
+                }
+
+                @Override
+                public void visitLineNumber(int line, Label start) {
+                    if (method.firstLine < 0) {
+                        method.firstLine = line;
+                    }
+                }
+
+                @Override
+                public void visitMethodInsn(int opcode, String callOwner, String callName, String callDescriptor, boolean isInterface) {
+                    method.calls.add(key(callOwner, callName, callDescriptor));
+                }
+
+                @Override
+                public void visitInvokeDynamicInsn(String callName, String callDescriptor, Handle bootstrap, Object... arguments) {
+                    // The method handle a lambda or method reference is built from
+                    for (Object argument : arguments) {
+                        if (argument instanceof Handle handle) {
+                            method.calls.add(key(handle.getOwner(), handle.getName(), handle.getDesc()));
+                        }
+                    }
+                }
+
+                @Override
+                public void visitMaxs(int maxStack, int maxLocals) {
+                    method.maxLocals = maxLocals;
+                }
+            };
+        }
+    }
+
+    private static final class TracingClassVisitor extends ClassVisitor {
+        private final String owner;
+        private final Map<String, ScannedMethod> scanned;
+        private final Map<String, Integer> methodIds;
+        private final Map<String, Integer> frameIds;
+
+        TracingClassVisitor(ClassVisitor delegate, String owner, Map<String, ScannedMethod> scanned,
+                            Map<String, Integer> methodIds, Map<String, Integer> frameIds) {
+            super(SpringAsmInfo.ASM_VERSION, delegate);
+            this.owner = owner;
+            this.scanned = scanned;
+            this.methodIds = methodIds;
+            this.frameIds = frameIds;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            MethodVisitor visitor = super.visitMethod(access, name, descriptor, signature, exceptions);
+            String key = key(owner, name, descriptor);
+            Integer id = methodIds.get(key);
+            if (id != null) {
+                visitor = new TracingMethodVisitor(visitor, id, access, descriptor, scanned.get(key), methodIds);
+            }
+            Integer frameId = frameIds.get(key);
+            if (frameId != null) {
+                // Outermost, so that it only sees the method's own calls and returns
+                visitor = new FrameMethodVisitor(visitor, frameId, scanned.get(key));
+            }
+            return visitor;
+        }
+    }
+
+    private static final class FrameMethodVisitor extends MethodVisitor {
+        private final int frameId;
+        private final int firstLine;
+        private final int stackLocal;
+        private final int slotLocal;
+        private int currentLine;
+
+        FrameMethodVisitor(MethodVisitor delegate, int frameId, ScannedMethod method) {
+            super(SpringAsmInfo.ASM_VERSION, delegate);
+            this.frameId = frameId;
+            this.firstLine = method.firstLine;
+            // Above the original locals and the event buffer of a traced method
+            this.stackLocal = method.maxLocals + 1;
+            this.slotLocal = method.maxLocals + 2;
+            this.currentLine = method.firstLine;
+        }
+
+        @Override
+        public void visitCode() {
+            super.visitCode();
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, RUNTIME, "frames", "()" + STACK, false);
+            super.visitVarInsn(Opcodes.ASTORE, stackLocal);
+            super.visitVarInsn(Opcodes.ALOAD, stackLocal);
+            super.visitLdcInsn(frameId);
+            super.visitLdcInsn(firstLine);
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, RUNTIME, "push", "(" + STACK + "II)I", false);
+            super.visitVarInsn(Opcodes.ISTORE, slotLocal);
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start) {
+            currentLine = line;
+            super.visitLineNumber(line, start);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            markLine();
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrap, Object... arguments) {
+            markLine();
+            super.visitInvokeDynamicInsn(name, descriptor, bootstrap, arguments);
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) {
+                super.visitVarInsn(Opcodes.ALOAD, stackLocal);
+                super.visitVarInsn(Opcodes.ILOAD, slotLocal);
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, RUNTIME, "leave", "(" + STACK + "I)V", false);
+            }
+            super.visitInsn(opcode);
+        }
+
+        private void markLine() {
+            super.visitVarInsn(Opcodes.ALOAD, stackLocal);
+            super.visitVarInsn(Opcodes.ILOAD, slotLocal);
+            super.visitLdcInsn(currentLine);
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, RUNTIME, "line", "(" + STACK + "II)V", false);
+        }
+    }
+
+    private static final class TracingMethodVisitor extends MethodVisitor {
+        private final int methodId;
+        private final boolean isStatic;
+        private final Type[] argumentTypes;
+        private final ScannedMethod method;
+        private final Map<String, Integer> methodIds;
+        private final int bufferLocal;
+        private final Label tryStart = new Label();
+        private int currentLine;
+
+        TracingMethodVisitor(MethodVisitor delegate, int methodId, int access, String descriptor,
+                             ScannedMethod method, Map<String, Integer> methodIds) {
+            super(SpringAsmInfo.ASM_VERSION, delegate);
+            this.methodId = methodId;
+            this.isStatic = (access & Opcodes.ACC_STATIC) != 0;
+            this.argumentTypes = Type.getArgumentTypes(descriptor);
+            this.method = method;
+            this.methodIds = methodIds;
+            // The original code never touches slots at or beyond its own maxLocals
+            this.bufferLocal = method.maxLocals;
+            this.currentLine = method.firstLine;
+        }
+
+        @Override
+        public void visitCode() {
+            super.visitCode();
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, RUNTIME, "buffer", "()" + BUFFER, false);
+            super.visitVarInsn(Opcodes.ASTORE, bufferLocal);
+
+            loadBufferAndIds(method.firstLine);
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, RUNTIME, "enter", "(" + BUFFER + "II)V", false);
+
+            int slot = isStatic ? 0 : 1;
+            for (Type type : argumentTypes) {
+                super.visitVarInsn(Opcodes.ALOAD, bufferLocal);
+                super.visitVarInsn(type.getOpcode(Opcodes.ILOAD), slot);
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, RUNTIME, "arg" + suffix(type),
+                        "(" + BUFFER + argumentDescriptor(type) + ")V", false);
+                slot += type.getSize();
+            }
+            super.visitLabel(tryStart);
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start) {
+            currentLine = line;
+            super.visitLineNumber(line, start);
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if (opcode >= Opcodes.IRETURN && opcode <= Opcodes.ARETURN) {
+                Type returnType = Type.getReturnType(method.descriptor);
+                super.visitInsn(returnType.getSize() == 2 ? Opcodes.DUP2 : Opcodes.DUP);
+                loadBufferAndIds(currentLine);
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, RUNTIME, "return" + suffix(returnType),
+                        "(" + argumentDescriptor(returnType) + BUFFER + "II)V", false);
+            } else if (opcode == Opcodes.RETURN) {
+                loadBufferAndIds(currentLine);
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, RUNTIME, "exit", "(" + BUFFER + "II)V", false);
+            }
+            super.visitInsn(opcode);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            boolean tracedCall = methodIds.containsKey(key(owner, name, descriptor));
+            if (tracedCall) {
+                super.visitVarInsn(Opcodes.ALOAD, bufferLocal);
+                super.visitLdcInsn(currentLine);
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, RUNTIME, "callSite", "(" + BUFFER + "I)V", false);
+            }
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+            if (tracedCall) {
+                loadBufferAndIds(currentLine);
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, RUNTIME, "backtrack", "(" + BUFFER + "II)V", false);
+            }
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            // Catch-all handler registered last, so the method's own handlers keep priority
+            Label tryEnd = new Label();
+            Label handler = new Label();
+            super.visitLabel(tryEnd);
+            super.visitLabel(handler);
+            super.visitInsn(Opcodes.DUP);
+            loadBufferAndIds(currentLine);
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, RUNTIME, "thrown",
+                    "(Ljava/lang/Throwable;" + BUFFER + "II)V", false);
+            super.visitInsn(Opcodes.ATHROW);
+            super.visitTryCatchBlock(tryStart, tryEnd, handler, null);
+            // Recomputed by the ClassWriter
+            super.visitMaxs(maxStack, maxLocals);
+        }
+
+        private void loadBufferAndIds(int line) {
+            super.visitVarInsn(Opcodes.ALOAD, bufferLocal);
+            super.visitLdcInsn(methodId);
+            super.visitLdcInsn(line);
+        }
+
+        private static String suffix(Type type) {
+            switch (type.getSort()) {
+                case Type.BOOLEAN:
+                    return "Z";
+                case Type.CHAR:
+                    return "C";
+                case Type.BYTE:
+                    return "B";
+                case Type.SHORT:
+                    return "S";
+                case Type.INT:
+                    return "I";
+                case Type.LONG:
+                    return "J";
+                case Type.FLOAT:
+                    return "F";
+                case Type.DOUBLE:
+                    return "D";
+                default:
+                    return "A";
+            }
+        }
+
+        private static String argumentDescriptor(Type type) {
+            return type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY ? "Ljava/lang/Object;" : type.getDescriptor();
+        }
+    }
+
+    // Computing stack map frames needs common super classes. Submission classes are resolved
+    // from their bytecode so they are never loaded (and initialized) during instrumentation.
+    private static final class SubmissionClassWriter extends ClassWriter {
+        private final Map<String, byte[]> classes;
+        private final ClassLoader parent;
+
+        SubmissionClassWriter(Map<String, byte[]> classes, ClassLoader parent) {
+            super(ClassWriter.COMPUTE_FRAMES);
+            this.classes = classes;
+            this.parent = parent;
+        }
+
+        @Override
+        protected String getCommonSuperClass(String type1, String type2) {
+            List<String> ancestors1 = superClasses(type1);
+            Set<String> ancestors2 = new HashSet<>(superClasses(type2));
+            for (String ancestor : ancestors1) {
+                if (ancestors2.contains(ancestor)) {
+                    return ancestor;
+                }
+            }
+            return "java/lang/Object";
+        }
+
+        // The class itself followed by its superclasses; interfaces only have Object
+        private List<String> superClasses(String type) {
+            List<String> chain = new ArrayList<>();
+            String current = type;
+            while (current != null) {
+                byte[] bytes = classes.get(current.replace('/', '.'));
+                if (bytes != null) {
+                    ClassReader reader = new ClassReader(bytes);
+                    if ((reader.getAccess() & Opcodes.ACC_INTERFACE) != 0) {
+                        break;
+                    }
+                    chain.add(current);
+                    current = reader.getSuperName();
+                    continue;
+                }
+                try {
+                    Class<?> loaded = Class.forName(current.replace('/', '.'), false, parent);
+                    if (loaded.isInterface()) {
+                        break;
+                    }
+                    for (Class<?> c = loaded; c != null; c = c.getSuperclass()) {
+                        chain.add(Type.getInternalName(c));
+                    }
+                } catch (ClassNotFoundException | LinkageError e) {
+                    // Unknown type: fall through to Object
+                }
+                break;
+            }
+            chain.add("java/lang/Object");
+            return chain;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.backtracking.visualizer.util;
+
+// Thrown from a capture point when the run has used up one of its budgets. It is an Error
+// so that user code catching Exception cannot swallow it, and it carries no stack trace
+// since it is only used to unwind the traced code.
+public class TraceLimitExceeded extends Error {
+    private static final long serialVersionUID = 1L;
+
+    public TraceLimitExceeded(String reason) {
+        super(reason, null, false, false);
+    }
+}
@@ -0,0 +1,7 @@
+package com.backtracking.visualizer.util;
+
+// Static description of a method that was instrumented for automatic tracing. Events only
+// carry the method's index into the submission's method table; names are resolved from
+// here when the events are turned into trace steps.
+public record TraceMethod(String className, String name, String[] parameterNames, int firstLine) {
+}
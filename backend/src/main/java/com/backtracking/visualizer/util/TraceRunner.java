@@ -0,0 +1,172 @@
+package com.backtracking.visualizer.util;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs user submissions off the request threads, one fresh daemon thread per run, and
+// enforces a hard deadline on each run in two stages:
+//
+//  1. At the deadline the run's session is cancelled. The next capture point throws
+//     TraceLimitExceeded and the user's code unwinds; the trace so far is returned.
+//  2. Code that never reaches a capture point (a tight loop) is stopped with Thread.stop
+//     STOP_GRACE_MILLIS later. Each run owns its thread, so the asynchronous ThreadDeath
+//     can never hit another run, and a thread that does not finish even then is abandoned.
+//     On runtimes where Thread.stop is no longer supported (JDK 20+), such a thread is
+//     abandoned right away.
+//
+// The runtime targets Java 17, which has no virtual threads; user code blocks and spins
+// like any platform thread would, so a dedicated thread per run is the honest equivalent.
+// The requests that start runs go through the ConcurrencyLimiter first; as a backstop, at
+// most MAX_LIVE_THREADS run threads may exist at once, counting abandoned ones, and further
+// runs fail with RejectedExecutionException until some end.
+public final class TraceRunner {
+    static final long STOP_GRACE_MILLIS = 1_000;
+    // Twice the limiter's default ceiling, so the limiter is what normally holds runs back
+    static final int MAX_LIVE_THREADS = 32 * Runtime.getRuntime().availableProcessors();
+
+    private static final AtomicInteger THREAD_IDS = new AtomicInteger();
+    private static final AtomicInteger LIVE_THREADS = new AtomicInteger();
+    private static final AtomicLong REJECTED = new AtomicLong();
+
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "trace-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private TraceRunner() {
+    }
+
+    @FunctionalInterface
+    public interface Task<T> {
+        T run(Run run) throws Exception;
+    }
+
+    // Starts the task on its own thread. Cancelling the returned future cancels the run.
+    public static <T> CompletableFuture<T> start(long timeoutMillis, Task<T> task) {
+        if (LIVE_THREADS.incrementAndGet() > MAX_LIVE_THREADS) {
+            LIVE_THREADS.decrementAndGet();
+            REJECTED.incrementAndGet();
+            return CompletableFuture.failedFuture(
+                new RejectedExecutionException("Too many submissions running; try again later"));
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Run run = new Run();
+        Thread thread = new Thread(() -> {
+            try {
+                result.complete(task.run(run));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                LIVE_THREADS.decrementAndGet();
+            }
+        }, "trace-run-" + THREAD_IDS.incrementAndGet());
+        thread.setDaemon(true);
+        run.thread = thread;
+
+        ScheduledFuture<?> cancel = WATCHDOG.schedule(
+            () -> run.cancel("Time budget of " + timeoutMillis + " ms used up"), timeoutMillis, TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> stop = WATCHDOG.schedule(
+            () -> run.stop(result), timeoutMillis + STOP_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+        result.whenComplete((value, error) -> {
+            cancel.cancel(false);
+            stop.cancel(false);
+            if (error instanceof CancellationException) {
+                run.cancel("Run cancelled");
+            }
+        });
+
+        try {
+            thread.start();
+        } catch (Throwable e) {
+            // Out of native threads
+            LIVE_THREADS.decrementAndGet();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    public static Map<String, Object> stats() {
+        return Map.of(
+            "liveThreads", LIVE_THREADS.get(),
+            "maxLiveThreads", MAX_LIVE_THREADS,
+            "rejected", REJECTED.get());
+    }
+
+    // Handle a task uses to attach the session that cancellation should reach
+    public static final class Run {
+        private Thread thread;
+        private TraceSession session;
+        private String cancelReason;
+        private boolean inUserCode;
+        private boolean stopped;
+
+        public synchronized void attach(TraceSession session) {
+            this.session = session;
+            if (cancelReason != null) {
+                session.cancel(cancelReason);
+            }
+        }
+
+        public synchronized void cancel(String reason) {
+            if (cancelReason == null) {
+                cancelReason = reason;
+            }
+            if (session != null) {
+                session.cancel(cancelReason);
+            }
+        }
+
+        // Thread.stop is only used while the thread is inside the submission's own code, never
+        // while it compiles, loads classes or finishes the trace
+        public synchronized void enterUserCode() {
+            inUserCode = true;
+        }
+
+        public synchronized void exitUserCode() {
+            inUserCode = false;
+        }
+
+        public synchronized boolean isStopped() {
+            return stopped;
+        }
+
+        @SuppressWarnings({"deprecation", "removal"})
+        private void stop(CompletableFuture<?> result) {
+            synchronized (this) {
+                if (result.isDone() || !thread.isAlive()) {
+                    return;
+                }
+                // The thread normally finishes the run with what it captured; if even ThreadDeath
+                // cannot end it, or it is stuck outside user code, the caller gets an error and
+                // the thread is left behind. Scheduled first, so that nothing below can skip it.
+                WATCHDOG.schedule(() -> timeOut(result), STOP_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+                if (inUserCode) {
+                    stopped = true;
+                    try {
+                        thread.stop();
+                    } catch (UnsupportedOperationException e) {
+                        // JDK 20+: the thread cannot be stopped, so it is abandoned now
+                        stopped = false;
+                        timeOut(result);
+                    }
+                }
+            }
+        }
+
+        private static void timeOut(CompletableFuture<?> result) {
+            if (!result.isDone()) {
+                result.completeExceptionally(new TimeoutException("Execution did not stop after exceeding its time limit"));
+            }
+        }
+    }
+}
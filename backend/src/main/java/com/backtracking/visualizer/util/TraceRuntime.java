@@ -0,0 +1,295 @@
+package com.backtracking.visualizer.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Entry points called by bytecode that TraceInstrumenter injects into user methods. The
+// instrumented prologue fetches the buffer once into a local and passes it to every other
+// hook. When no instrumented trace is running, buffer() returns null after a single volatile
+// read and every hook returns immediately, so untraced runs allocate nothing. The frame
+// hooks that keep a ShadowStack for captureStep work the same way through frames().
+public final class TraceRuntime {
+    private static volatile int activeSessions;
+    private static volatile int activeStacks;
+
+    private static final ThreadLocal<TraceEventBuffer> LAST_BUFFER = new ThreadLocal<>();
+    private static final ThreadLocal<ShadowStack> LAST_STACK = new ThreadLocal<>();
+
+    private TraceRuntime() {
+    }
+
+    static synchronized void activate(TraceSession session) {
+        if (session.isInstrumented()) {
+            activeSessions++;
+        }
+        if (session.tracksFrames()) {
+            activeStacks++;
+        }
+    }
+
+    static synchronized void deactivate(TraceSession session) {
+        if (session.isInstrumented()) {
+            activeSessions--;
+        }
+        if (session.tracksFrames()) {
+            activeStacks--;
+        }
+    }
+
+    public static TraceEventBuffer buffer() {
+        if (activeSessions == 0) {
+            return null;
+        }
+        TraceSession session = TraceSession.current();
+        if (session == null || !session.isInstrumented()) {
+            return null;
+        }
+        TraceEventBuffer buffer = LAST_BUFFER.get();
+        if (buffer == null || buffer.session() != session) {
+            buffer = session.newEventBuffer();
+            LAST_BUFFER.set(buffer);
+        }
+        return buffer;
+    }
+
+    // --- Frame hooks, in every method of a submission ---
+
+    public static ShadowStack frames() {
+        if (activeStacks == 0) {
+            return null;
+        }
+        TraceSession session = TraceSession.current();
+        if (session == null || !session.tracksFrames()) {
+            return null;
+        }
+        ShadowStack stack = LAST_STACK.get();
+        if (stack == null || stack.session() != session) {
+            stack = session.newShadowStack();
+            LAST_STACK.set(stack);
+        }
+        return stack;
+    }
+
+    // The stack the calling thread keeps for the session, or null when it keeps none
+    static ShadowStack frames(TraceSession session) {
+        ShadowStack stack = LAST_STACK.get();
+        return stack != null && stack.session() == session ? stack : null;
+    }
+
+    // Returns the frame's slot, which the method passes to the other frame hooks
+    public static int push(ShadowStack stack, int method, int line) {
+        return stack != null ? stack.push(method, line) : 0;
+    }
+
+    public static void line(ShadowStack stack, int frame, int line) {
+        if (stack != null) {
+            stack.line(frame, line);
+        }
+    }
+
+    public static void leave(ShadowStack stack, int frame) {
+        if (stack != null) {
+            stack.leave(frame);
+        }
+    }
+
+    // --- Event hooks, in traced methods only ---
+
+    public static void enter(TraceEventBuffer buffer, int method, int line) {
+        if (buffer != null) {
+            buffer.record(TraceEventBuffer.ENTER, method, line);
+        }
+    }
+
+    public static void callSite(TraceEventBuffer buffer, int line) {
+        if (buffer != null) {
+            buffer.callSite(line);
+        }
+    }
+
+    public static void backtrack(TraceEventBuffer buffer, int method, int line) {
+        if (buffer != null) {
+            buffer.record(TraceEventBuffer.BACKTRACK, method, line);
+        }
+    }
+
+    public static void exit(TraceEventBuffer buffer, int method, int line) {
+        if (buffer != null) {
+            buffer.record(TraceEventBuffer.EXIT, method, line);
+        }
+    }
+
+    public static void thrown(Throwable error, TraceEventBuffer buffer, int method, int line) {
+        // Thread.stop (see TraceRunner) leaves the interrupt flag set, which would make the
+        // sinks' blocking writes fail while the stopped run unwinds and finishes its trace
+        if (error instanceof ThreadDeath) {
+            Thread.interrupted();
+        }
+        // A run stopped by its budget just unwinds; recording would only throw again
+        if (buffer != null && !(error instanceof TraceLimitExceeded)) {
+            buffer.record(TraceEventBuffer.THROW, method, line);
+            buffer.reference(String.valueOf(error));
+        }
+    }
+
+    // --- Arguments, recorded right after enter() in declaration order ---
+
+    public static void argI(TraceEventBuffer buffer, int value) {
+        if (buffer != null) {
+            buffer.value(TraceEventBuffer.INT, value);
+        }
+    }
+
+    public static void argJ(TraceEventBuffer buffer, long value) {
+        if (buffer != null) {
+            buffer.value(TraceEventBuffer.LONG, value);
+        }
+    }
+
+    public static void argF(TraceEventBuffer buffer, float value) {
+        if (buffer != null) {
+            buffer.value(TraceEventBuffer.FLOAT, Float.floatToRawIntBits(value));
+        }
+    }
+
+    public static void argD(TraceEventBuffer buffer, double value) {
+        if (buffer != null) {
+            buffer.value(TraceEventBuffer.DOUBLE, Double.doubleToRawLongBits(value));
+        }
+    }
+
+    public static void argZ(TraceEventBuffer buffer, boolean value) {
+        if (buffer != null) {
+            buffer.value(TraceEventBuffer.BOOLEAN, value ? 1 : 0);
+        }
+    }
+
+    public static void argC(TraceEventBuffer buffer, char value) {
+        if (buffer != null) {
+            buffer.value(TraceEventBuffer.CHAR, value);
+        }
+    }
+
+    public static void argB(TraceEventBuffer buffer, byte value) {
+        if (buffer != null) {
+            buffer.value(TraceEventBuffer.BYTE, value);
+        }
+    }
+
+    public static void argS(TraceEventBuffer buffer, short value) {
+        if (buffer != null) {
+            buffer.value(TraceEventBuffer.SHORT, value);
+        }
+    }
+
+    public static void argA(TraceEventBuffer buffer, Object value) {
+        if (buffer != null) {
+            buffer.reference(snapshot(value));
+        }
+    }
+
+    // --- Return values; the instrumented code duplicates the value before returning it ---
+
+    public static void returnI(int value, TraceEventBuffer buffer, int method, int line) {
+        if (buffer != null) {
+            buffer.record(TraceEventBuffer.RETURN, method, line);
+            buffer.value(TraceEventBuffer.INT, value);
+        }
+    }
+
+    public static void returnJ(long value, TraceEventBuffer buffer, int method, int line) {
+        if (buffer != null) {
+            buffer.record(TraceEventBuffer.RETURN, method, line);
+            buffer.value(TraceEventBuffer.LONG, value);
+        }
+    }
+
+    public static void returnF(float value, TraceEventBuffer buffer, int method, int line) {
+        if (buffer != null) {
+            buffer.record(TraceEventBuffer.RETURN, method, line);
+            buffer.value(TraceEventBuffer.FLOAT, Float.floatToRawIntBits(value));
+        }
+    }
+
+    public static void returnD(double value, TraceEventBuffer buffer, int method, int line) {
+        if (buffer != null) {
+            buffer.record(TraceEventBuffer.RETURN, method, line);
+            buffer.value(TraceEventBuffer.DOUBLE, Double.doubleToRawLongBits(value));
+        }
+    }
+
+    public static void returnZ(boolean value, TraceEventBuffer buffer, int method, int line) {
+        if (buffer != null) {
+            buffer.record(TraceEventBuffer.RETURN, method, line);
+            buffer.value(TraceEventBuffer.BOOLEAN, value ? 1 : 0);
+        }
+    }
+
+    public static void returnC(char value, TraceEventBuffer buffer, int method, int line) {
+        if (buffer != null) {
+            buffer.record(TraceEventBuffer.RETURN, method, line);
+            buffer.value(TraceEventBuffer.CHAR, value);
+        }
+    }
+
+    public static void returnB(byte value, TraceEventBuffer buffer, int method, int line) {
+        if (buffer != null) {
+            buffer.record(TraceEventBuffer.RETURN, method, line);
+            buffer.value(TraceEventBuffer.BYTE, value);
+        }
+    }
+
+    public static void returnS(short value, TraceEventBuffer buffer, int method, int line) {
+        if (buffer != null) {
+            buffer.record(TraceEventBuffer.RETURN, method, line);
+            buffer.value(TraceEventBuffer.SHORT, value);
+        }
+    }
+
+    public static void returnA(Object value, TraceEventBuffer buffer, int method, int line) {
+        if (buffer != null) {
+            buffer.record(TraceEventBuffer.RETURN, method, line);
+            buffer.reference(snapshot(value));
+        }
+    }
+
+    // Backtracking code mutates its arrays and lists in place, so references are copied at
+    // the time of the event; anything that is not a plain value or container is stringified.
+    static Object snapshot(Object value) {
+        if (value == null || value instanceof String || value instanceof Number
+                || value instanceof Boolean || value instanceof Character) {
+            return value;
+        } else if (value instanceof int[] array) {
+            return array.clone();
+        } else if (value instanceof long[] array) {
+            return array.clone();
+        } else if (value instanceof boolean[] array) {
+            return array.clone();
+        } else if (value instanceof char[] array) {
+            return array.clone();
+        } else if (value instanceof double[] array) {
+            return array.clone();
+        } else if (value instanceof byte[] array) {
+            return array.clone();
+        } else if (value instanceof short[] array) {
+            return array.clone();
+        } else if (value instanceof float[] array) {
+            return array.clone();
+        } else if (value instanceof Object[] array) {
+            // Boards are usually int[][] or char[][]; copy the rows as well
+            Object[] copy = Arrays.copyOf(array, array.length, Object[].class);
+            for (int i = 0; i < copy.length; i++) {
+                copy[i] = snapshot(copy[i]);
+            }
+            return copy;
+        } else if (value instanceof Collection<?> collection) {
+            return new ArrayList<>(collection);
+        } else if (value instanceof Map<?, ?> map) {
+            return new LinkedHashMap<>(map);
+        }
+        return String.valueOf(value);
+    }
+}
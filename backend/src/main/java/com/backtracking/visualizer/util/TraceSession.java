@@ -0,0 +1,317 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.TraceOptions;
+import com.backtracking.visualizer.dto.TraceStep;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Collects the steps of a single trace run. Every run gets its own session, so concurrent
+// requests never see each other's steps. Step numbers come from an atomic counter and the
+// sinks are thread-safe, which also makes it safe for user code that spawns its own
+// threads. Kept steps are stored in a TraceTimeline; a session created with a TraceSink
+// hands every step to the sink instead of keeping it.
+//
+// The session also enforces the run's TraceOptions: once a budget (steps, depth, captured
+// bytes, wall-clock time) is used up, every further capture throws TraceLimitExceeded so
+// the traced code unwinds, and finish() closes the trace with a "truncated" step.
+public class TraceSession {
+    // Inheritable so that threads started by the user's code keep writing into the session of
+    // the request that started them. What a thread inherits is the session's Binding rather
+    // than the session: closing the bind() scope empties it, so a long-lived thread first
+    // started during a run (a pool worker, say) neither keeps the session reachable after the
+    // run nor writes into it.
+    private static final InheritableThreadLocal<Binding> CURRENT = new InheritableThreadLocal<>();
+
+    // The clock is only read every this many steps
+    private static final int TIME_CHECK_INTERVAL = 1024;
+
+    private final Binding binding = new Binding(this);
+    private final AtomicInteger stepCounter = new AtomicInteger();
+    private volatile String truncationReason;
+
+    private final int maxSteps;
+    private final int maxDepth;
+    private final long maxBytes;
+    private final long timeoutMillis;
+    private final long deadlineNanos;
+    private final TraceOptions.CaptureMode captureMode;
+    private final int sampleEvery;
+    private final Set<String> keptActions;
+
+    // Set when the submission was instrumented and automatic tracing is on for this run
+    private final List<TraceMethod> tracedMethods;
+    // Set when captureStep reads call stacks from the frame hooks (see ShadowStack); names
+    // of the submission's methods by frame ID
+    private final String[] frameNames;
+    private final ConcurrentLinkedQueue<TraceEventBuffer> eventBuffers = new ConcurrentLinkedQueue<>();
+
+    // Kept steps go to the sink; when the caller did not supply one they are kept here as
+    // keyframes and deltas
+    private final TraceTimeline collected;
+    private final TraceSink sink;
+
+    public TraceSession() {
+        this(TraceOptions.defaults(), null, null);
+    }
+
+    public TraceSession(TraceOptions options, List<TraceMethod> tracedMethods, TraceSink target) {
+        this(options, tracedMethods, null, target);
+    }
+
+    public TraceSession(TraceOptions options, List<TraceMethod> tracedMethods, List<String> frameNames, TraceSink target) {
+        this.maxSteps = options.effectiveMaxSteps();
+        this.maxDepth = options.effectiveMaxDepth();
+        this.maxBytes = options.effectiveMaxBytes();
+        this.timeoutMillis = options.effectiveTimeoutMillis();
+        this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.captureMode = options.effectiveCaptureMode();
+        this.sampleEvery = options.effectiveSampleEvery();
+        this.keptActions = options.getActions() == null ? Set.of() : Set.copyOf(options.getActions());
+        this.tracedMethods = tracedMethods;
+        this.frameNames = frameNames == null ? null : frameNames.toArray(new String[0]);
+
+        this.collected = target == null ? new TraceTimeline() : null;
+        TraceSink base = target == null ? collected : target;
+        this.sink = captureMode == TraceOptions.CaptureMode.LAST_N
+            ? new RingBufferTraceSink(options.effectiveRingSize(), base)
+            : base;
+    }
+
+    public static TraceSession current() {
+        Binding current = CURRENT.get();
+        if (current == null) {
+            return null;
+        }
+        TraceSession session = current.session;
+        if (session == null) {
+            // Inherited from a run that has finished since
+            CURRENT.remove();
+        }
+        return session;
+    }
+
+    // Binds this session to the calling thread, and to the threads it starts, until the
+    // returned scope is closed. A session is bound once.
+    public Scope bind() {
+        Binding previous = CURRENT.get();
+        CURRENT.set(binding);
+        return () -> {
+            binding.session = null;
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        };
+    }
+
+    // Allocates the number of a step captured at the given recursion depth, enforcing the
+    // step, depth and time budgets on the way.
+    public int nextStep(int depth) {
+        if (truncationReason != null) {
+            throw new TraceLimitExceeded(truncationReason);
+        }
+        if (depth > maxDepth) {
+            truncate("Maximum recursion depth of " + maxDepth + " reached");
+        }
+        int step = stepCounter.incrementAndGet();
+        if (step > maxSteps) {
+            truncate("Step budget of " + maxSteps + " steps used up");
+        }
+        if (step % TIME_CHECK_INTERVAL == 0 && System.nanoTime() > deadlineNanos) {
+            truncate("Time budget of " + timeoutMillis + " ms used up");
+        }
+        return step;
+    }
+
+    // For producers that number their steps themselves (see ParallelSearch): marks every step
+    // up to the given number as taken, without the budget checks of nextStep()
+    public void advanceTo(int step) {
+        stepCounter.set(step);
+    }
+
+    public void add(TraceStep step) {
+        if (!keeps(step)) {
+            return;
+        }
+        // Only steps that stay in memory count against the byte budget; a ring buffer
+        // bounds itself and streamed steps are gone once written. What is charged is what
+        // is kept: the timeline's size, which grows by the frames a step pushes rather than
+        // its whole call stack, or the size a buffering sink reports.
+        if (captureMode != TraceOptions.CaptureMode.LAST_N
+                && (collected != null ? collected.sizeInBytes() : sink.bufferedBytes()) > maxBytes) {
+            truncate("Captured data exceeded " + maxBytes + " bytes");
+        }
+        try {
+            sink.accept(step);
+        } catch (UncheckedIOException e) {
+            // The client of a streamed trace went away; stop the run at its next capture
+            truncate("Client disconnected");
+        }
+    }
+
+    private boolean keeps(TraceStep step) {
+        return keeps(step.getStep(), step.getAction());
+    }
+
+    // Whether add() would keep a step with this number and action, so a producer can skip
+    // building steps that sampling drops anyway
+    public boolean keeps(int step, String action) {
+        switch (captureMode) {
+            case EVERY_NTH:
+                return (step - 1) % sampleEvery == 0;
+            case ACTIONS:
+                return keptActions.contains(action);
+            default:
+                return true;
+        }
+    }
+
+    // Stops the run from outside: the next capture point throws, so the traced code unwinds
+    // and finish() closes the trace with the reason
+    public void cancel(String reason) {
+        if (truncationReason == null) {
+            truncationReason = reason;
+        }
+    }
+
+    private void truncate(String reason) {
+        if (truncationReason == null) {
+            truncationReason = reason;
+        }
+        throw new TraceLimitExceeded(truncationReason);
+    }
+
+    public boolean isTruncated() {
+        return truncationReason != null;
+    }
+
+    public String getTruncationReason() {
+        return truncationReason;
+    }
+
+    // Called by an event buffer once it holds a full batch
+    void drain(TraceEventBuffer buffer) {
+        List<TraceStep> decoded = new ArrayList<>(buffer.size());
+        buffer.decode(tracedMethods, decoded);
+        for (TraceStep step : decoded) {
+            add(step);
+        }
+    }
+
+    // Pushes whatever the event buffers still hold to the sink, closes a truncated trace
+    // with a marker step and completes the sink. Must be called once the run is over.
+    public void finish() {
+        try {
+            for (TraceEventBuffer buffer : eventBuffers) {
+                drain(buffer);
+            }
+        } catch (TraceLimitExceeded e) {
+            // The byte budget ran out while draining; the marker below records it
+        }
+        try {
+            if (truncationReason != null) {
+                TraceStep marker = new TraceStep();
+                marker.setStep(Math.min(stepCounter.get(), maxSteps) + 1);
+                marker.setAction("truncated");
+                marker.setDetails(truncationReason);
+                sink.accept(marker);
+            }
+            sink.complete();
+        } catch (UncheckedIOException e) {
+            // The client is gone; there is no one left to tell
+        }
+    }
+
+    public boolean isInstrumented() {
+        return tracedMethods != null;
+    }
+
+    public boolean tracksFrames() {
+        return frameNames != null;
+    }
+
+    ShadowStack newShadowStack() {
+        return new ShadowStack(this, frameNames);
+    }
+
+    TraceEventBuffer newEventBuffer() {
+        TraceEventBuffer buffer = new TraceEventBuffer(this);
+        eventBuffers.add(buffer);
+        return buffer;
+    }
+
+    public int size() {
+        return stepCounter.get();
+    }
+
+    // Kept steps in step-number order, available once finish() has run. Only for sessions
+    // that collect rather than stream.
+    public List<TraceStep> getSteps() {
+        return collected.steps();
+    }
+
+    public TraceTimeline getTimeline() {
+        return collected;
+    }
+
+    // Rough size of a step held on its own, as in a page of steps
+    static long estimateSize(TraceStep step) {
+        long size = 128 + 48L * step.getCallStack().size();
+        // Templated details are only built when the step is read
+        if (step.getDetailsTemplate() == null && step.getDetails() != null) {
+            size += 2L * step.getDetails().length();
+        }
+        for (Object value : step.getVariables().values()) {
+            size += 32 + estimateValue(value, 0);
+        }
+        return size;
+    }
+
+    private static long estimateValue(Object value, int depth) {
+        if (value instanceof int[] array) {
+            return 4L * array.length;
+        } else if (value instanceof long[] || value instanceof double[]) {
+            return 8L * Array.getLength(value);
+        } else if (value instanceof boolean[] || value instanceof byte[] || value instanceof char[]) {
+            return 2L * Array.getLength(value);
+        } else if (value instanceof Object[] array) {
+            long size = 8L * array.length;
+            if (depth < 2) {
+                for (Object element : array) {
+                    size += estimateValue(element, depth + 1);
+                }
+            }
+            return size;
+        } else if (value instanceof Collection<?> collection) {
+            return 24L * collection.size();
+        } else if (value instanceof Map<?, ?> map) {
+            return 48L * map.size();
+        } else if (value instanceof CharSequence text) {
+            return 2L * text.length();
+        }
+        return 16;
+    }
+
+    @FunctionalInterface
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static final class Binding {
+        volatile TraceSession session;
+
+        Binding(TraceSession session) {
+            this.session = session;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.TraceStep;
+
+// Receives trace steps as they are produced, e.g. to stream them to the client instead of
+// collecting the whole trace first. Implementations must tolerate calls from several
+// threads when the traced code is multi-threaded.
+public interface TraceSink {
+    void accept(TraceStep step);
+
+    // Called once the producer has finished, after the last step
+    default void complete() {
+    }
+
+    // Bytes of trace the sink holds in memory; those count against the run's byte budget. A
+    // sink that passes steps on holds none.
+    default long bufferedBytes() {
+        return 0;
+    }
+
+    // Ends the trace with an "error" step when the producer fails after steps were sent
+    default void error(String message) {
+        TraceStep step = new TraceStep();
+        step.setAction("error");
+        step.setDetails(message);
+        accept(step);
+        complete();
+    }
+}
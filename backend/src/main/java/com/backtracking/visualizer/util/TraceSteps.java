@@ -0,0 +1,91 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.TraceOptions;
+import com.backtracking.visualizer.dto.TraceStep;
+import java.util.ArrayList;
+import java.util.List;
+
+// A built-in engine's trace as a cursor: advance() runs the search up to its next step, and
+// toStep() builds that step only when the caller keeps it. Engines keep their state in
+// primitive arrays so stepping over a step costs no allocation.
+public interface TraceSteps {
+    // Moves to the next step; false once the search is over
+    boolean advance();
+
+    // Action of the current step; always one of the engine's constants
+    String action();
+
+    // Recursion depth of the current step, counted from 1
+    int depth();
+
+    // Builds the current step under the given step number. Must be called before the next
+    // advance().
+    TraceStep toStep(int number);
+
+    // Moves past up to count steps without building them; returns how many were skipped
+    default long skip(long count) {
+        long skipped = 0;
+        while (skipped < count && advance()) {
+            skipped++;
+        }
+        return skipped;
+    }
+
+    record Page(List<TraceStep> steps, Integer nextStep) {
+    }
+
+    // Runs the engine into the session, building only the steps the session keeps
+    static void record(TraceSteps steps, TraceSession trace) {
+        try {
+            while (steps.advance()) {
+                int number = trace.nextStep(steps.depth());
+                if (trace.keeps(number, steps.action())) {
+                    trace.add(steps.toStep(number));
+                }
+            }
+        } catch (TraceLimitExceeded e) {
+            // Budget used up; finish() closes the trace with a truncation marker
+        }
+        trace.finish();
+    }
+
+    // Rough retained size of a collected trace: the timeline's own estimate when the trace is
+    // one, the sum of its steps' otherwise
+    static long estimateSize(List<TraceStep> trace) {
+        if (trace instanceof TraceTimeline.Steps steps) {
+            return steps.timeline().sizeInBytes();
+        }
+        long size = 0;
+        for (TraceStep step : trace) {
+            size += TraceSession.estimateSize(step);
+        }
+        return size;
+    }
+
+    // Up to limit steps starting at step number from (step numbers count from 1), cut short once
+    // the steps on the page add up to more than maxBytes. Steps before the page are only stepped
+    // over, never built. nextStep is null once the trace is over or reaches the step ceiling
+    // every trace has.
+    static Page page(TraceSteps steps, int from, int limit, long maxBytes) {
+        int first = Math.max(from, 1);
+        int last = (int) Math.min((long) first + Math.max(limit, 1) - 1, TraceOptions.MAX_STEPS_LIMIT);
+        List<TraceStep> page = new ArrayList<>();
+        if (first > last || steps.skip(first - 1) < first - 1) {
+            return new Page(page, null);
+        }
+        long bytes = 0;
+        int number = first;
+        boolean more = true;
+        while (number <= last && bytes <= maxBytes) {
+            if (!steps.advance()) {
+                more = false;
+                break;
+            }
+            TraceStep step = steps.toStep(number++);
+            bytes += TraceSession.estimateSize(step);
+            page.add(step);
+        }
+        more = more && number <= TraceOptions.MAX_STEPS_LIMIT && steps.advance();
+        return new Page(page, more ? number : null);
+    }
+}
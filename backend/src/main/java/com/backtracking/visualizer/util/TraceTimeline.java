@@ -0,0 +1,483 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.StackFrame;
+import com.backtracking.visualizer.dto.TraceStep;
+import java.lang.reflect.Array;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+// Stores a trace as periodic keyframes plus deltas. Every KEYFRAME_INTERVAL-th step keeps
+// its full variables and call stack; the steps in between only keep the variables that
+// changed since the previous step (for arrays of unchanged length, only the changed cells)
+// and the frames pushed on top of the part of the call stack they share with it. Producers
+// list call stacks innermost or outermost frame first, so the shared part is looked for at
+// both ends. A step is rebuilt by replaying from the keyframe at or before it, so seeking to
+// any step number costs a binary search plus at most KEYFRAME_INTERVAL - 1 deltas. Details text that a
+// producer builds from a template (see TraceStep.DetailsTemplate) is kept as the template and
+// only built again when the step is read.
+//
+// Steps are stored in columns rather than as an object each: parallel arrays of step
+// numbers, lines and the (function, action, template) kind of each step, and a reference to
+// its changes. Backtracking code makes the same few changes over and over (the same index
+// back into the same cell, the same loop counter value), so equal change sets are shared
+// between the steps that make them, which leaves a typical delta step at a few dozen bytes.
+//
+// Steps are expected in step-number order. Multi-threaded user code can hand them over
+// slightly out of order; the timeline is then re-encoded in order the first time it is read.
+public class TraceTimeline implements TraceSink {
+    static final int KEYFRAME_INTERVAL = 32;
+
+    // Marks a variable that is no longer present in a delta
+    private static final Object REMOVED = new Object();
+    private static final StackFrame[] NO_FRAMES = new StackFrame[0];
+    // Distinct change sets kept for sharing; past this many, new ones are simply not shared
+    private static final int MAX_SHARED_CHANGES = 1 << 14;
+
+    // Column bytes per step: step number, line, kind, changes, kept and pushed frames
+    private static final long STEP_BYTES = 24;
+    // Map and list of a keyframe, one of its variables, a stack frame, a shared change set
+    private static final long KEYFRAME_BYTES = 128;
+    private static final long VARIABLE_BYTES = 48;
+    private static final long FRAME_BYTES = 48;
+    // A keyframe's reference to a frame the previous step already held
+    private static final long FRAME_REFERENCE_BYTES = 8;
+    private static final long SHARED_BYTES = 96;
+
+    private record Kind(String function, String action, TraceStep.DetailsTemplate detailsTemplate) {
+    }
+
+    private int size;
+    private int[] stepNumbers = new int[64];
+    private int[] lines = new int[64];
+    private int[] kinds = new int[64];
+    // Delta steps only: what changed since the previous step
+    private Object[][] changes = new Object[64][];
+    // Frames kept from the previous step's stack: the first n when n >= 0, the last ~n
+    // otherwise, with the pushed frames going on the other end
+    private int[] keptFrames = new int[64];
+    private StackFrame[][] pushedFrames = new StackFrame[64][];
+    // Only allocated once a step brings details text of its own rather than a template
+    private String[] details;
+
+    // Full state of every KEYFRAME_INTERVAL-th step, by keyframe number
+    private final List<Map<String, Object>> keyVariables = new ArrayList<>();
+    private final List<List<StackFrame>> keyStacks = new ArrayList<>();
+
+    private final List<Kind> kindTable = new ArrayList<>();
+    private final Map<Kind, Integer> kindIds = new HashMap<>();
+    private final Map<List<Object>, Object[]> sharedChanges = new HashMap<>();
+
+    private boolean ordered = true;
+    // Rough retained size of what the columns point to, for caches that keep timelines around
+    private long retainedBytes;
+
+    // Full state of the last accepted step, which the next delta is computed against
+    private Map<String, Object> lastVariables = Map.of();
+    private List<StackFrame> lastStack = List.of();
+
+    @Override
+    public synchronized void accept(TraceStep step) {
+        int index = size;
+        if (index > 0 && step.getStep() < stepNumbers[index - 1]) {
+            ordered = false;
+        }
+        if (index == stepNumbers.length) {
+            grow(index * 2);
+        }
+        stepNumbers[index] = step.getStep();
+        lines[index] = step.getLine();
+        TraceStep.DetailsTemplate template = step.getDetailsTemplate();
+        kinds[index] = kindOf(new Kind(step.getFunction(), step.getAction(), template));
+        String text = template == null ? step.getDetails() : null;
+        if (text != null) {
+            if (details == null) {
+                details = new String[stepNumbers.length];
+            }
+            details[index] = text;
+            retainedBytes += 40 + 2L * text.length();
+        }
+
+        Map<String, Object> variables = step.getVariables() == null ? Map.of() : step.getVariables();
+        List<StackFrame> stack = step.getCallStack() == null ? List.of() : step.getCallStack();
+        if (index % KEYFRAME_INTERVAL == 0) {
+            keyVariables.add(variables);
+            keyStacks.add(stack);
+            // Frames the previous step held are shared with it, so only new ones cost a frame
+            int shared = Math.max(sharedPrefix(lastStack, stack), sharedSuffix(lastStack, stack));
+            retainedBytes += KEYFRAME_BYTES + FRAME_REFERENCE_BYTES * stack.size() + FRAME_BYTES * (stack.size() - shared);
+            for (Object value : variables.values()) {
+                retainedBytes += VARIABLE_BYTES + estimateSize(value);
+            }
+        } else {
+            changes[index] = share(diff(lastVariables, variables));
+            int top = sharedPrefix(lastStack, stack);
+            int bottom = sharedSuffix(lastStack, stack);
+            if (bottom > top) {
+                keptFrames[index] = ~bottom;
+                pushedFrames[index] = bottom == stack.size() ? NO_FRAMES : stack.subList(0, stack.size() - bottom).toArray(NO_FRAMES);
+            } else {
+                keptFrames[index] = top;
+                pushedFrames[index] = top == stack.size() ? NO_FRAMES : stack.subList(top, stack.size()).toArray(NO_FRAMES);
+            }
+            retainedBytes += FRAME_BYTES * pushedFrames[index].length;
+        }
+        size++;
+        lastVariables = variables;
+        lastStack = stack;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long sizeInBytes() {
+        long columns = STEP_BYTES + (details == null ? 0 : 4);
+        return retainedBytes + columns * stepNumbers.length;
+    }
+
+    // Full state of the step with the given number, or null when it was not kept
+    public synchronized TraceStep stepAt(int stepNumber) {
+        ensureOrdered();
+        int index = Arrays.binarySearch(stepNumbers, 0, size, stepNumber);
+        return index < 0 ? null : materialize(index);
+    }
+
+    // All steps in order. Iterating replays the deltas once; get(i) seeks. Only meant to be
+    // read once the run is complete.
+    public synchronized Steps steps() {
+        ensureOrdered();
+        return new Steps();
+    }
+
+    // The steps of a timeline as a list; timeline() leads back to it, so that whoever is handed
+    // the list can keep the timeline for seeking
+    public final class Steps extends AbstractList<TraceStep> {
+        private Steps() {
+        }
+
+        public TraceTimeline timeline() {
+            return TraceTimeline.this;
+        }
+
+        @Override
+        public TraceStep get(int index) {
+            synchronized (TraceTimeline.this) {
+                Objects.checkIndex(index, size);
+                return materialize(index);
+            }
+        }
+
+        @Override
+        public int size() {
+            return TraceTimeline.this.size();
+        }
+
+        @Override
+        public Iterator<TraceStep> iterator() {
+            return new Replay();
+        }
+    }
+
+    private void grow(int capacity) {
+        stepNumbers = Arrays.copyOf(stepNumbers, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+        kinds = Arrays.copyOf(kinds, capacity);
+        changes = Arrays.copyOf(changes, capacity);
+        keptFrames = Arrays.copyOf(keptFrames, capacity);
+        pushedFrames = Arrays.copyOf(pushedFrames, capacity);
+        if (details != null) {
+            details = Arrays.copyOf(details, capacity);
+        }
+    }
+
+    private int kindOf(Kind kind) {
+        Integer id = kindIds.get(kind);
+        if (id == null) {
+            id = kindTable.size();
+            kindTable.add(kind);
+            kindIds.put(kind, id);
+        }
+        return id;
+    }
+
+    // The change set an earlier step already made, if there was one. Only change sets made of
+    // immutable values are shared; anything else compares by identity anyway.
+    private Object[] share(Object[] changed) {
+        if (changed == null) {
+            return null;
+        }
+        for (int i = 1; i < changed.length; i += 2) {
+            Object value = changed[i];
+            if (value != null && value != REMOVED && !(value instanceof CellPatch) && !(value instanceof Number)
+                    && !(value instanceof String) && !(value instanceof Boolean) && !(value instanceof Character)) {
+                retainedBytes += SHARED_BYTES + estimateChanges(changed);
+                return changed;
+            }
+        }
+        List<Object> key = Arrays.asList(changed);
+        Object[] shared = sharedChanges.get(key);
+        if (shared != null) {
+            return shared;
+        }
+        retainedBytes += SHARED_BYTES + estimateChanges(changed);
+        if (sharedChanges.size() < MAX_SHARED_CHANGES) {
+            sharedChanges.put(key, changed);
+        }
+        return changed;
+    }
+
+    private void applyTo(int index, Map<String, Object> state, List<StackFrame> stack) {
+        Object[] changed = changes[index];
+        if (changed != null) {
+            for (int i = 0; i < changed.length; i += 2) {
+                String name = (String) changed[i];
+                Object value = changed[i + 1];
+                if (value == REMOVED) {
+                    state.remove(name);
+                } else if (value instanceof CellPatch patch) {
+                    state.put(name, patch.applyTo(state.get(name)));
+                } else {
+                    state.put(name, value);
+                }
+            }
+        }
+        int kept = keptFrames[index];
+        if (kept >= 0) {
+            stack.subList(kept, stack.size()).clear();
+            stack.addAll(Arrays.asList(pushedFrames[index]));
+        } else {
+            stack.subList(0, stack.size() - ~kept).clear();
+            stack.addAll(0, Arrays.asList(pushedFrames[index]));
+        }
+    }
+
+    private TraceStep toStep(int index, Map<String, Object> state, List<StackFrame> stack) {
+        Kind kind = kindTable.get(kinds[index]);
+        return new TraceStep(stepNumbers[index], kind.function(), state, stack, lines[index], kind.action(),
+            details == null ? null : details[index], kind.detailsTemplate());
+    }
+
+    private TraceStep materialize(int index) {
+        int keyframe = index / KEYFRAME_INTERVAL;
+        Map<String, Object> variables = new LinkedHashMap<>(keyVariables.get(keyframe));
+        List<StackFrame> stack = new ArrayList<>(keyStacks.get(keyframe));
+        for (int i = keyframe * KEYFRAME_INTERVAL + 1; i <= index; i++) {
+            applyTo(i, variables, stack);
+        }
+        return toStep(index, variables, stack);
+    }
+
+    private void ensureOrdered() {
+        if (ordered) {
+            return;
+        }
+        List<TraceStep> steps = new ArrayList<>(size);
+        new Replay().forEachRemaining(steps::add);
+        steps.sort(Comparator.comparingInt(TraceStep::getStep));
+        size = 0;
+        details = null;
+        keyVariables.clear();
+        keyStacks.clear();
+        retainedBytes = 0;
+        lastVariables = Map.of();
+        lastStack = List.of();
+        ordered = true;
+        steps.forEach(this::accept);
+    }
+
+    // Walks the timeline front to back, carrying the state from one step to the next
+    private final class Replay implements Iterator<TraceStep> {
+        private final int end = size;
+        private int next;
+        private Map<String, Object> variables;
+        private List<StackFrame> stack;
+
+        @Override
+        public boolean hasNext() {
+            return next < end;
+        }
+
+        @Override
+        public TraceStep next() {
+            if (next >= end) {
+                throw new NoSuchElementException();
+            }
+            int index = next++;
+            if (index % KEYFRAME_INTERVAL == 0) {
+                variables = new LinkedHashMap<>(keyVariables.get(index / KEYFRAME_INTERVAL));
+                stack = new ArrayList<>(keyStacks.get(index / KEYFRAME_INTERVAL));
+            } else {
+                applyTo(index, variables, stack);
+            }
+            return toStep(index, new LinkedHashMap<>(variables), new ArrayList<>(stack));
+        }
+    }
+
+    // Variables that differ from the previous step, as alternating name/value pairs
+    private static Object[] diff(Map<String, Object> previous, Map<String, Object> current) {
+        List<Object> changes = new ArrayList<>();
+        for (Map.Entry<String, Object> variable : current.entrySet()) {
+            String name = variable.getKey();
+            Object before = previous.get(name);
+            Object after = variable.getValue();
+            boolean unchanged = after == null
+                ? before == null && previous.containsKey(name)
+                : Objects.deepEquals(before, after);
+            if (!unchanged) {
+                CellPatch patch = CellPatch.between(before, after);
+                changes.add(name);
+                changes.add(patch != null ? patch : after);
+            }
+        }
+        for (String name : previous.keySet()) {
+            if (!current.containsKey(name)) {
+                changes.add(name);
+                changes.add(REMOVED);
+            }
+        }
+        return changes.isEmpty() ? null : changes.toArray();
+    }
+
+    // Frames below the top are usually the very same objects as in the previous step
+    private static int sharedPrefix(List<StackFrame> previous, List<StackFrame> current) {
+        int limit = Math.min(previous.size(), current.size());
+        int i = 0;
+        while (i < limit && sameFrame(previous.get(i), current.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int sharedSuffix(List<StackFrame> previous, List<StackFrame> current) {
+        int limit = Math.min(previous.size(), current.size());
+        int i = 0;
+        while (i < limit && sameFrame(previous.get(previous.size() - 1 - i), current.get(current.size() - 1 - i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean sameFrame(StackFrame previous, StackFrame current) {
+        return previous == current || previous.equals(current);
+    }
+
+    private static long estimateChanges(Object[] changed) {
+        long size = 16 + 4L * changed.length;
+        for (int i = 1; i < changed.length; i += 2) {
+            size += estimateSize(changed[i]);
+        }
+        return size;
+    }
+
+    private static long estimateSize(Object value) {
+        if (value instanceof CellPatch patch) {
+            return 32 + 16 + 4L * patch.indexes.length + estimateSize(patch.values);
+        } else if (value instanceof String text) {
+            return 40 + text.length();
+        } else if (value != null && value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            Class<?> cell = value.getClass().getComponentType();
+            if (cell.isPrimitive()) {
+                return 16 + (cell == long.class || cell == double.class ? 8L : 4L) * length;
+            }
+            long size = 16 + 4L * length;
+            for (int i = 0; i < length; i++) {
+                size += estimateSize(Array.get(value, i));
+            }
+            return size;
+        }
+        return 16;
+    }
+
+    // The cells of an array that changed while its length stayed the same. Backtracking
+    // code typically changes one or two cells of its working array per step. Equal by content,
+    // so that the steps making the same change can share it.
+    private record CellPatch(int[] indexes, Object values) {
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof CellPatch patch && Arrays.equals(indexes, patch.indexes)
+                && Objects.deepEquals(values, patch.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(indexes) + Arrays.deepHashCode(new Object[] {values});
+        }
+
+        static CellPatch between(Object before, Object after) {
+            if (before == null || after == null || before.getClass() != after.getClass()
+                    || !after.getClass().isArray()) {
+                return null;
+            }
+            int length = Array.getLength(after);
+            if (Array.getLength(before) != length) {
+                return null;
+            }
+            if (after instanceof int[] current) {
+                return between((int[]) before, current);
+            }
+            int[] indexes = new int[length];
+            int count = 0;
+            for (int i = 0; i < length; i++) {
+                if (!Objects.deepEquals(Array.get(before, i), Array.get(after, i))) {
+                    indexes[count++] = i;
+                }
+            }
+            // Past half the cells the whole array is cheaper to keep
+            if (count * 2 > length) {
+                return null;
+            }
+            Object values = Array.newInstance(after.getClass().getComponentType(), count);
+            for (int i = 0; i < count; i++) {
+                Array.set(values, i, Array.get(after, indexes[i]));
+            }
+            return new CellPatch(Arrays.copyOf(indexes, count), values);
+        }
+
+        private static CellPatch between(int[] before, int[] after) {
+            int[] indexes = new int[after.length];
+            int count = 0;
+            for (int i = 0; i < after.length; i++) {
+                if (before[i] != after[i]) {
+                    indexes[count++] = i;
+                }
+            }
+            if (count * 2 > after.length) {
+                return null;
+            }
+            int[] values = new int[count];
+            for (int i = 0; i < count; i++) {
+                values[i] = after[indexes[i]];
+            }
+            return new CellPatch(Arrays.copyOf(indexes, count), values);
+        }
+
+        // Patched copy; the previous array may still be referenced by an earlier step
+        Object applyTo(Object array) {
+            int length = Array.getLength(array);
+            Object copy = Array.newInstance(array.getClass().getComponentType(), length);
+            System.arraycopy(array, 0, copy, 0, length);
+            if (copy instanceof int[] cells) {
+                int[] changed = (int[]) values;
+                for (int i = 0; i < indexes.length; i++) {
+                    cells[indexes[i]] = changed[i];
+                }
+            } else {
+                for (int i = 0; i < indexes.length; i++) {
+                    Array.set(copy, indexes[i], Array.get(values, i));
+                }
+            }
+            return copy;
+        }
+    }
+}
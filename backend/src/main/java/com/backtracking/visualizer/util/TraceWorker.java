@@ -0,0 +1,118 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.TraceOptions;
+import com.backtracking.visualizer.dto.TraceStep;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+// Entry point of a worker JVM started by WorkerPool. It connects to the Unix domain socket
+// named by its only argument, then runs one submission at a time with CodeExecutor, exactly
+// as the server would in-process, and streams the trace back over the socket (see
+// WorkerProtocol). stdout and stderr stay free for the submission and the JVM itself.
+//
+// The worker exits when the server closes the socket.
+@Slf4j
+public final class TraceWorker {
+    // Exercises javac, the instrumenter and the trace runtime once before the first job
+    private static final String WARM_UP_CODE = """
+        public class WarmUp {
+            static int fib(int n) {
+                return n < 2 ? n : fib(n - 1) + fib(n - 2);
+            }
+
+            public static void main(String[] args) {
+                int[] values = {3, 1, 2};
+                java.util.Arrays.sort(values);
+                fib(values[2] * 4);
+            }
+        }
+        """;
+
+    private TraceWorker() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(args[0]));
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        ObjectMapper objectMapper = WorkerProtocol.objectMapper();
+
+        warmUp();
+        WorkerProtocol.write(out, WorkerProtocol.READY, WorkerProtocol.EMPTY);
+        out.flush();
+
+        while (true) {
+            WorkerProtocol.Frame frame;
+            try {
+                frame = WorkerProtocol.read(in);
+            } catch (EOFException e) {
+                // Threads a submission left behind must not keep the JVM alive
+                System.exit(0);
+                return;
+            }
+            if (frame.type() != WorkerProtocol.JOB) {
+                throw new IOException("Unexpected frame type " + frame.type());
+            }
+            WorkerProtocol.Job job = objectMapper.readValue(frame.payload(), WorkerProtocol.Job.class);
+            TraceStream trace = new TraceStream(out);
+            byte result = WorkerProtocol.DONE;
+            byte[] message = WorkerProtocol.EMPTY;
+            try {
+                CodeExecutor.streamCode(job.code(), job.autoTrace(), job.options(), trace);
+            } catch (Exception e) {
+                result = WorkerProtocol.ERROR;
+                message = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+            }
+            trace.complete();
+            WorkerProtocol.write(out, result, message);
+            out.flush();
+        }
+    }
+
+    private static void warmUp() {
+        try {
+            for (int i = 0; i < 3; i++) {
+                CodeExecutor.executeCode(WARM_UP_CODE, true, TraceOptions.defaults());
+            }
+        } catch (Exception e) {
+            // A worker that cannot warm up still serves jobs, just slower at first
+            log.warn("Trace worker warm-up failed", e);
+        }
+    }
+
+    // The trace of one job in the format of BinaryTraceWriter. The writer's END record must be
+    // written exactly once, whether or not the run reached the point where its session
+    // completes the sink.
+    private static final class TraceStream implements TraceSink {
+        private final BinaryTraceWriter writer;
+        private boolean completed;
+
+        TraceStream(DataOutputStream out) {
+            this.writer = new BinaryTraceWriter(out);
+        }
+
+        @Override
+        public void accept(TraceStep step) {
+            writer.accept(step);
+        }
+
+        @Override
+        public synchronized void complete() {
+            if (!completed) {
+                completed = true;
+                writer.complete();
+            }
+        }
+    }
+}
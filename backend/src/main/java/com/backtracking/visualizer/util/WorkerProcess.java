@@ -0,0 +1,146 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.TraceStep;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The server's handle on one worker JVM: the process, its socket and how many jobs it ran.
+// A worker is only handed one job at a time.
+public class WorkerProcess {
+    private final Process process;
+    private final SocketChannel channel;
+    private final DataOutputStream in;
+    private final DataInputStream out;
+    private final ObjectMapper objectMapper;
+    private int jobs;
+
+    // Set while a job runs; a job that did not end with DONE or ERROR leaves the socket in an
+    // unknown state, and the worker must not be reused
+    private boolean busy;
+    private volatile String killReason;
+
+    private WorkerProcess(Process process, SocketChannel channel, ObjectMapper objectMapper) {
+        this.process = process;
+        this.channel = channel;
+        this.in = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        this.out = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+        this.objectMapper = objectMapper;
+    }
+
+    // Starts a worker with the socket path as its last argument and waits until it has
+    // connected and warmed up. The worker's stdout and stderr go to the server's.
+    public static WorkerProcess start(List<String> command, ObjectMapper objectMapper) throws IOException {
+        Path directory = Files.createTempDirectory("trace-worker");
+        Path socket = directory.resolve("worker.sock");
+        Process process = null;
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            List<String> arguments = new ArrayList<>(command);
+            arguments.add(socket.toString());
+            process = new ProcessBuilder(arguments).inheritIO().start();
+            // A worker that dies before connecting would leave accept() waiting forever
+            process.onExit().thenRun(() -> closeQuietly(server));
+            WorkerProcess worker = new WorkerProcess(process, server.accept(), objectMapper);
+            WorkerProtocol.Frame frame = WorkerProtocol.read(worker.out);
+            if (frame.type() != WorkerProtocol.READY) {
+                throw new IOException("Unexpected frame type " + frame.type() + " from starting worker");
+            }
+            return worker;
+        } catch (IOException e) {
+            if (process != null) {
+                process.destroyForcibly();
+            }
+            throw new IOException("Worker process did not start: " + e, e);
+        } finally {
+            Files.deleteIfExists(socket);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    private static void closeQuietly(ServerSocketChannel server) {
+        try {
+            server.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    // Runs one job and hands its steps to the sink as they arrive. An ERROR from the worker is
+    // thrown as an Exception with the worker's message; any other failure leaves the worker
+    // unusable.
+    public void run(WorkerProtocol.Job job, TraceSink sink) throws Exception {
+        busy = true;
+        jobs++;
+        try {
+            WorkerProtocol.write(in, WorkerProtocol.JOB, objectMapper.writeValueAsBytes(job));
+            in.flush();
+            BinaryTraceReader trace = new BinaryTraceReader(out);
+            TraceStep step;
+            while ((step = trace.next()) != null) {
+                sink.accept(step);
+            }
+            WorkerProtocol.Frame frame = WorkerProtocol.read(out);
+            if (frame.type() != WorkerProtocol.DONE && frame.type() != WorkerProtocol.ERROR) {
+                throw new IOException("Unexpected frame type " + frame.type() + " from worker");
+            }
+            busy = false;
+            if (frame.type() == WorkerProtocol.ERROR) {
+                throw new Exception(new String(frame.payload(), StandardCharsets.UTF_8));
+            }
+            sink.complete();
+        } catch (EOFException e) {
+            String reason = killReason;
+            throw new IOException(reason != null ? reason : exitMessage(), e);
+        }
+    }
+
+    private String exitMessage() {
+        try {
+            if (process.waitFor(1, TimeUnit.SECONDS)) {
+                return "Worker process exited with code " + process.exitValue() + " during the run";
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return "Worker process closed its connection during the run";
+    }
+
+    public int getJobs() {
+        return jobs;
+    }
+
+    public boolean isReusable() {
+        return !busy && killReason == null && process.isAlive();
+    }
+
+    // Ends the process at once; a job running on it fails with the reason
+    public void kill(String reason) {
+        killReason = reason;
+        process.destroyForcibly();
+    }
+
+    // Closing the socket lets the worker exit on its own
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            process.destroyForcibly();
+        }
+    }
+}
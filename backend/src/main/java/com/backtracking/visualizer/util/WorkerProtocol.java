@@ -0,0 +1,59 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.TraceOptions;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+// Messages between the server and its worker JVMs (see TraceWorker), over a Unix domain
+// socket per worker. The server sends a JOB frame; the worker answers with the trace in the
+// format of BinaryTraceWriter, whose shared stack prefixes and string dictionary keep deep
+// recursions cheap to transfer, followed by exactly one DONE or ERROR frame. A frame is a
+// type byte, a payload length and the payload.
+public final class WorkerProtocol {
+    // Sent once by a worker that has started and warmed up
+    public static final byte READY = 1;
+    // Job as JSON
+    public static final byte JOB = 2;
+    public static final byte DONE = 3;
+    // Error message in UTF-8
+    public static final byte ERROR = 4;
+
+    static final byte[] EMPTY = new byte[0];
+
+    // Keeps a corrupted stream from making either side allocate an absurd buffer
+    private static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+    private WorkerProtocol() {
+    }
+
+    public record Job(String code, boolean autoTrace, TraceOptions options) {
+    }
+
+    public record Frame(byte type, byte[] payload) {
+    }
+
+    static ObjectMapper objectMapper() {
+        return new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+
+    static void write(DataOutputStream out, byte type, byte[] payload) throws IOException {
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    // Throws EOFException when the other side has closed the pipe
+    static Frame read(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Invalid worker frame length " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(type, payload);
+    }
+}
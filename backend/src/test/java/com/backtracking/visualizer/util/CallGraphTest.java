@@ -0,0 +1,146 @@
+package com.backtracking.visualizer.util;
+
+import org.junit.jupiter.api.Test;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Edges and recursive components of small submissions, in particular which overrides a call
+// to an overridable method reaches
+class CallGraphTest {
+
+    @Test
+    void methodsOfTheSameNameInUnrelatedClassesAreNotOverrides() throws Exception {
+        CallGraph graph = graph("""
+            class X {
+                void go() {
+                }
+            }
+
+            class Y {
+                void go() {
+                    new X().go();
+                }
+            }
+            """);
+
+        assertEquals(Set.of("X.go()"), callees(graph, "Y.go()"));
+        assertFalse(graph.isRecursive(method(graph, "Y.go()")));
+        assertFalse(graph.hasRecursion());
+    }
+
+    @Test
+    void directAndMutualRecursion() throws Exception {
+        CallGraph graph = graph("""
+            public class Main {
+                static int fib(int n) {
+                    return n < 2 ? n : fib(n - 1) + fib(n - 2);
+                }
+
+                static boolean even(int n) {
+                    return n == 0 || odd(n - 1);
+                }
+
+                static boolean odd(int n) {
+                    return n != 0 && even(n - 1);
+                }
+
+                public static void main(String[] args) {
+                    System.out.println(fib(10) + " " + even(4));
+                }
+            }
+            """);
+
+        assertTrue(graph.isRecursive(method(graph, "Main.fib(int)")));
+        assertFalse(graph.isRecursive(method(graph, "Main.main(String[])")));
+        assertEquals(List.of(List.of("Main.fib(int)"), List.of("Main.even(int)", "Main.odd(int)")), components(graph));
+    }
+
+    @Test
+    void callToAnOverridableMethodReachesOverridesInSubclasses() throws Exception {
+        CallGraph graph = graph("""
+            class Base {
+                void step(int n) {
+                }
+
+                void run(int n) {
+                    step(n);
+                }
+            }
+
+            class Sub extends Base {
+                @Override
+                void step(int n) {
+                    if (n > 0) {
+                        run(n - 1);
+                    }
+                }
+            }
+
+            class Other {
+                void step(int n) {
+                }
+            }
+            """);
+
+        assertEquals(Set.of("Base.step(int)", "Sub.step(int)"), callees(graph, "Base.run(int)"));
+        assertEquals(List.of(List.of("Base.run(int)", "Sub.step(int)")), components(graph));
+    }
+
+    @Test
+    void callThroughAnInterfaceReachesItsImplementations() throws Exception {
+        CallGraph graph = graph("""
+            interface Visitor {
+                void visit(int depth);
+            }
+
+            class Walker implements Visitor {
+                Visitor next = this;
+
+                public void visit(int depth) {
+                    if (depth > 0) {
+                        next.visit(depth - 1);
+                    }
+                }
+            }
+
+            class Printer {
+                public void visit(int depth) {
+                    System.out.println(depth);
+                }
+            }
+            """);
+
+        assertEquals(Set.of("Visitor.visit(int)", "Walker.visit(int)"), callees(graph, "Walker.visit(int)"));
+        assertTrue(graph.isRecursive(method(graph, "Walker.visit(int)")));
+        assertFalse(graph.isRecursive(method(graph, "Printer.visit(int)")));
+    }
+
+    private static CallGraph graph(String code) throws Exception {
+        return Submission.of(code).callGraph();
+    }
+
+    private static int method(CallGraph graph, String name) {
+        for (int method = 0; method < graph.size(); method++) {
+            if (graph.name(method).equals(name)) {
+                return method;
+            }
+        }
+        throw new AssertionError("No method " + name);
+    }
+
+    private static Set<String> callees(CallGraph graph, String name) {
+        return Arrays.stream(graph.callees(method(graph, name))).mapToObj(graph::name).collect(Collectors.toSet());
+    }
+
+    private static List<List<String>> components(CallGraph graph) {
+        return graph.recursiveComponents().stream()
+            .map(component -> component.stream().map(graph::name).toList())
+            .toList();
+    }
+}
@@ -0,0 +1,148 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.TraceOptions;
+import java.util.Set;
+
+// Times manual captureStep calls 400 frames deep three ways: the original capture, which read
+// the whole stack trace three times per step and filtered it by class name, a stack walk, and
+// the shadow stack. Not a test, so it stays out of mvn test; run it on its own with
+//   mvn -q test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+//   java -cp target/test-classes:target/classes:$(cat target/cp.txt) \
+//       com.backtracking.visualizer.util.CaptureStackBenchmark
+public class CaptureStackBenchmark {
+    private static final int DEPTH = 400;
+    private static final int ROUNDS = 20;
+    private static final int WARMUPS = 3;
+    private static final int RUNS = 5;
+
+    // 400 frames deep, capturing on the way down and up, 20 times
+    private static final String DEEP_CODE = """
+        import com.backtracking.visualizer.util.Visualizer;
+
+        public class Deep {
+            static void descend(int depth) {
+                Visualizer.captureStep("recurse", "down", "depth", depth);
+                if (depth < %d) {
+                    descend(depth + 1);
+                }
+                Visualizer.captureStep("backtrack", "up", "depth", depth);
+            }
+
+            public static void main(String[] args) {
+                for (int round = 0; round < %d; round++) {
+                    descend(0);
+                }
+            }
+        }
+        """.formatted(DEPTH, ROUNDS);
+
+    // The same run with the original capture inlined, less its println of every stack element
+    private static final String ORIGINAL_CODE = """
+        import com.backtracking.visualizer.dto.StackFrame;
+        import com.backtracking.visualizer.dto.TraceStep;
+        import java.util.ArrayList;
+        import java.util.HashMap;
+        import java.util.List;
+        import java.util.Map;
+
+        public class Deep {
+            static final List<TraceStep> steps = new ArrayList<>();
+
+            static void captureStep(String action, String details, Object... variables) {
+                TraceStep step = new TraceStep();
+                step.setStep(steps.size() + 1);
+                step.setAction(action);
+                step.setDetails(details);
+                step.setLine(Thread.currentThread().getStackTrace()[2].getLineNumber());
+                step.setFunction(Thread.currentThread().getStackTrace()[2].getMethodName());
+
+                Map<String, Object> vars = new HashMap<>();
+                for (int i = 0; i < variables.length; i += 2) {
+                    if (i + 1 < variables.length) {
+                        vars.put(variables[i].toString(), variables[i + 1]);
+                    }
+                }
+                step.setVariables(vars);
+
+                List<StackFrame> callStack = new ArrayList<>();
+                StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
+                for (int i = 2; i < stackTrace.length; i++) {
+                    StackTraceElement element = stackTrace[i];
+                    String className = element.getClassName();
+                    if (className.startsWith("java.") ||
+                        className.startsWith("javax.") ||
+                        className.startsWith("jdk.") ||
+                        className.startsWith("org.springframework.") ||
+                        className.startsWith("com.backtracking.visualizer.util.CodeExecutor") ||
+                        className.startsWith("com.backtracking.visualizer.util.Visualizer") ||
+                        className.startsWith("com.backtracking.visualizer.controller.VisualizationController") ||
+                        className.startsWith("sun.") ||
+                        className.startsWith("com.sun.") ||
+                        className.startsWith("org.apache.tomcat.") ||
+                        className.startsWith("org.apache.catalina.") ||
+                        className.startsWith("org.apache.coyote.") ||
+                        className.startsWith("jakarta.")
+                    ) {
+                        continue;
+                    }
+
+                    StackFrame frame = new StackFrame();
+                    frame.setFunctionName(element.getMethodName());
+                    frame.setLineNumber(element.getLineNumber());
+                    callStack.add(frame);
+                }
+                step.setCallStack(callStack);
+                steps.add(step);
+            }
+
+            static void descend(int depth) {
+                captureStep("recurse", "down", "depth", depth);
+                if (depth < %d) {
+                    descend(depth + 1);
+                }
+                captureStep("backtrack", "up", "depth", depth);
+            }
+
+            public static void main(String[] args) {
+                for (int round = 0; round < %d; round++) {
+                    descend(0);
+                }
+                steps.clear();
+            }
+        }
+        """.formatted(DEPTH, ROUNDS);
+
+    public static void main(String[] args) throws Exception {
+        // Steps are built but not kept, so the run is mostly the cost of the captures
+        TraceOptions options = TraceOptions.defaults();
+        options.setCaptureMode(TraceOptions.CaptureMode.ACTIONS);
+        options.setActions(Set.of());
+
+        long originalNanos = fastestRun(ORIGINAL_CODE, options, false);
+        long walkedNanos = fastestRun(DEEP_CODE, options, false);
+        long shadowedNanos = fastestRun(DEEP_CODE, options, true);
+
+        int captures = 2 * (DEPTH + 1) * ROUNDS;
+        System.out.printf("%,d captures at depths up to %d, fastest of %d runs%n", captures, DEPTH, RUNS);
+        report("original getStackTrace", originalNanos, originalNanos);
+        report("stack walk", walkedNanos, originalNanos);
+        report("shadow stack", shadowedNanos, originalNanos);
+    }
+
+    private static long fastestRun(String code, TraceOptions options, boolean shadowStack) throws Exception {
+        for (int run = 0; run < WARMUPS; run++) {
+            CodeExecutor.executeManualCapture(code, options, shadowStack);
+        }
+        long fastest = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long started = System.nanoTime();
+            CodeExecutor.executeManualCapture(code, options, shadowStack);
+            fastest = Math.min(fastest, System.nanoTime() - started);
+        }
+        return fastest;
+    }
+
+    private static void report(String capture, long nanos, long originalNanos) {
+        System.out.printf("  %-24s %6d ms  (%.1fx)%n", capture, nanos / 1_000_000, (double) originalNanos / nanos);
+    }
+}
@@ -0,0 +1,136 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.TraceOptions;
+import com.backtracking.visualizer.dto.TraceStep;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Call stacks of manual captureStep calls come from the shadow stack the frame hooks keep;
+// stack walks are the fallback. Both must report the same frames, in the same order and with
+// the same lines. How much faster the shadow stack is, is measured by CaptureStackBenchmark,
+// outside the test run.
+class CaptureStackTest {
+    // Captures through a helper, a lambda, a constructor and an exception caught a few frames up
+    private static final String FRAMES_CODE = """
+        import com.backtracking.visualizer.util.Visualizer;
+        import java.util.function.IntConsumer;
+
+        public class Frames {
+            static int calls;
+
+            Frames(int n) {
+                Visualizer.captureStep("init", "constructed", "n", n);
+            }
+
+            static void log(int n) {
+                Visualizer.captureStep("log", "helper", "n", n);
+            }
+
+            static void fail(int n) {
+                Visualizer.captureStep("fail", "about to throw", "n", n);
+                throw new IllegalStateException("at " + n);
+            }
+
+            static void permute(int[] nums, int k) {
+                calls++;
+                Visualizer.captureStep("recurse", "enter", "k", k);
+                if (k == nums.length) {
+                    log(k);
+                    return;
+                }
+                for (int i = k; i < nums.length; i++) {
+                    int t = nums[k]; nums[k] = nums[i]; nums[i] = t;
+                    permute(nums, k + 1);
+                    t = nums[k]; nums[k] = nums[i]; nums[i] = t;
+                    Visualizer.captureStep("backtrack", "undo", "k", k);
+                }
+            }
+
+            public static void main(String[] args) {
+                new Frames(1);
+                permute(new int[] {1, 2, 3, 4}, 0);
+                IntConsumer consumer = n -> Visualizer.captureStep("lambda", "in lambda", "n", n);
+                consumer.accept(5);
+                try {
+                    fail(6);
+                } catch (IllegalStateException e) {
+                    Visualizer.captureStep("caught", "after unwinding", "n", 6);
+                }
+                log(7);
+            }
+        }
+        """;
+
+    // Captures on the way down to the given depth and back up, and at the bottom
+    private static String descendCode(int depth) {
+        return """
+            import com.backtracking.visualizer.util.Visualizer;
+
+            public class Descend {
+                static void descend(int depth) {
+                    Visualizer.captureStep("recurse", "down", "depth", depth);
+                    if (depth < %d) {
+                        descend(depth + 1);
+                    } else {
+                        Visualizer.captureStep("bottom", "deepest call", "depth", depth);
+                    }
+                    Visualizer.captureStep("backtrack", "up", "depth", depth);
+                }
+
+                public static void main(String[] args) {
+                    descend(1);
+                }
+            }
+            """.formatted(depth);
+    }
+
+    @Test
+    void shadowStackReportsTheSameFramesAsAStackWalk() throws Exception {
+        List<TraceStep> shadowed = assertSameFrames(FRAMES_CODE);
+
+        assertTrue(shadowed.size() > 50, "expected a full trace, got " + shadowed.size() + " steps");
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 10, 100, 400})
+    void shadowStackReportsTheSameFramesAtEveryDepth(int depth) throws Exception {
+        List<TraceStep> shadowed = assertSameFrames(descendCode(depth));
+
+        assertEquals(2 * depth + 1, shadowed.size());
+        TraceStep bottom = shadowed.get(depth);
+        assertEquals("bottom", bottom.getAction());
+        // Every level of descend plus main, innermost first
+        assertEquals(depth + 1, bottom.getCallStack().size());
+        assertEquals("descend", bottom.getCallStack().get(0).getFunctionName());
+        assertEquals("main", bottom.getCallStack().get(depth).getFunctionName());
+    }
+
+    // Steps of the code with call stacks from the shadow stack, checked against a stack walk
+    private static List<TraceStep> assertSameFrames(String code) throws Exception {
+        List<TraceStep> walked = CodeExecutor.executeManualCapture(code, TraceOptions.defaults(), false);
+        List<TraceStep> shadowed = CodeExecutor.executeManualCapture(code, TraceOptions.defaults(), true);
+
+        assertEquals(walked.size(), shadowed.size());
+        for (int i = 0; i < walked.size(); i++) {
+            TraceStep expected = walked.get(i);
+            TraceStep actual = shadowed.get(i);
+            assertEquals(expected.getAction(), actual.getAction(), "action of step " + (i + 1));
+            assertEquals(expected.getFunction(), actual.getFunction(), "function of step " + (i + 1));
+            assertEquals(expected.getLine(), actual.getLine(), "line of step " + (i + 1));
+            assertEquals(frames(expected), frames(actual), "call stack of step " + (i + 1));
+        }
+        return shadowed;
+    }
+
+    private static List<String> frames(TraceStep step) {
+        return step.getCallStack().stream()
+            .map(frame -> frame.getFunctionName() + ":" + frame.getLineNumber())
+            .collect(Collectors.toList());
+    }
+}
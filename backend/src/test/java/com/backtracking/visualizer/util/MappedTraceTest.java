@@ -0,0 +1,122 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.TraceStep;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Writes traces with MappedTraceWriter and reads ranges of them back through MappedTrace,
+// which must always produce a JSON array of exactly the steps asked for, in step order.
+class MappedTraceTest {
+    // Small enough that a trace spans several segments, and one step needs its own
+    private static final int SEGMENT_SIZE = 512;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void servesAnyRangeAsAJsonArrayOfItsSteps() throws Exception {
+        List<TraceStep> steps = new ArrayList<>();
+        for (int number = 1; number <= 40; number++) {
+            steps.add(step(number, number == 17 ? "x".repeat(2 * SEGMENT_SIZE) : "step " + number));
+        }
+        MappedTrace trace = write(steps);
+
+        assertEquals(40, trace.size());
+        assertFalse(trace.isTruncated());
+        for (int[] range : new int[][] {{0, 40}, {0, 1}, {39, 40}, {5, 25}, {16, 17}, {16, 18}, {10, 10}}) {
+            List<TraceStep> read = readRange(trace, range[0], range[1]);
+            assertEquals(steps.subList(range[0], range[1]).stream().map(MappedTraceTest::describe).collect(Collectors.toList()),
+                read.stream().map(MappedTraceTest::describe).collect(Collectors.toList()),
+                "range " + Arrays.toString(range));
+        }
+    }
+
+    @Test
+    void leavesNoSeparatorAfterTheLastStepOfARange() throws Exception {
+        MappedTrace trace = write(List.of(step(1, "first"), step(2, "second"), step(3, "third")));
+
+        for (int to = 1; to <= 3; to++) {
+            String json = readJson(trace, 0, to);
+            assertTrue(json.startsWith("[{") && json.endsWith("}]"), json);
+            assertFalse(json.contains(",]") || json.contains(",\n]"), json);
+        }
+        assertEquals("[]", readJson(trace, 1, 1));
+    }
+
+    @Test
+    void sortsAnIndexWrittenOutOfOrder() throws Exception {
+        int[] arrival = {1, 3, 2, 4, 6, 5, 8, 7};
+        List<TraceStep> steps = new ArrayList<>();
+        for (int number : arrival) {
+            steps.add(step(number, "step " + number));
+        }
+        steps.add(truncated(9));
+        MappedTrace trace = write(steps);
+
+        assertTrue(trace.isTruncated());
+        assertEquals(IntStream.rangeClosed(1, 9).boxed().collect(Collectors.toList()),
+            IntStream.range(0, trace.size()).mapToObj(trace::stepNumber).collect(Collectors.toList()));
+        assertEquals(List.of(2, 3, 4, 5, 6),
+            readRange(trace, trace.lowerBound(2), trace.lowerBound(7)).stream()
+                .map(TraceStep::getStep).collect(Collectors.toList()));
+        assertEquals(9, readRange(trace, 0, trace.size()).size());
+    }
+
+    @Test
+    void opensOnlyCompletedTraces() throws Exception {
+        MappedTraceWriter writer = new MappedTraceWriter(directory, objectMapper, SEGMENT_SIZE);
+        writer.accept(step(1, "first"));
+
+        assertNull(MappedTrace.open(directory));
+        writer.complete();
+        assertEquals(1, MappedTrace.open(directory).size());
+    }
+
+    private MappedTrace write(List<TraceStep> steps) throws IOException {
+        MappedTraceWriter writer = new MappedTraceWriter(directory, objectMapper, SEGMENT_SIZE);
+        steps.forEach(writer::accept);
+        writer.complete();
+        return MappedTrace.open(directory);
+    }
+
+    private List<TraceStep> readRange(MappedTrace trace, int from, int to) throws IOException {
+        return Arrays.asList(objectMapper.readValue(readJson(trace, from, to), TraceStep[].class));
+    }
+
+    private static String readJson(MappedTrace trace, int from, int to) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.writeRange(from, to, out);
+        return out.toString();
+    }
+
+    private static TraceStep step(int number, String details) {
+        return new TraceStep(number, "solve", Map.of("row", number, "board", List.of(number, number + 1)),
+            new ArrayList<>(), 10 + number, "place", details);
+    }
+
+    private static TraceStep truncated(int number) {
+        return new TraceStep(number, "solve", Map.of(), new ArrayList<>(), 0, "truncated", "maximum steps reached");
+    }
+
+    private static String describe(TraceStep step) {
+        return step.getStep() + " " + step.getFunction() + ":" + step.getLine() + " " + step.getAction()
+            + " " + step.getDetails() + " " + step.getVariables();
+    }
+}
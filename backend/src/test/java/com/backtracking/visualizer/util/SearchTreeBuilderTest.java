@@ -0,0 +1,196 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.StackFrame;
+import com.backtracking.visualizer.dto.TraceOptions;
+import com.backtracking.visualizer.dto.TraceStep;
+import org.junit.jupiter.api.Test;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Builds recursion trees from automatic-tracing steps, of real runs and of hand-made traces
+// with the gaps and failures a run can leave, and compares them with the expected outline.
+class SearchTreeBuilderTest {
+
+    @Test
+    void buildsTheRecursionTreeOfARun() throws Exception {
+        SearchTreeBuilder builder = new SearchTreeBuilder(1024 * 1024);
+        CodeExecutor.streamCode("""
+            public class Fib {
+                static int fib(int n) {
+                    if (n < 2) {
+                        return n;
+                    }
+                    return fib(n - 1) + fib(n - 2);
+                }
+
+                public static void main(String[] args) {
+                    fib(3);
+                }
+            }
+            """, true, TraceOptions.defaults(), builder);
+        SearchTree tree = builder.build();
+
+        assertEquals("""
+            start
+              fib(n=3) -> 2, call, 2 backtracks
+                fib(n=2) -> 1, call, 2 backtracks
+                  fib(n=1) -> 1, leaf
+                  fib(n=0) -> 0, leaf
+                fib(n=1) -> 1, leaf
+            """, outline(tree));
+        assertEquals(3, tree.maxDepth());
+        assertEquals(5, tree.subtreeSize(1));
+        assertFalse(tree.isTruncated());
+    }
+
+    @Test
+    void placesCallsByDepthWhenReturnsAreMissing() {
+        SearchTreeBuilder builder = new SearchTreeBuilder(1024 * 1024);
+        Trace trace = new Trace(builder);
+        trace.enter("solve", 0);
+        trace.enter("solve", 1);
+        trace.enter("solve", 2);
+        // The returns of depths 2 and 1 were lost; the next call is a child of the root call
+        trace.stackDepth = 1;
+        trace.enter("solve", 1);
+        trace.exit("exception", null);
+        trace.exit("return", true);
+
+        assertEquals("""
+            start
+              solve(row=0) -> true, call
+                solve(row=1), open
+                  solve(row=2), open
+                solve(row=1), error
+            """, outline(builder.build()));
+    }
+
+    @Test
+    void keepsCallsStillRunningWhenTheTraceWasTruncated() {
+        SearchTreeBuilder builder = new SearchTreeBuilder(1024 * 1024);
+        Trace trace = new Trace(builder);
+        trace.enter("solve", 0);
+        trace.enter("solve", 1);
+        trace.exit("return", false);
+        trace.backtrack();
+        trace.enter("solve", 1);
+        builder.accept(new TraceStep(trace.steps + 1, null, Map.of(), List.of(), 0, "truncated", "maximum steps reached"));
+        SearchTree tree = builder.build();
+
+        assertEquals("""
+            start
+              solve(row=0), open, 1 backtracks
+                solve(row=1) -> false, leaf
+                solve(row=1), open
+            """, outline(tree));
+        assertTrue(tree.isTruncated());
+        assertEquals("maximum steps reached", tree.getTruncationReason());
+    }
+
+    @Test
+    void dropsCallsBeyondItsBudgetAndCountsThem() {
+        // Room for the root, the dictionary entries and a few nodes, not for 2,000 calls
+        SearchTreeBuilder builder = new SearchTreeBuilder(2_000);
+        Trace trace = new Trace(builder);
+        trace.enter("solve", 0);
+        for (int i = 0; i < 2_000; i++) {
+            trace.enter("solve", 1);
+            trace.exit("return", false);
+            trace.backtrack();
+        }
+        trace.exit("return", false);
+        SearchTree tree = builder.build();
+
+        assertTrue(tree.size() < 100, "kept " + tree.size() + " nodes");
+        assertEquals(2_002 - tree.size(), tree.getDroppedNodes());
+        assertTrue(tree.isTruncated());
+        assertEquals(SearchTree.CALL, tree.kind(1));
+        // Calls that were dropped still came back to the one that made them
+        assertEquals(2_000, tree.backtracks(1));
+    }
+
+    // Hand-made steps of a recursive solve(row): the call stack size is all the builder
+    // reads of it
+    private static final class Trace {
+        private final SearchTreeBuilder builder;
+        private final List<Map<String, Object>> calls = new ArrayList<>();
+        private int stackDepth;
+        private int steps;
+
+        Trace(SearchTreeBuilder builder) {
+            this.builder = builder;
+        }
+
+        void enter(String function, int row) {
+            Map<String, Object> parameters = new LinkedHashMap<>();
+            parameters.put("row", row);
+            while (calls.size() > stackDepth) {
+                calls.remove(calls.size() - 1);
+            }
+            calls.add(parameters);
+            stackDepth = calls.size();
+            send(function, parameters, "recurse");
+        }
+
+        void exit(String action, Object returned) {
+            Map<String, Object> variables = new LinkedHashMap<>(calls.get(stackDepth - 1));
+            if (returned != null) {
+                variables.put("return", returned);
+            }
+            send("solve", variables, action);
+            calls.remove(calls.size() - 1);
+            stackDepth = calls.size();
+        }
+
+        void backtrack() {
+            send("solve", calls.get(stackDepth - 1), "backtrack");
+        }
+
+        private void send(String function, Map<String, Object> variables, String action) {
+            List<StackFrame> stack = new ArrayList<>();
+            for (int i = 0; i < stackDepth; i++) {
+                stack.add(new StackFrame(function, Map.of(), Map.of(), 0));
+            }
+            builder.accept(new TraceStep(++steps, function, variables, stack, 0, action, null));
+        }
+    }
+
+    private static String outline(SearchTree tree) {
+        StringBuilder text = new StringBuilder();
+        for (int node = 0; node < tree.size(); node++) {
+            text.append("  ".repeat(tree.depth(node))).append(tree.label(node));
+            if (node > 0) {
+                if (tree.result(node) != null) {
+                    text.append(" -> ").append(tree.result(node));
+                }
+                text.append(", ").append(kindName(tree.kind(node)));
+                if (tree.backtracks(node) > 0) {
+                    text.append(", ").append(tree.backtracks(node)).append(" backtracks");
+                }
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    private static String kindName(byte kind) {
+        switch (kind) {
+            case SearchTree.CALL:
+                return "call";
+            case SearchTree.LEAF:
+                return "leaf";
+            case SearchTree.ERROR:
+                return "error";
+            case SearchTree.OPEN:
+                return "open";
+            default:
+                return "root";
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.StackFrame;
+import com.backtracking.visualizer.dto.TraceOptions;
+import com.backtracking.visualizer.dto.TraceStep;
+import org.junit.jupiter.api.Test;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Runs unmodified submissions through the instrumenter and checks the events it reports
+// against what the code does: the values passed and returned, and the traced calls on the
+// stack at each step.
+class TraceInstrumenterTest {
+
+    @Test
+    void tracesLongAndDoubleArgumentsAndReturns() throws Exception {
+        // Wide values take two local slots each, and wide locals sit next to the new ones
+        List<TraceStep> steps = trace("""
+            public class Wide {
+                static long total(long base, double scale, int n) {
+                    long doubled = base * 2;
+                    double scaled = scale * n;
+                    if (n == 0) {
+                        return doubled;
+                    }
+                    return doubled + (long) scaled + total(base + 1, scale / 2, n - 1);
+                }
+
+                public static void main(String[] args) {
+                    total(5_000_000_000L, 8.0, 2);
+                }
+            }
+            """);
+
+        assertEquals(List.of("recurse total", "recurse total", "recurse total", "return total",
+                "backtrack total", "return total", "backtrack total", "return total"), events(steps));
+        assertEquals(Map.of("base", 5_000_000_000L, "scale", 8.0, "n", 2), steps.get(0).getVariables());
+        assertEquals(Map.of("base", 5_000_000_002L, "scale", 2.0, "n", 0), steps.get(2).getVariables());
+        assertEquals(10_000_000_004L, steps.get(3).getVariables().get("return"));
+        long expected = 10_000_000_000L + 16 + 10_000_000_002L + 4 + 10_000_000_004L;
+        assertEquals(expected, steps.get(7).getVariables().get("return"));
+    }
+
+    @Test
+    void reportsExceptionsAndKeepsTracingWhereTheyAreCaught() throws Exception {
+        List<TraceStep> steps = trace("""
+            public class Caught {
+                static int descend(int n) {
+                    if (n == 0) {
+                        throw new IllegalStateException("bottom");
+                    }
+                    try {
+                        return descend(n - 1);
+                    } catch (IllegalStateException e) {
+                        return n;
+                    }
+                }
+
+                public static void main(String[] args) {
+                    descend(2);
+                }
+            }
+            """);
+
+        assertEquals(List.of("recurse descend", "recurse descend", "recurse descend", "exception descend",
+                "return descend", "backtrack descend", "return descend"), events(steps));
+        assertEquals(List.of("descend", "descend", "descend"), functions(steps.get(3)));
+        assertEquals(1, steps.get(4).getVariables().get("return"));
+        assertEquals(List.of("descend", "descend"), functions(steps.get(4)));
+        assertEquals(1, steps.get(6).getVariables().get("return"));
+        assertEquals(List.of("descend"), functions(steps.get(6)));
+    }
+
+    @Test
+    void tracesRecursionStartedFromAConstructor() throws Exception {
+        List<TraceStep> steps = trace("""
+            public class Built {
+                final int size;
+
+                Built(int n) {
+                    size = count(n);
+                }
+
+                static int count(int n) {
+                    return n == 0 ? 0 : 1 + count(n - 1);
+                }
+
+                public static void main(String[] args) {
+                    new Built(1);
+                }
+            }
+            """);
+
+        assertEquals(List.of("recurse count", "recurse count", "return count", "backtrack count", "return count"),
+                events(steps));
+        assertEquals(List.of("count", "count"), functions(steps.get(1)));
+        assertEquals(1, steps.get(4).getVariables().get("return"));
+    }
+
+    @Test
+    void tracesRecursionThroughLambdas() throws Exception {
+        List<TraceStep> steps = trace("""
+            import java.util.function.IntUnaryOperator;
+
+            public class Lambdas {
+                static int depth(int n) {
+                    IntUnaryOperator next = m -> m == 0 ? 0 : 1 + depth(m - 1);
+                    return next.applyAsInt(n);
+                }
+
+                public static void main(String[] args) {
+                    depth(1);
+                }
+            }
+            """);
+
+        // depth calls itself through the lambda body, which is not traced, so the outer call
+        // sees no call to a traced method to backtrack from
+        assertEquals(List.of("recurse depth", "recurse depth", "return depth", "return depth"), events(steps));
+        assertEquals(List.of("depth", "depth"), functions(steps.get(1)));
+        assertEquals(Map.of("n", 0, "return", 0), steps.get(2).getVariables());
+        assertEquals(1, steps.get(3).getVariables().get("return"));
+    }
+
+    private static List<TraceStep> trace(String code) throws Exception {
+        return CodeExecutor.executeCode(code, true, TraceOptions.defaults());
+    }
+
+    private static List<String> events(List<TraceStep> steps) {
+        return steps.stream().map(step -> step.getAction() + " " + step.getFunction()).collect(Collectors.toList());
+    }
+
+    private static List<String> functions(TraceStep step) {
+        return step.getCallStack().stream().map(StackFrame::getFunctionName).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,177 @@
+package com.backtracking.visualizer.util;
+
+import com.backtracking.visualizer.dto.StackFrame;
+import com.backtracking.visualizer.dto.TraceStep;
+import org.junit.jupiter.api.Test;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Every step read back from a timeline, by seeking or by replaying, must hold the same
+// state the producer handed over, whichever way round its call stacks are listed and in
+// whatever order its steps arrived.
+class TraceTimelineTest {
+    private static final TraceStep.DetailsTemplate TEMPLATE = step -> step.getFunction() + " at " + step.getLine();
+
+    @Test
+    void seeksAndReplaysToTheStepsAsAccepted() {
+        List<TraceStep> steps = backtrackingSteps(6, true);
+        TraceTimeline timeline = timelineOf(steps);
+
+        assertSameSteps(steps, timeline);
+    }
+
+    @Test
+    void sharesFramesOfOutermostFirstStacks() {
+        List<TraceStep> steps = backtrackingSteps(6, false);
+        TraceTimeline timeline = timelineOf(steps);
+
+        assertSameSteps(steps, timeline);
+    }
+
+    @Test
+    void reencodesStepsHandedOverOutOfOrder() {
+        List<TraceStep> steps = backtrackingSteps(6, true);
+        List<TraceStep> handedOver = new ArrayList<>(steps);
+        // Neighbouring steps swapped, as from two threads racing to hand theirs over
+        for (int i = 1; i + 1 < handedOver.size(); i += 7) {
+            Collections.swap(handedOver, i, i + 1);
+        }
+        TraceTimeline timeline = timelineOf(handedOver);
+
+        assertSameSteps(steps, timeline);
+    }
+
+    @Test
+    void chargesDeepRecursionForTheFramesItPushes() {
+        int depth = 2_000;
+        List<TraceStep> steps = new ArrayList<>();
+        List<StackFrame> stack = new ArrayList<>();
+        for (int level = 0; level < depth; level++) {
+            stack.add(0, frame("descend", level));
+            steps.add(step(steps.size() + 1, "descend", Map.of("level", level), stack, "recurse"));
+        }
+        for (int level = depth - 1; level >= 0; level--) {
+            steps.add(step(steps.size() + 1, "descend", Map.of("level", level), stack, "backtrack"));
+            stack.remove(0);
+        }
+        TraceTimeline timeline = timelineOf(steps);
+
+        assertSameSteps(steps, timeline);
+        // Whole stacks per step would be some 2,000 frames * 4,000 steps
+        assertTrue(timeline.sizeInBytes() < 2L * 1024 * 1024, "retained " + timeline.sizeInBytes() + " bytes");
+    }
+
+    private static void assertSameSteps(List<TraceStep> expected, TraceTimeline timeline) {
+        List<TraceStep> ordered = new ArrayList<>(expected);
+        ordered.sort(Comparator.comparingInt(TraceStep::getStep));
+
+        assertEquals(ordered.size(), timeline.size());
+        List<TraceStep> replayed = new ArrayList<>(timeline.steps());
+        TraceTimeline.Steps seekable = timeline.steps();
+        for (int i = 0; i < ordered.size(); i++) {
+            String want = describe(ordered.get(i));
+            assertEquals(want, describe(replayed.get(i)), "replayed step " + (i + 1));
+            assertEquals(want, describe(seekable.get(i)), "step " + (i + 1) + " by index");
+            assertEquals(want, describe(timeline.stepAt(ordered.get(i).getStep())), "step " + (i + 1) + " by number");
+        }
+        assertNull(timeline.stepAt(ordered.size() + 1));
+    }
+
+    // Steps of a backtracking search over permutations of n, with the board copied at every
+    // step as tracers do, the templated details of automatic tracing and some text of its own
+    private static List<TraceStep> backtrackingSteps(int n, boolean innermostFirst) {
+        List<TraceStep> steps = new ArrayList<>();
+        permute(new int[n], new boolean[n], 0, new ArrayList<>(), innermostFirst, steps);
+        return steps;
+    }
+
+    private static void permute(int[] board, boolean[] used, int row, List<StackFrame> stack,
+                                boolean innermostFirst, List<TraceStep> steps) {
+        StackFrame frame = frame("permute", 10 + row);
+        if (innermostFirst) {
+            stack.add(0, frame);
+        } else {
+            stack.add(frame);
+        }
+        Map<String, Object> entered = new LinkedHashMap<>();
+        entered.put("row", row);
+        entered.put("board", board.clone());
+        steps.add(step(steps.size() + 1, "permute", entered, stack, "recurse"));
+
+        if (row == board.length) {
+            Map<String, Object> solved = new LinkedHashMap<>(entered);
+            solved.put("solution", Arrays.toString(board));
+            TraceStep step = step(steps.size() + 1, "permute", solved, stack, "solution");
+            step.setDetailsTemplate(null);
+            step.setDetails("found " + Arrays.toString(board));
+            steps.add(step);
+        } else {
+            for (int value = 0; value < board.length; value++) {
+                if (used[value]) {
+                    continue;
+                }
+                used[value] = true;
+                board[row] = value;
+                Map<String, Object> placed = new LinkedHashMap<>();
+                placed.put("row", row);
+                placed.put("board", board.clone());
+                placed.put("value", value);
+                steps.add(step(steps.size() + 1, "permute", placed, stack, "place"));
+
+                permute(board, used, row + 1, stack, innermostFirst, steps);
+
+                used[value] = false;
+                board[row] = 0;
+                Map<String, Object> removed = new LinkedHashMap<>();
+                removed.put("row", row);
+                removed.put("board", board.clone());
+                steps.add(step(steps.size() + 1, "permute", removed, stack, "backtrack"));
+            }
+        }
+
+        if (innermostFirst) {
+            stack.remove(0);
+        } else {
+            stack.remove(stack.size() - 1);
+        }
+    }
+
+    private static TraceStep step(int number, String function, Map<String, Object> variables,
+                                  List<StackFrame> stack, String action) {
+        int line = stack.isEmpty() ? 0 : stack.get(0).getLineNumber();
+        return new TraceStep(number, function, variables, new ArrayList<>(stack), line, action, null, TEMPLATE);
+    }
+
+    private static StackFrame frame(String name, int line) {
+        return new StackFrame(name, new HashMap<>(), new HashMap<>(), line);
+    }
+
+    private static TraceTimeline timelineOf(List<TraceStep> steps) {
+        TraceTimeline timeline = new TraceTimeline();
+        steps.forEach(timeline::accept);
+        return timeline;
+    }
+
+    private static String describe(TraceStep step) {
+        Map<String, String> variables = new TreeMap<>();
+        step.getVariables().forEach((name, value) ->
+            variables.put(name, value instanceof int[] cells ? Arrays.toString(cells) : String.valueOf(value)));
+        String frames = step.getCallStack().stream()
+            .map(frame -> frame.getFunctionName() + ":" + frame.getLineNumber())
+            .collect(Collectors.joining(", "));
+        return step.getStep() + " " + step.getFunction() + ":" + step.getLine() + " " + step.getAction()
+            + " [" + step.getDetails() + "] " + variables + " [" + frames + "]";
+    }
+}